@@ -0,0 +1,355 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+/**
+ * AdaptiveJoin executes the joins of a query one at a time, checking the
+ * estimates of the {@link JoinOptimizer} against the number of tuples each
+ * join actually produces.
+ * <p>
+ * The joins are run in the order the optimizer chose, and nothing is
+ * materialized that the joins would not read completely anyway: the number
+ * of tuples of an input is only checked where a join already breaks the
+ * pipeline, i.e. the build side of a {@link HashEquiJoin} or the sorted inner
+ * side of an inequality {@link SortMergeJoin}. Such a join is opened as soon
+ * as it is instantiated, which reads that input to its end, while the joins
+ * that depend on its result are not chosen yet. Inputs that are streamed are
+ * never counted, so where the estimates hold the joins run just like the
+ * static plan.
+ * <p>
+ * If the number of tuples of a counted input differs from its estimate by
+ * at least the re-planning factor, in either direction, the order of the
+ * optimizer is dropped. From then on the next join is always the one with the
+ * smallest estimated result, given the actual sizes of the results so far,
+ * and its hash table is built on the smaller side.
+ * <p>
+ * The tuples have the fields of the planned join tree, in its order,
+ * whatever order the joins ran in.
+ */
+public class AdaptiveJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinOptimizer optimizer;
+    private final Vector<LogicalJoinNode> joins;
+    private final Map<String, OpIterator> subplans;
+    private final Map<String, Integer> cards;
+    private final Map<String, TableStats> stats;
+    private final double replanFactor;
+    private final TupleDesc td;
+    private OpIterator plan;
+
+    // the join tree that runs, built by open
+    transient private OpIterator root;
+    // fieldMap[i] is the field of root that is field i of td; null if the same
+    transient private int[] fieldMap;
+    // the joins opened early to count their inputs
+    transient private ArrayList<OpIterator> started;
+    transient private Vector<LogicalJoinNode> executedOrder;
+    transient private int replans;
+
+    /**
+     * @param optimizer
+     *            the optimizer that ordered the joins
+     * @param joins
+     *            the joins, in the order of the optimizer; their join graph
+     *            must be a tree
+     * @param subplans
+     *            the plan of each table alias of the joins: its scan and
+     *            filters
+     * @param cards
+     *            the estimated cardinality of each of these plans
+     * @param stats
+     *            the statistics of the tables, by table name
+     * @param replanFactor
+     *            the factor by which the actual and estimated number of
+     *            tuples of a join must differ for the rest to be re-planned
+     * @param plan
+     *            the join tree instantiated in the order of the optimizer,
+     *            whose fields the tuples have
+     */
+    public AdaptiveJoin(JoinOptimizer optimizer, Vector<LogicalJoinNode> joins,
+            Map<String, OpIterator> subplans, Map<String, Integer> cards,
+            Map<String, TableStats> stats, double replanFactor, OpIterator plan) {
+        if (replanFactor < 1)
+            throw new IllegalArgumentException("re-planning factor must be at least 1");
+        this.optimizer = optimizer;
+        this.joins = new Vector<LogicalJoinNode>(joins);
+        this.subplans = new HashMap<String, OpIterator>(subplans);
+        this.cards = new HashMap<String, Integer>(cards);
+        this.stats = stats;
+        this.replanFactor = replanFactor;
+        this.plan = plan;
+        this.td = plan.getTupleDesc();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of times the rest of the joins were re-planned
+     *         since the join was last opened
+     */
+    public int getReplanCount() {
+        return replans;
+    }
+
+    /** @return the joins in the order they ran since the join was last opened */
+    public List<LogicalJoinNode> getExecutedOrder() {
+        return executedOrder;
+    }
+
+    /**
+     * @return the input that j reads to its end when it is opened, or null
+     *         if j streams both inputs
+     */
+    private static OpIterator breakerInput(OpIterator j) {
+        if (j instanceof HashEquiJoin)
+            return ((HashEquiJoin) j).getChildren()[0];
+        if (j instanceof SortMergeJoin
+                && ((SortMergeJoin) j).getJoinPredicate().getOperator() != Predicate.Op.EQUALS)
+            return ((SortMergeJoin) j).getChildren()[1];
+        return null;
+    }
+
+    private boolean misestimated(int estimated, long actual) {
+        double e = Math.max(estimated, 1), a = Math.max(actual, 1);
+        return a >= e * replanFactor || e >= a * replanFactor;
+    }
+
+    /**
+     * @return the position in remaining of the join with the smallest
+     *         estimated result
+     */
+    private int cheapest(List<LogicalJoinNode> remaining, Map<String, String> groupOf,
+            Map<String, Integer> groupCard) {
+        int best = 0;
+        double bestCard = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < remaining.size(); i++) {
+            LogicalJoinNode j = remaining.get(i);
+            int card = optimizer.estimateJoinCardinality(j, groupCard.get(groupOf.get(j.t1Alias)),
+                    groupCard.get(groupOf.get(j.t2Alias)), stats);
+            if (card < bestCard) {
+                best = i;
+                bestCard = card;
+            }
+        }
+        return best;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        root = null;
+        started = new ArrayList<OpIterator>();
+        executedOrder = new Vector<LogicalJoinNode>();
+        replans = 0;
+        // the tables joined so far form groups, named by one of their aliases
+        HashMap<String, String> groupOf = new HashMap<String, String>();
+        HashMap<String, OpIterator> groupPlan = new HashMap<String, OpIterator>();
+        HashMap<String, Integer> groupCard = new HashMap<String, Integer>();
+        for (String alias : subplans.keySet()) {
+            groupOf.put(alias, alias);
+            groupPlan.put(alias, subplans.get(alias));
+            groupCard.put(alias, cards.get(alias));
+        }
+        ArrayList<LogicalJoinNode> remaining = new ArrayList<LogicalJoinNode>(joins);
+        boolean trusted = true;
+        try {
+            while (true) {
+                LogicalJoinNode lj = remaining.remove(trusted ? 0
+                        : cheapest(remaining, groupOf, groupCard));
+                String g1 = groupOf.get(lj.t1Alias), g2 = groupOf.get(lj.t2Alias);
+                int card1 = groupCard.get(g1), card2 = groupCard.get(g2);
+                if (!trusted && lj.p == Predicate.Op.EQUALS && card1 > card2) {
+                    // build the hash table on the smaller side
+                    lj = lj.swapInnerOuter();
+                    String g = g1;
+                    g1 = g2;
+                    g2 = g;
+                    int c = card1;
+                    card1 = card2;
+                    card2 = c;
+                }
+                if (lj.p != Predicate.Op.EQUALS && !lj.indexJoin
+                        && lj.mergeJoin != JoinOptimizer.fitsInMemory(card2)) {
+                    // the inner side may be sorted in memory only if it fits
+                    LogicalJoinNode copy = new LogicalJoinNode(lj.t1Alias, lj.t2Alias,
+                            lj.f1PureName, lj.f2PureName, lj.p);
+                    lj = lj.mergeJoin ? copy : copy.withMergeJoin();
+                }
+                OpIterator plan1 = groupPlan.get(g1), plan2 = groupPlan.get(g2);
+                OpIterator j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+                OpIterator input = breakerInput(j);
+                boolean counting = !remaining.isEmpty() && (input == plan1 || input == plan2)
+                        && input instanceof Operator;
+                if (counting) {
+                    // the join reads this input to its end anyway, so count it
+                    // before the joins that depend on the result are chosen
+                    j.open();
+                    started.add(j);
+                    long actual = ((Operator) input).getActualCardinality();
+                    int counted = (int) Math.min(actual, Integer.MAX_VALUE);
+                    if (misestimated(input == plan1 ? card1 : card2, actual)) {
+                        trusted = false;
+                        replans++;
+                    }
+                    if (input == plan1)
+                        card1 = counted;
+                    else
+                        card2 = counted;
+                }
+                int estimated = optimizer.estimateJoinCardinality(lj, card1, card2, stats);
+                if (j instanceof Operator)
+                    ((Operator) j).setEstimatedCardinality(estimated);
+                if (counting) {
+                    j = new Started(j);
+                    ((Operator) j).setEstimatedCardinality(estimated);
+                }
+                executedOrder.add(lj);
+                for (Map.Entry<String, String> e : groupOf.entrySet()) {
+                    if (e.getValue().equals(g2))
+                        e.setValue(g1);
+                }
+                groupPlan.remove(g2);
+                groupCard.remove(g2);
+                groupPlan.put(g1, j);
+                groupCard.put(g1, estimated);
+                if (remaining.isEmpty()) {
+                    root = j;
+                    break;
+                }
+            }
+        } catch (ParsingException e) {
+            release();
+            throw new DbException("cannot re-plan joins: " + e.getMessage());
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            release();
+            throw e;
+        }
+
+        TupleDesc rootTd = root.getTupleDesc();
+        fieldMap = null;
+        if (!rootTd.equals(td) || !sameNames(rootTd, td)) {
+            fieldMap = new int[td.numFields()];
+            for (int i = 0; i < fieldMap.length; i++)
+                fieldMap[i] = rootTd.fieldNameToIndex(td.getFieldName(i));
+        }
+        root.open();
+        super.open();
+    }
+
+    private static boolean sameNames(TupleDesc a, TupleDesc b) {
+        for (int i = 0; i < a.numFields(); i++) {
+            String n = a.getFieldName(i);
+            if (n == null ? b.getFieldName(i) != null : !n.equals(b.getFieldName(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the running joins. The joins are kept, so that the tuples they
+     * produced can be reported.
+     */
+    private void release() {
+        if (root != null) {
+            root.close();
+        } else if (started != null) {
+            for (OpIterator j : started)
+                j.close();
+        }
+        started = null;
+    }
+
+    public void close() {
+        super.close();
+        release();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        root.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!root.hasNext())
+            return null;
+        Tuple t = root.next();
+        if (fieldMap == null)
+            return t;
+        Tuple out = new Tuple(td);
+        for (int i = 0; i < fieldMap.length; i++)
+            out.setField(i, t.getField(fieldMap[i]));
+        return out;
+    }
+
+    /**
+     * @return the joins that ran, once the join has been opened; the planned
+     *         join tree otherwise
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { root != null ? root : plan };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        plan = children[0];
+    }
+
+    /**
+     * A join that was opened early to count one of its inputs. The first open
+     * leaves it running; it is only opened again after it was closed.
+     */
+    private static class Started extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private OpIterator join;
+        private boolean joinOpen = true;
+
+        Started(OpIterator join) {
+            this.join = join;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return join.getTupleDesc();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (!joinOpen)
+                join.open();
+            joinOpen = true;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            join.close();
+            joinOpen = false;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            join.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return join.hasNext() ? join.next() : null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { join };
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            join = children[0];
+        }
+    }
+}
@@ -3,27 +3,39 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by any number of columns. Any number of aggregates, each over
+ * a single column, are computed over the same grouping in one pass over the
+ * child; their states are kept next to each other for every group (see
+ * {@link AggregateState.Groups}).
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of groups an aggregate keeps in memory before it spills
+     * tuples to disk.
+     */
+    public static final int DEFAULT_MAX_GROUPS = 1 << 20;
+
+    private static int defaultMaxGroups = DEFAULT_MAX_GROUPS;
+
     private OpIterator _child;
-    private int _afield;
-    private int _gfield;
-    private Aggregator.Op _aop;
-    private Aggregator _aggregator;
+    private int[] _afields;
+    private int[] _gfields;
+    private Aggregator.Op[] _aops;
+    private int _maxGroups;
+    private SpillingAggregator _aggregator;
     private OpIterator groupResultIt;
 
     /**
      * Constructor.
      * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
+     * The child is consumed when the aggregate is opened. Groups are kept in
+     * memory up to the memory budget (see {@link #setMaxGroups}); tuples of
+     * groups beyond it are spilled to disk and aggregated partition by
+     * partition, see {@link SpillingAggregator}.
      * 
      * @param child
      *            The OpIterator that is feeding us tuples.
@@ -34,31 +46,112 @@ public class Aggregate extends Operator {
      *            there is no grouping
      * @param aop
      *            The aggregation operator to use
+     * @throws IllegalArgumentException
+     *             if aop cannot be computed over the type of afield
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                aop);
+    }
+
+    /**
+     * Constructor for an aggregate grouped by several columns. Groups on more
+     * than one column are keyed by the {@link NormalizedKey} encoding of the
+     * columns.
+     * 
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @throws IllegalArgumentException
+     *             if aop cannot be computed over the type of afield
+     */
+    public Aggregate(OpIterator child, int afield, int[] gfields, Aggregator.Op aop) {
+        this(child, new int[] { afield }, gfields, new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates over the same grouping, computed in
+     * a single pass over the child.
+     * 
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            For each of afields, the aggregation operator to use
+     * @throws IllegalArgumentException
+     *             if an operator cannot be computed over the type of its
+     *             column, or afields and aops differ in length or are empty
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
 	    _child = child;
-        _afield = afield;
-        _gfield = gfield;
-        _aop = aop;
-        Type gbfieldType = null;
-        if (_gfield != Aggregator.NO_GROUPING) {
-            gbfieldType = _child.getTupleDesc().getFieldType(_gfield);
-        }
-        if (_child.getTupleDesc().getFieldType(_afield).equals(Type.INT_TYPE)) {
-            _aggregator = new IntegerAggregator(_gfield, gbfieldType, _afield, _aop);
-        } else {
-            _aggregator = new StringAggregator(_gfield, gbfieldType, _afield, _aop);
-        }
-        try {
-            _child.open();
-            while (_child.hasNext()) {
-                _aggregator.mergeTupleIntoGroup(_child.next());
+        if (afields.length != aops.length || aops.length == 0)
+            throw new IllegalArgumentException("need one aggregation operator per aggregate field");
+        _afields = afields.clone();
+        _gfields = gfields.clone();
+        _aops = aops.clone();
+        _maxGroups = defaultMaxGroups;
+        for (int i = 0; i < _aops.length; i++) {
+            Type afieldType = _child.getTupleDesc().getFieldType(_afields[i]);
+            if (!AggregateState.supports(_aops[i], afieldType)) {
+                throw new IllegalArgumentException("cannot compute " + _aops[i] + " over a "
+                        + afieldType + " field");
             }
-            groupResultIt = _aggregator.iterator();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        
+    }
+
+    /**
+     * Sets the memory budget of this aggregate, as the number of groups kept
+     * in memory. Takes effect the next time the aggregate is opened.
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (maxGroups <= 0)
+            throw new IllegalArgumentException("maxGroups must be positive");
+        _maxGroups = maxGroups;
+    }
+
+    public int getMaxGroups() {
+        return _maxGroups;
+    }
+
+    /**
+     * Sets the memory budget of aggregates created from now on.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultMaxGroups(int maxGroups) {
+        if (maxGroups <= 0)
+            throw new IllegalArgumentException("maxGroups must be positive");
+        defaultMaxGroups = maxGroups;
+    }
+
+    /** @return the memory budget of aggregates created from now on */
+    public static int getDefaultMaxGroups() {
+        return defaultMaxGroups;
+    }
+
+    /**
+     * Restores the default memory budget of aggregates.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void resetDefaultMaxGroups() {
+        defaultMaxGroups = DEFAULT_MAX_GROUPS;
+    }
+
+    /**
+     * @return true if the last open of this aggregate had to spill tuples to
+     *         disk
+     */
+    public boolean hasSpilled() {
+        return _aggregator != null && _aggregator.hasSpilled();
     }
 
     /**
@@ -67,48 +160,71 @@ public class Aggregate extends Operator {
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	    if (_gfield == Aggregator.NO_GROUPING) {
+	    if (_gfields.length == 0) {
             return Aggregator.NO_GROUPING;
         } else {
-            return _gfield;
+            return _gfields[0];
         }
     }
 
+    /**
+     * @return the indices of all groupby fields in the <b>INPUT</b> tuples;
+     *         empty if there is no grouping. The first of them is
+     *         {@link #groupField()}.
+     */
+    public int[] groupFields() {
+        return _gfields.clone();
+    }
+
     /**
      * @return If this aggregate is accompanied by a group by, return the name
      *         of the groupby field in the <b>OUTPUT</b> tuples. If not, return
      *         null;
      * */
     public String groupFieldName() {
-        if (_gfield == Aggregator.NO_GROUPING) {
+        if (_gfields.length == 0) {
             return null;
         } else {
-            // return _child.getTupleDesc().getFieldName(_gfield);
-            return groupResultIt.getTupleDesc().getFieldName(0);
+            return getTupleDesc().getFieldName(0);
         }
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field of the first aggregate
      * */
     public int aggregateField() {
-        return _afield;
+        return _afields[0];
+    }
+
+    /**
+     * @return the aggregate fields of all aggregates, in the order of their
+     *         columns in the <b>OUTPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return _afields.clone();
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name of the first aggregate field in the
+     *         <b>OUTPUT</b> tuples
      * */
     public String aggregateFieldName() {
-        // return _child.getTupleDesc().getFieldName(_afield);
-        return groupResultIt.getTupleDesc().getFieldName(1);
+        return getTupleDesc().getFieldName(_gfields.length);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator of the first aggregate
      * */
     public Aggregator.Op aggregateOp() {
-        return _aop;
+        return _aops[0];
+    }
+
+    /**
+     * @return the aggregate operators of all aggregates, one per aggregate
+     *         field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return _aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -117,25 +233,26 @@ public class Aggregate extends Operator {
 
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
+        _aggregator = new SpillingAggregator(_child.getTupleDesc(), _gfields, _afields, _aops,
+                _maxGroups);
+        _child.open();
+        while (_child.hasNext()) {
+            _aggregator.add(_child.next());
+        }
+        groupResultIt = _aggregator.iterator();
         groupResultIt.open();
         super.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the remaining fields
+     * are the results of computing the aggregates. If there is no group by
+     * field, then the result tuple contains only the results of the
+     * aggregates. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        Tuple t;
-        try {
-            t = groupResultIt.next();
-        } catch(Exception e) {
-            t = null;
-        }
-        return t;
+        return groupResultIt.hasNext() ? groupResultIt.next() : null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -144,9 +261,9 @@ public class Aggregate extends Operator {
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * this will have one field per aggregate. If there are group by fields,
+     * the first fields will be the group by fields, followed by the aggregate
+     * value columns.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -154,21 +271,30 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-        TupleDesc td = groupResultIt.getTupleDesc();
-        Type[] typeAr;
-        String[] fieldAr;
-        if (_gfield != Aggregator.NO_GROUPING) {
-            typeAr = new Type[] {td.getFieldType(0), td.getFieldType(1)};
-            fieldAr = new String[] {_child.getTupleDesc().getFieldName(_gfield), _aop.toString() + " (" + _child.getTupleDesc().getFieldName(_afield) +")"};
-        } else {
-            typeAr = new Type[] {td.getFieldType(0)};
-            fieldAr = new String[] {_aop.toString() + " (" + _child.getTupleDesc().getFieldName(_afield) +")"};
+        TupleDesc childTd = _child.getTupleDesc();
+        int n = _gfields.length;
+        Type[] typeAr = new Type[n + _aops.length];
+        String[] fieldAr = new String[n + _aops.length];
+        for (int i = 0; i < n; i++) {
+            typeAr[i] = childTd.getFieldType(_gfields[i]);
+            fieldAr[i] = childTd.getFieldName(_gfields[i]);
+        }
+        for (int i = 0; i < _aops.length; i++) {
+            typeAr[n + i] = Type.INT_TYPE;
+            fieldAr[n + i] = _aops[i].toString() + " (" + childTd.getFieldName(_afields[i]) + ")";
         }
         return new TupleDesc(typeAr, fieldAr);
     }
 
     public void close() {
-        groupResultIt.close();
+        if (groupResultIt != null) {
+            groupResultIt.close();
+            groupResultIt = null;
+        }
+        if (_aggregator != null) {
+            _aggregator.release();
+        }
+        _child.close();
         super.close();
     }
 
@@ -0,0 +1,416 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The running state of one aggregate over one group. States use constant
+ * (or, for the sketch based aggregates, bounded) memory no matter how many
+ * values are added, and two states of the same aggregate can be merged, so
+ * partial aggregates computed over different partitions of the input can be
+ * combined into the aggregate of the whole input.
+ */
+public abstract class AggregateState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Quantile computed by {@link Aggregator.Op#MEDIAN}. */
+    public static final double MEDIAN = 0.5;
+
+    /** Adds a value to the aggregate. */
+    public abstract void add(Field value);
+
+    /**
+     * Folds another state of the same aggregate into this one.
+     *
+     * @throws IllegalArgumentException
+     *             if other is not a state of the same aggregate
+     */
+    public abstract void merge(AggregateState other);
+
+    /** @return the value of the aggregate over all values added so far */
+    public abstract int result();
+
+    /**
+     * @return true if the aggregate op can be computed over fields of type t
+     */
+    public static boolean supports(Aggregator.Op op, Type t) {
+        switch (op) {
+        case COUNT:
+        case COUNT_DISTINCT:
+            return true;
+        case MIN:
+        case MAX:
+        case SUM:
+        case AVG:
+        case MEDIAN:
+            return t == Type.INT_TYPE;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Creates an empty state for the aggregate op.
+     *
+     * @throws IllegalArgumentException
+     *             if op has no state implementation
+     */
+    public static AggregateState create(Aggregator.Op op) {
+        switch (op) {
+        case COUNT:
+            return new Count();
+        case SUM:
+            return new SumCount(false);
+        case AVG:
+            return new SumCount(true);
+        case MIN:
+            return new Min();
+        case MAX:
+            return new Max();
+        case COUNT_DISTINCT:
+            return new CountDistinct();
+        case MEDIAN:
+            return new Quantile(MEDIAN);
+        default:
+            throw new IllegalArgumentException("unsupported aggregate " + op);
+        }
+    }
+
+    private static <S extends AggregateState> S cast(AggregateState other, Class<S> c) {
+        if (!c.isInstance(other))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName()
+                    + " into " + c.getSimpleName());
+        return c.cast(other);
+    }
+
+    static class Count extends AggregateState {
+        private static final long serialVersionUID = 1L;
+        long count;
+
+        public void add(Field value) {
+            count++;
+        }
+
+        public void merge(AggregateState other) {
+            count += cast(other, Count.class).count;
+        }
+
+        public int result() {
+            return (int) count;
+        }
+    }
+
+    /** SUM and AVG, kept as a running (sum, count) pair. */
+    static class SumCount extends AggregateState {
+        private static final long serialVersionUID = 1L;
+        final boolean avg;
+        long sum;
+        long count;
+
+        SumCount(boolean avg) {
+            this.avg = avg;
+        }
+
+        public void add(Field value) {
+            sum += ((IntField) value).getValue();
+            count++;
+        }
+
+        public void merge(AggregateState other) {
+            SumCount o = cast(other, SumCount.class);
+            sum += o.sum;
+            count += o.count;
+        }
+
+        public int result() {
+            if (!avg)
+                return (int) sum;
+            return count == 0 ? 0 : (int) (sum / count);
+        }
+    }
+
+    static class Min extends AggregateState {
+        private static final long serialVersionUID = 1L;
+        int min = Integer.MAX_VALUE;
+
+        public void add(Field value) {
+            min = Math.min(min, ((IntField) value).getValue());
+        }
+
+        public void merge(AggregateState other) {
+            min = Math.min(min, cast(other, Min.class).min);
+        }
+
+        public int result() {
+            return min;
+        }
+    }
+
+    static class Max extends AggregateState {
+        private static final long serialVersionUID = 1L;
+        int max = Integer.MIN_VALUE;
+
+        public void add(Field value) {
+            max = Math.max(max, ((IntField) value).getValue());
+        }
+
+        public void merge(AggregateState other) {
+            max = Math.max(max, cast(other, Max.class).max);
+        }
+
+        public int result() {
+            return max;
+        }
+    }
+
+    /** COUNT DISTINCT, exact for small groups and estimated otherwise. */
+    static class CountDistinct extends AggregateState {
+        private static final long serialVersionUID = 1L;
+        final HyperLogLog sketch = new HyperLogLog();
+
+        public void add(Field value) {
+            sketch.add(value);
+        }
+
+        public void merge(AggregateState other) {
+            sketch.merge(cast(other, CountDistinct.class).sketch);
+        }
+
+        public int result() {
+            return (int) sketch.cardinality();
+        }
+    }
+
+    /** An approximate quantile, exact for small groups. */
+    static class Quantile extends AggregateState {
+        private static final long serialVersionUID = 1L;
+        final double q;
+        final QuantileSketch sketch = new QuantileSketch();
+
+        Quantile(double q) {
+            this.q = q;
+        }
+
+        public void add(Field value) {
+            sketch.add(((IntField) value).getValue());
+        }
+
+        public void merge(AggregateState other) {
+            Quantile o = cast(other, Quantile.class);
+            if (o.q != q)
+                throw new IllegalArgumentException("cannot merge different quantiles");
+            sketch.merge(o.sketch);
+        }
+
+        public int result() {
+            return sketch.quantile(q);
+        }
+    }
+
+    /**
+     * The states of one or more aggregates over a set of groups. Group keys
+     * are numbered by a {@link KeyTable}, and the states of group i are kept
+     * next to each other in a single array, at [i * n, (i + 1) * n) for n
+     * aggregates, so no map entry or boxed key is created per group and a
+     * tuple updates all aggregates of its group in one place. Without
+     * grouping there is a single group, whose key is null. Groups on several
+     * fields are keyed by the {@link NormalizedKey} encoding of the fields.
+     */
+    static class Groups implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Aggregator.Op[] ops;
+        private final boolean grouped;
+        private final NormalizedKey composite;
+        private KeyTable keys = null;
+        private AggregateState[] states;
+        private int size = 0;
+
+        /**
+         * @param grouped
+         *            false if all values belong to a single group
+         */
+        Groups(Aggregator.Op op, boolean grouped) {
+            this(new Aggregator.Op[] { op }, grouped);
+        }
+
+        /**
+         * @param ops
+         *            the aggregates computed for every group
+         * @param grouped
+         *            false if all values belong to a single group
+         */
+        Groups(Aggregator.Op[] ops, boolean grouped) {
+            this.ops = ops.clone();
+            this.grouped = grouped;
+            this.composite = null;
+            this.states = new AggregateState[16 * ops.length];
+        }
+
+        /**
+         * @param ops
+         *            the aggregates computed for every group
+         * @param composite
+         *            the encoding of the group fields, whose encoded keys are
+         *            passed to {@link #find(byte[])} and
+         *            {@link #findOrCreate(byte[])}
+         */
+        Groups(Aggregator.Op[] ops, NormalizedKey composite) {
+            this.ops = ops.clone();
+            this.grouped = true;
+            this.composite = composite;
+            this.keys = new KeyTable();
+            this.states = new AggregateState[16 * ops.length];
+        }
+
+        boolean isGrouped() {
+            return grouped;
+        }
+
+        /** @return the number of fields a group is keyed by */
+        int numGroupFields() {
+            if (!grouped)
+                return 0;
+            return composite == null ? 1 : composite.numFields();
+        }
+
+        /** @return the number of aggregates of every group */
+        int numAggregates() {
+            return ops.length;
+        }
+
+        /** @return the number of groups */
+        int size() {
+            return size;
+        }
+
+        /** @return the number of a group, or -1 if it has no states yet */
+        int find(Field group) {
+            if (!grouped)
+                return size == 0 ? -1 : 0;
+            return keys == null ? -1 : keys.get(group);
+        }
+
+        /** @return the number of a group on several fields, or -1 */
+        int find(byte[] group) {
+            return keys.get(group);
+        }
+
+        /** @return the number of a group, creating its states if necessary */
+        int findOrCreate(Field group) {
+            int id = 0;
+            if (grouped) {
+                if (keys == null)
+                    keys = new KeyTable(group.getType());
+                id = keys.add(group);
+            }
+            return create(id);
+        }
+
+        /**
+         * @return the number of a group on several fields, creating its
+         *         states if necessary
+         */
+        int findOrCreate(byte[] group) {
+            return create(keys.add(group));
+        }
+
+        private int create(int id) {
+            if (id < size)
+                return id;
+            int n = ops.length;
+            if ((id + 1) * n > states.length)
+                states = Arrays.copyOf(states, states.length * 2);
+            for (int j = 0; j < n; j++)
+                states[id * n + j] = AggregateState.create(ops[j]);
+            size = id + 1;
+            return id;
+        }
+
+        /** @return the state of the first aggregate of a group, or null */
+        AggregateState get(Field group) {
+            int id = find(group);
+            return id < 0 ? null : states[id * ops.length];
+        }
+
+        /**
+         * @return the state of the first aggregate of a group, creating the
+         *         states of the group if necessary
+         */
+        AggregateState getOrCreate(Field group) {
+            // create first: it may replace the states array
+            int id = findOrCreate(group);
+            return states[id * ops.length];
+        }
+
+        /** @return the values of the group fields of the i-th group */
+        Field[] groupFields(int i) {
+            if (!grouped)
+                return new Field[0];
+            if (composite == null)
+                return new Field[] { keys.key(i) };
+            return composite.decode(keys.bytes(i));
+        }
+
+        /** @return the state of the j-th aggregate of the i-th group */
+        AggregateState state(int i, int j) {
+            return states[i * ops.length + j];
+        }
+    }
+
+    /**
+     * An OpIterator over the results of a set of groups: (group, results)
+     * tuples, with one field per group field and one per aggregate, or just
+     * (results) tuples if there is no grouping. The results are
+     * computed when the iterator is opened, so an iterator reflects the
+     * values merged into the groups up to its last open or rewind.
+     */
+    static class ResultIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final Groups groups;
+        private final TupleDesc td;
+        private Iterator<Tuple> it = null;
+
+        ResultIterator(Groups groups, TupleDesc td) {
+            this.groups = groups;
+            this.td = td;
+        }
+
+        public void open() {
+            ArrayList<Tuple> results = new ArrayList<Tuple>(groups.size());
+            for (int i = 0; i < groups.size(); i++) {
+                Tuple t = new Tuple(td);
+                Field[] group = groups.groupFields(i);
+                for (int j = 0; j < group.length; j++)
+                    t.setField(j, group[j]);
+                for (int j = 0; j < groups.numAggregates(); j++)
+                    t.setField(group.length + j, new IntField(groups.state(i, j).result()));
+                results.add(t);
+            }
+            it = results.iterator();
+        }
+
+        public boolean hasNext() {
+            return it != null && it.hasNext();
+        }
+
+        public Tuple next() {
+            if (it == null || !it.hasNext())
+                throw new NoSuchElementException();
+            return it.next();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            it = null;
+        }
+    }
+}
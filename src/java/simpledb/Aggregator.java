@@ -25,7 +25,16 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab7.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * COUNT_DISTINCT: number of distinct values, estimated with a
+         * HyperLogLog sketch once a group gets large.
+         * */
+        COUNT_DISTINCT,
+        /**
+         * MEDIAN: approximate median, computed with a quantile sketch.
+         * */
+        MEDIAN;
 
         /**
          * Interface to access operations by a string containing an integer
@@ -63,6 +72,10 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==COUNT_DISTINCT)
+        		return "count_distinct";
+        	if (this==MEDIAN)
+        		return "median";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
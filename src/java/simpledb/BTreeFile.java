@@ -168,6 +168,18 @@ public class BTreeFile implements DbFile {
 		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
 
+	/**
+	 * Estimates the height of the tree, i.e. the number of pages read by a
+	 * lookup from the root to a leaf, from the number of pages and the number
+	 * of keys that fit on an internal page. Does not read any pages.
+	 */
+	public int estimateHeight() {
+		int pages = Math.max(1, numPages());
+		int entryBytes = td.getFieldType(keyField).getLen() + BTreePage.INDEX_SIZE;
+		int fanout = Math.max(2, BufferPool.getPageSize() / entryBytes);
+		return 1 + (int) Math.ceil(Math.log(pages) / Math.log(fanout));
+	}
+
 	/**
 	 * Returns the index of the field that this B+ tree is keyed on
 	 */
@@ -194,8 +206,23 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			// keys equal to the separator may also be in the left subtree
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + pid + " has no entries");
+		}
+		return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
 	}
 	
 	/**
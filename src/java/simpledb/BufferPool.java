@@ -28,6 +28,7 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     private int _numPages;
+    /** The cached pages; every access holds the lock on this BufferPool. */
     private HashMap<PageId, Page> _pagesHashMap;
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -68,7 +69,7 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         if (!_pagesHashMap.containsKey(pid)) {
             if (_pagesHashMap.size() > _numPages - 1) {
@@ -138,6 +139,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The insert is also counted in the statistics of the table, see
+     * {@link TableStats}.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -147,6 +151,7 @@ public class BufferPool {
         
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         updateBufferPool(dbFile.insertTuple(tid, t), tid);
+        TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -159,16 +164,21 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The delete is also counted in the statistics of the table, see
+     * {@link TableStats}.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-            updateBufferPool(dbFile.deleteTuple(tid, t), tid);;
+            int tableId = t.getRecordId().getPageId().getTableId();
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+            updateBufferPool(dbFile.deleteTuple(tid, t), tid);
+            TableStats.tupleDeleted(tableId, t);
     }
 
-    private void updateBufferPool(ArrayList<Page> pagelist,TransactionId tid) throws DbException{
+    private synchronized void updateBufferPool(ArrayList<Page> pagelist,TransactionId tid) throws DbException{
         for(Page p:pagelist){
             p.markDirty(true,tid);
             if (_pagesHashMap.size() > _numPages - 1) {
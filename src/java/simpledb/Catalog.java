@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -23,6 +24,8 @@ public class Catalog {
         private DbFile _dbFile;
         private String _name;
         private String _primaryKey;
+        // groups of fields that keep joint statistics, see addColumnGroup
+        private final List<int[]> _columnGroups = new CopyOnWriteArrayList<int[]>();
 
         public Table(DbFile file, String name, String pkeyField) {
             _dbFile = file;
@@ -41,16 +44,21 @@ public class Catalog {
         public String getPrimaryKey() {
             return _primaryKey;
         }
+
+        public List<int[]> getColumnGroups() {
+            return _columnGroups;
+        }
     };
 
     // 方便根据id或者名字找到表
     private static class TableHashMap {
-        private HashMap<Integer, Table> _tables_id;
-        private HashMap<String, Table> _tables_name;
+        private Map<Integer, Table> _tables_id;
+        private Map<String, Table> _tables_name;
 
         public TableHashMap() {
-            _tables_id = new HashMap<Integer, Table>(); 
-            _tables_name = new HashMap<String, Table>(); 
+            // operators register temporary spill files from worker threads
+            _tables_id = Collections.synchronizedMap(new HashMap<Integer, Table>()); 
+            _tables_name = Collections.synchronizedMap(new HashMap<String, Table>()); 
         }
 
         public void addTable(DbFile file, String name, String pkeyField) {
@@ -67,6 +75,12 @@ public class Catalog {
             return _tables_name.get(name);
         }
 
+        public void removeTable(int tableid) {
+            Table table = _tables_id.remove(tableid);
+            if (table != null)
+                _tables_name.remove(table.getName(), table);
+        }
+
         public Iterator<Integer> getTableIdIterator() {
             return _tables_id.keySet().iterator();
         }
@@ -167,6 +181,50 @@ public class Catalog {
         }
     }
 
+    /**
+     * Declares that the values of some fields of a table are correlated, so
+     * that {@link TableStats} keeps joint statistics of them and estimates
+     * conjunctions of predicates over them together rather than as if they
+     * were independent. Takes effect when the statistics of the table are
+     * next computed.
+     *
+     * @param tableid the id of the table
+     * @param fieldNames the names of at least two different fields of it
+     * @throws NoSuchElementException if the table or a field doesn't exist
+     */
+    public void addColumnGroup(int tableid, String... fieldNames) throws NoSuchElementException {
+        Table table = _tableHashMap.getTable(tableid);
+        if (table == null)
+            throw new NoSuchElementException("not find id for table " + tableid);
+        TupleDesc td = table.getDbFile().getTupleDesc();
+        TreeSet<Integer> fields = new TreeSet<Integer>();
+        for (String name : fieldNames)
+            fields.add(td.fieldNameToIndex(name));
+        if (fields.size() < 2)
+            throw new IllegalArgumentException("a column group needs at least two fields");
+        int[] group = new int[fields.size()];
+        int i = 0;
+        for (int f : fields)
+            group[i++] = f;
+        for (int[] g : table.getColumnGroups()) {
+            if (Arrays.equals(g, group))
+                return;
+        }
+        table.getColumnGroups().add(group);
+    }
+
+    /**
+     * @return the column groups of a table, see {@link #addColumnGroup}, as
+     *         sorted field indexes
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public List<int[]> getColumnGroups(int tableid) throws NoSuchElementException {
+        Table table = _tableHashMap.getTable(tableid);
+        if (table == null)
+            throw new NoSuchElementException("not find id for table " + tableid);
+        return Collections.unmodifiableList(table.getColumnGroups());
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return _tableHashMap.getTableIdIterator();
     }
@@ -180,6 +238,14 @@ public class Catalog {
         }
     }
     
+    /**
+     * Remove a table from the catalog, e.g. a temporary file that is no
+     * longer needed. Does nothing if the table does not exist.
+     */
+    public void removeTable(int tableid) {
+        _tableHashMap.removeTable(tableid);
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         _tableHashMap.clear();
@@ -187,6 +253,9 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table as <tt>name (field type [pk], ...)</tt>,
+     * optionally followed by column groups <tt>group (field, field, ...)</tt>,
+     * see {@link #addColumnGroup}.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -230,6 +299,23 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                String rest = line.substring(line.indexOf(")") + 1).trim();
+                while (!rest.isEmpty()) {
+                    if (!rest.startsWith("group") || rest.indexOf("(") < 0
+                            || rest.indexOf(")") < rest.indexOf("("))
+                        throw new IndexOutOfBoundsException();
+                    String group = rest.substring(rest.indexOf("(") + 1, rest.indexOf(")"));
+                    String[] groupFields = group.split(",");
+                    for (int i = 0; i < groupFields.length; i++)
+                        groupFields[i] = groupFields[i].trim();
+                    try {
+                        addColumnGroup(tabHf.getId(), groupFields);
+                    } catch (RuntimeException e) {
+                        System.out.println("Invalid column group " + group + " : " + e.getMessage());
+                        System.exit(0);
+                    }
+                    rest = rest.substring(rest.indexOf(")") + 1).trim();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joint statistics of a group of correlated fields of a table, declared with
+ * {@link Catalog#addColumnGroup}, built by {@link TableStats}:
+ * <ul>
+ * <li>the number of distinct combinations of their values, estimated by a
+ * {@link HyperLogLog} sketch of all tuples;</li>
+ * <li>a sample of the tuples, projected onto the fields of the group.</li>
+ * </ul>
+ * A conjunction of predicates over the fields is estimated as the fraction
+ * of the sample that satisfies all of them, rather than as the product of
+ * their selectivities, which underestimates predicates over correlated
+ * fields (say city and zip code) by orders of magnitude.
+ */
+public class ColumnGroupStats {
+
+    /**
+     * The fewest sampled tuples that must satisfy a conjunction for its
+     * estimate to be taken from the sample alone.
+     */
+    static final int MIN_SAMPLE_MATCHES = 5;
+
+    private final int[] fields;
+    private final HyperLogLog sketch;
+    // the sampled tuples, rows[i][j] being the value of fields[j]
+    private final Field[][] rows;
+
+    /**
+     * @param fields
+     *            the sorted indexes of the fields of the group
+     * @param sketch
+     *            the sketch all combinations of values were offered to, see
+     *            {@link #hash}
+     * @param rows
+     *            the sample, projected onto the fields of the group
+     */
+    ColumnGroupStats(int[] fields, HyperLogLog sketch, Field[][] rows) {
+        this.fields = fields;
+        this.sketch = sketch;
+        this.rows = rows;
+    }
+
+    /** @return the hash of the values of the fields of the group in t */
+    static long hash(int[] fields, Tuple t) {
+        long h = 0;
+        for (int f : fields)
+            h = Long.rotateLeft(h, 23) ^ HyperLogLog.hash(t.getField(f));
+        return h;
+    }
+
+    /** @return the sorted indexes of the fields of the group */
+    public int[] fields() {
+        return fields.clone();
+    }
+
+    /** @return the estimated number of distinct combinations of values */
+    public long numDistinct() {
+        return Math.max(1, sketch.cardinality());
+    }
+
+    /** @return the position of field in the group, or -1 */
+    int positionOf(int field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of some predicates over the
+     * fields of the group.
+     *
+     * @param preds
+     *            the predicates, each over a field of the group
+     * @param single
+     *            the selectivity of each predicate by itself
+     * @return the estimated fraction of the tuples that satisfy all of them
+     */
+    public double estimateSelectivity(List<Predicate> preds, double[] single) {
+        double product = 1, min = 1;
+        for (double s : single) {
+            product *= s;
+            min = Math.min(min, s);
+        }
+        if (rows.length == 0)
+            return product;
+        boolean allEqual = true;
+        boolean[] equated = new boolean[fields.length];
+        int[] pos = new int[preds.size()];
+        for (int i = 0; i < pos.length; i++) {
+            Predicate p = preds.get(i);
+            pos[i] = positionOf(p.getField());
+            if (p.getOp() == Predicate.Op.EQUALS)
+                equated[pos[i]] = true;
+            else
+                allEqual = false;
+        }
+        int matches = 0;
+        for (Field[] row : rows) {
+            boolean all = true;
+            for (int i = 0; i < pos.length && all; i++) {
+                Predicate p = preds.get(i);
+                all = row[pos[i]].compare(p.getOp(), p.getOperand());
+            }
+            if (all)
+                matches++;
+        }
+        double sel;
+        if (matches >= MIN_SAMPLE_MATCHES) {
+            sel = (double) matches / rows.length;
+        } else {
+            boolean allFields = true;
+            for (boolean e : equated)
+                allFields &= e;
+            // a rare combination of values: one distinct combination if the
+            // whole group is fixed, otherwise the sample tells too little
+            if (allEqual && allFields)
+                sel = Math.max(product, 1.0 / numDistinct());
+            else
+                sel = Math.max(product, (double) matches / rows.length);
+        }
+        // a conjunction is no more selective than any of its predicates
+        return Math.min(sel, min);
+    }
+
+    /** Counts a tuple inserted into the table. */
+    void addTuple(Tuple t) {
+        sketch.addHash(hash(fields, t));
+    }
+
+    /** Writes these statistics to out, see {@link #readFrom}. */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(fields.length);
+        for (int f : fields)
+            out.writeInt(f);
+        sketch.writeTo(out);
+        out.writeInt(rows.length);
+        for (Field[] row : rows) {
+            for (Field f : row)
+                f.serialize(out);
+        }
+    }
+
+    /**
+     * Reads statistics written by {@link #writeTo}.
+     *
+     * @param types
+     *            the types of the fields of the table
+     */
+    static ColumnGroupStats readFrom(DataInputStream in, Type[] types) throws IOException {
+        int[] fields = new int[in.readInt()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readInt();
+            if (fields[i] < 0 || fields[i] >= types.length)
+                throw new IOException("corrupt statistics file");
+        }
+        HyperLogLog sketch = HyperLogLog.readFrom(in);
+        Field[][] rows = new Field[in.readInt()][];
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new Field[fields.length];
+                for (int j = 0; j < fields.length; j++)
+                    rows[i][j] = types[fields[j]].parse(in);
+            }
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+        return new ColumnGroupStats(fields, sketch, rows);
+    }
+
+    public String toString() {
+        return String.format("ColumnGroupStats(fields=%s, rows=%d, distinct=%d)",
+                Arrays.toString(fields), rows.length, numDistinct());
+    }
+}
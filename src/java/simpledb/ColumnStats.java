@@ -0,0 +1,462 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Statistics of an integer field of a table, built from a sample of its
+ * values by {@link TableStats}:
+ * <ul>
+ * <li>its range, over all values;</li>
+ * <li>its most common values (MCVs) with their frequencies, so that the
+ * selectivity of frequent values of a skewed field is exact;</li>
+ * <li>an equi-depth histogram of the other values, whose buckets hold about
+ * the same number of values each and never split a value;</li>
+ * <li>its number of distinct values, estimated by a {@link HyperLogLog}
+ * sketch of all values.</li>
+ * </ul>
+ * Frequencies are fractions of the sampled values, so they are fractions of
+ * the tuples of the table as well.
+ */
+public class ColumnStats {
+
+    private int min, max;
+    private long total; // the sampled values
+    // the most common values, sorted, and their counts
+    private int[] mcvs;
+    private long[] mcvCounts;
+    // the buckets, sorted and disjoint: the values lo[b]..hi[b] inclusive,
+    // counts[b] of them sampled, with distincts[b] different values
+    private int[] lo, hi;
+    private long[] counts;
+    private int[] distincts;
+    private final HyperLogLog sketch;
+    private int sampleDistinct; // distinct values in the sample
+
+    private ColumnStats(HyperLogLog sketch) {
+        this.sketch = sketch;
+    }
+
+    /**
+     * Builds the statistics of a field.
+     *
+     * @param values
+     *            the sampled values of the field; values[0..n) are used and
+     *            reordered
+     * @param min
+     *            the smallest value of the field over all tuples
+     * @param max
+     *            the largest value of the field over all tuples
+     * @param sketch
+     *            the sketch all values of the field were offered to
+     * @param buckets
+     *            the number of buckets of the histogram
+     * @param maxMcvs
+     *            the maximum number of most common values
+     */
+    static ColumnStats build(int[] values, int n, int min, int max, HyperLogLog sketch,
+            int buckets, int maxMcvs) {
+        ColumnStats s = new ColumnStats(sketch);
+        s.min = min;
+        s.max = max;
+        s.total = n;
+        Arrays.sort(values, 0, n);
+
+        // run-length encode the sorted values
+        int runs = 0;
+        int[] runValues = new int[n];
+        long[] runCounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (runs > 0 && runValues[runs - 1] == values[i]) {
+                runCounts[runs - 1]++;
+            } else {
+                runValues[runs] = values[i];
+                runCounts[runs++] = 1;
+            }
+        }
+        s.sampleDistinct = runs;
+
+        // values clearly more frequent than the average are MCVs; if the
+        // field has few values, all of them are
+        boolean[] isMcv = new boolean[runs];
+        int nMcvs = 0;
+        if (runs <= maxMcvs) {
+            Arrays.fill(isMcv, true);
+            nMcvs = runs;
+        } else if (runs > 0) {
+            double threshold = Math.max(2, 1.25 * n / runs);
+            Integer[] order = new Integer[runs];
+            for (int i = 0; i < runs; i++)
+                order[i] = i;
+            final long[] rc = runCounts;
+            Arrays.sort(order, (a, b) -> Long.compare(rc[b], rc[a]));
+            while (nMcvs < maxMcvs && rc[order[nMcvs]] >= threshold)
+                isMcv[order[nMcvs++]] = true;
+        }
+        s.mcvs = new int[nMcvs];
+        s.mcvCounts = new long[nMcvs];
+        long rest = 0;
+        for (int i = 0, j = 0; i < runs; i++) {
+            if (isMcv[i]) {
+                s.mcvs[j] = runValues[i];
+                s.mcvCounts[j++] = runCounts[i];
+            } else {
+                rest += runCounts[i];
+            }
+        }
+
+        // cut the other values into buckets of about rest / buckets values
+        int[] bl = new int[buckets], bh = new int[buckets], bd = new int[buckets];
+        long[] bc = new long[buckets];
+        int nb = 0;
+        double depth = (double) rest / buckets;
+        long seen = 0;
+        for (int i = 0; i < runs; i++) {
+            if (isMcv[i])
+                continue;
+            if (nb == 0 || (bc[nb - 1] > 0 && seen >= depth * nb && nb < buckets)) {
+                bl[nb] = runValues[i];
+                nb++;
+            }
+            bh[nb - 1] = runValues[i];
+            bc[nb - 1] += runCounts[i];
+            bd[nb - 1]++;
+            seen += runCounts[i];
+        }
+        s.lo = Arrays.copyOf(bl, nb);
+        s.hi = Arrays.copyOf(bh, nb);
+        s.counts = Arrays.copyOf(bc, nb);
+        s.distincts = Arrays.copyOf(bd, nb);
+        return s;
+    }
+
+    /** @return the smallest value of the field */
+    public int min() {
+        return min;
+    }
+
+    /** @return the largest value of the field */
+    public int max() {
+        return max;
+    }
+
+    /** @return the estimated number of distinct values of the field */
+    public long numDistinct() {
+        return Math.max(sketch.cardinality(), sampleDistinct);
+    }
+
+    /** @return the fraction of the values that are not MCVs */
+    private double restFraction() {
+        long rest = 0;
+        for (long c : counts)
+            rest += c;
+        return total == 0 ? 0 : (double) rest / total;
+    }
+
+    /**
+     * @return how many distinct values of the field each distinct value of
+     *         the sample that is not an MCV stands for
+     */
+    private double distinctScale() {
+        int sampled = sampleDistinct - mcvs.length;
+        if (sampled <= 0)
+            return 1;
+        return Math.max(1.0, (double) (numDistinct() - mcvs.length) / sampled);
+    }
+
+    /** @return the bucket that holds v, or -1 */
+    private int bucketOf(int v) {
+        int l = 0, h = lo.length - 1;
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            if (hi[m] < v)
+                l = m + 1;
+            else if (lo[m] > v)
+                h = m - 1;
+            else
+                return m;
+        }
+        return -1;
+    }
+
+    /** @return the fraction of the values equal to v */
+    private double equal(int v) {
+        if (total == 0 || v < min || v > max)
+            return 0;
+        int i = Arrays.binarySearch(mcvs, v);
+        if (i >= 0)
+            return (double) mcvCounts[i] / total;
+        int b = bucketOf(v);
+        if (b >= 0)
+            return (double) counts[b] / total / (distincts[b] * distinctScale());
+        // a value the sample missed
+        long others = numDistinct() - mcvs.length;
+        return others <= 0 ? 0 : restFraction() / others;
+    }
+
+    /** @return the fraction of the values less than v */
+    private double less(int v) {
+        if (total == 0 || v <= min)
+            return 0;
+        if (v > max)
+            return 1;
+        long c = 0;
+        int i = Arrays.binarySearch(mcvs, v);
+        for (int j = 0; j < (i >= 0 ? i : -i - 1); j++)
+            c += mcvCounts[j];
+        double below = c;
+        for (int b = 0; b < lo.length && lo[b] < v; b++) {
+            if (hi[b] < v)
+                below += counts[b];
+            else
+                below += counts[b] * ((double) v - lo[b]) / ((double) hi[b] - lo[b] + 1);
+        }
+        return below / total;
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>field op v</tt>.
+     *
+     * @return the estimated fraction of the tuples that satisfy it
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = equal(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1 - equal(v);
+            break;
+        case LESS_THAN:
+            sel = less(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = less(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            sel = 1 - less(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1 - less(v);
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported operator " + op);
+        }
+        return Math.max(0, Math.min(1, sel));
+    }
+
+    /**
+     * @return the selectivity of <tt>field op v</tt> for a value v of the
+     *         field chosen at random
+     */
+    public double avgSelectivity(Predicate.Op op) {
+        if (total == 0)
+            return 0;
+        // the probability that two values chosen at random are equal
+        double eq = 0;
+        for (long c : mcvCounts)
+            eq += ((double) c / total) * ((double) c / total);
+        for (int b = 0; b < lo.length; b++)
+            eq += ((double) counts[b] / total) * ((double) counts[b] / total)
+                    / (distincts[b] * distinctScale());
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1 - eq;
+        case LESS_THAN:
+        case GREATER_THAN:
+            return (1 - eq) / 2;
+        default:
+            return (1 + eq) / 2;
+        }
+    }
+
+    /**
+     * Estimate the fraction of the cross product of two tables that satisfies
+     * the join predicate <tt>a op b</tt>.
+     * <p>
+     * An equality matches the MCVs of both sides exactly, each MCV of one
+     * side against the other side's frequency of that value, and assumes
+     * that each of the remaining values of the side with fewer distinct
+     * values has a match on the other side. Other predicates are estimated
+     * by comparing each MCV and bucket of a to the distribution of b.
+     */
+    public static double joinSelectivity(ColumnStats a, Predicate.Op op, ColumnStats b) {
+        if (a.total == 0 || b.total == 0)
+            return 0;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equiJoinSelectivity(a, b);
+        case NOT_EQUALS:
+            return 1 - equiJoinSelectivity(a, b);
+        default:
+            // a op v holds for the values v of b that satisfy v flipped a
+            Predicate.Op flipped;
+            if (op == Predicate.Op.LESS_THAN)
+                flipped = Predicate.Op.GREATER_THAN;
+            else if (op == Predicate.Op.LESS_THAN_OR_EQ)
+                flipped = Predicate.Op.GREATER_THAN_OR_EQ;
+            else if (op == Predicate.Op.GREATER_THAN)
+                flipped = Predicate.Op.LESS_THAN;
+            else
+                flipped = Predicate.Op.LESS_THAN_OR_EQ;
+            double sel = 0;
+            for (int i = 0; i < a.mcvs.length; i++)
+                sel += (double) a.mcvCounts[i] / a.total
+                        * b.estimateSelectivity(flipped, a.mcvs[i]);
+            for (int i = 0; i < a.lo.length; i++) {
+                int mid = (int) (((long) a.lo[i] + a.hi[i]) / 2);
+                sel += (double) a.counts[i] / a.total * b.estimateSelectivity(flipped, mid);
+            }
+            return Math.max(0, Math.min(1, sel));
+        }
+    }
+
+    private static double equiJoinSelectivity(ColumnStats a, ColumnStats b) {
+        double sel = 0;
+        for (int i = 0; i < a.mcvs.length; i++)
+            sel += (double) a.mcvCounts[i] / a.total * b.equal(a.mcvs[i]);
+        for (int i = 0; i < b.mcvs.length; i++) {
+            if (Arrays.binarySearch(a.mcvs, b.mcvs[i]) < 0)
+                sel += (double) b.mcvCounts[i] / b.total * a.equal(b.mcvs[i]);
+        }
+        // the other values only overlap within the common range
+        long others = Math.max(a.numDistinct() - a.mcvs.length, b.numDistinct() - b.mcvs.length);
+        if (others > 0 && a.max >= b.min && b.max >= a.min)
+            sel += a.restFraction() * b.restFraction() / others;
+        return Math.max(0, Math.min(1, sel));
+    }
+
+    /**
+     * Counts a value inserted into the table.
+     *
+     * @param sampled
+     *            whether the value counts as sampled, see
+     *            {@link TableStats}; the distinct values and the range
+     *            always count all values
+     */
+    void addValue(int v, boolean sampled) {
+        sketch.addHash(HyperLogLog.hash(v));
+        if (total == 0 && mcvs.length == 0 && lo.length == 0) {
+            min = v;
+            max = v;
+        }
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+        if (!sampled)
+            return;
+        total++;
+        int i = Arrays.binarySearch(mcvs, v);
+        if (i >= 0) {
+            mcvCounts[i]++;
+            return;
+        }
+        if (lo.length == 0) {
+            lo = new int[] { v };
+            hi = new int[] { v };
+            counts = new long[] { 0 };
+            distincts = new int[] { 1 };
+        }
+        int b = bucketOf(v);
+        if (b < 0) {
+            // widen the nearest bucket
+            int l = 0;
+            while (l < lo.length && hi[l] < v)
+                l++;
+            if (l == lo.length || (l > 0 && (long) v - hi[l - 1] < (long) lo[l] - v))
+                b = l - 1;
+            else
+                b = l;
+            lo[b] = Math.min(lo[b], v);
+            hi[b] = Math.max(hi[b], v);
+        }
+        counts[b]++;
+    }
+
+    /** Counts a value deleted from the table, see {@link #addValue}. */
+    void removeValue(int v, boolean sampled) {
+        if (!sampled)
+            return;
+        int i = Arrays.binarySearch(mcvs, v);
+        if (i >= 0) {
+            if (mcvCounts[i] > 0) {
+                mcvCounts[i]--;
+                total--;
+            }
+            return;
+        }
+        int b = bucketOf(v);
+        if (b >= 0 && counts[b] > 0) {
+            counts[b]--;
+            total--;
+        }
+    }
+
+    /** Writes these statistics to out, see {@link #readFrom}. */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeLong(total);
+        out.writeInt(sampleDistinct);
+        out.writeInt(mcvs.length);
+        for (int i = 0; i < mcvs.length; i++) {
+            out.writeInt(mcvs[i]);
+            out.writeLong(mcvCounts[i]);
+        }
+        out.writeInt(lo.length);
+        for (int b = 0; b < lo.length; b++) {
+            out.writeInt(lo[b]);
+            out.writeInt(hi[b]);
+            out.writeLong(counts[b]);
+            out.writeInt(distincts[b]);
+        }
+        sketch.writeTo(out);
+    }
+
+    /** Reads statistics written by {@link #writeTo}. */
+    static ColumnStats readFrom(DataInput in) throws IOException {
+        int min = in.readInt(), max = in.readInt();
+        long total = in.readLong();
+        int sampleDistinct = in.readInt();
+        int n = in.readInt();
+        int[] mcvs = new int[n];
+        long[] mcvCounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            mcvs[i] = in.readInt();
+            mcvCounts[i] = in.readLong();
+        }
+        n = in.readInt();
+        int[] lo = new int[n], hi = new int[n], distincts = new int[n];
+        long[] counts = new long[n];
+        for (int b = 0; b < n; b++) {
+            lo[b] = in.readInt();
+            hi[b] = in.readInt();
+            counts[b] = in.readLong();
+            distincts[b] = in.readInt();
+        }
+        ColumnStats s = new ColumnStats(HyperLogLog.readFrom(in));
+        s.min = min;
+        s.max = max;
+        s.total = total;
+        s.sampleDistinct = sampleDistinct;
+        s.mcvs = mcvs;
+        s.mcvCounts = mcvCounts;
+        s.lo = lo;
+        s.hi = hi;
+        s.counts = counts;
+        s.distincts = distincts;
+        return s;
+    }
+
+    public String toString() {
+        return String.format("ColumnStats(min=%d, max=%d, mcvs=%d, buckets=%d, distinct=%d)",
+                min, max, mcvs.length, lo.length, numDistinct());
+    }
+}
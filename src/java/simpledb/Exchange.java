@@ -0,0 +1,524 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange is the Volcano-style operator that introduces parallelism into a
+ * plan. Each input of an exchange is run on its own worker thread (the
+ * producer), and the tuples it generates are routed to one or more output
+ * streams (the consumers) through queues:
+ * <ul>
+ * <li>{@link #gather} merges all inputs into a single output stream;</li>
+ * <li>{@link #repartition} sends every tuple to the output selected by the
+ * hash of one of its fields;</li>
+ * <li>{@link #broadcast} sends every tuple to every output.</li>
+ * </ul>
+ * Because the parallelism lives entirely inside the exchange, ordinary
+ * operators such as Filter, Join, HashEquiJoin or Aggregate run on multiple
+ * cores unchanged: a partitioned hash join is a gather over one HashEquiJoin
+ * per pair of matching repartition outputs.
+ * <p>
+ * Each output buffers at most {@link #QUEUE_BATCHES} batches in memory. A
+ * gather applies back pressure to its producers once its queue is full. The
+ * consumers of a repartition or broadcast usually wait on one another (a
+ * nested loops join reads its whole inner input per outer tuple), so their
+ * producers never block: batches beyond a full queue are appended to a
+ * {@link SpillFile}, which the consumer reads once all producers are done.
+ * Those consumers also write the tuples they read from memory to a spill
+ * file, so that they can be rewound; a gather is rewound by restarting its
+ * producers.
+ * <p>
+ * Tuples are returned in no particular order.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The ways in which an exchange routes tuples to its outputs. */
+    public enum Kind {
+        GATHER, HASH, BROADCAST
+    }
+
+    /** Number of tuples moved through a queue at once. */
+    static final int BATCH_SIZE = 128;
+
+    /** Number of batches an output buffers in memory. */
+    public static final int QUEUE_BATCHES = 64;
+
+    /**
+     * Producers block on queues, so they need a thread each; cached threads
+     * are reused across queries and across rewinds of the same exchange.
+     */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "exchange-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Producers _producers;
+    private final int _port;
+
+    private transient Producers.Run run;
+    private transient Producers.Channel channel;
+    private transient Iterator<Tuple> batchIt;
+    // the tuples the producers spilled, read after those in memory
+    private transient DbFileIterator overflowIt;
+    // true once all producers are done and the queue is empty
+    private transient boolean drained;
+    // repartition and broadcast outputs: the tuples read from memory so far,
+    // and the iterator over them after a rewind
+    private transient SpillFile replay;
+    private transient DbFileIterator replayIt;
+
+    private Exchange(Producers producers, int port) {
+        _producers = producers;
+        _port = port;
+    }
+
+    /**
+     * Creates an exchange that runs each of the inputs on its own thread and
+     * returns the union of their tuples.
+     *
+     * @param inputs
+     *            the subplans to run in parallel; they must all have the same
+     *            TupleDesc
+     */
+    public static Exchange gather(OpIterator[] inputs) {
+        return new Exchange(new Producers(Kind.GATHER, inputs, -1, 1), 0);
+    }
+
+    /**
+     * Creates an exchange that runs each of the inputs on its own thread and
+     * routes every tuple to one of numOutputs outputs by the hash of a field,
+     * so that tuples with equal values of that field end up in the same
+     * output.
+     *
+     * @param inputs
+     *            the subplans to run in parallel
+     * @param field
+     *            the index of the field to partition on
+     * @param numOutputs
+     *            the number of partitions to produce
+     * @return the outputs, one per partition. All outputs should be consumed
+     *         concurrently, e.g. by the inputs of a {@link #gather}.
+     */
+    public static Exchange[] repartition(OpIterator[] inputs, int field, int numOutputs) {
+        if (field < 0 || field >= inputs[0].getTupleDesc().numFields())
+            throw new IllegalArgumentException("invalid partitioning field " + field);
+        return outputs(new Producers(Kind.HASH, inputs, field, numOutputs));
+    }
+
+    /**
+     * Creates an exchange that runs each of the inputs on its own thread and
+     * sends every tuple to each of numOutputs outputs.
+     *
+     * @return the outputs. All outputs should be consumed concurrently.
+     */
+    public static Exchange[] broadcast(OpIterator[] inputs, int numOutputs) {
+        return outputs(new Producers(Kind.BROADCAST, inputs, -1, numOutputs));
+    }
+
+    private static Exchange[] outputs(Producers producers) {
+        Exchange[] out = new Exchange[producers.numOutputs];
+        for (int i = 0; i < out.length; i++)
+            out[i] = new Exchange(producers, i);
+        return out;
+    }
+
+    public Kind getKind() {
+        return _producers.kind;
+    }
+
+    /**
+     * @return the field tuples are partitioned on, or -1 if this is not a
+     *         repartitioning exchange
+     */
+    public int getPartitionField() {
+        return _producers.field;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return _producers.inputs[0].getTupleDesc();
+    }
+
+    /**
+     * @return the number of tuples the producers spilled to disk for this
+     *         output since it was opened, because its queue was full
+     */
+    public long spilledTuples() {
+        return channel == null ? 0 : channel.spilled();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        run = _producers.open(_port);
+        if (run == null)
+            throw new DbException("an exchange output cannot be reopened while the other outputs are still running");
+        channel = run.channels.get(_port);
+        batchIt = null;
+        overflowIt = null;
+        drained = false;
+        replay = null;
+        replayIt = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (overflowIt != null)
+            overflowIt.close();
+        if (replayIt != null)
+            replayIt.close();
+        if (replay != null)
+            replay.delete();
+        if (run != null)
+            _producers.close(run, _port);
+        run = null;
+        channel = null;
+        batchIt = null;
+        overflowIt = null;
+        replay = null;
+        replayIt = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (_producers.kind == Kind.GATHER) {
+            run = _producers.restart(run);
+            channel = run.channels.get(_port);
+            batchIt = null;
+            drained = false;
+            return;
+        }
+        if (!drained) {
+            // keep the rest of this output so it can be read again
+            while (fetchNext() != null)
+                ;
+        }
+        if (replay != null) {
+            if (replayIt != null)
+                replayIt.close();
+            replayIt = replay.iterator();
+            replayIt.open();
+        }
+        if (overflowIt != null)
+            overflowIt.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (replayIt != null && replayIt.hasNext())
+            return replayIt.next();
+        if (overflowIt != null)
+            return overflowIt.hasNext() ? overflowIt.next() : null;
+        if (drained)
+            return null;
+        while (batchIt == null || !batchIt.hasNext()) {
+            ArrayList<Tuple> batch;
+            try {
+                batch = channel.take(_producers.inputs.length);
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for exchange producers");
+            }
+            if (batch == null) {
+                drained = true;
+                run.rethrowError();
+                SpillFile overflow = channel.overflow();
+                if (overflow == null)
+                    return null;
+                overflowIt = overflow.iterator();
+                overflowIt.open();
+                return overflowIt.hasNext() ? overflowIt.next() : null;
+            }
+            batchIt = batch.iterator();
+        }
+        Tuple t = batchIt.next();
+        if (_producers.kind != Kind.GATHER) {
+            if (replay == null)
+                replay = new SpillFile(getTupleDesc());
+            replay.add(t);
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return _producers.inputs;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (children.length != _producers.inputs.length)
+            throw new IllegalArgumentException("an exchange keeps its number of inputs");
+        _producers.inputs = children;
+    }
+
+    /**
+     * The producer side of an exchange, shared by all of its outputs. The
+     * producers are started when the first output is opened and stopped once
+     * every opened output has been closed.
+     */
+    private static class Producers {
+        final Kind kind;
+        OpIterator[] inputs;
+        final int field;
+        final int numOutputs;
+
+        private Run current;
+        private int openOutputs;
+
+        Producers(Kind kind, OpIterator[] inputs, int field, int numOutputs) {
+            if (inputs.length == 0)
+                throw new IllegalArgumentException("an exchange needs at least one input");
+            if (numOutputs <= 0)
+                throw new IllegalArgumentException("an exchange needs at least one output");
+            TupleDesc td = inputs[0].getTupleDesc();
+            for (OpIterator in : inputs) {
+                if (!in.getTupleDesc().equals(td))
+                    throw new IllegalArgumentException("exchange inputs must have the same TupleDesc");
+            }
+            this.kind = kind;
+            this.inputs = inputs;
+            this.field = field;
+            this.numOutputs = numOutputs;
+        }
+
+        synchronized Run open(int port) {
+            if (current == null) {
+                current = new Run(this);
+                current.start();
+            }
+            if (current.opened.getAndSet(port, 1) == 1)
+                return null;
+            openOutputs++;
+            return current;
+        }
+
+        synchronized void close(Run run, int port) {
+            if (run != current)
+                return;
+            run.closed.set(port, 1);
+            if (--openOutputs == 0) {
+                run.stop();
+                current = null;
+            }
+        }
+
+        /** Only used by gathers, which have a single output. */
+        synchronized Run restart(Run run) {
+            if (run != null)
+                run.stop();
+            current = new Run(this);
+            current.start();
+            current.opened.set(0, 1);
+            return current;
+        }
+
+        /** The state of one execution of the producers. */
+        static class Run {
+            final Producers producers;
+            final List<Channel> channels;
+            final AtomicIntegerArray opened;
+            final AtomicIntegerArray closed;
+            final AtomicReference<Exception> error = new AtomicReference<Exception>();
+            final CountDownLatch finished;
+            volatile boolean cancelled = false;
+
+            Run(Producers producers) {
+                this.producers = producers;
+                TupleDesc td = producers.inputs[0].getTupleDesc();
+                channels = new ArrayList<Channel>(producers.numOutputs);
+                for (int i = 0; i < producers.numOutputs; i++)
+                    channels.add(new Channel(td, producers.kind != Kind.GATHER));
+                opened = new AtomicIntegerArray(producers.numOutputs);
+                closed = new AtomicIntegerArray(producers.numOutputs);
+                finished = new CountDownLatch(producers.inputs.length);
+            }
+
+            void start() {
+                for (OpIterator input : producers.inputs)
+                    WORKERS.execute(new Producer(this, input));
+            }
+
+            /**
+             * Cancels the producers, waits until they have closed their
+             * inputs and deletes what they spilled.
+             */
+            void stop() {
+                cancelled = true;
+                for (Channel c : channels)
+                    c.cancel();
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (Channel c : channels)
+                    c.release();
+            }
+
+            void rethrowError() throws DbException, TransactionAbortedException {
+                Exception e = error.get();
+                if (e == null)
+                    return;
+                if (e instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) e;
+                if (e instanceof DbException)
+                    throw (DbException) e;
+                throw new DbException("exchange producer failed: " + e);
+            }
+        }
+
+        /**
+         * The queue of batches of one output. Once it holds
+         * {@link Exchange#QUEUE_BATCHES} batches, the producers of a gather wait for
+         * the consumer, while those of a repartition or broadcast append the
+         * tuples of further batches to a spill file instead.
+         */
+        static class Channel {
+            private final TupleDesc td;
+            private final boolean spill;
+            private final ArrayDeque<ArrayList<Tuple>> batches = new ArrayDeque<ArrayList<Tuple>>();
+            private SpillFile overflow;
+            private int ends = 0;
+            private boolean cancelled = false;
+
+            Channel(TupleDesc td, boolean spill) {
+                this.td = td;
+                this.spill = spill;
+            }
+
+            /**
+             * Hands a batch to the consumer.
+             *
+             * @return false if the exchange was closed in the meantime
+             */
+            synchronized boolean put(ArrayList<Tuple> batch) throws InterruptedException,
+                    DbException {
+                if (cancelled)
+                    return false;
+                if (spill && batches.size() >= QUEUE_BATCHES) {
+                    if (overflow == null)
+                        overflow = new SpillFile(td);
+                    for (Tuple t : batch)
+                        overflow.add(t);
+                    return true;
+                }
+                while (batches.size() >= QUEUE_BATCHES && !cancelled)
+                    wait();
+                if (cancelled)
+                    return false;
+                batches.add(batch);
+                notifyAll();
+                return true;
+            }
+
+            /** Called by each producer once it is done. */
+            synchronized void end() {
+                ends++;
+                notifyAll();
+            }
+
+            /**
+             * @return the next batch in memory, or null once all producers
+             *         are done and no batch is left
+             */
+            synchronized ArrayList<Tuple> take(int numProducers) throws InterruptedException {
+                while (batches.isEmpty() && ends < numProducers)
+                    wait();
+                ArrayList<Tuple> batch = batches.poll();
+                notifyAll();
+                return batch;
+            }
+
+            /**
+             * @return the spilled tuples, or null if there are none; only
+             *         complete once take has returned null
+             */
+            synchronized SpillFile overflow() throws DbException {
+                if (overflow != null)
+                    overflow.finish();
+                return overflow;
+            }
+
+            synchronized long spilled() {
+                return overflow == null ? 0 : overflow.size();
+            }
+
+            synchronized void cancel() {
+                cancelled = true;
+                batches.clear();
+                notifyAll();
+            }
+
+            synchronized void release() {
+                if (overflow != null)
+                    overflow.delete();
+                overflow = null;
+            }
+        }
+
+        /** Runs one input and routes its tuples to the outputs. */
+        static class Producer implements Runnable {
+            final Run run;
+            final OpIterator input;
+
+            Producer(Run run, OpIterator input) {
+                this.run = run;
+                this.input = input;
+            }
+
+            public void run() {
+                Producers p = run.producers;
+                ArrayList<ArrayList<Tuple>> batches = new ArrayList<ArrayList<Tuple>>(p.numOutputs);
+                for (int i = 0; i < p.numOutputs; i++)
+                    batches.add(new ArrayList<Tuple>(BATCH_SIZE));
+                try {
+                    input.open();
+                    while (!run.cancelled && input.hasNext()) {
+                        Tuple t = input.next();
+                        if (p.kind == Kind.BROADCAST) {
+                            for (int i = 0; i < p.numOutputs; i++)
+                                add(batches, i, t);
+                        } else {
+                            int port = p.kind == Kind.HASH
+                                    ? (t.getField(p.field).hashCode() & 0x7fffffff) % p.numOutputs
+                                    : 0;
+                            add(batches, port, t);
+                        }
+                    }
+                    for (int i = 0; i < p.numOutputs; i++) {
+                        if (!batches.get(i).isEmpty())
+                            deliver(i, batches.get(i));
+                    }
+                } catch (Exception e) {
+                    run.error.compareAndSet(null, e);
+                } finally {
+                    input.close();
+                    for (Channel c : run.channels)
+                        c.end();
+                    run.finished.countDown();
+                }
+            }
+
+            private void add(ArrayList<ArrayList<Tuple>> batches, int port, Tuple t)
+                    throws InterruptedException, DbException {
+                ArrayList<Tuple> batch = batches.get(port);
+                batch.add(t);
+                if (batch.size() == BATCH_SIZE) {
+                    deliver(port, batch);
+                    batches.set(port, new ArrayList<Tuple>(BATCH_SIZE));
+                }
+            }
+
+            private void deliver(int port, ArrayList<Tuple> batch) throws InterruptedException,
+                    DbException {
+                if (run.closed.get(port) == 0)
+                    run.channels.get(port).put(batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts any number of tuples while keeping at most a fixed
+ * number of them in memory. Tuples are collected into a buffer of that size;
+ * each time the buffer fills up, it is sorted and written to a
+ * {@link SpillFile} as a sorted run. The runs are then merged by a
+ * {@link LoserTree}: if there are more runs than can be read at once, groups
+ * of runs are first merged into longer runs, until a single merge pass
+ * remains, which is performed while the sorted tuples are iterated.
+ * <p>
+ * If all tuples fit into the buffer, nothing is written to disk and the
+ * buffer is simply sorted in memory.
+ * <p>
+ * Tuples are ordered by their {@link NormalizedKey}s, which are encoded once
+ * per tuple for each pass over it, so that comparisons are plain byte
+ * comparisons. The sort is stable: tuples with equal keys are returned in the
+ * order they were added.
+ */
+public class ExternalSort {
+
+    private final NormalizedKey _key;
+    private final TupleDesc _td;
+    private final int _maxTuples;
+    private final int _fanIn;
+
+    private Entry[] buffer;
+    private int buffered = 0;
+    private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private boolean finished = false;
+    private int mergePasses = 0;
+
+    /** A tuple and its encoded key. */
+    private static class Entry {
+        final byte[] key;
+        final Tuple tuple;
+
+        Entry(byte[] key, Tuple tuple) {
+            this.key = key;
+            this.tuple = tuple;
+        }
+    }
+
+    private static final Comparator<Entry> BY_KEY = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return NormalizedKey.compare(a.key, b.key);
+        }
+    };
+
+    /**
+     * Creates an empty sort.
+     *
+     * @param key
+     *            the key to sort tuples by
+     * @param td
+     *            the TupleDesc of the tuples to sort
+     * @param maxTuples
+     *            the number of tuples kept in memory while runs are generated
+     * @throws IllegalArgumentException
+     *             if maxTuples is not positive
+     */
+    public ExternalSort(NormalizedKey key, TupleDesc td, int maxTuples) {
+        if (maxTuples <= 0)
+            throw new IllegalArgumentException("maxTuples must be positive");
+        _key = key;
+        _td = td;
+        _maxTuples = maxTuples;
+        // a run being merged holds about one page in memory
+        int tuplesPerPage = Math.max(1, BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1));
+        _fanIn = Math.max(2, maxTuples / tuplesPerPage);
+        buffer = new Entry[Math.min(maxTuples, 1024)];
+    }
+
+    /**
+     * Adds a tuple to the sort.
+     *
+     * @throws DbException
+     *             if a run cannot be written, or the sorted tuples are being
+     *             iterated already
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new DbException("cannot add tuples to a finished sort");
+        if (buffered == buffer.length) {
+            if (buffered == _maxTuples)
+                writeRun();
+            else
+                buffer = Arrays.copyOf(buffer, Math.min(_maxTuples, buffer.length * 2));
+        }
+        buffer[buffered++] = new Entry(_key.encode(t), t);
+    }
+
+    /** Sorts the buffer and writes it out as a run. */
+    private void writeRun() throws DbException {
+        Arrays.sort(buffer, 0, buffered, BY_KEY);
+        SpillFile run = new SpillFile(_td);
+        for (int i = 0; i < buffered; i++) {
+            run.add(buffer[i].tuple);
+            buffer[i] = null;
+        }
+        run.finish();
+        runs.add(run);
+        buffered = 0;
+    }
+
+    /** @return true if any tuples were written to disk */
+    public boolean hasSpilled() {
+        return !runs.isEmpty();
+    }
+
+    /**
+     * @return the number of sorted runs on disk; once the sorted tuples have
+     *         been iterated, the number of runs of the final merge pass
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /** @return the number of merge passes that wrote runs back to disk */
+    public int mergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * Ends run generation, merging runs until at most one pass is left.
+     */
+    private void finish() throws DbException, TransactionAbortedException {
+        if (finished)
+            return;
+        finished = true;
+        if (runs.isEmpty()) {
+            Arrays.sort(buffer, 0, buffered, BY_KEY);
+            return;
+        }
+        if (buffered > 0)
+            writeRun();
+        buffer = null;
+        while (runs.size() > _fanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += _fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + _fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(_td);
+                LoserTree tree = new LoserTree(group);
+                tree.open();
+                while (tree.hasNext())
+                    out.add(tree.next());
+                tree.close();
+                out.finish();
+                for (SpillFile f : group)
+                    f.delete();
+                merged.add(out);
+            }
+            runs = merged;
+            mergePasses++;
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples added, in sorted order. No more
+     *         tuples can be added afterwards.
+     */
+    public DbFileIterator iterator() throws DbException, TransactionAbortedException {
+        finish();
+        if (runs.isEmpty())
+            return new BufferIterator();
+        return new LoserTree(runs);
+    }
+
+    /** Deletes the runs on disk; the tuples can no longer be iterated. */
+    public void release() {
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        buffer = null;
+        buffered = 0;
+    }
+
+    private class BufferIterator extends AbstractDbFileIterator {
+        private int pos = -1;
+
+        public void open() {
+            pos = 0;
+        }
+
+        protected Tuple readNext() {
+            if (pos < 0 || pos == buffered)
+                return null;
+            return buffer[pos++].tuple;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            pos = -1;
+        }
+    }
+
+    /**
+     * A k-way merge of sorted runs. The leaves of the tree are the current
+     * tuples of the runs; each inner node holds the run that lost the
+     * comparison there, and node 0 the overall winner. Once the winner has
+     * been returned, only the comparisons on the path from its leaf to the
+     * root are replayed, so each tuple costs about log2(k) comparisons.
+     */
+    private class LoserTree extends AbstractDbFileIterator {
+        private final List<SpillFile> sources;
+        private final int k;
+        private DbFileIterator[] inputs;
+        private Tuple[] heads;
+        private byte[][] keys;
+        private int[] tree;
+
+        LoserTree(List<SpillFile> sources) {
+            this.sources = new ArrayList<SpillFile>(sources);
+            k = sources.size();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            inputs = new DbFileIterator[k];
+            heads = new Tuple[k];
+            keys = new byte[k][];
+            for (int i = 0; i < k; i++) {
+                inputs[i] = sources.get(i).iterator();
+                inputs[i].open();
+                advance(i);
+            }
+            tree = new int[k];
+            int[] winners = new int[2 * k];
+            for (int i = 0; i < k; i++)
+                winners[k + i] = i;
+            for (int n = k - 1; n >= 1; n--) {
+                int l = winners[2 * n], r = winners[2 * n + 1];
+                if (beats(l, r)) {
+                    winners[n] = l;
+                    tree[n] = r;
+                } else {
+                    winners[n] = r;
+                    tree[n] = l;
+                }
+            }
+            tree[0] = k == 1 ? 0 : winners[1];
+        }
+
+        /** Reads the next tuple of run i and its key. */
+        private void advance(int i) throws DbException, TransactionAbortedException {
+            heads[i] = inputs[i].hasNext() ? inputs[i].next() : null;
+            keys[i] = heads[i] == null ? null : _key.encode(heads[i]);
+        }
+
+        /**
+         * @return true if the head of run a comes before the head of run b;
+         *         exhausted runs come last, and ties go to the earlier run
+         */
+        private boolean beats(int a, int b) {
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = NormalizedKey.compare(keys[a], keys[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (tree == null)
+                return null;
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            advance(w);
+            for (int n = (w + k) >> 1; n >= 1; n >>= 1) {
+                if (beats(tree[n], w)) {
+                    int loser = w;
+                    w = tree[n];
+                    tree[n] = loser;
+                }
+            }
+            tree[0] = w;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (inputs != null) {
+                for (DbFileIterator it : inputs)
+                    it.close();
+            }
+            inputs = null;
+            heads = null;
+            keys = null;
+            tree = null;
+        }
+    }
+}
@@ -10,6 +10,7 @@ public class Filter extends Operator {
     private static final long serialVersionUID = 1L;
     private Predicate _p;
     private OpIterator _child;
+    private long _read; // tuples read from the child since open
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -37,6 +38,7 @@ public class Filter extends Operator {
             TransactionAbortedException {
         _child.open();
         super.open();
+        _read = 0;
     }
 
     public void close() {
@@ -61,6 +63,7 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
         while (_child.hasNext()) {
             Tuple t = _child.next();
+            _read++;
             if (_p.filter(t)) {
                 return t;
             }
@@ -68,6 +71,16 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * @return the number of tuples read from the child since the filter was
+     *         last opened, over all rewinds; together with
+     *         {@link #getActualCardinality} it gives the actual selectivity
+     *         of the predicate
+     */
+    public long tuplesRead() {
+        return _read;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] {_child};
@@ -3,17 +3,76 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equi-join as a hybrid hash join.
+ * The left child is the build side: its tuples are hashed into
+ * {@link #NUM_PARTITIONS} in-memory partitions. When more than the memory
+ * budget of build tuples is in memory, the largest resident partition is
+ * written to a {@link SpillFile} and all further build tuples of it go to
+ * disk. The right child is then streamed past the build side: tuples of
+ * resident partitions are joined right away, tuples of spilled partitions are
+ * written to a spill file of their own. Finally every pair of spilled
+ * partitions is joined by a nested HashEquiJoin, which partitions again with
+ * the next bits of the hash if the partition still does not fit.
+ * <p>
+ * A partition that cannot be split any further (a single heavy join key, or
+ * the maximum recursion depth) is joined in chunks of the memory budget, with
+ * one pass over its probe side per chunk.
+ * <p>
+ * While the build side is read, its join keys are also collected into a
+ * {@link JoinKeyFilter}. If the right child is a {@link SeqScan}, possibly
+ * under {@link Filter}s, the filter is pushed down into the scan, which then
+ * drops the probe tuples that cannot find a match before any predicate is
+ * evaluated on them; otherwise the join tests probe tuples itself, before
+ * they are looked up or spilled.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of build tuples kept in memory. */
+    public static final int DEFAULT_MAX_BUILD_TUPLES = 1 << 18;
+
+    /** Number of partitions the build and probe sides are hashed into. */
+    public static final int NUM_PARTITIONS = 16;
+
+    private static final int PARTITION_BITS = 4;
+
+    private static final int MAX_DEPTH = 64 / PARTITION_BITS - 1;
+
+    private static int defaultMaxBuildTuples = DEFAULT_MAX_BUILD_TUPLES;
+
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
+    private int maxBuildTuples;
+    private final int depth;
+    private final boolean chunked;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    // partitioned build side; null entries are partitions that were spilled
+    transient private TupleHashTable[] tables;
+    transient private int[] partitionSizes;
+    transient private SpillFile[] buildFiles;
+    transient private SpillFile[] probeFiles;
+    transient private long buildSize;
+    transient private boolean probing;
+    transient private int nextPartition;
+    transient private HashEquiJoin partitionJoin;
+    transient private long spilledTuples;
+
+    private boolean useKeyFilter = true;
+    transient private JoinKeyFilter keyFilter;
+    transient private SeqScan filteredScan;
+
+    // build side chunk of a join that cannot be partitioned
+    transient private TupleHashTable map;
+
+    // the build tuples that join with t2: the chain of rows of a table
+    // starting at matchRow
+    transient private TupleHashTable matchTable = null;
+    transient private int matchRow = -1;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -26,9 +85,17 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0, defaultMaxBuildTuples, false);
+    }
+
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int depth, int maxBuildTuples, boolean chunked) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.depth = depth;
+        this.maxBuildTuples = maxBuildTuples;
+        this.chunked = chunked || depth > MAX_DEPTH;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -49,22 +116,163 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+
+    /**
+     * Sets the memory budget of this join, as the number of build tuples kept
+     * in memory. Takes effect the next time the join is opened or rewound.
+     */
+    public void setMaxBuildTuples(int maxBuildTuples) {
+        if (maxBuildTuples <= 0)
+            throw new IllegalArgumentException("maxBuildTuples must be positive");
+        this.maxBuildTuples = maxBuildTuples;
+    }
+
+    public int getMaxBuildTuples() {
+        return maxBuildTuples;
+    }
+
+    /**
+     * Sets the memory budget of joins created from now on.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultMaxBuildTuples(int maxBuildTuples) {
+        if (maxBuildTuples <= 0)
+            throw new IllegalArgumentException("maxBuildTuples must be positive");
+        defaultMaxBuildTuples = maxBuildTuples;
+    }
+
+    /** @return the memory budget of joins created from now on */
+    public static int getDefaultMaxBuildTuples() {
+        return defaultMaxBuildTuples;
+    }
+
+    /**
+     * Restores the default memory budget of joins.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void resetDefaultMaxBuildTuples() {
+        defaultMaxBuildTuples = DEFAULT_MAX_BUILD_TUPLES;
+    }
+
+    /**
+     * @return the number of build and probe tuples the last open or rewind
+     *         wrote to spill files, not counting nested partition joins
+     */
+    public long spilledTuples() {
+        return spilledTuples;
+    }
+
+    /**
+     * Enables or disables filtering the probe side by the keys of the build
+     * side. Takes effect the next time the join is opened or rewound.
+     */
+    public void setKeyFilterEnabled(boolean enabled) {
+        useKeyFilter = enabled;
+    }
+
+    /**
+     * @return the filter over the build keys of the last open or rewind,
+     *         whose counters tell how many probe tuples it eliminated, or null
+     *         if the probe side was not filtered
+     */
+    public JoinKeyFilter getKeyFilter() {
+        return keyFilter;
+    }
+
+    /**
+     * @return true if the filter of the last open or rewind was pushed down
+     *         into a scan of the probe side
+     */
+    public boolean isKeyFilterPushedDown() {
+        return filteredScan != null;
+    }
+
+    /**
+     * @return the scan under plan, if plan is a scan or Filters over one and
+     *         thus returns a subset of the scanned tuples; null otherwise
+     */
+    private static SeqScan findScan(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        return plan instanceof SeqScan ? (SeqScan) plan : null;
+    }
+
+    private int partitionOf(Field key) {
+        return (int) (HyperLogLog.hash(key) >>> (depth * PARTITION_BITS)) & (NUM_PARTITIONS - 1);
+    }
+
+    private Type keyType() {
+        return child1.getTupleDesc().getFieldType(pred.getField1());
+    }
+
+    private void build() throws DbException, TransactionAbortedException {
+        tables = new TupleHashTable[NUM_PARTITIONS];
+        partitionSizes = new int[NUM_PARTITIONS];
+        buildFiles = new SpillFile[NUM_PARTITIONS];
+        probeFiles = new SpillFile[NUM_PARTITIONS];
+        for (int p = 0; p < NUM_PARTITIONS; p++)
+            tables[p] = new TupleHashTable(keyType());
+        buildSize = 0;
+        spilledTuples = 0;
+        // tuples of spilled partitions reach nested joins only if they passed
+        // the filter of the top level join
+        keyFilter = useKeyFilter && depth == 0 ? new JoinKeyFilter() : null;
+        int inMemory = 0;
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            Field key = t.getField(pred.getField1());
+            if (keyFilter != null)
+                keyFilter.add(key);
+            int p = partitionOf(key);
+            buildSize++;
+            partitionSizes[p]++;
+            if (tables[p] == null) {
+                spill(buildFiles, p, t);
+                continue;
+            }
+            tables[p].add(key, t);
+            if (++inMemory > maxBuildTuples)
+                inMemory -= evictLargestPartition();
+        }
+        if (keyFilter != null) {
+            keyFilter.finish();
+            filteredScan = findScan(child2);
+            if (filteredScan != null)
+                filteredScan.addJoinKeyFilter(pred.getField2(), keyFilter);
+        }
+        probing = true;
+        nextPartition = 0;
+    }
+
+    /** Writes the largest resident partition to disk; returns its size. */
+    private int evictLargestPartition() throws DbException {
+        int victim = -1;
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (tables[p] != null && (victim < 0 || partitionSizes[p] > partitionSizes[victim]))
+                victim = p;
+        }
+        for (int r = 0; r < tables[victim].size(); r++)
+            spill(buildFiles, victim, tables[victim].row(r));
+        tables[victim] = null;
+        return partitionSizes[victim];
+    }
+
+    private void spill(SpillFile[] files, int p, Tuple t) throws DbException {
+        if (files[p] == null)
+            files[p] = new SpillFile(t.getTupleDesc());
+        files[p].add(t);
+        spilledTuples++;
+    }
 
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
+        if (map == null)
+            map = new TupleHashTable(keyType());
         map.clear();
         while (child1.hasNext()) {
             t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
-            }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            map.add(t1.getField(pred.getField1()), t1);
+            if (++cnt == maxBuildTuples)
                 return true;
         }
         return cnt > 0;
@@ -75,27 +283,59 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        if (chunked)
+            loadMap();
+        else
+            build();
         super.open();
     }
 
+    /** Drops the build side and deletes all spill files. */
+    private void release() {
+        if (filteredScan != null) {
+            filteredScan.removeJoinKeyFilter(keyFilter);
+            filteredScan = null;
+        }
+        if (partitionJoin != null) {
+            partitionJoin.close();
+            partitionJoin = null;
+        }
+        for (SpillFile[] files : new SpillFile[][] {buildFiles, probeFiles}) {
+            if (files == null)
+                continue;
+            for (int p = 0; p < files.length; p++) {
+                if (files[p] != null)
+                    files[p].delete();
+                files[p] = null;
+            }
+        }
+        tables = null;
+        buildFiles = null;
+        probeFiles = null;
+        this.t1=null;
+        this.t2=null;
+        this.matchTable=null;
+        this.matchRow=-1;
+        this.map=null;
+    }
+
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        release();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        release();
         child1.rewind();
         child2.rewind();
+        if (chunked)
+            loadMap();
+        else
+            build();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -115,7 +355,8 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        t1 = matchTable.row(matchRow);
+        matchRow = matchTable.nextRow(matchRow);
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,7 +372,70 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
+        if (chunked)
+            return fetchNextChunked();
+        while (true) {
+            if (matchRow >= 0)
+                return processList();
+            if (probing) {
+                if (child2.hasNext()) {
+                    t2 = child2.next();
+                    Field key = t2.getField(pred.getField2());
+                    if (keyFilter != null && filteredScan == null && !keyFilter.mightContain(key))
+                        continue;
+                    int p = partitionOf(key);
+                    if (tables[p] != null) {
+                        matchTable = tables[p];
+                        matchRow = matchTable.find(key);
+                    } else {
+                        spill(probeFiles, p, t2);
+                    }
+                    continue;
+                }
+                // only the spilled partitions are left
+                probing = false;
+                tables = null;
+            }
+            if (partitionJoin != null && partitionJoin.hasNext())
+                return partitionJoin.next();
+            if (!openNextPartition())
+                return null;
+        }
+    }
+
+    /**
+     * Closes the join of the previous spilled partition, if any, and opens the
+     * join of the next one that has tuples on both sides.
+     * 
+     * @return false if there are no more spilled partitions
+     */
+    private boolean openNextPartition() throws DbException, TransactionAbortedException {
+        if (partitionJoin != null) {
+            partitionJoin.close();
+            partitionJoin = null;
+            buildFiles[nextPartition - 1].delete();
+            buildFiles[nextPartition - 1] = null;
+            if (probeFiles[nextPartition - 1] != null)
+                probeFiles[nextPartition - 1].delete();
+            probeFiles[nextPartition - 1] = null;
+        }
+        while (nextPartition < NUM_PARTITIONS) {
+            int p = nextPartition++;
+            if (buildFiles[p] == null || probeFiles[p] == null)
+                continue;
+            // a partition holding most of the build side is dominated by a
+            // few heavy keys, which partitioning again would not separate
+            boolean skewed = buildFiles[p].size() * 4 > buildSize * 3;
+            partitionJoin = new HashEquiJoin(pred, buildFiles[p].scan(), probeFiles[p].scan(),
+                    depth + 1, maxBuildTuples, skewed);
+            partitionJoin.open();
+            return true;
+        }
+        return false;
+    }
+
+    private Tuple fetchNextChunked() throws TransactionAbortedException, DbException {
+        if (matchRow >= 0) {
             return processList();
         }
 
@@ -141,10 +445,10 @@ public class HashEquiJoin extends Operator {
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            matchTable = map;
+            matchRow = map.find(t2.getField(pred.getField2()));
+            if (matchRow < 0)
                 continue;
-            listIt = l.iterator();
 
             return processList();
 
@@ -153,7 +457,7 @@ public class HashEquiJoin extends Operator {
         // child2 is done: advance child1
         child2.rewind();
         if (loadMap()) {
-            return fetchNext();
+            return fetchNextChunked();
         }
 
         return null;
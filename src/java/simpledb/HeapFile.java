@@ -146,7 +146,23 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, 0, -1);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on pages [firstPage,
+     * lastPage) of this file. Used by parallel scans to split the file into
+     * independent page ranges ("morsels").
+     *
+     * @param tid
+     *            the transaction the pages are read on behalf of
+     * @param firstPage
+     *            the first page to read (inclusive)
+     * @param lastPage
+     *            the last page to read (exclusive); clamped to numPages()
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int lastPage) {
+        return new HeapFileIterator(this, tid, firstPage, lastPage);
     }
 
     private class HeapFileIterator implements DbFileIterator {
@@ -155,10 +171,19 @@ public class HeapFile implements DbFile {
         private TransactionId _tid;
         private Iterator<Tuple> it;
         private int whichPage;
+        private int _firstPage;
+        private int _lastPage; // exclusive, or -1 to read up to the current end of file
 
-        public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, int firstPage, int lastPage) {
             _heapFile = heapFile;
             _tid = tid;
+            _firstPage = firstPage;
+            _lastPage = lastPage;
+        }
+
+        private int endPage() {
+            int numPages = _heapFile.numPages();
+            return _lastPage < 0 ? numPages : Math.min(_lastPage, numPages);
         }
 
         private Iterator<Tuple> getPageTuples(int pgNo) throws DbException, TransactionAbortedException {
@@ -167,14 +192,19 @@ public class HeapFile implements DbFile {
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(_tid, pageId, Permissions.READ_ONLY);
                 return page.iterator();
             } else {
-                throw new DbException(String.format("heapfile %d does not contain page %d!", pgNo, _heapFile.getId()));
+                throw new DbException(String.format("heapfile %d does not contain page %d!", _heapFile.getId(), pgNo));
             }
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            whichPage = 0;
-            it = getPageTuples(whichPage);
+            whichPage = _firstPage;
+            if (_lastPage < 0 || _firstPage < endPage()) {
+                it = getPageTuples(whichPage);
+            } else {
+                // empty page range
+                it = Collections.<Tuple>emptyList().iterator();
+            }
         }
 
         @Override
@@ -182,16 +212,15 @@ public class HeapFile implements DbFile {
             if (it == null) {
                 return false;
             }
-            if (!it.hasNext()) {
-                if (whichPage >= 0 && whichPage < _heapFile.numPages() - 1) {
+            // skip over empty pages until a tuple is found or the range ends
+            while (!it.hasNext()) {
+                if (whichPage >= 0 && whichPage < endPage() - 1) {
                     it = getPageTuples(++whichPage);
-                    return it.hasNext();
                 } else {
                     return false;
                 }
-            } else {
-                return true;
             }
+            return true;
         }
 
         @Override
@@ -219,4 +248,3 @@ public class HeapFile implements DbFile {
     }
 
 }
-
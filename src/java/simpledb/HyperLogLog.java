@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * HyperLogLog estimates the number of distinct values in a stream using a
+ * fixed amount of memory. Small sets are kept exactly, as a set of 64-bit
+ * hashes; once that set would take more room than the registers, it is
+ * converted into the usual array of 2^precision registers, which gives a
+ * standard error of about 1.04 / sqrt(2^precision).
+ * <p>
+ * Sketches with the same precision can be merged, which gives the sketch of
+ * the union of their streams.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default precision: 4096 registers, about 1.6% standard error. */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int _p;
+    private final int _m;
+
+    // exact representation for small sets: open-addressing set of hashes,
+    // 0 marks an empty slot
+    private long[] sparse;
+    private int sparseSize;
+
+    // dense representation, null while the sketch is sparse
+    private byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision
+     *            log2 of the number of registers, between 4 and 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+        _p = precision;
+        _m = 1 << precision;
+        sparse = new long[16];
+    }
+
+    public int getPrecision() {
+        return _p;
+    }
+
+    /** Adds a field value to the sketch. */
+    public void add(Field f) {
+        addHash(hash(f));
+    }
+
+    /** Adds the 64-bit hash of a value to the sketch. */
+    public void addHash(long h) {
+        if (registers != null) {
+            addToRegisters(h);
+            return;
+        }
+        if (h == 0)
+            h = 1;
+        int mask = sparse.length - 1;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (sparse[slot] != 0) {
+            if (sparse[slot] == h)
+                return;
+            slot = (slot + 1) & mask;
+        }
+        sparse[slot] = h;
+        sparseSize++;
+        if (sparseSize * 8 > _m) {
+            toDense();
+        } else if (2 * sparseSize > sparse.length) {
+            long[] old = sparse;
+            sparse = new long[old.length * 2];
+            sparseSize = 0;
+            for (long v : old) {
+                if (v != 0)
+                    addHash(v);
+            }
+        }
+    }
+
+    private void addToRegisters(long h) {
+        int idx = (int) (h >>> (64 - _p));
+        // guard bit so that the rank is at most 64 - p + 1
+        long w = (h << _p) | (1L << (_p - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[idx])
+            registers[idx] = rank;
+    }
+
+    private void toDense() {
+        registers = new byte[_m];
+        for (long v : sparse) {
+            if (v != 0)
+                addToRegisters(v);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    /** @return the estimated number of distinct values added */
+    public long cardinality() {
+        if (registers == null)
+            return sparseSize;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / _m);
+        double estimate = alpha * _m * _m / sum;
+        if (estimate <= 2.5 * _m && zeros > 0)
+            estimate = _m * Math.log((double) _m / zeros);
+        return Math.round(estimate);
+    }
+
+    /** Folds another sketch of the same precision into this one. */
+    public void merge(HyperLogLog other) {
+        if (other._p != _p)
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        if (other.registers == null) {
+            for (long v : other.sparse) {
+                if (v != 0)
+                    addHash(v);
+            }
+            return;
+        }
+        if (registers == null)
+            toDense();
+        for (int i = 0; i < _m; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /** Writes this sketch to out, see {@link #readFrom}. */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(_p);
+        if (registers == null) {
+            out.writeBoolean(false);
+            out.writeInt(sparseSize);
+            for (long v : sparse) {
+                if (v != 0)
+                    out.writeLong(v);
+            }
+        } else {
+            out.writeBoolean(true);
+            out.write(registers);
+        }
+    }
+
+    /** Reads a sketch written by {@link #writeTo}. */
+    static HyperLogLog readFrom(DataInput in) throws IOException {
+        int p = in.readInt();
+        if (p < 4 || p > 16)
+            throw new IOException("corrupt HyperLogLog sketch");
+        HyperLogLog h = new HyperLogLog(p);
+        if (in.readBoolean()) {
+            h.registers = new byte[h._m];
+            in.readFully(h.registers);
+            h.sparse = null;
+        } else {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++)
+                h.addHash(in.readLong());
+        }
+        return h;
+    }
+
+    /** @return a 64-bit hash of a field value */
+    public static long hash(Field f) {
+        if (f instanceof IntField)
+            return hash(((IntField) f).getValue());
+        return hash(((StringField) f).getValue());
+    }
+
+    public static long hash(int v) {
+        return mix(v);
+    }
+
+    public static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    public static long hash(byte[] b) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < b.length; i++) {
+            h ^= b[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /** The finalizer of MurmurHash3; spreads the bits of k over the result. */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
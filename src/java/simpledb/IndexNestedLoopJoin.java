@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins an outer input with a table stored
+ * as a {@link BTreeFile} that is keyed on the inner join field. Instead of
+ * scanning the inner table, every outer tuple looks up its matches through
+ * {@link BTreeFile#indexIterator}, so a join with few outer tuples only reads
+ * the pages on their root-to-leaf paths.
+ * <p>
+ * Outer tuples are read in batches that are sorted on the join key before
+ * probing, so that consecutive lookups go down the same paths of the tree,
+ * whose pages are then still in the buffer pool, and duplicate outer keys are
+ * looked up only once per batch.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of outer tuples sorted and probed together. */
+    public static final int BATCH_SIZE = 1024;
+
+    private JoinPredicate _p;
+    private OpIterator _child1;
+    private final TransactionId _tid;
+    private final int _tableid;
+    private final String _alias;
+    private final BTreeFile _file;
+    private final TupleDesc innerTd;
+    private final TupleDesc td;
+
+    private transient Tuple[] batch;
+    private transient int batchSize = 0;
+    private transient int batchPos = 0;
+    private transient Tuple t1 = null;
+    private transient Field probeKey = null;
+    private transient DbFileIterator matches = null;
+    private transient long probes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; field2 must be the
+     *            key field of the inner table, and the operator one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param tid
+     *            The transaction the lookups run in
+     * @param tableid
+     *            the inner table, which must be a BTreeFile
+     * @param tableAlias
+     *            the alias of the inner table; its fields are named
+     *            tableAlias.fieldName in the output, as in a scan
+     * @throws IllegalArgumentException
+     *             if the inner table is not a B+ tree keyed on field2, or the
+     *             predicate cannot be answered by the index
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, TransactionId tid,
+            int tableid, String tableAlias) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != p.getField2())
+            throw new IllegalArgumentException("inner table is not a B+ tree keyed on the join field");
+        if (!SortMergeJoin.supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot look up " + p.getOperator() + " in an index");
+        _p = p;
+        _child1 = child1;
+        _tid = tid;
+        _tableid = tableid;
+        _alias = tableAlias;
+        _file = (BTreeFile) f;
+
+        TupleDesc fileTd = f.getTupleDesc();
+        Type[] types = new Type[fileTd.numFields()];
+        String[] names = new String[fileTd.numFields()];
+        for (int i = 0; i < fileTd.numFields(); i++) {
+            types[i] = fileTd.getFieldType(i);
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+        }
+        innerTd = new TupleDesc(types, names);
+        td = TupleDesc.merge(_child1.getTupleDesc(), innerTd);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return _p;
+    }
+
+    /** @return the catalog name of the inner table */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(_tableid);
+    }
+
+    /** @return the alias of the inner table */
+    public String getAlias() {
+        return _alias;
+    }
+
+    public int getTableId() {
+        return _tableid;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return _child1.getTupleDesc().getFieldName(_p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2, quantified by the inner alias.
+     * */
+    public String getJoinField2Name() {
+        return innerTd.getFieldName(_p.getField2());
+    }
+
+    /** @return the number of index lookups since the join was opened */
+    public long probes() {
+        return probes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the operator op' such that inner op' outer holds exactly when
+     *         outer op inner holds
+     */
+    private static Predicate.Op flip(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        _child1.open();
+        batch = new Tuple[BATCH_SIZE];
+        reset();
+        probes = 0;
+        super.open();
+    }
+
+    private void reset() {
+        closeMatches();
+        batchSize = batchPos = 0;
+        t1 = null;
+        probeKey = null;
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    public void close() {
+        _child1.close();
+        reset();
+        batch = null;
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        _child1.rewind();
+        reset();
+    }
+
+    /** Reads and sorts the next batch of outer tuples. */
+    private void loadBatch() throws DbException, TransactionAbortedException {
+        batchSize = batchPos = 0;
+        while (batchSize < batch.length && _child1.hasNext())
+            batch[batchSize++] = _child1.next();
+        Arrays.sort(batch, 0, batchSize, new TupleComparator(_p.getField1(), true));
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Like {@link Join}, the result tuples are the concatenation
+     * of the joining tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext())
+                return merge(t1, matches.next());
+            if (batchPos == batchSize) {
+                loadBatch();
+                if (batchSize == 0)
+                    return null;
+            }
+            t1 = batch[batchPos++];
+            Field key = t1.getField(_p.getField1());
+            if (matches != null && key.equals(probeKey)) {
+                // same key as the previous outer tuple, replay its matches
+                matches.rewind();
+                continue;
+            }
+            closeMatches();
+            probeKey = key;
+            matches = _file.indexIterator(_tid, new IndexPredicate(flip(_p.getOperator()), key));
+            matches.open();
+            probes++;
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int i, j;
+        for (i = 0; i < t1.getTupleDesc().numFields(); i++) {
+            t.setField(i, t1.getField(i));
+        }
+        for (j = 0; j < t2.getTupleDesc().numFields(); i++, j++) {
+            t.setField(i, t2.getField(j));
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{_child1};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        _child1 = children[0];
+    }
+
+}
@@ -1,8 +1,10 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 
-import javafx.scene.control.ButtonType;
 import simpledb.Predicate.Op;
 
 /** A class to represent a fixed-width histogram over a single integer-based field.
@@ -57,6 +59,42 @@ public class IntHistogram {
         ntups++;
     }
 
+    /**
+     * Remove a value that was added before, e.g. because its tuple was
+     * deleted. Values outside [min, max] and buckets that are already empty
+     * are ignored.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        if (v < _min || v > _max)
+            return;
+        int index = getIndex(v);
+        if (buckets[index] > 0) {
+            buckets[index]--;
+            ntups--;
+        }
+    }
+
+    /** Writes this histogram to out, see {@link #readFrom}. */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(buckets.length);
+        out.writeInt(_min);
+        out.writeInt(_max);
+        out.writeInt(ntups);
+        for (int b : buckets)
+            out.writeInt(b);
+    }
+
+    /** Reads a histogram written by {@link #writeTo}. */
+    static IntHistogram readFrom(DataInput in) throws IOException {
+        int n = in.readInt();
+        IntHistogram h = new IntHistogram(n, in.readInt(), in.readInt());
+        h.ntups = in.readInt();
+        for (int i = 0; i < n; i++)
+            h.buckets[i] = in.readInt();
+        return h;
+    }
+
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
      * 
@@ -1,12 +1,5 @@
 package simpledb;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
-
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -18,8 +11,7 @@ public class IntegerAggregator implements Aggregator {
     private Type _gbfieldtype;
     private int _afield;
     private Aggregator.Op _op;
-    private HashMap<Field, Integer> groupMap;
-    private HashMap<Field, ArrayList<Integer>> avgMap;
+    private AggregateState.Groups groups;
     /**
      * Aggregate constructor
      * 
@@ -33,15 +25,17 @@ public class IntegerAggregator implements Aggregator {
      *            the 0-based index of the aggregate field in the tuple
      * @param what
      *            the aggregation operator
+     * @throws IllegalArgumentException if what cannot be computed over ints
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        if (!AggregateState.supports(what, Type.INT_TYPE))
+            throw new IllegalArgumentException("IntegerAggregator not support operator " + what);
         _gbfield = gbfield;
         _gbfieldtype = gbfieldtype;
         _afield = afield;
         _op = what;
-        groupMap = new HashMap<>();
-        avgMap = new HashMap<>();
+        groups = new AggregateState.Groups(what, gbfield != Aggregator.NO_GROUPING);
     }
 
     /**
@@ -53,46 +47,7 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         Field groupField = _gbfield == Aggregator.NO_GROUPING ? null : tup.getField(_gbfield);
-        IntField intField = (IntField) tup.getField(_afield);
-        switch(_op) {
-            case MIN:
-                if (!groupMap.containsKey(groupField)) {
-                    groupMap.put(groupField, intField.getValue());
-                } else {
-                    groupMap.put(groupField, Math.min(intField.getValue(), groupMap.get(groupField)));
-                }
-                break;
-            case MAX:
-                if (!groupMap.containsKey(groupField)) {
-                    groupMap.put(groupField, intField.getValue());
-                } else {
-                    groupMap.put(groupField, Math.max(intField.getValue(), groupMap.get(groupField)));
-                }
-                break;
-            case SUM:
-                if (!groupMap.containsKey(groupField)) {
-                    groupMap.put(groupField, intField.getValue());
-                } else {
-                    groupMap.put(groupField, intField.getValue() + groupMap.get(groupField));
-                }
-                break;
-            case AVG:
-                if (!avgMap.containsKey(groupField)) {
-                    ArrayList<Integer> list = new ArrayList<>();
-                    list.add(intField.getValue());
-                    avgMap.put(groupField, list);
-                } else {
-                    avgMap.get(groupField).add(intField.getValue());
-                }
-                break;
-            case COUNT:
-                if (!groupMap.containsKey(groupField)) {
-                    groupMap.put(groupField, 1);
-                } else {
-                    groupMap.put(groupField, 1 + groupMap.get(groupField));
-                }
-                break;
-        }
+        groups.getOrCreate(groupField).add(tup.getField(_afield));
     }
 
     /**
@@ -111,97 +66,7 @@ public class IntegerAggregator implements Aggregator {
             typeAr = new Type[] {Type.INT_TYPE};
         }
         TupleDesc td = new TupleDesc(typeAr);
-        return new IntegerOpIterator(td);
-    }
-
-    private class IntegerOpIterator implements OpIterator  {
-
-        private TupleDesc _td;
-        private Iterator<Map.Entry<Field, Integer>> it;
-        private Iterator<Map.Entry<Field, ArrayList<Integer>>> avg_it;
-
-        private boolean isAvg;
-
-        public IntegerOpIterator(TupleDesc td) {
-            _td = td;
-            it = null;
-            avg_it = null;
-
-            isAvg = _op.equals(Aggregator.Op.AVG);
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            if (isAvg) {
-                avg_it = avgMap.entrySet().iterator();
-            } else {
-                it = groupMap.entrySet().iterator();  
-            }
-        }
-
-        @Override
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (isAvg && avg_it != null) {
-                return avg_it.hasNext();
-            } else if (it != null) {
-                return it.hasNext();
-            }
-            return false;
-        }
-
-        @Override
-        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            Field t1;
-            int t2;
-            if (isAvg) {
-                if (avg_it == null) return null;
-                if (!avg_it.hasNext()) {
-                    throw new NoSuchElementException("");
-                }
-                Map.Entry<Field, ArrayList<Integer>> e = avg_it.next();
-                t1 = e.getKey();
-                ArrayList<Integer> list = e.getValue();
-                int sum = 0;
-                for (int val : list) {
-                   sum += val;
-                }
-                t2 = sum / list.size();
-            } else {
-                if (it == null) return null;
-                if (!it.hasNext()) {
-                    throw new NoSuchElementException("");
-                }
-                Map.Entry<Field, Integer> e = it.next();
-                t1 = e.getKey();
-                t2 = e.getValue();
-            }
-            Tuple t = new Tuple(_td);
-            if (_gbfield == Aggregator.NO_GROUPING) {
-                t.setField(0, new IntField(t2));
-            } else {
-                t.setField(0, t1);
-                t.setField(1, new IntField(t2));
-            }
-            return t;
-        }
-
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            this.close();
-            this.open();
-        }
-
-        @Override
-        public TupleDesc getTupleDesc() {
-            return _td;
-        }
-
-        @Override
-        public void close() {
-            it = null;
-            avg_it = null;
-        }
-
+        return new AggregateState.ResultIterator(groups, td);
     }
 
 }
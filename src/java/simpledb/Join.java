@@ -2,19 +2,36 @@ package simpledb;
 
 import java.util.*;
 
-import org.omg.CORBA.TypeCodeHolder;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested loops join: it reads a block of outer tuples (a configurable number
+ * of pages' worth) into memory, then scans the inner relation once for the
+ * whole block, comparing every inner tuple with all outer tuples of the block.
+ * The inner relation is thus rescanned once per block instead of once per
+ * outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages of outer tuples per block. */
+    public static final int DEFAULT_BLOCK_PAGES = 64;
+
     private JoinPredicate _p;
     private OpIterator _child1;
     private OpIterator _child2;
-    private Tuple t1 = null, t2 = null;
+    private Tuple t2 = null;
     private TupleDesc td;
+    private int _blockPages = DEFAULT_BLOCK_PAGES;
+
+    // the current block of outer tuples and their join fields
+    private transient Tuple[] block;
+    private transient Field[] blockKeys;
+    private transient int blockSize = 0;
+    // position of the next outer tuple to compare with t2
+    private transient int pos = 0;
+    private transient boolean firstBlock;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -66,22 +83,84 @@ public class Join extends Operator {
         return TupleDesc.merge(_child1.getTupleDesc(), _child2.getTupleDesc());
     }
 
+    /**
+     * Sets the number of pages' worth of outer tuples joined per scan of the
+     * inner relation. Takes effect the next time the join is opened.
+     */
+    public void setBlockPages(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("block must have at least one page");
+        _blockPages = pages;
+    }
+
+    public int getBlockPages() {
+        return _blockPages;
+    }
+
+    /** @return the number of outer tuples that fit into a block */
+    private int blockCapacity() {
+        int tuplesPerPage = (BufferPool.getPageSize() * 8)
+                / (_child1.getTupleDesc().getSize() * 8 + 1);
+        return (int) Math.min(Integer.MAX_VALUE - 8, (long) _blockPages * Math.max(1, tuplesPerPage));
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         _child1.open();
         _child2.open();
+        block = new Tuple[Math.min(blockCapacity(), 1024)];
+        blockKeys = new Field[block.length];
+        blockSize = 0;
+        firstBlock = true;
+        t2 = null;
         super.open();
     }
 
     public void close() {
         _child1.close();
         _child2.close();
+        block = null;
+        blockKeys = null;
+        blockSize = 0;
+        t2 = null;
         super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         _child1.rewind();
         _child2.rewind();
+        blockSize = 0;
+        firstBlock = true;
+        t2 = null;
+    }
+
+    /**
+     * Reads the next block of outer tuples, and rewinds the inner relation
+     * unless this is the first block.
+     * 
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        int capacity = blockCapacity();
+        int field1 = _p.getField1();
+        blockSize = 0;
+        while (blockSize < capacity && _child1.hasNext()) {
+            if (blockSize == block.length) {
+                int n = (int) Math.min(capacity, 2L * block.length);
+                block = Arrays.copyOf(block, n);
+                blockKeys = Arrays.copyOf(blockKeys, n);
+            }
+            Tuple t = _child1.next();
+            block[blockSize] = t;
+            blockKeys[blockSize] = t.getField(field1);
+            blockSize++;
+        }
+        if (blockSize == 0)
+            return false;
+        if (!firstBlock)
+            _child2.rewind();
+        firstBlock = false;
+        return true;
     }
 
     /**
@@ -103,28 +182,37 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        while (_child1.hasNext() || t1 != null) {
-            if (t1 == null) {
-                t1 = _child1.next();
+        Predicate.Op op = _p.getOperator();
+        int field2 = _p.getField2();
+        while (true) {
+            if (t2 != null) {
+                Field key = t2.getField(field2);
+                while (pos < blockSize) {
+                    int i = pos++;
+                    if (blockKeys[i].compare(op, key))
+                        return merge(block[i], t2);
+                }
+                t2 = null;
             }
-            while (_child2.hasNext()) {
+            if (blockSize > 0 && _child2.hasNext()) {
                 t2 = _child2.next();
-                if (_p.filter(t1, t2)) {
-                    Tuple t = new Tuple(td);
-                    int i, j;
-                    for (i = 0; i < t1.getTupleDesc().numFields(); i++) {
-                        t.setField(i, t1.getField(i));
-                    }
-                    for (j = 0; j < t2.getTupleDesc().numFields(); i++, j++) {
-                        t.setField(i, t2.getField(j));
-                    }
-                    return t;
-                }
+                pos = 0;
+            } else if (!loadBlock()) {
+                return null;
             }
-            t1 = null;
-            _child2.rewind();
         }
-        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int i, j;
+        for (i = 0; i < t1.getTupleDesc().numFields(); i++) {
+            t.setField(i, t1.getField(i));
+        }
+        for (j = 0; j < t2.getTupleDesc().numFields(); i++, j++) {
+            t.setField(i, t2.getField(j));
+        }
+        return t;
     }
 
     @Override
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A JoinKeyFilter summarizes the join keys of the build side of a hash join,
+ * so that the probe side can drop tuples that cannot match before they reach
+ * the join: a Bloom filter over the keys, and the range [min, max] of the
+ * keys. It may let through tuples that do not match, but never drops one that
+ * does.
+ * <p>
+ * Keys are added while the build side is read; {@link #finish()} then sizes
+ * the Bloom filter for the number of keys seen. Until then only the range is
+ * checked. Nothing passes the filter of an empty build side.
+ * <p>
+ * The filter counts how many tuples it tested and how many it eliminated, by
+ * range or by the Bloom filter.
+ */
+public class JoinKeyFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits of the Bloom filter per build key, for about 2% false positives. */
+    public static final int BITS_PER_KEY = 8;
+
+    private static final int NUM_HASHES = 5;
+
+    private long[] hashes = new long[64];
+    private int numKeys = 0;
+    private Field min = null, max = null;
+    private long[] bits = null;
+    private int numBits = 0;
+
+    private long tested = 0;
+    private long eliminatedByRange = 0;
+    private long eliminatedByBloom = 0;
+
+    /** Adds a build side key. */
+    public void add(Field key) {
+        if (bits != null)
+            throw new IllegalStateException("filter is already finished");
+        if (numKeys == hashes.length) {
+            long[] grown = new long[hashes.length * 2];
+            System.arraycopy(hashes, 0, grown, 0, numKeys);
+            hashes = grown;
+        }
+        hashes[numKeys++] = HyperLogLog.hash(key);
+        if (min == null || key.compare(Predicate.Op.LESS_THAN, min))
+            min = key;
+        if (max == null || key.compare(Predicate.Op.GREATER_THAN, max))
+            max = key;
+    }
+
+    /** Builds the Bloom filter over the keys added so far. */
+    public void finish() {
+        if (bits != null)
+            return;
+        numBits = Math.max(64, numKeys * BITS_PER_KEY);
+        bits = new long[(numBits + 63) >>> 6];
+        numBits = bits.length << 6;
+        for (int i = 0; i < numKeys; i++) {
+            long h = hashes[i];
+            for (int k = 0; k < NUM_HASHES; k++) {
+                int bit = bitOf(h, k);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+        hashes = null;
+    }
+
+    /** @return the k-th bit position for a hash, by double hashing */
+    private int bitOf(long h, int k) {
+        int h1 = (int) (h >>> 32);
+        int h2 = (int) h;
+        return ((h1 + k * h2) & 0x7fffffff) % numBits;
+    }
+
+    /** @return the number of keys added */
+    public int numKeys() {
+        return numKeys;
+    }
+
+    /**
+     * @return false if no build key equals key, true if some build key may
+     *         equal it
+     */
+    public boolean mightContain(Field key) {
+        tested++;
+        if (min == null || key.compare(Predicate.Op.LESS_THAN, min)
+                || key.compare(Predicate.Op.GREATER_THAN, max)) {
+            eliminatedByRange++;
+            return false;
+        }
+        if (bits == null)
+            return true;
+        long h = HyperLogLog.hash(key);
+        for (int k = 0; k < NUM_HASHES; k++) {
+            int bit = bitOf(h, k);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                eliminatedByBloom++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of keys tested with {@link #mightContain} */
+    public long tested() {
+        return tested;
+    }
+
+    /** @return the number of keys that were eliminated */
+    public long eliminated() {
+        return eliminatedByRange + eliminatedByBloom;
+    }
+
+    /** @return the number of keys eliminated because they were out of range */
+    public long eliminatedByRange() {
+        return eliminatedByRange;
+    }
+
+    /** @return the number of keys in range eliminated by the Bloom filter */
+    public long eliminatedByBloom() {
+        return eliminatedByBloom;
+    }
+
+    public String toString() {
+        return "JoinKeyFilter(" + numKeys + " keys in [" + min + ", " + max + "], "
+                + eliminated() + " of " + tested + " eliminated)";
+    }
+}
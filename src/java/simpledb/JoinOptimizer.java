@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.*;
 import javax.swing.tree.*;
@@ -68,20 +70,78 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.indexJoin && (j = instantiateIndexJoin(p, plan1, plan2)) != null)
+            return j;
+
+        if (lj.p == Predicate.Op.EQUALS) {
+            // merging needs no memory and keeps the output sorted, but only
+            // pays off if neither input has to be sorted first
+            if (SortMergeJoin.isSorted(plan1, t1id) && SortMergeJoin.isSorted(plan2, t2id))
+                j = new SortMergeJoin(p, plan1, plan2);
+            else
+                j = new HashEquiJoin(p, plan1, plan2);
+        } else if (lj.mergeJoin && SortMergeJoin.supports(lj.p)) {
+            // the inner side is sorted in memory; a larger one is streamed
+            // once per block of outer tuples instead
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Builds an {@link IndexNestedLoopJoin} that looks up the tuples of plan1
+     * in the table scanned by plan2, if plan2 is a (filtered) scan of a B+
+     * tree keyed on the join field. Filters over the scan are applied to the
+     * output of the join instead.
+     * 
+     * @return the join, or null if plan2 cannot be replaced by index lookups
+     */
+    private static OpIterator instantiateIndexJoin(JoinPredicate p,
+            OpIterator plan1, OpIterator plan2) {
+        if (!SortMergeJoin.supports(p.getOperator()))
+            return null;
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        while (plan2 instanceof Filter) {
+            filters.add(((Filter) plan2).getPredicate());
+            plan2 = ((Filter) plan2).getChildren()[0];
+        }
+        if (!(plan2 instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) plan2;
+        int tableid = Database.getCatalog().getTableId(scan.getTableName());
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != p.getField2())
+            return null;
+
+        OpIterator j = new IndexNestedLoopJoin(p, plan1, scan.getTransactionId(),
+                tableid, scan.getAlias());
+        int width1 = plan1.getTupleDesc().numFields();
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            Predicate f2 = filters.get(i);
+            j = new Filter(new Predicate(width1 + f2.getField(), f2.getOp(), f2.getOperand()), j);
+        }
+        return j;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
-     * The cost of the join should be calculated based on the join algorithm (or
-     * algorithms) that you implemented for Lab 2. It should be a function of
-     * the amount of data that must be read over the course of the query, as
-     * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
+     * The cost is that of the join algorithm {@link #instantiateJoin} picks
+     * for the join: a sort-merge join for an equality on two inputs that are
+     * sorted on their join fields (here: base tables stored as B+ trees keyed
+     * on them) and for inequalities whose inner side fits into memory, see
+     * {@link #fitsInMemory}, a hybrid hash join for other equalities, and a
+     * block nested loops join otherwise. It is a function of the amount
+     * of data that must be read over the course of the query, as well as the
+     * number of CPU operations performed by the join, where a single predicate
+     * application or hash table operation costs roughly 1. When the inner
+     * side is a base table stored as a B+ tree keyed on its join field, the
+     * optimizer also considers looking it up per outer tuple, see
+     * {@link #estimateIndexJoinCost}.
      * 
      * 
      * @param j
@@ -106,13 +166,138 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        }
+        return estimateJoinCost(j, card1, card2, cost1, cost2,
+                isClusteredOn(j.t1Alias, j.f1PureName),
+                isClusteredOn(j.t2Alias, j.f2PureName));
+    }
+
+    /**
+     * Estimate the cost of a join whose inputs are known to be sorted, or not,
+     * on their join fields.
+     * 
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return card1 + cost1 + cost2;
+        if (j.p == Predicate.Op.EQUALS) {
+            if (sorted1 && sorted2) {
+                // one merging pass over each input
+                return cost1 + cost2 + card1 + card2;
+            }
+            // build (insert + lookup) and probe; a build side beyond the
+            // memory budget costs another write and read of both inputs
+            double cost = cost1 + cost2 + 2.0 * card1 + card2;
+            if (card1 > HashEquiJoin.getDefaultMaxBuildTuples())
+                cost += 2 * (cost1 + cost2);
+            return cost;
+        }
+        if (SortMergeJoin.supports(j.p) && fitsInMemory(card2)) {
+            // sort the inner side, then one binary search per outer tuple
+            double log2 = Math.log(card2 + 1) / Math.log(2);
+            double sortCost = sorted2 ? card2 : card2 * log2;
+            return cost1 + cost2 + sortCost + card1 * log2;
+        }
+        // block nested loops: one scan of the inner side per block of outer
+        // tuples, and a predicate application per pair
+        double blocks = Math.ceil((double) card1 / tuplesPerBlock(j.t1Alias));
+        return cost1 + blocks * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * @return true if an inner side of card tuples may be sorted in memory by
+     *         a {@link SortMergeJoin} on an inequality: it is within the
+     *         memory budget of an {@link OrderBy}
+     */
+    static boolean fitsInMemory(int card) {
+        return card <= OrderBy.getDefaultMaxTuples();
+    }
+
+    /**
+     * Estimate the cost of joining the left-hand side with the base table
+     * j.t2Alias through an {@link IndexNestedLoopJoin}: every outer tuple
+     * descends the B+ tree of t2 once and reads the leaf pages holding its
+     * matches, so the cost grows with card1 and the height of the tree rather
+     * than with the size of t2.
+     * 
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if t2 is not a
+     *         B+ tree keyed on the join field or the predicate cannot be
+     *         looked up in it
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode || !SortMergeJoin.supports(j.p)
+                || !isClusteredOn(j.t2Alias, j.f2PureName))
+            return Double.POSITIVE_INFINITY;
+        int id = p.getTableId(j.t2Alias);
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(id);
+        int numPages = Math.max(1, f.numPages());
+        double ioCostPerPage = cost2 / numPages;
+
+        // matches per lookup, and the leaf pages they fill
+        double matches;
+        TableStats s = stats == null ? null : stats.get(Database.getCatalog().getTableName(id));
+        if (j.p == Predicate.Op.EQUALS && isPkey(j.t2Alias, j.f2PureName)) {
+            matches = 1;
+        } else if (s != null) {
+            matches = Math.max(1.0, s.avgSelectivity(f.keyField(), j.p) * card2);
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // without statistics, guess that the index key is nearly unique
+            // and that a range covers a third of the table
+            matches = j.p == Predicate.Op.EQUALS ? 1 : Math.max(1.0, card2 / 3.0);
+        }
+        int tupleSize = f.getTupleDesc().getSize();
+        int tuplesPerLeaf = Math.max(1, BufferPool.getPageSize() * 8 / (tupleSize * 8 + 1));
+        double pagesPerLookup = f.estimateHeight() + Math.ceil(matches / tuplesPerLeaf) - 1;
+        return cost1 + card1 * (pagesPerLookup * ioCostPerPage + matches);
+    }
+
+    /**
+     * @return true if alias names a base table stored as a B+ tree keyed on
+     *         the field, whose scans thus return tuples sorted on it
+     */
+    private boolean isClusteredOn(String alias, String pureFieldName) {
+        Integer id = p.getTableId(alias);
+        if (id == null)
+            return false;
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(id);
+            return f instanceof BTreeFile
+                    && ((BTreeFile) f).keyField() == f.getTupleDesc().fieldNameToIndex(pureFieldName);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /** @return the number of tuples of alias in a block of a {@link Join} */
+    private int tuplesPerBlock(String alias) {
+        Integer id = p.getTableId(alias);
+        int tupleSize = Type.INT_TYPE.getLen();
+        if (id != null) {
+            try {
+                tupleSize = Database.getCatalog().getTupleDesc(id).getSize();
+            } catch (NoSuchElementException e) {
+                // keep the guess
+            }
         }
+        int tuplesPerPage = Math.max(1, BufferPool.getPageSize() * 8 / (tupleSize * 8 + 1));
+        return Join.DEFAULT_BLOCK_PAGES * tuplesPerPage;
+    }
+
+    /**
+     * Estimate the cardinality of a join whose inputs have the given
+     * cardinalities, looking up whether its fields are primary keys; see
+     * {@link #estimateJoinCardinality(LogicalJoinNode, int, int, boolean, boolean, Map)}.
+     */
+    int estimateJoinCardinality(LogicalJoinNode j, int card1, int card2,
+            Map<String, TableStats> stats) {
+        return estimateJoinCardinality(j, card1, card2, isPkey(j.t1Alias, j.f1PureName),
+                j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName), stats);
     }
 
     /**
@@ -149,53 +334,254 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * 
+     * If both join fields are fields of the same type of base tables with
+     * statistics, the fraction of the cross product that joins is estimated
+     * from their most common values, histograms and distinct values (see
+     * {@link ColumnStats#joinSelectivity} and
+     * {@link StringColumnStats#joinSelectivity}), assuming that the filters
+     * on either side are independent of the join field.
+     * 
+     * Otherwise, an equality on a primary key matches each tuple of the other
+     * side at most once, so the join has at most as many tuples as the other
+     * side; an equality between two non-key fields is assumed to match about
+     * as many tuples as the larger side has. Any other predicate is assumed
+     * to keep a fixed fraction of the cross product.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        Object s1 = fieldStats(table1Alias, field1PureName, stats, tableAliasToId);
+        Object s2 = fieldStats(table2Alias, field2PureName, stats, tableAliasToId);
+        double card;
+        if (s1 instanceof ColumnStats && s2 instanceof ColumnStats
+                || s1 instanceof StringColumnStats && s2 instanceof StringColumnStats) {
+            double sel = s1 instanceof ColumnStats
+                    ? ColumnStats.joinSelectivity((ColumnStats) s1, joinOp, (ColumnStats) s2)
+                    : StringColumnStats.joinSelectivity((StringColumnStats) s1, joinOp,
+                            (StringColumnStats) s2);
+            card = sel * card1 * card2;
+            // a key matches each tuple of the other side at most once
+            if (joinOp == Predicate.Op.EQUALS && t1pkey)
+                card = Math.min(card, card2);
+            if (joinOp == Predicate.Op.EQUALS && t2pkey)
+                card = Math.min(card, card1);
+        } else if (joinOp == Predicate.Op.EQUALS) {
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else
+                card = Math.max(card1, card2);
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (double) card1 * card2;
+        } else {
+            card = RANGE_JOIN_SELECTIVITY * card1 * card2;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * @return the {@link ColumnStats} or {@link StringColumnStats} of a field
+     *         of the base table with the given alias, or null if there are
+     *         none
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    private static Object fieldStats(String alias, String field,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer id = tableAliasToId == null ? null : tableAliasToId.get(alias);
+        if (id == null || stats == null)
+            return null;
+        try {
+            TableStats s = stats.get(Database.getCatalog().getTableName(id));
+            if (s == null)
+                return null;
+            int i = Database.getCatalog().getTupleDesc(id).fieldNameToIndex(field);
+            Object c = s.columnStats(i);
+            return c != null ? c : s.stringColumnStats(i);
+        } catch (NoSuchElementException e) {
+            return null;
         }
+    }
+
+    /** The fraction of the cross product a range join is assumed to keep. */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * The largest number of joins {@link #orderJoins} can order: subsets of
+     * the joins are bitmasks in a long.
+     */
+    public static final int MAX_JOINS = 62;
+
+    /**
+     * Default number of joins up to which bushy plans are considered, see
+     * {@link #orderJoins}.
+     */
+    public static final int DEFAULT_MAX_BUSHY_JOINS = 9;
+
+    /**
+     * Default number of joins up to which the best left-deep plan is searched
+     * exhaustively, see {@link #orderJoins}.
+     */
+    public static final int DEFAULT_MAX_DP_JOINS = 15;
+
+    /**
+     * Default time in milliseconds spent improving a greedy join order, see
+     * {@link #orderJoins}.
+     */
+    public static final long DEFAULT_MAX_IMPROVE_MILLIS = 50;
+
+    /**
+     * Default number of threads that plan the sets of joins of one level of
+     * the dynamic programming: one per available core.
+     */
+    public static final int DEFAULT_PLANNING_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Levels with fewer sets of joins are planned on the calling thread. */
+    static final int PARALLEL_LEVEL_SUBSETS = 256;
+
+    /** Number of sets of joins a planning task plans without splitting. */
+    static final int PARALLEL_TASK_SUBSETS = 64;
+
+    private static int planningThreads = DEFAULT_PLANNING_THREADS;
+    private static int maxBushyJoins = DEFAULT_MAX_BUSHY_JOINS;
+    private static int maxDpJoins = DEFAULT_MAX_DP_JOINS;
+    private static long maxImproveMillis = DEFAULT_MAX_IMPROVE_MILLIS;
+
+    /**
+     * Sets the number of joins up to which bushy plans are considered.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultMaxBushyJoins(int joins) {
+        if (joins < 0)
+            throw new IllegalArgumentException("joins must not be negative");
+        maxBushyJoins = joins;
+    }
 
-        return els;
+    public static int getDefaultMaxBushyJoins() {
+        return maxBushyJoins;
+    }
+
+    /**
+     * Sets the number of joins up to which the best left-deep plan is
+     * searched exhaustively; larger join graphs are ordered greedily.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultMaxDpJoins(int joins) {
+        if (joins < 0 || joins > MAX_JOINS)
+            throw new IllegalArgumentException("joins must be between 0 and " + MAX_JOINS);
+        maxDpJoins = joins;
+    }
+
+    public static int getDefaultMaxDpJoins() {
+        return maxDpJoins;
+    }
+
+    /**
+     * Sets the time spent improving a greedy join order.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultMaxImproveMillis(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("millis must not be negative");
+        maxImproveMillis = millis;
+    }
+
+    public static long getDefaultMaxImproveMillis() {
+        return maxImproveMillis;
+    }
+
+    /**
+     * Sets the number of threads that plan the sets of joins of one level of
+     * the dynamic programming; 1 plans all of them on the calling thread.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultPlanningThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        planningThreads = threads;
+    }
+
+    public static int getDefaultPlanningThreads() {
+        return planningThreads;
+    }
 
+    /**
+     * Restores the default limits of the join order search, and the default
+     * number of planning threads.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void resetDefaultSearchLimits() {
+        planningThreads = DEFAULT_PLANNING_THREADS;
+        maxBushyJoins = DEFAULT_MAX_BUSHY_JOINS;
+        maxDpJoins = DEFAULT_MAX_DP_JOINS;
+        maxImproveMillis = DEFAULT_MAX_IMPROVE_MILLIS;
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Helper method to enumerate all of the subsets of a given size of the
+     * joins, as bitmasks over their positions: the subsets of size k of n
+     * joins are
+     * 
+     * <pre>
+     * for (long s = firstSubset(k); s &lt; 1L &lt;&lt; n; s = nextSubset(s))
+     * </pre>
+     * 
+     * in increasing numeric order, without allocating anything.
+     * 
+     * @param size
+     *            The size of the subsets of interest, at least 1
+     * @return the first subset of the specified size: the lowest size bits
+     */
+    static long firstSubset(int size) {
+        return (1L << size) - 1;
+    }
+
+    /**
+     * @return the smallest subset after s with as many elements as s, that
+     *         is, the next larger number with the same number of bits set
+     *         (Gosper's hack)
+     * @see #firstSubset
+     */
+    static long nextSubset(long s) {
+        long lowest = s & -s;
+        long ripple = s + lowest;
+        return (((ripple ^ s) >>> 2) / lowest) | ripple;
+    }
+
+    /**
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * 
+     * How hard the optimizer searches depends on the number of joins n:
+     * <ul>
+     * <li>up to {@link #getDefaultMaxBushyJoins()} joins, the best bushy plan
+     * is found by dynamic programming over the sets of joins: the best plan
+     * for a set joins the best plans of two disjoint subsets, or of one subset
+     * and a base table, through the remaining join;</li>
+     * <li>up to {@link #getDefaultMaxDpJoins()} joins, the best left-deep
+     * plan is found by dynamic programming in the style of Selinger, which
+     * only extends the best plans of the subsets of k-1 joins by the
+     * remaining join (see {@link #computeCostAndCardOfSubplan});</li>
+     * <li>the plans of all sets of k joins only depend on the plans of
+     * smaller sets, so large levels of the dynamic programming are planned
+     * by {@link #getDefaultPlanningThreads()} threads of a fork-join pool
+     * at once;</li>
+     * <li>beyond that, joins are ordered greedily, always performing next the
+     * join with the smallest result (greedy operator ordering), and the
+     * greedy order is then improved by swapping pairs of joins for at most
+     * {@link #getDefaultMaxImproveMillis()} milliseconds.</li>
+     * </ul>
+     * Sets whose joins do not connect their tables have no plan, so cross
+     * products are never considered. Sets are enumerated as bitmasks over the
+     * positions of the joins, see {@link #firstSubset}.
+     * <p>
+     * A bushy plan is returned as a sequence of joins like a left-deep one:
+     * each join combines the subplans that hold its two tables at that point
+     * of the sequence, which may both be joins already.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -207,25 +593,252 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed.
+     *         If the joins do not connect all of their tables, they are
+     *         returned in their original order.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
-     *             join, or or when another internal error occurs
+     *             join, there are more than {@link #MAX_JOINS} joins, or when
+     *             another internal error occurs
      */
     public Vector<LogicalJoinNode> orderJoins(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        int n = joins.size();
+        if (n == 0)
+            return joins;
+        if (n > MAX_JOINS)
+            throw new ParsingException("Cannot order more than " + MAX_JOINS + " joins");
+        indexTables(stats, filterSelectivities);
+
+        PlanCache pc = new PlanCache();
+        long all = (1L << n) - 1;
+        if (n <= maxDpJoins) {
+            boolean bushy = n <= maxBushyJoins;
+            ForkJoinPool pool = null;
+            try {
+                for (int size = 1; size <= n; size++) {
+                    if (planningThreads > 1 && binomial(n, size) >= PARALLEL_LEVEL_SUBSETS) {
+                        long[] level = new long[(int) binomial(n, size)];
+                        int i = 0;
+                        for (long s = firstSubset(size); s <= all; s = nextSubset(s))
+                            level[i++] = s;
+                        if (pool == null)
+                            pool = new ForkJoinPool(planningThreads);
+                        planLevel(pool, level, bushy, pc, stats, filterSelectivities);
+                    } else {
+                        for (long s = firstSubset(size); s <= all; s = nextSubset(s))
+                            planSubset(s, bushy, pc, stats, filterSelectivities);
+                    }
+                }
+            } finally {
+                if (pool != null)
+                    pool.shutdown();
+            }
+        } else {
+            int[] order = improve(greedyOrder(stats), stats);
+            simulate(order, pc, stats);
+        }
+
+        Vector<LogicalJoinNode> order = pc.getOrder(all);
+        if (order == null)
+            return joins;
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
+    }
+
+    /**
+     * Finds the best plan for the set of joins s from the best plans of its
+     * subsets, which must be in pc, and adds it to pc. Only reads the plans
+     * of smaller sets, so that the sets of one size can be planned
+     * concurrently.
+     */
+    private void planSubset(long s, boolean bushy, PlanCache pc,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        CostCard best = null;
+        for (long rest = s; rest != 0; rest &= rest - 1) {
+            int j = Long.numberOfTrailingZeros(rest);
+            CostCard cc = computeCostAndCardOfSubplan(stats, filterSelectivities,
+                    j, s, best == null ? Double.MAX_VALUE : best.cost, pc);
+            if (cc != null)
+                best = cc;
+            if (bushy) {
+                cc = bestBushyJoin(j, s, best == null ? Double.MAX_VALUE : best.cost,
+                        pc, stats);
+                if (cc != null)
+                    best = cc;
+            }
+        }
+        if (best != null)
+            pc.addPlan(s, best.cost, best.card, best.plan);
+    }
+
+    /**
+     * Plans all sets of joins of one level of the dynamic programming on the
+     * threads of pool, see {@link #planSubset}.
+     */
+    private void planLevel(ForkJoinPool pool, long[] level, boolean bushy, PlanCache pc,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        try {
+            pool.invoke(new PlanLevelTask(level, 0, level.length, bushy, pc, stats,
+                    filterSelectivities));
+        } catch (RuntimeException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof ParsingException)
+                    throw (ParsingException) t;
+            }
+            throw e;
+        }
+    }
+
+    /** Plans the sets of joins level[lo, hi), splitting large ranges. */
+    private class PlanLevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] level;
+        private final int lo, hi;
+        private final boolean bushy;
+        private final PlanCache pc;
+        private final HashMap<String, TableStats> stats;
+        private final HashMap<String, Double> filterSelectivities;
+
+        PlanLevelTask(long[] level, int lo, int hi, boolean bushy, PlanCache pc,
+                HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities) {
+            this.level = level;
+            this.lo = lo;
+            this.hi = hi;
+            this.bushy = bushy;
+            this.pc = pc;
+            this.stats = stats;
+            this.filterSelectivities = filterSelectivities;
+        }
+
+        protected void compute() {
+            if (hi - lo > PARALLEL_TASK_SUBSETS) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new PlanLevelTask(level, lo, mid, bushy, pc, stats, filterSelectivities),
+                        new PlanLevelTask(level, mid, hi, bushy, pc, stats, filterSelectivities));
+                return;
+            }
+            try {
+                for (int i = lo; i < hi; i++)
+                    planSubset(level[i], bushy, pc, stats, filterSelectivities);
+            } catch (ParsingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+    /** @return n choose k */
+    private static long binomial(int n, int k) {
+        long c = 1;
+        for (int i = 0; i < k; i++)
+            c = c * (n - i) / (i + 1);
+        return c;
+    }
+
+    /**
+     * Estimates the cost of running the joins of this optimizer in the given
+     * order, as returned by {@link #orderJoins}, which must have been called
+     * before. Each join is run the cheaper way around, as orderJoins does.
+     * 
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if the joins do
+     *         not connect all of their tables
+     */
+    double estimatePlanCost(Vector<LogicalJoinNode> order,
+            HashMap<String, TableStats> stats) throws ParsingException {
+        int[] positions = new int[order.size()];
+        long used = 0;
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = positionOf(order.get(i), used);
+            used |= 1L << positions[i];
+        }
+        CostCard cc = simulate(positions, new PlanCache(), stats);
+        return cc == null ? Double.POSITIVE_INFINITY : cc.cost;
     }
 
     // ===================== Private Methods =================================
 
+    // the tables of the query, indexed for the enumeration in orderJoins:
+    // the position of each alias, the scan cost and filtered cardinality of
+    // each table, and for each join the bits of its tables and whether it
+    // joins a primary key of t1 or t2
+    private HashMap<String, Integer> tableIndex;
+    private double[] scanCosts;
+    private int[] scanCards;
+    private long[] joinTables;
+    private boolean[] pkey1, pkey2;
+
+    /**
+     * Looks up the statistics of all tables of the joins once, so that
+     * enumerating the join sets touches neither the catalog nor the files.
+     */
+    private void indexTables(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        int n = joins.size();
+        tableIndex = new HashMap<String, Integer>();
+        ArrayList<Double> costs = new ArrayList<Double>();
+        ArrayList<Integer> cards = new ArrayList<Integer>();
+        joinTables = new long[n];
+        pkey1 = new boolean[n];
+        pkey2 = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            for (int side = 0; side < 2; side++) {
+                String alias = side == 0 ? j.t1Alias : j.t2Alias;
+                if (alias == null)
+                    continue; // the subquery of a LogicalSubplanJoinNode
+                Integer t = tableIndex.get(alias);
+                if (t == null) {
+                    Integer id = this.p.getTableId(alias);
+                    if (id == null)
+                        throw new ParsingException("Unknown table " + alias);
+                    TableStats s = stats.get(Database.getCatalog().getTableName(id));
+                    Double sel = filterSelectivities.get(alias);
+                    if (s == null || sel == null)
+                        throw new ParsingException("Missing statistics for table " + alias);
+                    t = costs.size();
+                    tableIndex.put(alias, t);
+                    costs.add(s.estimateScanCost());
+                    cards.add(s.estimateTableCardinality(sel));
+                }
+                joinTables[i] |= 1L << t;
+            }
+            pkey1[i] = isPkey(j.t1Alias, j.f1PureName);
+            pkey2[i] = j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName);
+        }
+        scanCosts = new double[costs.size()];
+        scanCards = new int[cards.size()];
+        for (int t = 0; t < scanCosts.length; t++) {
+            scanCosts[t] = costs.get(t);
+            scanCards[t] = cards.get(t);
+        }
+    }
+
+    /** @return the bits of the tables joined by the set of joins s */
+    private long tablesOf(long s) {
+        long tables = 0;
+        for (; s != 0; s &= s - 1)
+            tables |= joinTables[Long.numberOfTrailingZeros(s)];
+        return tables;
+    }
+
+    /** @return true if a join in the set s joins a primary key */
+    private boolean hasPkey(long s) {
+        for (; s != 0; s &= s - 1) {
+            int i = Long.numberOfTrailingZeros(s);
+            if (pkey1[i] || pkey2[i])
+                return true;
+        }
+        return false;
+    }
+
     /**
      * This is a helper method that computes the cost and cardinality of joining
      * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
@@ -240,9 +853,10 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the position of the join to remove from joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the set of joins being considered, as a bitmask over the
+     *            positions of the joins
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
@@ -256,136 +870,303 @@ public class JoinOptimizer {
      *             when stats, filterSelectivities, or pc object is missing
      *             tables involved in join
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
+            int joinToRemove, long joinSet,
             double bestCostSoFar, PlanCache pc) throws ParsingException {
 
-        LogicalJoinNode j = joinToRemove;
+        LogicalJoinNode j = joins.get(joinToRemove);
+        int t1 = tableIndex.get(j.t1Alias);
+        int t2 = j.t2Alias == null ? -1 : tableIndex.get(j.t2Alias);
 
-        Vector<LogicalJoinNode> prevBest;
+        long news = joinSet & ~(1L << joinToRemove);
 
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
+        if (news == 0) // base case -- both are base relations
+            return joinSubplans(joinToRemove, 0, 0, bestCostSoFar, pc, stats);
+
+        // news is not empty -- figure best way to join j to news; possible
+        // that we have not cached an answer, if subset includes a cross
+        // product
+        if (pc.getPlan(news) == null)
+            return null;
+        long prevTables = tablesOf(news);
+        if ((prevTables & (1L << t1)) != 0) // j.t1 is in prevBest
+            return joinSubplans(joinToRemove, news, 0, bestCostSoFar, pc, stats);
+        if (t2 >= 0 && (prevTables & (1L << t2)) != 0) // j.t2 is in prevBest
+            return joinSubplans(joinToRemove, 0, news, bestCostSoFar, pc, stats);
+        // don't consider this plan if one of j.t1 or j.t2
+        // isn't a table joined in prevBest (cross product)
+        return null;
+    }
 
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
+    /**
+     * Computes the best bushy plan for joinSet that runs join last, joining
+     * the plans of two non-empty, disjoint subsets of the other joins: one
+     * holding join.t1 and one holding join.t2. Plans that extend a single
+     * subset by a base table are left to {@link #computeCostAndCardOfSubplan}.
+     * 
+     * @return the best such plan, or null if there is none cheaper than
+     *         bestCostSoFar
+     */
+    private CostCard bestBushyJoin(int join, long joinSet, double bestCostSoFar,
+            PlanCache pc, HashMap<String, TableStats> stats) throws ParsingException {
+        LogicalJoinNode j = joins.get(join);
+        if (j.t2Alias == null)
+            return null;
+        long t1 = 1L << tableIndex.get(j.t1Alias);
+        long t2 = 1L << tableIndex.get(j.t2Alias);
+        long rest = joinSet & ~(1L << join);
+        CostCard best = null;
+        // every proper, non-empty subset of rest holding t1
+        for (long left = (rest - 1) & rest; left != 0; left = (left - 1) & rest) {
+            long right = rest & ~left;
+            long leftTables = tablesOf(left), rightTables = tablesOf(right);
+            if ((leftTables & t1) == 0 || (rightTables & t2) == 0
+                    || (leftTables & rightTables) != 0)
+                continue;
+            if (pc.getPlan(left) == null || pc.getPlan(right) == null)
+                continue;
+            CostCard cc = joinSubplans(join, left, right, bestCostSoFar, pc, stats);
+            if (cc != null) {
+                best = cc;
+                bestCostSoFar = cc.cost;
+            }
+        }
+        return best;
+    }
 
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
+    /**
+     * Computes the cost and cardinality of running a join over two inputs,
+     * each either the base table of one side of the join or the best plan in
+     * the cache for a set of joins holding that table. The join is run the
+     * cheaper way around, and through the index of a base table where that
+     * is cheaper.
+     * 
+     * @param join
+     *            the position of the join
+     * @param left
+     *            the set of joins whose plan holds join.t1, or 0 for the base
+     *            table join.t1
+     * @param right
+     *            the set of joins whose plan holds join.t2, or 0 for the base
+     *            table join.t2 (or the subquery of a
+     *            {@link LogicalSubplanJoinNode})
+     * @param bestCostSoFar
+     *            the cost of the best plan found so far; more expensive plans
+     *            are not returned
+     * @return the cost, cardinality and joins of the plan that runs the
+     *         joins of left, then those of right, then the join, or null if it
+     *         costs at least bestCostSoFar
+     */
+    @SuppressWarnings("unchecked")
+    private CostCard joinSubplans(int join, long left, long right, double bestCostSoFar,
+            PlanCache pc, HashMap<String, TableStats> stats) {
+        LogicalJoinNode j = joins.get(join);
+        int t1 = tableIndex.get(j.t1Alias);
+        int t2 = j.t2Alias == null ? -1 : tableIndex.get(j.t2Alias);
 
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
+        // whether each side is a base table that an index join can look up
+        boolean leftBase = left == 0, rightBase = right == 0;
+        CostCard leftPlan = null, rightPlan = null;
+
+        if (leftBase) {
+            t1cost = scanCosts[t1];
+            t1card = scanCards[t1];
+            leftPkey = pkey1[join];
         } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
-            }
+            leftPlan = pc.getPlan(left);
+            t1cost = leftPlan.cost;
+            t1card = leftPlan.card;
+            leftPkey = hasPkey(left);
+        }
+        if (rightBase) {
+            t2cost = t2 < 0 ? 0 : scanCosts[t2];
+            t2card = t2 < 0 ? 0 : scanCards[t2];
+            rightPkey = pkey2[join];
+        } else {
+            rightPlan = pc.getPlan(right);
+            t2cost = rightPlan.cost;
+            t2card = rightPlan.card;
+            rightPkey = hasPkey(right);
         }
 
-        // case where prevbest is left
+        // case where the left input is the outer one
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        if (rightBase) {
+            double indexCost = estimateIndexJoinCost(j, t1card, t2card, t1cost, t2cost, stats);
+            if (indexCost < cost1) {
+                j = j.withIndexJoin();
+                cost1 = indexCost;
+            }
+        }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        // a subquery can only be the inner input
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            LogicalJoinNode j2 = j.swapInnerOuter();
+            double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+            if (leftBase) {
+                double indexCost = estimateIndexJoinCost(j2, t2card, t1card, t2cost, t1cost, stats);
+                if (indexCost < cost2) {
+                    j2 = j2.withIndexJoin();
+                    cost2 = indexCost;
+                }
+            }
+            if (cost2 < cost1) {
+                boolean tmp;
+                j = j2;
+                cost1 = cost2;
+                tmp = rightPkey;
+                rightPkey = leftPkey;
+                leftPkey = tmp;
+                int card = t1card;
+                t1card = t2card;
+                t2card = card;
+            }
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (!(j instanceof LogicalSubplanJoinNode) && !j.indexJoin
+                && j.p != Predicate.Op.EQUALS && SortMergeJoin.supports(j.p)
+                && fitsInMemory(t2card))
+            j = j.withMergeJoin();
 
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.plan = leftPlan == null ? new Vector<LogicalJoinNode>()
+                : (Vector<LogicalJoinNode>) leftPlan.plan.clone();
+        if (rightPlan != null)
+            cc.plan.addAll(rightPlan.plan);
+        cc.plan.addElement(j);
         return cc;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Orders the joins greedily: starting from the base tables, repeatedly
+     * performs the join with the smallest result (the cheapest, among equal
+     * results) over the subplans holding its tables.
+     * 
+     * @return the positions of the joins, in the order they are performed
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private int[] greedyOrder(HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        int[] order = new int[n];
+        PlanCache pc = new PlanCache();
+        // the set of joins of the subplan holding each table, or 0
+        long[] subplanOf = new long[scanCosts.length];
+        long placed = 0;
+        for (int step = 0; step < n; step++) {
+            int bestJoin = -1;
+            CostCard best = null;
+            for (int i = 0; i < n; i++) {
+                if ((placed & (1L << i)) != 0)
+                    continue;
+                CostCard cc = joinNext(i, subplanOf, pc, stats);
+                if (best == null || cc.card < best.card
+                        || (cc.card == best.card && cc.cost < best.cost)) {
+                    best = cc;
+                    bestJoin = i;
+                }
+            }
+            order[step] = bestJoin;
+            placed |= 1L << bestJoin;
+            performJoin(bestJoin, best, subplanOf, pc);
         }
-        return false;
+        return order;
+    }
+
+    /**
+     * Computes the cost and cardinality of performing join i next, over the
+     * subplans currently holding its tables.
+     */
+    private CostCard joinNext(int i, long[] subplanOf, PlanCache pc,
+            HashMap<String, TableStats> stats) {
+        LogicalJoinNode j = joins.get(i);
+        long left = subplanOf[tableIndex.get(j.t1Alias)];
+        long right = j.t2Alias == null ? 0 : subplanOf[tableIndex.get(j.t2Alias)];
+        if (left != 0 && left == right) {
+            // both tables are joined already; like computeCostAndCardOfSubplan,
+            // join the subplan with the base table of t2 again
+            right = 0;
+        }
+        return joinSubplans(i, left, right, Double.MAX_VALUE, pc, stats);
+    }
+
+    /** Records that join i was performed, giving the subplan cc. */
+    private void performJoin(int i, CostCard cc, long[] subplanOf, PlanCache pc) {
+        LogicalJoinNode j = joins.get(i);
+        int t1 = tableIndex.get(j.t1Alias);
+        int t2 = j.t2Alias == null ? -1 : tableIndex.get(j.t2Alias);
+        long left = subplanOf[t1], right = t2 < 0 ? 0 : subplanOf[t2];
+        long joined = left | right | (1L << i);
+        pc.addPlan(joined, cc.cost, cc.card, cc.plan);
+        for (int t = 0; t < subplanOf.length; t++) {
+            if ((subplanOf[t] != 0 && (subplanOf[t] == left || subplanOf[t] == right))
+                    || t == t1 || t == t2)
+                subplanOf[t] = joined;
+        }
+    }
+
+    /**
+     * Performs the joins in the given order, adding the subplan each join
+     * gives to pc.
+     * 
+     * @return the plan of the last join, or null if the joins do not connect
+     *         all of their tables
+     */
+    private CostCard simulate(int[] order, PlanCache pc, HashMap<String, TableStats> stats) {
+        long[] subplanOf = new long[scanCosts.length];
+        CostCard cc = null;
+        for (int i : order) {
+            cc = joinNext(i, subplanOf, pc, stats);
+            performJoin(i, cc, subplanOf, pc);
+        }
+        long all = (1L << joins.size()) - 1;
+        return pc.getPlan(all);
+    }
+
+    /**
+     * Improves a join order by iterative improvement: swaps two random joins
+     * of the order, and keeps the swap if the resulting plan is cheaper, for
+     * at most {@link #getDefaultMaxImproveMillis()} milliseconds.
+     * 
+     * @return the cheapest order found
+     */
+    private int[] improve(int[] order, HashMap<String, TableStats> stats) {
+        int n = order.length;
+        CostCard best = simulate(order, new PlanCache(), stats);
+        if (best == null || n < 2)
+            return order;
+        double bestCost = best.cost;
+        int[] current = order.clone();
+        Random rand = new Random(n);
+        long deadline = System.currentTimeMillis() + maxImproveMillis;
+        // give up once many swaps in a row found nothing better
+        int failures = 0;
+        while (failures < 4 * n * n && System.currentTimeMillis() < deadline) {
+            int a = rand.nextInt(n), b = rand.nextInt(n - 1);
+            if (b >= a)
+                b++;
+            int tmp = current[a];
+            current[a] = current[b];
+            current[b] = tmp;
+            CostCard cc = simulate(current, new PlanCache(), stats);
+            if (cc != null && cc.cost < bestCost) {
+                bestCost = cc.cost;
+                failures = 0;
+            } else {
+                current[b] = current[a];
+                current[a] = tmp;
+                failures++;
+            }
+        }
+        return current;
     }
 
     /**
@@ -405,17 +1186,26 @@ public class JoinOptimizer {
     }
 
     /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
+     * @return the position among the joins of the query of join j of a plan
+     *         (which may have its inner and outer swapped), ignoring the
+     *         positions in used
      */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
+    private int positionOf(LogicalJoinNode j, long used) {
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode q = joins.get(i);
+            if ((used & (1L << i)) != 0)
+                continue;
+            if ((j.t1Alias.equals(q.t1Alias) && sameAlias(j.t2Alias, q.t2Alias)
+                    && j.f1PureName.equals(q.f1PureName) && j.f2PureName.equals(q.f2PureName))
+                    || (sameAlias(j.t1Alias, q.t2Alias) && sameAlias(j.t2Alias, q.t1Alias)
+                    && j.f1PureName.equals(q.f2PureName) && j.f2PureName.equals(q.f1PureName)))
+                return i;
         }
-        return false;
+        throw new NoSuchElementException("join " + j + " is not part of the query");
+    }
 
+    private static boolean sameAlias(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -454,13 +1244,27 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        // the joins performed so far, and the set of joins of the subplan
+        // holding each table
+        long placed = 0;
+        HashMap<String, Long> subplanOf = new HashMap<String, Long>();
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            int position = positionOf(j, placed);
+            placed |= 1L << position;
+            Long left = subplanOf.get(j.t1Alias), right = subplanOf.get(j.t2Alias);
+            long pathSoFar = (left == null ? 0 : left) | (right == null ? 0 : right)
+                    | (1L << position);
+            for (Map.Entry<String, Long> e : subplanOf.entrySet()) {
+                if (e.getValue().equals(left) || e.getValue().equals(right))
+                    e.setValue(pathSoFar);
+            }
+            subplanOf.put(j.t1Alias, pathSoFar);
+            if (j.t2Alias != null)
+                subplanOf.put(j.t2Alias, pathSoFar);
+            System.out.println("PATH SO FAR = " + Long.toBinaryString(pathSoFar));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -474,6 +1278,7 @@ public class JoinOptimizer {
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
+            DefaultMutableTreeNode leftTree = n, rightTree = m.get(j.t2Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
@@ -511,11 +1316,13 @@ public class JoinOptimizer {
             }
             m.put(j.t2Alias, root);
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
+            // unless this table doesn't join with other tables, all tables
+            // of the two subtrees joined are accessed from root; in a bushy
+            // plan, other subtrees may still be separate
             if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
+                for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                    if (e.getValue() == leftTree || e.getValue() == rightTree)
+                        e.setValue(root);
                 }
             }
 
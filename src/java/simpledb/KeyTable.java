@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * KeyTable assigns dense ids 0, 1, 2, ... to distinct join or group keys of a
+ * single type, so that operators can keep per-key data in plain arrays
+ * instead of maps of boxed keys.
+ * <p>
+ * The table is an open addressing hash table with linear probing over an
+ * int array of ids. The keys themselves are stored flat: integer keys in an
+ * int array, string keys as their characters back to back in a char array,
+ * so adding a key allocates nothing but the occasional larger array, and
+ * looking one up allocates nothing at all.
+ * <p>
+ * A table can also hold binary keys, such as the {@link NormalizedKey}
+ * encodings of keys made of several fields, stored back to back in a byte
+ * array like the characters of strings.
+ *
+ * @see TupleHashTable
+ */
+public class KeyTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Type type;
+
+    // slot -> id + 1, 0 for an empty slot; at most half full
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size = 0;
+
+    // id -> hash of the key, to grow without rehashing the keys
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    // id -> key, for Type.INT_TYPE
+    private int[] ints;
+
+    // id -> characters [offsets[id], offsets[id + 1]) of chars, for
+    // Type.STRING_TYPE
+    private char[] chars;
+    private int[] offsets;
+
+    // id -> bytes [offsets[id], offsets[id + 1]) of bytes, for binary keys
+    private byte[] bytes;
+
+    /** Creates an empty table for keys of type t. */
+    public KeyTable(Type t) {
+        type = t;
+        if (t == Type.INT_TYPE) {
+            ints = new int[INITIAL_CAPACITY];
+        } else {
+            chars = new char[INITIAL_CAPACITY * 8];
+            offsets = new int[INITIAL_CAPACITY + 1];
+        }
+    }
+
+    /** Creates an empty table for binary keys. */
+    public KeyTable() {
+        type = null;
+        bytes = new byte[INITIAL_CAPACITY * 8];
+        offsets = new int[INITIAL_CAPACITY + 1];
+    }
+
+    /** @return the type of the keys, or null for binary keys */
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the number of distinct keys */
+    public int size() {
+        return size;
+    }
+
+    /** Removes all keys; ids are handed out from 0 again. */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    private static int hash(int v) {
+        // the finalizer of MurmurHash3
+        v ^= v >>> 16;
+        v *= 0x85ebca6b;
+        v ^= v >>> 13;
+        v *= 0xc2b2ae35;
+        v ^= v >>> 16;
+        return v;
+    }
+
+    private static int hash(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++)
+            h = 31 * h + s.charAt(i);
+        return hash(h);
+    }
+
+    private static int hash(byte[] b) {
+        int h = 0;
+        for (int i = 0; i < b.length; i++)
+            h = 31 * h + b[i];
+        return hash(h);
+    }
+
+    private boolean matches(int id, byte[] b) {
+        int start = offsets[id];
+        if (offsets[id + 1] - start != b.length)
+            return false;
+        for (int i = 0; i < b.length; i++) {
+            if (bytes[start + i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean matches(int id, String s) {
+        int start = offsets[id];
+        if (offsets[id + 1] - start != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (chars[start + i] != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of key, or -1 if the key has not been added
+     */
+    public int get(Field key) {
+        if (type == Type.INT_TYPE) {
+            int v = ((IntField) key).getValue();
+            for (int slot = hash(v) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (ints[slots[slot] - 1] == v)
+                    return slots[slot] - 1;
+            }
+        } else {
+            String s = ((StringField) key).getValue();
+            int h = hash(s);
+            for (int slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (hashes[id] == h && matches(id, s))
+                    return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds key to the table, unless it is there already.
+     *
+     * @return the id of key
+     */
+    public int add(Field key) {
+        int h, slot;
+        if (type == Type.INT_TYPE) {
+            int v = ((IntField) key).getValue();
+            h = hash(v);
+            for (slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (ints[slots[slot] - 1] == v)
+                    return slots[slot] - 1;
+            }
+            if (size == ints.length)
+                ints = Arrays.copyOf(ints, size * 2);
+            ints[size] = v;
+        } else {
+            String s = ((StringField) key).getValue();
+            h = hash(s);
+            for (slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (hashes[id] == h && matches(id, s))
+                    return id;
+            }
+            if (size + 1 == offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            int start = offsets[size];
+            if (start + s.length() > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, start + s.length()));
+            s.getChars(0, s.length(), chars, start);
+            offsets[size + 1] = start + s.length();
+        }
+        return insert(slot, h);
+    }
+
+    /**
+     * @return the id of a binary key, or -1 if the key has not been added
+     */
+    public int get(byte[] key) {
+        int h = hash(key);
+        for (int slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == h && matches(id, key))
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a binary key to the table, unless it is there already.
+     *
+     * @return the id of key
+     */
+    public int add(byte[] key) {
+        int h = hash(key), slot;
+        for (slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == h && matches(id, key))
+                return id;
+        }
+        if (size + 1 == offsets.length)
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        int start = offsets[size];
+        if (start + key.length > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, start + key.length));
+        System.arraycopy(key, 0, bytes, start, key.length);
+        offsets[size + 1] = start + key.length;
+        return insert(slot, h);
+    }
+
+    /** Gives the next id to the key just stored, at an empty slot. */
+    private int insert(int slot, int h) {
+        if (size == hashes.length)
+            hashes = Arrays.copyOf(hashes, size * 2);
+        hashes[size] = h;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length)
+            grow();
+        return size - 1;
+    }
+
+    private void grow() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    /** @return the binary key with the given id, as a new array */
+    public byte[] bytes(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("no key with id " + id);
+        return Arrays.copyOfRange(bytes, offsets[id], offsets[id + 1]);
+    }
+
+    /** @return the key with the given id, as a new Field */
+    public Field key(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("no key with id " + id);
+        if (type == Type.INT_TYPE)
+            return new IntField(ints[id]);
+        return new StringField(new String(chars, offsets[id], offsets[id + 1] - offsets[id]),
+                Type.STRING_LEN);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that implements LIMIT ... OFFSET: it skips the first
+ * offset tuples of its child and returns at most limit of the tuples after
+ * that. It stops reading the child as soon as the limit is reached.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator _child;
+    private final int _limit;
+    private final int _offset;
+    private int skipped = 0;
+    private int returned = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples returned
+     * @param offset
+     *            the number of tuples of the child skipped first
+     * @param child
+     *            the tuples to limit
+     * @throws IllegalArgumentException
+     *             if limit or offset is negative
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        _limit = limit;
+        _offset = offset;
+        _child = child;
+    }
+
+    public int getLimit() {
+        return _limit;
+    }
+
+    public int getOffset() {
+        return _offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return _child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        _child.open();
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        _child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        _child.rewind();
+        skipped = 0;
+        returned = 0;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned == _limit)
+            return null;
+        while (skipped < _offset && _child.hasNext()) {
+            _child.next();
+            skipped++;
+        }
+        if (!_child.hasNext())
+            return null;
+        returned++;
+        return _child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { _child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        _child = children[0];
+    }
+}
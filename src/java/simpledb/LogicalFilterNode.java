@@ -15,6 +15,10 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The position of the parameter that supplies the constant, or -1 if
+        the constant is c; see {@link LogicalPlan#addParameterFilter} */
+    public int param = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
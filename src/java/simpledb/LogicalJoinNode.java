@@ -23,6 +23,14 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Set by the optimizer if t2 should be joined by looking up each t1
+     * tuple in its B+ tree, see {@link IndexNestedLoopJoin}. */
+    public boolean indexJoin = false;
+
+    /** Set by the optimizer if t2 is expected to fit into memory, so that an
+     * inequality join may sort it there, see {@link SortMergeJoin}. */
+    public boolean mergeJoin = false;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +71,22 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this node that is joined through the index of t2. */
+    public LogicalJoinNode withIndexJoin() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j2.indexJoin = true;
+        j2.mergeJoin = mergeJoin;
+        return j2;
+    }
+
+    /** Return a copy of this node whose inner side t2 may be sorted in memory. */
+    public LogicalJoinNode withMergeJoin() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j2.indexJoin = indexJoin;
+        j2.mergeJoin = true;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
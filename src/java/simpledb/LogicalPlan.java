@@ -5,6 +5,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -29,15 +31,52 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = -1, offset = 0;
     private String query;
+    private int dop = ParallelSeqScan.DEFAULT_DOP;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private double replanFactor = DEFAULT_REPLAN_FACTOR;
+    private int numParameters = 0;
+    // the joins are in the order of the optimizer and are not ordered again
+    private boolean joinsOrdered = false;
+    // the filtered scans of the last physical plan, see recordFeedback
+    private ArrayList<ScanFeedback> scanFeedback = new ArrayList<ScanFeedback>();
 //    private Query owner;
 
+    /** Tables estimated to hold more tuples than this are scanned in parallel. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 100000;
+
+    /** The remaining joins are re-planned once a join input that is read to
+        its end anyway has this many times more, or fewer, tuples than
+        estimated; see {@link AdaptiveJoin}. */
+    public static final double DEFAULT_REPLAN_FACTOR = 10.0;
+
+    /** The fewest tuples a filtered scan must read for the selectivity it
+        observed to be recorded by {@link #recordFeedback}. */
+    static final int MIN_FEEDBACK_TUPLES = 100;
+
+    /** The filters of a table alias in a physical plan, and its statistics. */
+    private static class ScanFeedback {
+        final TableStats stats;
+        final List<Predicate> preds;
+        final SeqScan scan;
+        final Filter bottom, top;
+
+        ScanFeedback(TableStats stats, List<Predicate> preds, SeqScan scan, Filter bottom, Filter top) {
+            this.stats = stats;
+            this.preds = preds;
+            this.scan = scan;
+            this.bottom = bottom;
+            this.top = top;
+        }
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
@@ -50,6 +89,62 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /** Copy a logical plan, so that the copy can be converted to a physical
+        plan while the original is in use; see {@link QueryPlanCache}. */
+    LogicalPlan(LogicalPlan plan) {
+        joins = new Vector<LogicalJoinNode>(plan.joins);
+        tables = new Vector<LogicalScanNode>(plan.tables);
+        filters = new Vector<LogicalFilterNode>(plan.filters);
+        subplanMap = new HashMap<String, OpIterator>();
+        tableMap = new HashMap<String,Integer>(plan.tableMap);
+
+        selectList = new Vector<LogicalSelectListNode>(plan.selectList);
+        groupByFields = new Vector<String>(plan.groupByFields);
+        hasAgg = plan.hasAgg;
+        aggOps = new Vector<String>(plan.aggOps);
+        aggFields = new Vector<String>(plan.aggFields);
+        oByFields = new Vector<String>(plan.oByFields);
+        oByAscs = new Vector<Boolean>(plan.oByAscs);
+        limit = plan.limit;
+        offset = plan.offset;
+        query = plan.query;
+        dop = plan.dop;
+        parallelThreshold = plan.parallelThreshold;
+        replanFactor = plan.replanFactor;
+        numParameters = plan.numParameters;
+        joinsOrdered = plan.joinsOrdered;
+    }
+
+    /** Keep the order {@link #physicalPlan} last gave the joins, rather than
+        ordering them again with the {@link JoinOptimizer}. */
+    void keepJoinOrder() {
+        joinsOrdered = true;
+    }
+
+    /** @return true if the plan can be converted to physical plans in any
+        transaction: it has no subqueries, whose plans were converted while
+        it was parsed */
+    boolean isReusable() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the names of the tables the plan scans */
+    List<String> getTableNames() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalScanNode table : tables)
+            names.add(Database.getCatalog().getTableName(table.t));
+        return names;
+    }
+
+    /** @return the number of parameters added via {@link #addParameterFilter} */
+    public int numParameters() {
+        return numParameters;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -66,6 +161,49 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the number of partitions that large tables are split into by
+        {@link #physicalPlan}; 1 disables intra-query parallelism.
+    */
+    public void setDegreeOfParallelism(int dop) {
+        if (dop <= 0)
+            throw new IllegalArgumentException("degree of parallelism must be positive");
+        this.dop = dop;
+    }
+
+    /** Set the estimated table cardinality above which {@link #physicalPlan}
+        scans a table in parallel.
+    */
+    public void setParallelThreshold(int threshold) {
+        this.parallelThreshold = threshold;
+    }
+
+    /** Set the factor by which the actual number of tuples of a join input
+        must differ from its estimate for the remaining joins to be re-planned
+        while the query runs, e.g. 10; 0 disables re-planning.
+    */
+    public void setReplanFactor(double factor) {
+        if (factor != 0 && factor < 1)
+            throw new IllegalArgumentException("re-planning factor must be 0 or at least 1");
+        this.replanFactor = factor;
+    }
+
+    /** Record the selectivity the filters of each table actually had in the
+        last run of the physical plan in the statistics of the table, so that
+        later estimates of the same filters are corrected; see
+        {@link TableStats#recordFeedback}. Tables whose scans read too few
+        tuples are skipped.
+    */
+    public void recordFeedback() {
+        for (ScanFeedback f : scanFeedback) {
+            long read = f.bottom.tuplesRead();
+            // tuples dropped by the key filter of a join never reached the filters
+            if (f.scan.keyFilteredTuples() > 0 || read == 0
+                    || read < Math.min(MIN_FEEDBACK_TUPLES, f.stats.totalTuples()))
+                continue;
+            f.stats.recordFeedback(f.preds, (double) f.top.getActualCardinality() / read);
+        }
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -105,6 +243,26 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a new filter whose constant is a parameter, supplied each time the
+     *   plan is converted by {@link #physicalPlan(TransactionId, Map, boolean, String[])}.
+     *   Parameters are numbered from 0 in the order they are added.
+     *   @param field The name of the over which the filter applies, as for
+     *   {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the number of the parameter
+     *   @throws ParsingException if field is not in one of the tables
+     *   added via {@link #addScan} or if field is ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, null);
+        lf.param = numParameters++;
+        filters.addElement(lf);
+        return lf.param;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -186,34 +344,92 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of a query share the same grouping.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield, gfield == null ? new ArrayList<String>()
+                : Collections.singletonList(gfield));
+    }
+
+    /** Add an aggregate over the field, grouped by several fields, to the
+        query.  A query may have any number of aggregates, which are all
+        computed in a single pass over the same grouping; adding the same
+        aggregate twice computes it once.  COUNT may be taken over *.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+        @param gfields the fields to group by; empty if there is no grouping
+     * @throws ParsingException if the grouping differs from that of
+     *   aggregates added before, or a field is unknown or ambiguous
+    */
+    public void addAggregate(String op, String afield, List<String> gfields) throws ParsingException {
         afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        if (afield.equals("*"))
+            afield="null.*";
+        Vector<String> gbFields = new Vector<String>();
+        for (String gfield : gfields) {
+            gfield = disambiguateName(gfield);
+            if (gbFields.contains(gfield))
+                throw new ParsingException("Field " + gfield + " appears twice in GROUP BY list");
+            gbFields.add(gfield);
+        }
+        if (hasAgg && !gbFields.equals(groupByFields))
+            throw new ParsingException("All aggregates must have the same GROUP BY list");
+        groupByFields = gbFields;
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** @return the position of the aggregate among those added via
+        {@link #addAggregate}, or -1 if it was not added */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.
+        Fields added by later calls are ordered by only where all fields added
+        before them are equal.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAscs.add(asc);
+    }
+
+    /** Add a LIMIT clause: only return limit tuples, after skipping the first
+        offset tuples of the result.
+        @param limit the maximum number of tuples returned
+        @param offset the number of tuples skipped first
+        @throws ParsingException if limit or offset is negative
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the LIMIT of the query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the OFFSET of the query, 0 if it has none */
+    public int getOffset() {
+        return offset;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -268,6 +484,8 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("COUNT_DISTINCT")) return Aggregator.Op.COUNT_DISTINCT;
+        if (s.equals("MEDIAN")) return Aggregator.Op.MEDIAN;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -285,10 +503,25 @@ public class LogicalPlan {
      *  @return A OpIterator representing this plan.
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        return physicalPlan(t, baseTableStats, explain, null);
+    }
+
+    /** Convert this LogicalPlan into a physicalPlan, as {@link #physicalPlan(TransactionId, Map, boolean)},
+     *   with the values of the parameters of filters added via {@link #addParameterFilter}.
+     *  @param params the value of each parameter; for an integer field, a
+     *    String representing an integer
+     *  @throws ParsingException if the logical plan is not valid, or a
+     *    parameter has no value or a value of the wrong type
+     */
+    public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+                                   String[] params) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
+        subplanMap.clear();
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,ArrayList<Predicate>> filterPreds = new HashMap<String,ArrayList<Predicate>>();
+        HashMap<String,OpIterator[]> partitionMap = new HashMap<String,OpIterator[]>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -323,10 +556,20 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            String c = lf.c;
+            if (lf.param >= 0) {
+                if (params == null || lf.param >= params.length || params[lf.param] == null)
+                    throw new ParsingException("No value for parameter " + (lf.param + 1));
+                c = params[lf.param];
+            }
+            try {
+                if (ftyp == Type.INT_TYPE)
+                    f = new IntField(new Integer(c).intValue());
+                else
+                    f = new StringField(c, Type.STRING_LEN);
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Value " + c + " of " + lf.fieldQuantifiedName + " is not an integer");
+            }
 
             Predicate p = null;
             try {
@@ -335,18 +578,50 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!filterPreds.containsKey(lf.tableAlias))
+                filterPreds.put(lf.tableAlias, new ArrayList<Predicate>());
+            filterPreds.get(lf.tableAlias).add(p);
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+        }
 
-            //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
+        // the filters of a table are estimated together, so that column
+        // groups can account for correlated predicates
+        for (Map.Entry<String, ArrayList<Predicate>> e : filterPreds.entrySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            filterSelectivities.put(e.getKey(), s.estimateSelectivity(e.getValue()));
         }
         
+        // split scans of large tables into page ranges that run in parallel
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            OpIterator[] parts = partitionScan(t, table, s, filterPreds.get(table.alias));
+            if (parts != null) {
+                partitionMap.put(table.alias, parts);
+                subplanMap.put(table.alias, Exchange.gather(parts));
+            }
+        }
+
+        scanFeedback.clear();
+        for (Map.Entry<String, ArrayList<Predicate>> e : filterPreds.entrySet()) {
+            if (partitionMap.containsKey(e.getKey()))
+                continue;
+            Filter top = (Filter) subplanMap.get(e.getKey()), bottom = top;
+            while (bottom.getChildren()[0] instanceof Filter)
+                bottom = (Filter) bottom.getChildren()[0];
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            scanFeedback.add(new ScanFeedback(s, e.getValue(), (SeqScan) bottom.getChildren()[0],
+                    bottom, top));
+        }
+
+        // the plans of the tables, for joins to be re-planned while they run
+        HashMap<String, OpIterator> baseSubplans = new HashMap<String, OpIterator>(subplanMap);
+        boolean adaptive = replanFactor > 0 && joins.size() >= 3
+                && joins.size() == tables.size() - 1 && partitionMap.isEmpty();
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (!joinsOrdered)
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
@@ -354,6 +629,7 @@ public class LogicalPlan {
             OpIterator plan1;
             OpIterator plan2;
             boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
+            adaptive &= !isSubqueryJoin;
             String t1name, t2name;
 
             if (equivMap.get(lj.t1Alias)!=null)
@@ -382,7 +658,15 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             OpIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            OpIterator[] parts1 = partitionMap.remove(t1name);
+            OpIterator[] parts2 = isSubqueryJoin ? null : partitionMap.remove(t2name);
+            if (parts1 != null && parts2 != null && lj.p == Predicate.Op.EQUALS) {
+                OpIterator[] joined = partitionedJoin(lj, parts1, parts2);
+                partitionMap.put(t1name, joined);
+                j = Exchange.gather(joined);
+            } else {
+                j = jo.instantiateJoin(lj,plan1,plan2);
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -408,41 +692,63 @@ public class LogicalPlan {
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        if (adaptive) {
+            HashMap<String, Integer> cards = new HashMap<String, Integer>();
+            for (LogicalScanNode table : tables) {
+                TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+                cards.put(table.alias, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+            }
+            node = new AdaptiveJoin(jo, joins, baseSubplans, cards, statsMap, replanFactor, node);
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int a = aggregateIndex(si.aggOp, si.fname);
+                if (a < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list was never added");
                 }
+                outFields.add(groupByFields.size() + a);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
+                    // the join order decides the order of the fields of
+                    // node; output them in the order the tables were added
                     TupleDesc td = node.getTupleDesc();
-                    for ( i = 0; i < td.numFields(); i++) {
-                        outFields.add(i);
-                        outTypes.add(td.getFieldType(i));
+                    boolean[] added = new boolean[td.numFields()];
+                    for (LogicalScanNode table : tables) {
+                        String prefix = table.alias + ".";
+                        for (int f = 0; f < td.numFields(); f++) {
+                            String name = td.getFieldName(f);
+                            if (!added[f] && name != null && name.startsWith(prefix)) {
+                                added[f] = true;
+                                outFields.add(f);
+                                outTypes.add(td.getFieldType(f));
+                            }
+                        }
+                    }
+                    for (int f = 0; f < td.numFields(); f++) {
+                        if (!added[f]) {
+                            outFields.add(f);
+                            outTypes.add(td.getFieldType(f));
+                        }
                     }
             } else  {
                     TupleDesc td = node.getTupleDesc();
@@ -460,12 +766,39 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            Operator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int a = 0; a < afields.length; a++) {
+                    aops[a] = getAggOp(aggOps.get(a));
+                    if (aggFields.get(a).equals("null.*")) {
+                        // COUNT(*) counts the tuples, so any field will do
+                        if (aops[a] != Aggregator.Op.COUNT)
+                            throw new ParsingException(aggOps.get(a) + "(*) is not supported");
+                        afields[a] = 0;
+                    } else {
+                        afields[a] = td.fieldNameToIndex(aggFields.get(a));
+                    }
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int g = 0; g < gfields.length; g++)
+                    gfields[g] = td.fieldNameToIndex(groupByFields.get(g));
+                int gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+                if (gfields.length <= 1 && afields.length == 1 && joins.size() == 0 && tables.size() == 1
+                        && partitionMap.containsKey(tables.get(0).alias)) {
+                    // scan, filter and pre-aggregate in a single parallel pipeline, which
+                    // spills past the same group budget as Aggregate
+                    LogicalScanNode table = tables.get(0);
+                    ParallelSeqScan scan = new ParallelSeqScan(t, table.t, table.alias, dop);
+                    if (filterPreds.containsKey(table.alias)) {
+                        for (Predicate p : filterPreds.get(table.alias))
+                            scan.addFilter(p);
+                    }
+                    aggNode = new ParallelAggregate(scan, afields[0], gfield, aops[0]);
+                } else {
+                    aggNode = new Aggregate(node, afields, gfields, aops);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,13 +807,83 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] oByIndices = new int[oByFields.size()];
+            boolean[] oByAsc = new boolean[oByFields.size()];
+            for (int o = 0; o < oByIndices.length; o++) {
+                try {
+                    oByIndices[o] = node.getTupleDesc().fieldNameToIndex(oByFields.get(o));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(o) + " in ORDER BY list");
+                }
+                oByAsc[o] = oByAscs.get(o);
+            }
+            if (limit >= 0 && (long) limit + offset <= OrderBy.getDefaultMaxTuples()) {
+                // keep only the first tuples of the order
+                node = new TopN(oByIndices, oByAsc, limit, offset, node);
+            } else {
+                node = new OrderBy(oByIndices, oByAsc, node);
+                if (limit >= 0)
+                    node = new Limit(limit, offset, node);
+            }
+        } else if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Split the scan of a table, together with its filters, into page
+        ranges that are run in parallel, if the table is large enough.
+
+        @return the partitions, or null if the table should be scanned serially
+    */
+    private OpIterator[] partitionScan(TransactionId t, LogicalScanNode table, TableStats s,
+                                       ArrayList<Predicate> preds) {
+        if (dop <= 1 || s == null || s.estimateTableCardinality(1.0) <= parallelThreshold)
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(f instanceof HeapFile))
+            return null;
+        int numPages = ((HeapFile) f).numPages();
+        int n = Math.min(dop, numPages);
+        if (n <= 1)
+            return null;
+        OpIterator[] parts = new OpIterator[n];
+        for (int i = 0; i < n; i++) {
+            OpIterator part = new SeqScan(t, table.t, table.alias,
+                    (int) ((long) numPages * i / n), (int) ((long) numPages * (i + 1) / n));
+            if (preds != null) {
+                for (Predicate p : preds)
+                    part = new Filter(p, part);
+            }
+            parts[i] = part;
+        }
+        return parts;
+    }
+
+    /** Join two partitioned inputs on equality by repartitioning both on the
+        join fields and joining matching partitions independently.
+
+        @return the partitions of the join result
+    */
+    private OpIterator[] partitionedJoin(LogicalJoinNode lj, OpIterator[] parts1,
+                                         OpIterator[] parts2) throws ParsingException {
+        int f1, f2;
+        try {
+            f1 = parts1[0].getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+            f2 = parts2[0].getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in join " + lj);
+        }
+        Exchange[] in1 = Exchange.repartition(parts1, f1, dop);
+        Exchange[] in2 = Exchange.repartition(parts2, f2, dop);
+        OpIterator[] joined = new OpIterator[dop];
+        for (int i = 0; i < dop; i++)
+            joined[i] = JoinOptimizer.instantiateJoin(lj, in1[i], in2[i]);
+        return joined;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MorselDispatcher hands out small, contiguous page ranges ("morsels") of a
+ * HeapFile to the worker threads of a parallel operator. Workers repeatedly
+ * ask for the next morsel until the file is exhausted, so fast workers
+ * naturally pick up the work of slow ones instead of being bound to a fixed
+ * static partition.
+ *
+ * @Threadsafe
+ */
+public class MorselDispatcher {
+
+    /** Default number of pages in one morsel. */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final int _numPages;
+    private final int _morselPages;
+    private final AtomicInteger _nextPage = new AtomicInteger(0);
+
+    /**
+     * @param numPages
+     *            the number of pages in the file being scanned
+     * @param morselPages
+     *            the number of pages handed out by each call to
+     *            {@link #nextMorsel}
+     */
+    public MorselDispatcher(int numPages, int morselPages) {
+        if (morselPages <= 0)
+            throw new IllegalArgumentException("morsel size must be positive");
+        _numPages = numPages;
+        _morselPages = morselPages;
+    }
+
+    public MorselDispatcher(int numPages) {
+        this(numPages, DEFAULT_MORSEL_PAGES);
+    }
+
+    /**
+     * Claims the next unprocessed morsel.
+     *
+     * @return the first page of the claimed morsel, or -1 if all pages have
+     *         already been handed out. The morsel ends at
+     *         {@link #morselEnd(int)}.
+     */
+    public int nextMorsel() {
+        int start = _nextPage.getAndAdd(_morselPages);
+        return start < _numPages ? start : -1;
+    }
+
+    /**
+     * @return the (exclusive) last page of the morsel starting at start
+     */
+    public int morselEnd(int start) {
+        return Math.min(start + _morselPages, _numPages);
+    }
+
+    /** Makes all pages available again, e.g. on rewind. */
+    public void reset() {
+        _nextPage.set(0);
+    }
+}
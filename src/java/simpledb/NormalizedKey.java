@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * NormalizedKey encodes the values of several fields, each in ascending or
+ * descending order, as a single byte string, such that comparing two encoded
+ * keys byte by byte (as unsigned bytes, see {@link #compare(byte[], byte[])})
+ * gives the same result as comparing the fields one after the other. Sorting
+ * and grouping on several fields then needs one byte comparison loop per pair
+ * of tuples instead of a virtual {@link Field#compare} call per field, and
+ * equal keys have equal bytes, so they can be hashed directly.
+ * <p>
+ * The encoding of each field is prefix free, so fields are simply
+ * concatenated:
+ * <ul>
+ * <li>an int is written as 4 big-endian bytes, with the sign bit flipped so
+ * that negative numbers come first;</li>
+ * <li>a string is written as its characters, 2 big-endian bytes each, with
+ * the character 0 written as 00 00 FF, followed by the terminator 00 00 00,
+ * which orders a string before any longer string it is a prefix of, just
+ * like {@link String#compareTo};</li>
+ * <li>the bytes of a field in descending order are inverted.</li>
+ * </ul>
+ * Encoded keys can be decoded back into their fields, and can serve as the
+ * keys of a B+ tree over several columns.
+ */
+public class NormalizedKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type[] types;
+    private final int[] fields;
+    private final boolean[] asc;
+
+    /**
+     * Creates the encoding of the given fields of tuples with the given
+     * TupleDesc.
+     *
+     * @param td
+     *            the TupleDesc of the tuples whose keys are encoded
+     * @param fields
+     *            the fields of the key, most significant first
+     * @param asc
+     *            for each field of the key, true if it is in ascending order
+     * @throws IllegalArgumentException
+     *             if fields and asc differ in length, or fields is empty
+     */
+    public NormalizedKey(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length != asc.length || fields.length == 0)
+            throw new IllegalArgumentException("need one order per key field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            types[i] = td.getFieldType(fields[i]);
+    }
+
+    /**
+     * Creates the encoding of keys made of values of the given types, which
+     * are encoded with {@link #encode(Field[])}.
+     */
+    public NormalizedKey(Type[] types, boolean[] asc) {
+        if (types.length != asc.length || types.length == 0)
+            throw new IllegalArgumentException("need one order per key field");
+        this.types = types.clone();
+        this.asc = asc.clone();
+        fields = new int[types.length];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = i;
+    }
+
+    /** @return the number of fields of the key */
+    public int numFields() {
+        return types.length;
+    }
+
+    /** @return the types of the fields of the key */
+    public Type[] getTypes() {
+        return types.clone();
+    }
+
+    /** @return the encoded key of a tuple */
+    public byte[] encode(Tuple t) {
+        Buffer out = new Buffer();
+        for (int i = 0; i < fields.length; i++)
+            out.field(t.getField(fields[i]), asc[i]);
+        return out.toArray();
+    }
+
+    /** @return the encoded key of the given values, one per key field */
+    public byte[] encode(Field[] values) {
+        if (values.length != types.length)
+            throw new IllegalArgumentException("need one value per key field");
+        Buffer out = new Buffer();
+        for (int i = 0; i < values.length; i++)
+            out.field(values[i], asc[i]);
+        return out.toArray();
+    }
+
+    /** @return the values of the key fields of an encoded key */
+    public Field[] decode(byte[] key) {
+        Field[] values = new Field[types.length];
+        int pos = 0;
+        for (int i = 0; i < types.length; i++) {
+            int flip = asc[i] ? 0 : 0xff;
+            if (types[i] == Type.INT_TYPE) {
+                int v = 0;
+                for (int j = 0; j < 4; j++)
+                    v = (v << 8) | ((key[pos++] ^ flip) & 0xff);
+                values[i] = new IntField(v ^ Integer.MIN_VALUE);
+            } else {
+                StringBuilder s = new StringBuilder();
+                while (true) {
+                    char c = (char) ((((key[pos] ^ flip) & 0xff) << 8) | ((key[pos + 1] ^ flip) & 0xff));
+                    pos += 2;
+                    if (c == 0) {
+                        // 00 00 00 ends the string, 00 00 FF is the character 0
+                        if (((key[pos++] ^ flip) & 0xff) == 0)
+                            break;
+                    }
+                    s.append(c);
+                }
+                values[i] = new StringField(s.toString(), Type.STRING_LEN);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Compares two encoded keys as strings of unsigned bytes.
+     *
+     * @return a negative number, zero, or a positive number if a comes
+     *         before, is equal to, or comes after b
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i])
+                return (a[i] & 0xff) - (b[i] & 0xff);
+        }
+        return a.length - b.length;
+    }
+
+    /** A growable byte array that key fields are appended to. */
+    private static class Buffer {
+        private byte[] bytes = new byte[16];
+        private int size = 0;
+
+        private void put(int b) {
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) b;
+        }
+
+        void field(Field f, boolean asc) {
+            int start = size;
+            if (f.getType() == Type.INT_TYPE) {
+                int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+                put(v >>> 24);
+                put(v >>> 16);
+                put(v >>> 8);
+                put(v);
+            } else {
+                String s = ((StringField) f).getValue();
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    put(c >>> 8);
+                    put(c);
+                    if (c == 0)
+                        put(0xff);
+                }
+                put(0);
+                put(0);
+                put(0);
+            }
+            if (!asc) {
+                for (int i = start; i < size; i++)
+                    bytes[i] = (byte) ~bytes[i];
+            }
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
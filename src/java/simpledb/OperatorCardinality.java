@@ -1,6 +1,7 @@
 package simpledb;
 
 //import java.util.HashMap;
+import java.io.PrintStream;
 import java.util.Map;
 
 /**
@@ -27,7 +28,19 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
@@ -45,13 +58,50 @@ public class OperatorCardinality {
                     childC = tableStats.get(
                             ((SeqScan) children[0]).getTableName())
                             .estimateTableCardinality(1.0);
+                } else if (children[0] instanceof ParallelSeqScan) {
+                    childC = tableStats.get(
+                            ((ParallelSeqScan) children[0]).getTableName())
+                            .estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof TopN)
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            else if (o instanceof Limit)
+                childC = Math.min(childC, ((Limit) o).getLimit());
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
     }
 
+    /**
+     * Prints an operator tree that has run, one operator per line, with the
+     * number of tuples each operator was estimated to produce and the number
+     * it actually produced (see {@link Operator#getActualCardinality()}).
+     * Iterators that are not operators are printed without them.
+     */
+    public static void printCardinalities(OpIterator o, PrintStream out) {
+        printCardinalities(o, out, "");
+    }
+
+    private static void printCardinalities(OpIterator o, PrintStream out,
+            String indent) {
+        if (o == null)
+            return;
+        if (!(o instanceof Operator)) {
+            out.println(indent + o.getClass().getSimpleName());
+            return;
+        }
+        Operator op = (Operator) o;
+        long estimated = op.getEstimatedCardinality(), actual = op.getActualCardinality();
+        String ratio = "";
+        if (estimated > 0 && actual > 0)
+            ratio = String.format(" (x%.2f)", (double) actual / estimated);
+        out.println(String.format("%s%s est:%d actual:%d%s", indent,
+                op.getClass().getSimpleName(), estimated, actual, ratio));
+        for (OpIterator child : op.getChildren())
+            printCardinalities(child, out, indent + "  ");
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -94,7 +144,7 @@ public class OperatorCardinality {
 
         OpIterator[] children = j.getChildren();
         OpIterator child1 = children[0];
-        OpIterator child2 = children[1];
+        OpIterator child2 = children.length > 1 ? children[1] : null;
         int child1Card = 1;
         int child2Card = 1;
 
@@ -144,7 +194,14 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
+    /**
+     * Updates the cardinality of a HashEquiJoin, or of any other join
+     * operator whose children are the two join inputs. An
+     * IndexNestedLoopJoin has only the outer child; its inner input is the
+     * table it looks up.
+     */
+    private static boolean updateHashEquiJoinCardinality(Operator j,
+            JoinPredicate jp, String joinField1Name, String joinField2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -154,10 +211,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -192,10 +249,13 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (j instanceof IndexNestedLoopJoin) {
+            child2Card = (int) (tableStats.get(((IndexNestedLoopJoin) j)
+                    .getTableName()).estimateTableCardinality(1.0));
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(jp
+                .getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -3,18 +3,29 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields, each in ascending or descending order. Tuples are compared by
+ * their {@link NormalizedKey}s.
+ * <p>
+ * At most {@link #getMaxTuples()} tuples of the child are held in memory; if
+ * the child has more, they are sorted externally with an {@link ExternalSort}.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples kept in memory while sorting. */
+    public static final int DEFAULT_MAX_TUPLES = 1 << 18;
+
+    private static int defaultMaxTuples = DEFAULT_MAX_TUPLES;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascending;
+    private int maxTuples = defaultMaxTuples;
+    transient private ExternalSort sort;
+    transient private DbFileIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,50 +38,138 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first
+     * @param asc
+     *            for each of these fields, true if its order is ascending
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException
+     *             if the two arrays differ in length, or are empty
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length != asc.length || orderbyFields.length == 0)
+            throw new IllegalArgumentException("need one order per field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
     }
     
+    /** @return true if the order of the first field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascending[0];
     }
     
+    /** @return the first (most significant) field of the order */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the fields of the order, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field of the order, true if it is ascending */
+    public boolean[] getAscending() {
+        return ascending.clone();
     }
     
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * Sets the memory budget of this sort, as the number of tuples kept in
+     * memory. Takes effect the next time the operator is opened.
+     */
+    public void setMaxTuples(int maxTuples) {
+        if (maxTuples <= 0)
+            throw new IllegalArgumentException("maxTuples must be positive");
+        this.maxTuples = maxTuples;
+    }
+
+    public int getMaxTuples() {
+        return maxTuples;
+    }
+
+    /**
+     * Sets the memory budget of sorts created from now on.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultMaxTuples(int maxTuples) {
+        if (maxTuples <= 0)
+            throw new IllegalArgumentException("maxTuples must be positive");
+        defaultMaxTuples = maxTuples;
+    }
+
+    /** @return the memory budget of sorts created from now on */
+    public static int getDefaultMaxTuples() {
+        return defaultMaxTuples;
+    }
+
+    /**
+     * Restores the default memory budget of sorts.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void resetDefaultMaxTuples() {
+        defaultMaxTuples = DEFAULT_MAX_TUPLES;
+    }
+
+    /**
+     * @return the number of sorted runs the last open wrote to disk, 0 if the
+     *         child fit into memory
+     */
+    public int numRuns() {
+        return sort == null ? 0 : sort.numRuns();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        // sort the tuples of the child, spilling sorted runs if they do not
+        // fit into memory
+        releaseSort();
+        sort = new ExternalSort(new NormalizedKey(td, orderByFields, ascending), td, maxTuples);
         while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sort.add(child.next());
+        it = sort.iterator();
+        it.open();
         super.open();
     }
 
+    private void releaseSort() {
+        if (it != null)
+            it.close();
+        it = null;
+        if (sort != null)
+            sort.release();
+        sort = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        releaseSort();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it.rewind();
     }
 
     /**
@@ -99,25 +198,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,437 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ParallelAggregate computes an aggregate over a table using the workers of a
+ * {@link ParallelSeqScan}. Each worker pre-aggregates the tuples of the
+ * morsels it scans into a private hash table, so the workers never contend on
+ * shared state; once the scan is complete the per-worker tables are merged
+ * into the final result. Like {@link Aggregate}, it computes a single
+ * aggregate, optionally grouped by a single column.
+ * <p>
+ * Only the running count, sum, min and max of every group are kept, so AVG
+ * needs constant memory per group. COUNT_DISTINCT and MEDIAN keep a mergeable
+ * {@link AggregateState} sketch per group instead.
+ * <p>
+ * Like {@link Aggregate}, it keeps at most a budget of groups in memory (see
+ * {@link #setMaxGroups}), split evenly between the workers. Once a worker's
+ * share is used up, it spills the tuples of groups it does not hold into
+ * {@link SpillFile}s, hash-partitioned by their group. After the worker
+ * tables are merged, every partition is read back: tuples of groups in the
+ * merged table are folded into it, and the others are aggregated by a
+ * {@link SpillingAggregator} with what is left of the budget.
+ */
+public class ParallelAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private ParallelSeqScan _child;
+    private int _afield;
+    private int _gfield;
+    private Aggregator.Op _aop;
+    private TupleDesc _td;
+    private int _maxGroups;
+
+    // the groups kept in memory, and the next one to return
+    private transient GroupTable merged;
+    private transient int nextGroup;
+    // per worker, the spill partitions; null if no worker spilled
+    private transient SpillFile[][] spills;
+    // the next partition to aggregate, and whether each one has been folded
+    // into the merged groups already
+    private transient int nextPartition;
+    private transient boolean[] folded;
+    private transient SpillingAggregator sub;
+    private transient OpIterator subIt;
+    private transient boolean spilled;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the parallel scan feeding us tuples; filters and projections
+     *            pushed into it are applied before aggregation
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use. Only COUNT and
+     *            COUNT_DISTINCT are supported over string columns.
+     */
+    public ParallelAggregate(ParallelSeqScan child, int afield, int gfield, Aggregator.Op aop) {
+        _child = child;
+        _afield = afield;
+        _gfield = gfield;
+        _aop = aop;
+        _maxGroups = Aggregate.getDefaultMaxGroups();
+        TupleDesc ctd = child.getTupleDesc();
+        if (!AggregateState.supports(aop, ctd.getFieldType(afield)))
+            throw new IllegalArgumentException("cannot compute " + aop + " over a "
+                    + ctd.getFieldType(afield) + " field");
+        String aggName = aop.toString() + " (" + ctd.getFieldName(afield) + ")";
+        if (gfield == Aggregator.NO_GROUPING) {
+            _td = new TupleDesc(new Type[] {Type.INT_TYPE}, new String[] {aggName});
+        } else {
+            _td = new TupleDesc(new Type[] {ctd.getFieldType(gfield), Type.INT_TYPE},
+                    new String[] {ctd.getFieldName(gfield), aggName});
+        }
+    }
+
+    /**
+     * @return the groupby field index in the <b>INPUT</b> tuples, or
+     *         {@link simpledb.Aggregator#NO_GROUPING}
+     */
+    public int groupField() {
+        return _gfield;
+    }
+
+    /**
+     * @return the name of the groupby field in the <b>OUTPUT</b> tuples, or
+     *         null if there is no grouping
+     */
+    public String groupFieldName() {
+        return _gfield == Aggregator.NO_GROUPING ? null : _td.getFieldName(0);
+    }
+
+    /**
+     * @return the aggregate field
+     */
+    public int aggregateField() {
+        return _afield;
+    }
+
+    /**
+     * @return the name of the aggregate field in the <b>OUTPUT</b> tuples
+     */
+    public String aggregateFieldName() {
+        return _td.getFieldName(_td.numFields() - 1);
+    }
+
+    /**
+     * @return the aggregate operator
+     */
+    public Aggregator.Op aggregateOp() {
+        return _aop;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return _td;
+    }
+
+    /**
+     * Sets the memory budget of this aggregate, as the number of groups kept
+     * in memory by all workers together. Takes effect the next time the
+     * aggregate is opened.
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (maxGroups <= 0)
+            throw new IllegalArgumentException("maxGroups must be positive");
+        _maxGroups = maxGroups;
+    }
+
+    public int getMaxGroups() {
+        return _maxGroups;
+    }
+
+    /**
+     * @return true if the last open of this aggregate had to spill tuples to
+     *         disk
+     */
+    public boolean hasSpilled() {
+        return spilled;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        final int dop = _child.getDegreeOfParallelism();
+        final int workerGroups = Math.max(1, _maxGroups / dop);
+        final Type gtype = _gfield == Aggregator.NO_GROUPING ? null
+                : _child.getTupleDesc().getFieldType(_gfield);
+        final GroupTable[] tables = new GroupTable[dop];
+        final SpillFile[][] workerSpills = new SpillFile[dop][];
+        ParallelSeqScan.Sink[] sinks = new ParallelSeqScan.Sink[dop];
+        for (int i = 0; i < dop; i++) {
+            final GroupTable table = new GroupTable(_aop, gtype);
+            final int worker = i;
+            tables[i] = table;
+            sinks[i] = new ParallelSeqScan.Sink() {
+                public boolean consume(Tuple t) throws DbException {
+                    Field key = _gfield == Aggregator.NO_GROUPING ? null : t.getField(_gfield);
+                    int g = table.find(key);
+                    if (g < 0) {
+                        if (table.size >= workerGroups) {
+                            spill(workerSpills, worker, key, t);
+                            return true;
+                        }
+                        g = table.groupOf(key);
+                    }
+                    table.add(g, t.getField(_afield));
+                    return true;
+                }
+            };
+        }
+        try {
+            _child.scanInto(sinks);
+        } catch (DbException e) {
+            release(workerSpills);
+            throw e;
+        } catch (TransactionAbortedException e) {
+            release(workerSpills);
+            throw e;
+        }
+
+        merged = tables[0];
+        for (int i = 1; i < dop; i++)
+            merged.merge(tables[i]);
+        spilled = false;
+        for (SpillFile[] files : workerSpills)
+            spilled |= files != null;
+        spills = spilled ? workerSpills : null;
+        folded = new boolean[SpillingAggregator.NUM_PARTITIONS];
+        nextPartition = 0;
+        nextGroup = 0;
+        super.open();
+    }
+
+    private static void spill(SpillFile[][] workerSpills, int worker, Field key, Tuple t)
+            throws DbException {
+        if (workerSpills[worker] == null)
+            workerSpills[worker] = new SpillFile[SpillingAggregator.NUM_PARTITIONS];
+        SpillFile[] files = workerSpills[worker];
+        // the top bits, since SpillingAggregator partitions by the lowest ones
+        int p = (int) (HyperLogLog.hash(key) >>> 60);
+        if (files[p] == null)
+            files[p] = new SpillFile(t.getTupleDesc());
+        files[p].add(t);
+    }
+
+    private static void release(SpillFile[][] workerSpills) {
+        for (SpillFile[] files : workerSpills) {
+            if (files == null)
+                continue;
+            for (SpillFile f : files) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads back spill partition p of every worker, folding the tuples of
+     * merged groups into them unless that was done by an earlier pass, and
+     * aggregating the others with a SpillingAggregator.
+     */
+    private void load(int p) throws DbException, TransactionAbortedException {
+        TupleDesc ctd = _child.getTupleDesc();
+        sub = new SpillingAggregator(_gfield,
+                _gfield == Aggregator.NO_GROUPING ? null : ctd.getFieldType(_gfield),
+                _afield, ctd.getFieldType(_afield), _aop, Math.max(1, _maxGroups - merged.size));
+        for (SpillFile[] files : spills) {
+            if (files == null || files[p] == null)
+                continue;
+            DbFileIterator it = files[p].iterator();
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int g = merged.find(_gfield == Aggregator.NO_GROUPING ? null : t.getField(_gfield));
+                if (g < 0)
+                    sub.add(t);
+                else if (!folded[p])
+                    merged.add(g, t.getField(_afield));
+            }
+            it.close();
+        }
+        folded[p] = true;
+        subIt = sub.iterator();
+        subIt.open();
+    }
+
+    private void releaseSub() {
+        if (subIt != null)
+            subIt.close();
+        if (sub != null)
+            sub.release();
+        subIt = null;
+        sub = null;
+    }
+
+    /**
+     * Returns the groups of the spill partitions first, since they complete
+     * the merged groups, and then the merged groups.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (subIt != null || (spills != null && nextPartition < folded.length)) {
+            if (subIt != null && subIt.hasNext()) {
+                Tuple s = subIt.next();
+                Tuple t = new Tuple(_td);
+                for (int i = 0; i < _td.numFields(); i++)
+                    t.setField(i, s.getField(i));
+                return t;
+            }
+            releaseSub();
+            if (nextPartition < folded.length)
+                load(nextPartition++);
+        }
+        if (nextGroup == merged.size)
+            return null;
+        int g = nextGroup++;
+        Tuple t = new Tuple(_td);
+        IntField value = new IntField(merged.result(g));
+        if (_gfield == Aggregator.NO_GROUPING) {
+            t.setField(0, value);
+        } else {
+            t.setField(0, merged.key(g));
+            t.setField(1, value);
+        }
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        releaseSub();
+        nextPartition = 0;
+        nextGroup = 0;
+    }
+
+    public void close() {
+        super.close();
+        releaseSub();
+        if (spills != null)
+            release(spills);
+        merged = null;
+        spills = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {_child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        _child = (ParallelSeqScan) children[0];
+    }
+
+    /**
+     * The aggregation state of one worker. Group keys are numbered by a
+     * {@link KeyTable}, and the running count, sum, min and max of each group
+     * are stored in flat arrays indexed by that number; an ungrouped
+     * aggregate has the single group 0. Aggregates that need more than these
+     * four numbers keep an {@link AggregateState} per group.
+     */
+    static class GroupTable {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final Aggregator.Op op;
+
+        // null if there is no grouping
+        final KeyTable keys;
+
+        long[] counts = new long[INITIAL_CAPACITY];
+        long[] sums = new long[INITIAL_CAPACITY];
+        int[] mins = new int[INITIAL_CAPACITY];
+        int[] maxs = new int[INITIAL_CAPACITY];
+        AggregateState[] states;
+        int size = 0;
+
+        /**
+         * @param gtype
+         *            the type of the group keys, or null if there is no
+         *            grouping
+         */
+        GroupTable(Aggregator.Op op, Type gtype) {
+            this.op = op;
+            keys = gtype == null ? null : new KeyTable(gtype);
+            if (op == Aggregator.Op.COUNT_DISTINCT || op == Aggregator.Op.MEDIAN)
+                states = new AggregateState[INITIAL_CAPACITY];
+        }
+
+        /** @return the group number of key, or -1 if it has no group yet */
+        int find(Field key) {
+            if (keys == null)
+                return size == 0 ? -1 : 0;
+            return keys.get(key);
+        }
+
+        /** @return the group number of key, adding the group if it is new */
+        int groupOf(Field key) {
+            int g = keys == null ? 0 : keys.add(key);
+            if (g == size)
+                newGroup();
+            return g;
+        }
+
+        /** @return the key of group g, or null if there is no grouping */
+        Field key(int g) {
+            return keys == null ? null : keys.key(g);
+        }
+
+        private void newGroup() {
+            if (size == counts.length) {
+                int n = size * 2;
+                counts = Arrays.copyOf(counts, n);
+                sums = Arrays.copyOf(sums, n);
+                mins = Arrays.copyOf(mins, n);
+                maxs = Arrays.copyOf(maxs, n);
+                if (states != null)
+                    states = Arrays.copyOf(states, n);
+            }
+            if (states != null)
+                states[size] = AggregateState.create(op);
+            mins[size] = Integer.MAX_VALUE;
+            maxs[size] = Integer.MIN_VALUE;
+            size++;
+        }
+
+        /** Adds an aggregated value to group g. */
+        void add(int g, Field value) {
+            if (states != null)
+                states[g].add(value);
+            else if (op == Aggregator.Op.COUNT)
+                counts[g]++;
+            else
+                add(g, ((IntField) value).getValue());
+        }
+
+        private void add(int g, int value) {
+            counts[g]++;
+            sums[g] += value;
+            if (value < mins[g])
+                mins[g] = value;
+            if (value > maxs[g])
+                maxs[g] = value;
+        }
+
+        /** Folds the groups of another worker's table into this one. */
+        void merge(GroupTable other) {
+            for (int og = 0; og < other.size; og++) {
+                int g = groupOf(other.key(og));
+                counts[g] += other.counts[og];
+                sums[g] += other.sums[og];
+                mins[g] = Math.min(mins[g], other.mins[og]);
+                maxs[g] = Math.max(maxs[g], other.maxs[og]);
+                if (states != null)
+                    states[g].merge(other.states[og]);
+            }
+        }
+
+        int result(int g) {
+            if (states != null)
+                return states[g].result();
+            switch (op) {
+            case MIN:
+                return mins[g];
+            case MAX:
+                return maxs[g];
+            case SUM:
+                return (int) sums[g];
+            case AVG:
+                return (int) (sums[g] / counts[g]);
+            case COUNT:
+                return (int) counts[g];
+            default:
+                throw new IllegalStateException("unsupported aggregate " + op);
+            }
+        }
+    }
+}
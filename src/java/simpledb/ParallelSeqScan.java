@@ -0,0 +1,402 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelSeqScan is a sequential scan over a HeapFile that reads the file on
+ * several worker threads at once. The page range of the file is split into
+ * morsels (see {@link MorselDispatcher}) which are claimed dynamically by the
+ * workers of a work-stealing {@link ForkJoinPool}. Filters and a projection
+ * can be pushed into the scan so that they are evaluated on the worker
+ * threads; surviving tuples are handed to the consuming thread in batches
+ * through a bounded queue.
+ * <p>
+ * Tuples are returned in no particular order.
+ */
+public class ParallelSeqScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default degree of parallelism: one worker per available core. */
+    public static final int DEFAULT_DOP = Runtime.getRuntime().availableProcessors();
+
+    /** Number of tuples handed over to the consumer at once. */
+    static final int BATCH_SIZE = 256;
+
+    /** Number of batches that may be buffered between workers and consumer. */
+    static final int QUEUE_BATCHES = 64;
+
+    /** Marker a worker enqueues when it has run out of morsels. */
+    private static final ArrayList<Tuple> END_OF_STREAM = new ArrayList<Tuple>(0);
+
+    private TransactionId _tid;
+    private int _tableid;
+    private String _tableAlias;
+    private HeapFile _file;
+    private int _dop;
+    private int _morselPages = MorselDispatcher.DEFAULT_MORSEL_PAGES;
+    private ArrayList<Predicate> _filters = new ArrayList<Predicate>();
+    private ArrayList<Integer> _outFieldIds = null;
+    private TupleDesc _td;
+    private TupleDesc _outTd;
+
+    private transient ForkJoinPool pool;
+    private transient ArrayBlockingQueue<ArrayList<Tuple>> queue;
+    private transient AtomicReference<Exception> error;
+    private transient AtomicBoolean cancelled;
+    private transient int finishedWorkers;
+    private transient Iterator<Tuple> batchIt;
+    private transient Tuple next;
+    private transient boolean isOpen = false;
+
+    /**
+     * Creates a parallel scan over the specified table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be a HeapFile.
+     * @param tableAlias
+     *            the alias of this table, used to prefix the field names of
+     *            the returned TupleDesc (see {@link SeqScan}).
+     * @param dop
+     *            the degree of parallelism, i.e. the number of worker threads
+     *            scanning the table.
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, int dop) {
+        if (dop <= 0)
+            throw new IllegalArgumentException("degree of parallelism must be positive");
+        _tid = tid;
+        _tableid = tableid;
+        _tableAlias = tableAlias;
+        _dop = dop;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("parallel scans are only supported over HeapFiles");
+        _file = (HeapFile) f;
+
+        TupleDesc desc = _file.getTupleDesc();
+        Type[] typeAr = new Type[desc.numFields()];
+        String[] fieldAr = new String[desc.numFields()];
+        for (int i = 0; i < desc.numFields(); i++) {
+            typeAr[i] = desc.getFieldType(i);
+            fieldAr[i] = _tableAlias + "." + desc.getFieldName(i);
+        }
+        _td = new TupleDesc(typeAr, fieldAr);
+        _outTd = _td;
+    }
+
+    public ParallelSeqScan(TransactionId tid, int tableid, int dop) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid), dop);
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(_tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return _tableAlias;
+    }
+
+    /**
+     * @return the number of worker threads used by this scan
+     */
+    public int getDegreeOfParallelism() {
+        return _dop;
+    }
+
+    /**
+     * Sets the number of pages in each morsel handed to a worker. Must be
+     * called before {@link #open}.
+     */
+    public void setMorselPages(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("morsel size must be positive");
+        _morselPages = pages;
+    }
+
+    /**
+     * Pushes a filter into the scan. The predicate is evaluated on the worker
+     * threads, against field indexes of the un-projected table. All filters
+     * added must hold for a tuple to be returned. Must be called before
+     * {@link #open}.
+     */
+    public void addFilter(Predicate p) {
+        _filters.add(p);
+    }
+
+    /**
+     * Pushes a projection into the scan; returned tuples only contain the
+     * specified fields, in the specified order. Must be called before
+     * {@link #open}.
+     *
+     * @param fieldList
+     *            the ids of the fields of the table to project out
+     */
+    public void setProjection(ArrayList<Integer> fieldList) {
+        _outFieldIds = fieldList;
+        Type[] typeAr = new Type[fieldList.size()];
+        String[] fieldAr = new String[fieldList.size()];
+        for (int i = 0; i < typeAr.length; i++) {
+            typeAr[i] = _td.getFieldType(fieldList.get(i));
+            fieldAr[i] = _td.getFieldName(fieldList.get(i));
+        }
+        _outTd = new TupleDesc(typeAr, fieldAr);
+    }
+
+    /**
+     * Returns the TupleDesc with field names prefixed with the table alias,
+     * restricted to the projected fields if a projection was pushed down.
+     */
+    public TupleDesc getTupleDesc() {
+        return _outTd;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        MorselDispatcher dispatcher = new MorselDispatcher(_file.numPages(), _morselPages);
+        queue = new ArrayBlockingQueue<ArrayList<Tuple>>(QUEUE_BATCHES);
+        error = new AtomicReference<Exception>();
+        cancelled = new AtomicBoolean(false);
+        finishedWorkers = 0;
+        batchIt = null;
+        next = null;
+        pool = new ForkJoinPool(_dop);
+        for (int i = 0; i < _dop; i++) {
+            pool.execute(new ScanWorker(dispatcher, queue, error, cancelled));
+        }
+        isOpen = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple result = next;
+        next = null;
+        return result;
+    }
+
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batchIt == null || !batchIt.hasNext()) {
+            if (finishedWorkers == _dop)
+                return null;
+            ArrayList<Tuple> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for scan workers");
+            }
+            if (batch == END_OF_STREAM) {
+                finishedWorkers++;
+                rethrowWorkerError();
+                continue;
+            }
+            batchIt = batch.iterator();
+        }
+        return batchIt.next();
+    }
+
+    private void rethrowWorkerError() throws DbException, TransactionAbortedException {
+        Exception e = error.get();
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        throw new DbException("parallel scan failed: " + e);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (cancelled != null)
+            cancelled.set(true);
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        if (queue != null)
+            queue.clear();
+        batchIt = null;
+        next = null;
+        isOpen = false;
+    }
+
+    /**
+     * Receives the tuples one worker reads from its morsels. Operators fused
+     * into the scan (see {@link ParallelAggregate}) supply one sink per worker,
+     * so sinks need not be thread safe.
+     */
+    interface Sink {
+        /** @return false to stop the worker */
+        boolean consume(Tuple t) throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * Runs the scan to completion, handing every tuple that passes the pushed
+     * down filters, projected, to the sink of the worker that read it. There
+     * must be one sink per worker, see {@link #getDegreeOfParallelism}.
+     * Blocks until all workers are done.
+     */
+    void scanInto(Sink[] sinks) throws DbException, TransactionAbortedException {
+        if (sinks.length != _dop)
+            throw new IllegalArgumentException("need one sink per worker");
+        MorselDispatcher dispatcher = new MorselDispatcher(_file.numPages(), _morselPages);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        ForkJoinPool workers = new ForkJoinPool(_dop);
+        try {
+            ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final Sink sink : sinks) {
+                done.add(workers.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        scanMorsels(dispatcher, stop, sink);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    stop.set(true);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof TransactionAbortedException)
+                        throw (TransactionAbortedException) cause;
+                    if (cause instanceof DbException)
+                        throw (DbException) cause;
+                    throw new DbException("parallel scan failed: " + cause);
+                } catch (InterruptedException e) {
+                    stop.set(true);
+                    throw new DbException("interrupted while waiting for scan workers");
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Claims morsels until the table is exhausted or the scan is stopped,
+     * and hands the tuples that pass the filters, projected, to sink.
+     */
+    private void scanMorsels(MorselDispatcher dispatcher, AtomicBoolean stop, Sink sink)
+            throws DbException, TransactionAbortedException {
+        int start;
+        while (!stop.get() && (start = dispatcher.nextMorsel()) >= 0) {
+            DbFileIterator it = _file.iterator(_tid, start, dispatcher.morselEnd(start));
+            it.open();
+            try {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (passesFilters(t) && !sink.consume(project(t)))
+                        return;
+                }
+            } finally {
+                it.close();
+            }
+        }
+    }
+
+    /**
+     * A worker runs the scan and hands batches of results to the consumer.
+     */
+    private class ScanWorker implements Runnable, Sink {
+        // a worker only ever talks to the state of the open() that started
+        // it, so stragglers of a closed scan cannot leak into a rewound one
+        private final MorselDispatcher dispatcher;
+        private final ArrayBlockingQueue<ArrayList<Tuple>> queue;
+        private final AtomicReference<Exception> error;
+        private final AtomicBoolean cancelled;
+        private ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
+
+        ScanWorker(MorselDispatcher dispatcher, ArrayBlockingQueue<ArrayList<Tuple>> queue,
+                AtomicReference<Exception> error, AtomicBoolean cancelled) {
+            this.dispatcher = dispatcher;
+            this.queue = queue;
+            this.error = error;
+            this.cancelled = cancelled;
+        }
+
+        public void run() {
+            try {
+                scanMorsels(dispatcher, cancelled, this);
+                if (!batch.isEmpty())
+                    put(batch);
+            } catch (Exception e) {
+                error.compareAndSet(null, e);
+            } finally {
+                put(END_OF_STREAM);
+            }
+        }
+
+        public boolean consume(Tuple t) {
+            batch.add(t);
+            if (batch.size() == BATCH_SIZE) {
+                if (!put(batch))
+                    return false;
+                batch = new ArrayList<Tuple>(BATCH_SIZE);
+            }
+            return true;
+        }
+
+        /** @return false if the scan was closed while waiting for space */
+        private boolean put(ArrayList<Tuple> batch) {
+            try {
+                while (!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+                    if (cancelled.get())
+                        return false;
+                }
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate p : _filters) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    private Tuple project(Tuple t) {
+        if (_outFieldIds == null)
+            return t;
+        Tuple newTuple = new Tuple(_outTd);
+        newTuple.setRecordId(t.getRecordId());
+        for (int i = 0; i < _outFieldIds.size(); i++) {
+            newTuple.setField(i, t.getField(_outFieldIds.get(i)));
+        }
+        return newTuple;
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,31 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /** A trailing LIMIT n [OFFSET m] clause, which ZQL does not parse. */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    // the LIMIT clause removed from the statement being parsed; -1 if none
+    private int limit = -1;
+    private int offset = 0;
+
+    // the plans of recent queries, shared by all parsers
+    private static final QueryPlanCache planCache = new QueryPlanCache();
+    // the normalized text of the statement being processed, if its plan may be cached
+    private String cacheKey = null;
+
+    /** @return the cache of the plans of recent queries */
+    public static QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
+    /** @return true if e is a ? parameter placeholder */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -62,6 +89,18 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            if (isParameter(ops.elementAt(0)) || isParameter(ops.elementAt(1))) {
+                // a filter whose constant is supplied when the query runs
+                ZExp column = ops.elementAt(isParameter(ops.elementAt(1)) ? 0 : 1);
+                if (!(column instanceof ZConstant)
+                        || ((ZConstant) column).getType() != ZConstant.COLUMNNAME) {
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared with fields.");
+                }
+                lp.addParameterFilter(((ZConstant) column).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -138,6 +177,9 @@ public class Parser {
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        // the LIMIT clause belongs to this query, not to its subqueries
+        int limit = this.limit, offset = this.offset;
+        this.limit = -1;
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -182,23 +224,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        ArrayList<String> groupByFields = new ArrayList<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -207,8 +245,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        ArrayList<String> aggFields = new ArrayList<String>();
+        ArrayList<String> aggFuns = new ArrayList<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +256,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,30 +277,32 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), groupByFields);
+        }
+        if (limit >= 0) {
+            lp.setLimit(limit, offset);
+            lp.setQuery(q.toString() + " LIMIT " + limit
+                    + (offset > 0 ? " OFFSET " + offset : ""));
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -276,11 +314,27 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        return planQuery(lp, tId, null, cacheKey);
+    }
+
+    /**
+     * Converts a logical plan to the physical plan of a query.
+     *
+     * @param params
+     *            the values of its parameters, or null if it has none
+     * @param key
+     *            the normalized text of the query, under which its plan is
+     *            cached; null if the plan is not to be cached
+     */
+    Query planQuery(LogicalPlan lp, TransactionId tId, String[] params, String key)
+            throws simpledb.ParsingException {
         Query query = new Query(tId);
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
         OpIterator physicalPlan = lp.physicalPlan(tId,
-                TableStats.getStatsMap(), explain);
+                TableStats.getStatsMap(), explain, params);
+        if (key != null)
+            planCache.put(key, lp, TableStats.getStatsMap());
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
@@ -463,8 +517,31 @@ public class Parser {
         }
     }
 
+    /**
+     * Removes a trailing LIMIT clause from a statement, and remembers it for
+     * the plan of the statement.
+     *
+     * @return the statement without the LIMIT clause
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(1));
+            offset = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            limit = -1;
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return s.substring(0, m.start()) + m.group(3);
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
+        s = stripLimit(s);
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
@@ -484,6 +561,21 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Parses a query whose constants may be ? placeholders, to be run any
+     * number of times with different values. The plan of the query is
+     * optimized on its first run and cached from then on.
+     *
+     * @throws simpledb.ParsingException
+     *             if the query is not a valid query, or has subqueries
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException {
+        LogicalPlan lp = generateLogicalPlan(new TransactionId(), sql);
+        if (!lp.isReusable())
+            throw new simpledb.ParsingException("Queries with subqueries cannot be prepared");
+        return new PreparedStatement(this, sql, lp);
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -503,8 +595,23 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+                text.write(buf, 0, n);
+            String sql = text.toString("UTF-8");
+            cacheKey = QueryPlanCache.normalize(sql);
+            LogicalPlan cached = null;
+            if (cacheKey.regionMatches(true, 0, "select ", 0, 7))
+                cached = planCache.get(cacheKey, TableStats.getStatsMap());
+            else
+                cacheKey = null;
+            ZStatement s = null;
+            if (cached == null) {
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                        stripLimit(sql).getBytes("UTF-8")));
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +624,9 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (cached != null)
+                        query = planQuery(cached, curtrans.getId(), null, null);
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -532,8 +641,13 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null) {
                         query.execute();
+                        if (explain) {
+                            System.out.println("The estimated and actual tuples were:");
+                            OperatorCardinality.printCardinalities(query.getPhysicalPlan(), System.out);
+                        }
+                    }
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
@@ -559,6 +673,7 @@ public class Parser {
                 } finally {
                     if (!inUserTrans)
                         curtrans = null;
+                    cacheKey = null;
                 }
             }
 
@@ -581,7 +696,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -597,8 +712,20 @@ public class Parser {
 
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
+    static final long STATS_REFRESH_MILLIS = 10000;
+
+    private File statsFile;
 
     protected void shutdown() {
+        TableStats.stopBackgroundRefresh();
+        if (statsFile != null) {
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Cannot write statistics file " + statsFile + ": "
+                        + e.getMessage());
+            }
+        }
         System.out.println("Bye");
     }
 
@@ -607,7 +734,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        statsFile = TableStats.statisticsFile(argv[0]);
+        TableStats.loadOrComputeStatistics(statsFile);
+        TableStats.startBackgroundRefresh(statsFile, STATS_REFRESH_MILLIS);
 
         String queryFile = null;
 
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A PreparedStatement is a query, parsed once by {@link Parser#prepare},
+ * whose constants may be ? placeholders. Each run binds the current values
+ * of the parameters, numbered from 1 in the order the placeholders appear
+ * in the WHERE clause.
+ * <p>
+ * The joins of the query are ordered on its first run, with the values of
+ * the parameters of that run, and the plan is kept in the
+ * {@link QueryPlanCache} of {@link Parser#getPlanCache()} for the runs that
+ * follow, until the catalog or the statistics of its tables change.
+ */
+public class PreparedStatement {
+
+    private final Parser parser;
+    private final String sql;
+    private final String key;
+    private final String[] params;
+    // the plan parsed by prepare, until the first run
+    private LogicalPlan parsed;
+
+    /**
+     * @param sql
+     *            the text of the query
+     * @param plan
+     *            the logical plan of the query, whose joins are not ordered
+     */
+    PreparedStatement(Parser parser, String sql, LogicalPlan plan) {
+        this.parser = parser;
+        this.sql = sql;
+        this.key = QueryPlanCache.normalize(sql);
+        this.parsed = plan;
+        this.params = new String[plan.numParameters()];
+    }
+
+    /** @return the number of ? placeholders of the query */
+    public int getParameterCount() {
+        return params.length;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 1 || index > params.length)
+            throw new IllegalArgumentException("no parameter " + index + ", the query has "
+                    + params.length);
+    }
+
+    /** Sets the value of a parameter compared with an integer field. */
+    public void setInt(int index, int value) {
+        checkIndex(index);
+        params[index - 1] = Integer.toString(value);
+    }
+
+    /** Sets the value of a parameter compared with a string field. */
+    public void setString(int index, String value) {
+        checkIndex(index);
+        params[index - 1] = value;
+    }
+
+    /** Clears the values of all parameters. */
+    public void clearParameters() {
+        Arrays.fill(params, null);
+    }
+
+    /**
+     * Plans a run of the query with the current values of the parameters.
+     *
+     * @param tid
+     *            the transaction the query runs in
+     * @throws ParsingException
+     *             if a parameter has no value, or a value that is not an
+     *             integer where an integer is compared, or the query is no
+     *             longer valid for the catalog
+     */
+    public Query executeQuery(TransactionId tid) throws ParsingException {
+        LogicalPlan lp = Parser.getPlanCache().get(key, TableStats.getStatsMap());
+        if (lp != null)
+            return parser.planQuery(lp, tid, params.clone(), null);
+        // the tables may have changed since the query was parsed
+        lp = parsed != null ? parsed : parser.generateLogicalPlan(tid, sql);
+        parsed = null;
+        if (lp.numParameters() != params.length)
+            throw new ParsingException("The query no longer has " + params.length + " parameters");
+        return parser.planQuery(lp, tid, params.clone(), key);
+    }
+
+    public String toString() {
+        return key;
+    }
+}
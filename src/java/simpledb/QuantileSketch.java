@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * QuantileSketch answers approximate quantile queries over a stream of
+ * integers in memory that grows only logarithmically with the stream. Values
+ * are kept in a hierarchy of buffers; a value in level h stands for 2^h input
+ * values. When a level fills up it is sorted and every other value (starting
+ * at a random offset) is promoted to the next level, so the rank error of any
+ * quantile stays within a small fraction of the stream size.
+ * <p>
+ * Streams shorter than the size of the first level are kept exactly. Sketches
+ * can be merged, which gives the sketch of the union of their streams.
+ */
+public class QuantileSketch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of values kept per level. */
+    public static final int DEFAULT_K = 128;
+
+    private final int _k;
+    private int[][] levels = new int[0][];
+    private int[] sizes = new int[0];
+    private long count = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private final Random random = new Random(0x5eed);
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k
+     *            number of values kept per level; the rank error shrinks as k
+     *            grows
+     */
+    public QuantileSketch(int k) {
+        if (k <= 0)
+            throw new IllegalArgumentException("k must be positive");
+        _k = k;
+    }
+
+    /** Adds a value to the sketch. */
+    public void add(int v) {
+        count++;
+        if (v < min)
+            min = v;
+        if (v > max)
+            max = v;
+        insert(0, v);
+    }
+
+    /** @return the number of values added */
+    public long count() {
+        return count;
+    }
+
+    private void insert(int level, int v) {
+        if (level == levels.length) {
+            levels = Arrays.copyOf(levels, level + 1);
+            sizes = Arrays.copyOf(sizes, level + 1);
+            levels[level] = new int[2 * _k];
+        }
+        levels[level][sizes[level]++] = v;
+        if (sizes[level] == levels[level].length)
+            compact(level);
+    }
+
+    /** Promotes every other value of a full level to the next one. */
+    private void compact(int level) {
+        int[] buf = levels[level];
+        int n = sizes[level];
+        Arrays.sort(buf, 0, n);
+        sizes[level] = 0;
+        for (int i = random.nextBoolean() ? 1 : 0; i < n; i += 2)
+            insert(level + 1, buf[i]);
+    }
+
+    /** Folds another sketch into this one. */
+    public void merge(QuantileSketch other) {
+        if (other.count == 0)
+            return;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++)
+                insert(h, other.levels[h][i]);
+        }
+    }
+
+    /**
+     * @param q
+     *            the quantile to compute, between 0 and 1
+     * @return (an approximation of) the smallest value v such that at least a
+     *         fraction q of the values added are less than or equal to v
+     * @throws NoSuchElementException
+     *             if the sketch is empty
+     */
+    public int quantile(double q) {
+        if (count == 0)
+            throw new NoSuchElementException("quantile of an empty sketch");
+        if (q <= 0)
+            return min;
+        if (q >= 1)
+            return max;
+        int n = 0;
+        for (int s : sizes)
+            n += s;
+        long[] weighted = new long[n];
+        int i = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int j = 0; j < sizes[h]; j++) {
+                // value in the high 32 bits so sorting orders by value
+                weighted[i++] = ((long) levels[h][j] << 32) | h;
+            }
+        }
+        Arrays.sort(weighted);
+        long total = 0;
+        for (long w : weighted)
+            total += 1L << (int) (w & 0xffffffffL);
+        double target = q * total;
+        long seen = 0;
+        for (long w : weighted) {
+            seen += 1L << (int) (w & 0xffffffffL);
+            if (seen >= target)
+                return (int) (w >> 32);
+        }
+        return max;
+    }
+}
@@ -90,6 +90,8 @@ public class Query implements Serializable {
     public void close() throws IOException {
         op.close();
         started = false;
+        if (logicalPlan != null)
+            logicalPlan.recordFeedback();
     }
 
     public void execute() throws IOException, DbException, TransactionAbortedException {
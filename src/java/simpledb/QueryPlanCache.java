@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * QueryPlanCache keeps the optimized plans of the most recently run
+ * queries, so that running a query again skips parsing it and ordering its
+ * joins.
+ * <p>
+ * The plans are kept by the normalized text of their queries (see
+ * {@link #normalize}). A plan is the {@link LogicalPlan} of the query once
+ * {@link LogicalPlan#physicalPlan} has ordered its joins; the operators
+ * themselves hold the state of a run and belong to a transaction, so every
+ * run gets a copy of the plan to instantiate them from. A plan is dropped
+ * when the catalog no longer has the tables it was planned for, or when the
+ * statistics of one of them are replaced, say because they were recomputed.
+ * Queries with subqueries are not kept.
+ */
+public class QueryPlanCache {
+
+    /** Default number of plans kept. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final HashSet<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "select", "distinct", "from", "where", "and", "or", "not", "like", "group", "by",
+            "order", "asc", "desc", "limit", "offset", "as", "count", "sum", "avg", "min",
+            "max", "insert", "into", "values", "delete"));
+
+    /** A plan, and the tables and statistics it was planned with. */
+    private static class Entry {
+        final LogicalPlan plan;
+        final String[] names;
+        final int[] tableIds;
+        final TableStats[] stats;
+
+        Entry(LogicalPlan plan, String[] names, int[] tableIds, TableStats[] stats) {
+            this.plan = plan;
+            this.names = names;
+            this.tableIds = tableIds;
+            this.stats = stats;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> plans;
+    private long hits, misses;
+
+    /** Create a cache that keeps {@link #DEFAULT_CAPACITY} plans. */
+    public QueryPlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Create a cache that keeps the given number of plans. */
+    public QueryPlanCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.plans = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > QueryPlanCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Normalize the text of a query, so that queries that differ only in the
+     * case of keywords, in white space outside of string constants, or in a
+     * final semicolon share a plan.
+     */
+    public static String normalize(String sql) {
+        StringBuilder out = new StringBuilder(sql.length());
+        boolean space = false;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = out.length() > 0;
+                i++;
+                continue;
+            }
+            if (space)
+                out.append(' ');
+            space = false;
+            if (c == '\'' || c == '"') {
+                int end = sql.indexOf(c, i + 1);
+                end = end < 0 ? sql.length() : end + 1;
+                out.append(sql, i, end);
+                i = end;
+            } else if (Character.isLetter(c)) {
+                int end = i;
+                while (end < sql.length() && (Character.isLetterOrDigit(sql.charAt(end))
+                        || sql.charAt(end) == '_'))
+                    end++;
+                String word = sql.substring(i, end);
+                out.append(KEYWORDS.contains(word.toLowerCase()) ? word.toLowerCase() : word);
+                i = end;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        int n = out.length();
+        while (n > 0 && (out.charAt(n - 1) == ';' || out.charAt(n - 1) == ' '))
+            n--;
+        out.setLength(n);
+        return out.toString();
+    }
+
+    /**
+     * @param key
+     *            the normalized text of a query
+     * @param stats
+     *            the statistics the query is to be planned with, by table
+     *            name
+     * @return a copy of the plan of the query, whose joins are already
+     *         ordered, or null if no plan is kept or it is no longer valid
+     */
+    public synchronized LogicalPlan get(String key, Map<String, TableStats> stats) {
+        Entry e = plans.get(key);
+        if (e != null && !isValid(e, stats)) {
+            plans.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new LogicalPlan(e.plan);
+    }
+
+    private static boolean isValid(Entry e, Map<String, TableStats> stats) {
+        Catalog catalog = Database.getCatalog();
+        for (int i = 0; i < e.names.length; i++) {
+            try {
+                if (catalog.getTableId(e.names[i]) != e.tableIds[i])
+                    return false;
+            } catch (NoSuchElementException ex) {
+                return false;
+            }
+            if (stats.get(e.names[i]) != e.stats[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keep the plan of a query, once {@link LogicalPlan#physicalPlan} has
+     * ordered its joins. Plans with subqueries are not kept.
+     *
+     * @param key
+     *            the normalized text of the query
+     * @param plan
+     *            the plan; it is copied, so that it can still be used
+     * @param stats
+     *            the statistics the query was planned with, by table name
+     */
+    public synchronized void put(String key, LogicalPlan plan, Map<String, TableStats> stats) {
+        if (!plan.isReusable())
+            return;
+        List<String> names = plan.getTableNames();
+        String[] n = names.toArray(new String[names.size()]);
+        int[] ids = new int[n.length];
+        TableStats[] s = new TableStats[n.length];
+        for (int i = 0; i < n.length; i++) {
+            ids[i] = Database.getCatalog().getTableId(n[i]);
+            s[i] = stats.get(n[i]);
+        }
+        LogicalPlan copy = new LogicalPlan(plan);
+        copy.keepJoinOrder();
+        plans.put(key, new Entry(copy, n, ids, s));
+    }
+
+    /** Drop all plans and reset the counts of hits and misses. */
+    public synchronized void clear() {
+        plans.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /** @return the number of plans kept */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of calls to {@link #get} that returned a plan */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /** @return the number of calls to {@link #get} that returned null */
+    public synchronized long misses() {
+        return misses;
+    }
+}
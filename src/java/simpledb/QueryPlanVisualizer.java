@@ -9,12 +9,17 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
+    static final String EXCHANGE = "⇄";
+    static final String ADAPTIVE = "adaptive";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -26,7 +31,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,10 +70,15 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof ParallelSeqScan) {
+            String tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else {
+                tableName = ((ParallelSeqScan) queryPlan).getTableName();
+                alias = ((ParallelSeqScan) queryPlan).getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
@@ -136,18 +146,21 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin) {
+                Operator j = plan;
+                String joinSymbol = plan instanceof HashEquiJoin ? HASH_JOIN : MERGE_JOIN;
+                JoinPredicate jp = plan instanceof HashEquiJoin
+                        ? ((HashEquiJoin) plan).getJoinPredicate()
+                        : ((SortMergeJoin) plan).getJoinPredicate();
                 TupleDesc td = j.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", joinSymbol, field1
                         + jp.getOperator() + field2,j.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (joinSymbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = joinSymbol.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +169,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - joinSymbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -165,21 +178,38 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
-            else if (plan instanceof Aggregate) {
-                Aggregate a = (Aggregate) plan;
+            else if (plan instanceof Aggregate || plan instanceof ParallelAggregate) {
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
-                TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                TupleDesc td = plan.getTupleDesc();
+                int gfield;
+                String groupFieldName, aggregates;
+                if (plan instanceof Aggregate) {
+                    Aggregate a = (Aggregate) plan;
+                    gfield = a.groupField();
+                    groupFieldName = a.groupFieldName();
+                    Aggregator.Op[] ops = a.aggregateOps();
+                    int first = a.groupFields().length;
+                    aggregates = "";
+                    for (int i = 0; i < ops.length; i++) {
+                        aggregates += (i > 0 ? ", " : "") + ops[i] + "("
+                                + td.getFieldName(first + i) + ")";
+                    }
+                } else {
+                    ParallelAggregate a = (ParallelAggregate) plan;
+                    gfield = a.groupField();
+                    groupFieldName = a.groupFieldName();
+                    aggregates = a.aggregateOp() + "(" + a.aggregateFieldName() + ")";
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggregates, plan.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groupFieldName, aggregates,
+                            plan.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -196,6 +226,28 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof IndexNestedLoopJoin) {
+                // the inner table is not a child; it is named in the node
+                IndexNestedLoopJoin j = (IndexNestedLoopJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                String alias = j.getTableName().equals(j.getAlias()) ? "" : " " + j.getAlias();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", INDEX_JOIN,
+                        j.getJoinField1Name() + jp.getOperator() + j.getJoinField2Name()
+                        + " in " + j.getTableName() + alias, j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (INDEX_JOIN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = INDEX_JOIN.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - INDEX_JOIN.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
                 Predicate p = f.getPredicate();
@@ -217,13 +269,22 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
-                thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+            } else if (plan instanceof OrderBy || plan instanceof TopN) {
+                int[] oFields = plan instanceof OrderBy ? ((OrderBy) plan).getOrderByFields()
+                        : ((TopN) plan).getOrderByFields();
+                String fields = "";
+                for (int f : oFields)
+                    fields += (fields.isEmpty() ? "" : ",")
+                            + children[0].getTupleDesc().getFieldName(f);
+                if (plan instanceof OrderBy)
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),card:%3$d",
+                            ORDERBY, fields, plan.getEstimatedCardinality());
+                else
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),%3$s %4$d,card:%5$d",
+                            ORDERBY, fields, LIMIT,
+                            ((TopN) plan).getLimit(), plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -238,6 +299,24 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                        l.getLimit(), l.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -261,6 +340,43 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof Exchange) {
+                Exchange x = (Exchange) plan;
+                thisNode.text = String.format("%1$s(%2$s x%3$d),card:%4$d", EXCHANGE,
+                        x.getKind().toString().toLowerCase(), children.length, x.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (EXCHANGE.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = EXCHANGE.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - EXCHANGE.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            }
+            else if (plan instanceof AdaptiveJoin) {
+                thisNode.text = String.format("%1$s,card:%2$d", ADAPTIVE,
+                        plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (ADAPTIVE.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = ADAPTIVE.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - ADAPTIVE.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            }
             else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
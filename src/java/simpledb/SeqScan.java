@@ -16,6 +16,12 @@ public class SeqScan implements OpIterator {
     private DbFile dbFile;
     private DbFileIterator dbFileIterator;
 
+    // join key filters pushed down by joins, and the fields they test
+    private final ArrayList<JoinKeyFilter> keyFilters = new ArrayList<JoinKeyFilter>();
+    private final ArrayList<Integer> keyFilterFields = new ArrayList<Integer>();
+    private transient Tuple nextTuple = null;
+    private transient long keyFiltered = 0;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -57,6 +63,11 @@ public class SeqScan implements OpIterator {
         return _tableAlias;
     }
 
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+        return _tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -78,10 +89,54 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Creates a sequential scan over the pages [firstPage, lastPage) of the
+     * specified table, which must be a HeapFile. Used to split a scan into
+     * partitions that run in parallel under an {@link Exchange}.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int firstPage, int lastPage) {
+        this(tid, tableid, tableAlias);
+        if (!(dbFile instanceof HeapFile))
+            throw new IllegalArgumentException("page range scans are only supported over HeapFiles");
+        dbFileIterator = ((HeapFile) dbFile).iterator(_tid, firstPage, lastPage);
+    }
+
+    /**
+     * Makes this scan drop all tuples whose field does not pass a filter over
+     * the keys of a join further up, before they are returned; see
+     * {@link HashEquiJoin}. Takes effect immediately, also while the scan is
+     * open.
+     */
+    public void addJoinKeyFilter(int field, JoinKeyFilter filter) {
+        keyFilters.add(filter);
+        keyFilterFields.add(field);
+    }
+
+    /** Removes a filter added with {@link #addJoinKeyFilter}. */
+    public void removeJoinKeyFilter(JoinKeyFilter filter) {
+        for (int i = 0; i < keyFilters.size(); i++) {
+            if (keyFilters.get(i) == filter) {
+                keyFilters.remove(i);
+                keyFilterFields.remove(i);
+                return;
+            }
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException {
+        nextTuple = null;
+        keyFiltered = 0;
         dbFileIterator.open();
     }
 
+    /**
+     * @return the number of tuples dropped by join key filters since the scan
+     *         was last opened, see {@link #addJoinKeyFilter}
+     */
+    public long keyFilteredTuples() {
+        return keyFiltered;
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor. This prefix
@@ -105,20 +160,45 @@ public class SeqScan implements OpIterator {
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return dbFileIterator.hasNext();
+        if (keyFilters.isEmpty() && nextTuple == null)
+            return dbFileIterator.hasNext();
+        while (nextTuple == null && dbFileIterator.hasNext()) {
+            Tuple t = dbFileIterator.next();
+            if (passesKeyFilters(t))
+                nextTuple = t;
+            else
+                keyFiltered++;
+        }
+        return nextTuple != null;
+    }
+
+    private boolean passesKeyFilters(Tuple t) {
+        for (int i = 0; i < keyFilters.size(); i++) {
+            if (!keyFilters.get(i).mightContain(t.getField(keyFilterFields.get(i))))
+                return false;
+        }
+        return true;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-                return dbFileIterator.next();
+        if (keyFilters.isEmpty() && nextTuple == null)
+            return dbFileIterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
     }
 
     public void close() {
+        nextTuple = null;
         dbFileIterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        nextTuple = null;
         dbFileIterator.rewind();
     }
 }
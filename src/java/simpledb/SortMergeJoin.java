@@ -0,0 +1,342 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two inputs on an equality or inequality
+ * predicate by exploiting the order of its inputs.
+ * <p>
+ * For an equality predicate both children must return their tuples in
+ * ascending order of their join fields, e.g. a {@link BTreeScan} on the key
+ * or an ascending {@link OrderBy}; see {@link #isSorted}. The two inputs are
+ * then merged in a single pass over each, buffering only the inner tuples
+ * that share the current join key. The output is in ascending order of the
+ * join key.
+ * <p>
+ * For the inequality predicates (&lt;, &lt;=, &gt;, &gt;=) only the outer
+ * child is streamed, in any order. The inner child is read into memory and
+ * sorted, which is a single pass if it is sorted already; each outer tuple
+ * then joins with a contiguous run of the inner tuples, found by binary
+ * search, so the predicate is never evaluated pair by pair. The whole inner
+ * relation is held in memory, so the optimizer only picks this join for an
+ * inequality if the inner side is expected to fit, see
+ * {@link LogicalJoinNode#mergeJoin}.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate _p;
+    private OpIterator _child1;
+    private OpIterator _child2;
+    private TupleDesc td;
+
+    private transient Tuple t1 = null;
+
+    // equality: the run of inner tuples with key groupKey, and the next inner
+    // tuple after that run
+    private transient ArrayList<Tuple> group;
+    private transient Field groupKey = null;
+    private transient Tuple pending = null;
+
+    // inequality: the sorted inner relation and its join fields
+    private transient Tuple[] inner;
+    private transient Field[] innerKeys;
+
+    // the run of inner tuples [pos, end) still to be joined with t1
+    private transient int pos = 0, end = 0;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join; must be sorted
+     *            ascending on its join field if p is an equality
+     * @param child2
+     *            Iterator for the right(inner) relation to join; must be
+     *            sorted ascending on its join field if p is an equality
+     * @throws IllegalArgumentException
+     *             if the predicate cannot be evaluated by merging
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        _p = p;
+        _child1 = child1;
+        _child2 = child2;
+        td = TupleDesc.merge(_child1.getTupleDesc(), _child2.getTupleDesc());
+    }
+
+    /** @return true if a SortMergeJoin can evaluate predicates with op */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if it is known that plan returns its tuples in ascending
+     *         order of the given field: plan is an ascending OrderBy on it, a
+     *         scan of a B+ tree keyed on it, an equality SortMergeJoin on it,
+     *         or a Filter over one of these.
+     */
+    public static boolean isSorted(OpIterator plan, int field) {
+        if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (plan instanceof BTreeScan)
+            return isKeyOf(((BTreeScan) plan).getTableName(), field);
+        if (plan instanceof SeqScan)
+            return isKeyOf(((SeqScan) plan).getTableName(), field);
+        if (plan instanceof Filter)
+            return isSorted(((Filter) plan).getChildren()[0], field);
+        if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            JoinPredicate p = j.getJoinPredicate();
+            int width1 = j._child1.getTupleDesc().numFields();
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && (field == p.getField1() || field == width1 + p.getField2());
+        }
+        return false;
+    }
+
+    /** @return true if the table is a B+ tree keyed on field */
+    private static boolean isKeyOf(String tableName, int field) {
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(tableName));
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return _p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return _child1.getTupleDesc().getFieldName(_p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return _child2.getTupleDesc().getFieldName(_p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        _child1.open();
+        _child2.open();
+        start();
+        super.open();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        t1 = null;
+        pos = end = 0;
+        if (_p.getOperator() == Predicate.Op.EQUALS) {
+            group = new ArrayList<Tuple>();
+            groupKey = null;
+            pending = _child2.hasNext() ? _child2.next() : null;
+        } else {
+            loadInner();
+        }
+    }
+
+    private void loadInner() throws DbException, TransactionAbortedException {
+        final int field2 = _p.getField2();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (_child2.hasNext())
+            tuples.add(_child2.next());
+        Collections.sort(tuples, new TupleComparator(field2, true));
+        inner = tuples.toArray(new Tuple[tuples.size()]);
+        innerKeys = new Field[inner.length];
+        for (int i = 0; i < inner.length; i++)
+            innerKeys[i] = inner[i].getField(field2);
+    }
+
+    public void close() {
+        _child1.close();
+        _child2.close();
+        t1 = null;
+        group = null;
+        groupKey = null;
+        pending = null;
+        inner = null;
+        innerKeys = null;
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        _child1.rewind();
+        if (_p.getOperator() == Predicate.Op.EQUALS) {
+            _child2.rewind();
+            start();
+        } else {
+            // the sorted inner relation is kept
+            t1 = null;
+            pos = end = 0;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Like {@link Join}, the result tuples are the concatenation
+     * of the joining tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (_p.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEquals();
+        while (pos == end) {
+            if (!_child1.hasNext())
+                return null;
+            t1 = _child1.next();
+            findRun(t1.getField(_p.getField1()));
+        }
+        return merge(t1, inner[pos++]);
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        int field1 = _p.getField1();
+        int field2 = _p.getField2();
+        while (true) {
+            if (pos < end)
+                return merge(t1, group.get(pos++));
+            if (!_child1.hasNext())
+                return null;
+            t1 = _child1.next();
+            Field key = t1.getField(field1);
+            if (groupKey != null && compare(key, groupKey) == 0) {
+                // same key as the previous outer tuple
+                pos = 0;
+                continue;
+            }
+            // skip the inner tuples with smaller keys
+            while (pending != null && compare(pending.getField(field2), key) < 0)
+                pending = _child2.hasNext() ? _child2.next() : null;
+            group.clear();
+            groupKey = null;
+            pos = end = 0;
+            if (pending == null) {
+                // the inner relation is exhausted, no more matches
+                return null;
+            }
+            if (compare(pending.getField(field2), key) > 0)
+                continue;
+            groupKey = key;
+            while (pending != null && compare(pending.getField(field2), key) == 0) {
+                group.add(pending);
+                pending = _child2.hasNext() ? _child2.next() : null;
+            }
+            end = group.size();
+        }
+    }
+
+    /** Sets [pos, end) to the inner tuples that join with an outer key. */
+    private void findRun(Field key) {
+        switch (_p.getOperator()) {
+        case LESS_THAN: // key < inner
+            pos = upperBound(key);
+            end = inner.length;
+            break;
+        case LESS_THAN_OR_EQ:
+            pos = lowerBound(key);
+            end = inner.length;
+            break;
+        case GREATER_THAN: // key > inner
+            pos = 0;
+            end = lowerBound(key);
+            break;
+        case GREATER_THAN_OR_EQ:
+            pos = 0;
+            end = upperBound(key);
+            break;
+        default:
+            throw new IllegalStateException("unsupported operator " + _p.getOperator());
+        }
+    }
+
+    /** @return the index of the first inner key that is >= key */
+    private int lowerBound(Field key) {
+        int lo = 0, hi = innerKeys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(innerKeys[mid], key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the index of the first inner key that is > key */
+    private int upperBound(Field key) {
+        int lo = 0, hi = innerKeys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(innerKeys[mid], key) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int i, j;
+        for (i = 0; i < t1.getTupleDesc().numFields(); i++) {
+            t.setField(i, t1.getField(i));
+        }
+        for (j = 0; j < t2.getTupleDesc().numFields(); i++, j++) {
+            t.setField(i, t2.getField(j));
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{_child1, _child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        _child1 = children[0];
+        _child2 = children[1];
+    }
+
+}
@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary, append-only file of tuples that operators use to
+ * move intermediate results out of memory, e.g. the partitions of a hash
+ * aggregate or hash join that do not fit into their memory budget. It is
+ * stored in the format of a {@link HeapFile} and registered in the catalog
+ * under a fresh id for as long as it exists, so its pages can be read back as
+ * ordinary {@link HeapPage}s.
+ * <p>
+ * Spill files are private to the operator that created them, so they bypass
+ * the buffer pool and are neither locked nor logged: tuples are added into a
+ * single page buffer that is appended to the file when it fills up, and the
+ * file is read back sequentially. A spill file is written completely, then
+ * read any number of times, and finally deleted.
+ */
+public class SpillFile {
+
+    private final HeapFile _file;
+    private final TupleDesc _td;
+    private OutputStream out;
+    private HeapPage page;
+    private int numPages = 0;
+    private long size = 0;
+
+    /**
+     * Creates an empty spill file for tuples with the given TupleDesc.
+     *
+     * @throws DbException
+     *             if the temporary file cannot be created
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        _td = td;
+        try {
+            File f = File.createTempFile("simpledb-spill", ".dat");
+            f.deleteOnExit();
+            _file = new HeapFile(f, td);
+            Database.getCatalog().addTable(_file, "spill-" + f.getName());
+            out = new BufferedOutputStream(new FileOutputStream(f));
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return _td;
+    }
+
+    /** @return the number of tuples added */
+    public long size() {
+        return size;
+    }
+
+    /** @return the number of pages written so far */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Appends a copy of t to the file. The tuple itself is not modified.
+     *
+     * @throws DbException
+     *             if the file has already been finished or cannot be written
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new DbException("spill file is already finished");
+        Tuple copy = new Tuple(_td);
+        for (int i = 0; i < _td.numFields(); i++)
+            copy.setField(i, t.getField(i));
+        try {
+            if (page == null || page.getNumEmptySlots() == 0) {
+                writePage();
+                page = new HeapPage(new HeapPageId(_file.getId(), numPages),
+                        HeapPage.createEmptyPageData());
+            }
+            page.insertTuple(copy);
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    private void writePage() throws IOException {
+        if (page == null)
+            return;
+        out.write(page.getPageData());
+        numPages++;
+        page = null;
+    }
+
+    /**
+     * Flushes the last page to disk; no tuples can be added afterwards.
+     * Called implicitly by {@link #iterator()}.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            writePage();
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they were
+     *         added
+     */
+    public DbFileIterator iterator() throws DbException {
+        finish();
+        return new SpillFileIterator();
+    }
+
+    /**
+     * @return an OpIterator over the tuples of the file, so that it can be fed
+     *         to other operators
+     */
+    public OpIterator scan() {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private DbFileIterator it = null;
+
+            public void open() throws DbException, TransactionAbortedException {
+                it = iterator();
+                it.open();
+            }
+
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                return it != null && it.hasNext();
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (it == null)
+                    throw new NoSuchElementException();
+                return it.next();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                it.rewind();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return _td;
+            }
+
+            public void close() {
+                if (it != null)
+                    it.close();
+                it = null;
+            }
+        };
+    }
+
+    /** Removes the file from the catalog and from disk. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is removed anyway
+            }
+            out = null;
+        }
+        page = null;
+        Database.getCatalog().removeTable(_file.getId());
+        _file.getFile().delete();
+    }
+
+    private class SpillFileIterator extends AbstractDbFileIterator {
+        private DataInputStream in;
+        private int pageNo;
+        private Iterator<Tuple> tuples;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(_file.getFile())));
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+            pageNo = 0;
+            tuples = null;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (in == null)
+                return null;
+            while (tuples == null || !tuples.hasNext()) {
+                if (pageNo == numPages)
+                    return null;
+                byte[] data = new byte[BufferPool.getPageSize()];
+                try {
+                    in.readFully(data);
+                    tuples = new HeapPage(new HeapPageId(_file.getId(), pageNo++), data).iterator();
+                } catch (IOException e) {
+                    throw new DbException("cannot read spill file: " + e.getMessage());
+                }
+            }
+            return tuples.next();
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read anyway
+                }
+                in = null;
+            }
+        }
+    }
+}
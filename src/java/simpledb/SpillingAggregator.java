@@ -0,0 +1,332 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * An aggregator over fields of any type that keeps at most a fixed number of
+ * groups in memory. While the budget allows, every new group gets an
+ * in-memory {@link AggregateState}; once the budget is used up, tuples of
+ * groups that are already in memory are still aggregated in place, while the
+ * tuples of all other groups are hash-partitioned by their group into
+ * {@link SpillFile}s. Each partition holds only a fraction of the remaining
+ * groups, and is aggregated on its own, recursively with the next bits of the
+ * group hash, when the results are iterated.
+ * <p>
+ * Groups can be keyed by several fields, in which case tuples are grouped and
+ * partitioned by the {@link NormalizedKey} encoding of those fields.
+ * <p>
+ * Because the groups in memory are never evicted, no aggregate state ever has
+ * to be written to disk, so sketch based aggregates spill just like the
+ * others.
+ */
+public class SpillingAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of spill partitions per level. */
+    public static final int NUM_PARTITIONS = 16;
+
+    private static final int PARTITION_BITS = 4;
+
+    // the hash has 64 bits; past this depth the budget is ignored
+    private static final int MAX_DEPTH = 64 / PARTITION_BITS - 1;
+
+    private final int _gbfield;
+    private final Type _gbfieldtype;
+    private final NormalizedKey _key;
+    private final int[] _afields;
+    private final Op[] _ops;
+    private final int _maxGroups;
+    private final int _depth;
+    private final AggregateState.Groups groups;
+    private SpillFile[] partitions = null;
+
+    /**
+     * Constructor.
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param afieldtype
+     *            the type of the aggregate field
+     * @param what
+     *            aggregation operator to use
+     * @param maxGroups
+     *            the number of groups kept in memory before tuples are spilled
+     * @throws IllegalArgumentException
+     *             if what cannot be computed over afieldtype, or maxGroups is
+     *             not positive
+     */
+    public SpillingAggregator(int gbfield, Type gbfieldtype, int afield, Type afieldtype,
+            Op what, int maxGroups) {
+        this(gbfield, gbfieldtype, null, new int[] { afield }, new Op[] { what }, maxGroups, 0);
+        check(what, afieldtype);
+        check(maxGroups);
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by any number of fields.
+     * Groups on more than one field are keyed by the {@link NormalizedKey}
+     * encoding of the fields.
+     *
+     * @param td
+     *            the TupleDesc of the tuples that are aggregated
+     * @param gbfields
+     *            the 0-based indices of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param afields
+     *            the 0-based indices of the aggregate fields in the tuple
+     * @param ops
+     *            for each aggregate field, the aggregation operator to use
+     * @param maxGroups
+     *            the number of groups kept in memory before tuples are spilled
+     * @throws IllegalArgumentException
+     *             if an aggregate cannot be computed over its field, afields
+     *             and ops differ in length or are empty, or maxGroups is not
+     *             positive
+     */
+    public SpillingAggregator(TupleDesc td, int[] gbfields, int[] afields, Op[] ops,
+            int maxGroups) {
+        this(gbfields.length == 1 ? gbfields[0] : Aggregator.NO_GROUPING,
+                gbfields.length == 1 ? td.getFieldType(gbfields[0]) : null,
+                gbfields.length > 1 ? new NormalizedKey(td, gbfields, ascending(gbfields.length)) : null,
+                afields.clone(), ops.clone(), maxGroups, 0);
+        if (afields.length != ops.length || ops.length == 0)
+            throw new IllegalArgumentException("need one aggregation operator per aggregate field");
+        for (int i = 0; i < ops.length; i++)
+            check(ops[i], td.getFieldType(afields[i]));
+        check(maxGroups);
+    }
+
+    private static boolean[] ascending(int n) {
+        boolean[] asc = new boolean[n];
+        Arrays.fill(asc, true);
+        return asc;
+    }
+
+    private static void check(Op what, Type afieldtype) {
+        if (!AggregateState.supports(what, afieldtype))
+            throw new IllegalArgumentException("cannot compute " + what + " over a "
+                    + afieldtype + " field");
+    }
+
+    private static void check(int maxGroups) {
+        if (maxGroups <= 0)
+            throw new IllegalArgumentException("maxGroups must be positive");
+    }
+
+    private SpillingAggregator(int gbfield, Type gbfieldtype, NormalizedKey key, int[] afields,
+            Op[] ops, int maxGroups, int depth) {
+        _gbfield = gbfield;
+        _gbfieldtype = gbfieldtype;
+        _key = key;
+        _afields = afields;
+        _ops = ops;
+        _maxGroups = maxGroups;
+        _depth = depth;
+        if (key != null)
+            groups = new AggregateState.Groups(ops, key);
+        else
+            groups = new AggregateState.Groups(ops, gbfield != Aggregator.NO_GROUPING);
+    }
+
+    /**
+     * Adds a tuple to its group, spilling it if its group is not in memory
+     * and the memory budget is used up.
+     *
+     * @throws DbException
+     *             if the tuple cannot be written to its spill file
+     */
+    public void add(Tuple tup) throws DbException {
+        int g;
+        if (_key != null) {
+            byte[] group = _key.encode(tup);
+            g = groups.find(group);
+            if (g < 0) {
+                if (groups.size() >= _maxGroups && _depth < MAX_DEPTH) {
+                    spill(HyperLogLog.hash(group), tup);
+                    return;
+                }
+                g = groups.findOrCreate(group);
+            }
+        } else {
+            Field groupField = _gbfield == Aggregator.NO_GROUPING ? null : tup.getField(_gbfield);
+            g = groups.find(groupField);
+            if (g < 0) {
+                if (groups.size() >= _maxGroups && _depth < MAX_DEPTH) {
+                    spill(HyperLogLog.hash(groupField), tup);
+                    return;
+                }
+                g = groups.findOrCreate(groupField);
+            }
+        }
+        for (int j = 0; j < _afields.length; j++)
+            groups.state(g, j).add(tup.getField(_afields[j]));
+    }
+
+    private void spill(long groupHash, Tuple tup) throws DbException {
+        if (partitions == null)
+            partitions = new SpillFile[NUM_PARTITIONS];
+        int p = (int) (groupHash >>> (_depth * PARTITION_BITS)) & (NUM_PARTITIONS - 1);
+        if (partitions[p] == null)
+            partitions[p] = new SpillFile(tup.getTupleDesc());
+        partitions[p].add(tup);
+    }
+
+    /**
+     * Like {@link #add(Tuple)}, for callers that only know the Aggregator
+     * interface.
+     *
+     * @throws RuntimeException
+     *             wrapping the DbException if the tuple cannot be spilled
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        try {
+            add(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return true if any tuples were written to spill files */
+    public boolean hasSpilled() {
+        return partitions != null;
+    }
+
+    /**
+     * @return the number of tuples written to spill files at the top level;
+     *         tuples spilled again while aggregating a partition are not
+     *         counted
+     */
+    public long spilledTuples() {
+        long n = 0;
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null)
+                    n += f.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results, one field per group
+     * field followed by one per aggregate: first the groups kept
+     * in memory, then the groups of every spill partition. Partitions are
+     * aggregated while the iterator reaches them, so at most one partition per
+     * level of recursion is in memory at a time.
+     */
+    public OpIterator iterator() {
+        Type[] groupTypes;
+        if (_key != null)
+            groupTypes = _key.getTypes();
+        else if (_gbfield != Aggregator.NO_GROUPING)
+            groupTypes = new Type[] {_gbfieldtype};
+        else
+            groupTypes = new Type[0];
+        Type[] typeAr = Arrays.copyOf(groupTypes, groupTypes.length + _ops.length);
+        Arrays.fill(typeAr, groupTypes.length, typeAr.length, Type.INT_TYPE);
+        TupleDesc td = new TupleDesc(typeAr);
+        OpIterator inMemory = new AggregateState.ResultIterator(groups, td);
+        if (partitions == null)
+            return inMemory;
+        return new SpilledResultIterator(inMemory);
+    }
+
+    /** Deletes the spill files; the results can no longer be iterated. */
+    public void release() {
+        if (partitions == null)
+            return;
+        for (SpillFile f : partitions) {
+            if (f != null)
+                f.delete();
+        }
+        partitions = null;
+    }
+
+    private class SpilledResultIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final OpIterator inMemory;
+        private final SpillFile[] files = partitions;
+        private int next = -1; // next partition, -1 while in memory groups remain
+        private SpillingAggregator sub = null;
+        private OpIterator subIt = null;
+        private boolean open = false;
+
+        SpilledResultIterator(OpIterator inMemory) {
+            this.inMemory = inMemory;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            inMemory.open();
+            next = -1;
+            open = true;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                return false;
+            if (next < 0) {
+                if (inMemory.hasNext())
+                    return true;
+                next = 0;
+            }
+            while (subIt == null || !subIt.hasNext()) {
+                releaseSub();
+                while (next < files.length && files[next] == null)
+                    next++;
+                if (next == files.length)
+                    return false;
+                load(files[next++]);
+            }
+            return true;
+        }
+
+        private void load(SpillFile f) throws DbException, TransactionAbortedException {
+            sub = new SpillingAggregator(_gbfield, _gbfieldtype, _key, _afields, _ops, _maxGroups,
+                    _depth + 1);
+            DbFileIterator it = f.iterator();
+            it.open();
+            while (it.hasNext())
+                sub.add(it.next());
+            it.close();
+            subIt = sub.iterator();
+            subIt.open();
+        }
+
+        private void releaseSub() {
+            if (subIt != null)
+                subIt.close();
+            if (sub != null)
+                sub.release();
+            subIt = null;
+            sub = null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return next < 0 ? inMemory.next() : subIt.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return inMemory.getTupleDesc();
+        }
+
+        public void close() {
+            releaseSub();
+            inMemory.close();
+            open = false;
+        }
+    }
+}
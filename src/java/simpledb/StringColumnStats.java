@@ -0,0 +1,422 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Statistics of a string field of a table, built from a sample of its values
+ * by {@link TableStats}:
+ * <ul>
+ * <li>its range, over all values;</li>
+ * <li>its most common values (MCVs) with their frequencies;</li>
+ * <li>evenly spaced quantiles of the other sampled values, each standing for
+ * the same number of values, against which ranges are estimated by plain
+ * string comparison, so that strings with a long common prefix (URLs, ids)
+ * are told apart;</li>
+ * <li>its number of distinct values, estimated by a {@link HyperLogLog}
+ * sketch of all values.</li>
+ * </ul>
+ * The quantiles also serve as a sample for estimating <tt>LIKE</tt>, which
+ * matches strings that contain the pattern.
+ */
+public class StringColumnStats {
+
+    private String min, max; // null if the field has no values
+    private long total; // the sampled values
+    // the most common values, sorted, and their counts
+    private String[] mcvs;
+    private long[] mcvCounts;
+    private long rest; // the sampled values that are not MCVs
+    // sorted quantiles of the values that are not MCVs, rest / quantiles.length each
+    private String[] quantiles;
+    private final HyperLogLog sketch;
+    private int sampleDistinct; // distinct values in the sample
+
+    private StringColumnStats(HyperLogLog sketch) {
+        this.sketch = sketch;
+    }
+
+    /**
+     * Builds the statistics of a field.
+     *
+     * @param values
+     *            the sampled values of the field; values[0..n) are used and
+     *            reordered
+     * @param min
+     *            the smallest value of the field over all tuples, or null
+     * @param max
+     *            the largest value of the field over all tuples, or null
+     * @param sketch
+     *            the sketch all values of the field were offered to
+     * @param maxQuantiles
+     *            the maximum number of quantiles kept
+     * @param maxMcvs
+     *            the maximum number of most common values
+     */
+    static StringColumnStats build(String[] values, int n, String min, String max,
+            HyperLogLog sketch, int maxQuantiles, int maxMcvs) {
+        StringColumnStats s = new StringColumnStats(sketch);
+        s.min = min;
+        s.max = max;
+        s.total = n;
+        Arrays.sort(values, 0, n);
+
+        // run-length encode the sorted values
+        int runs = 0;
+        String[] runValues = new String[n];
+        long[] runCounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (runs > 0 && runValues[runs - 1].equals(values[i])) {
+                runCounts[runs - 1]++;
+            } else {
+                runValues[runs] = values[i];
+                runCounts[runs++] = 1;
+            }
+        }
+        s.sampleDistinct = runs;
+
+        // as for integers, values clearly more frequent than the average are
+        // MCVs, or all of them if there are few
+        boolean[] isMcv = new boolean[runs];
+        int nMcvs = 0;
+        if (runs <= maxMcvs) {
+            Arrays.fill(isMcv, true);
+            nMcvs = runs;
+        } else if (runs > 0) {
+            double threshold = Math.max(2, 1.25 * n / runs);
+            Integer[] order = new Integer[runs];
+            for (int i = 0; i < runs; i++)
+                order[i] = i;
+            final long[] rc = runCounts;
+            Arrays.sort(order, (a, b) -> Long.compare(rc[b], rc[a]));
+            while (nMcvs < maxMcvs && rc[order[nMcvs]] >= threshold)
+                isMcv[order[nMcvs++]] = true;
+        }
+        s.mcvs = new String[nMcvs];
+        s.mcvCounts = new long[nMcvs];
+        for (int i = 0, j = 0; i < runs; i++) {
+            if (isMcv[i]) {
+                s.mcvs[j] = runValues[i];
+                s.mcvCounts[j++] = runCounts[i];
+            } else {
+                s.rest += runCounts[i];
+            }
+        }
+
+        // the quantiles of the other values, in sorted order
+        int k = (int) Math.min(maxQuantiles, s.rest);
+        s.quantiles = new String[k];
+        long seen = 0;
+        for (int i = 0, q = 0; i < runs && q < k; i++) {
+            if (isMcv[i])
+                continue;
+            seen += runCounts[i];
+            // quantile q is the value at rank (q + 1/2) * rest / k
+            while (q < k && (q + 0.5) * s.rest / k < seen)
+                s.quantiles[q++] = runValues[i];
+        }
+        return s;
+    }
+
+    /** @return the smallest value of the field, or null if it has none */
+    public String min() {
+        return min;
+    }
+
+    /** @return the largest value of the field, or null if it has none */
+    public String max() {
+        return max;
+    }
+
+    /** @return the estimated number of distinct values of the field */
+    public long numDistinct() {
+        return Math.max(sketch.cardinality(), sampleDistinct);
+    }
+
+    /** @return the estimated number of distinct values that are not MCVs */
+    private long restDistinct() {
+        return Math.max(1, numDistinct() - mcvs.length);
+    }
+
+    private boolean outOfRange(String v) {
+        return min == null || v.compareTo(min) < 0 || v.compareTo(max) > 0;
+    }
+
+    /** @return the number of quantiles less than v */
+    private int quantilesBelow(String v) {
+        int l = 0, h = quantiles.length;
+        while (l < h) {
+            int m = (l + h) >>> 1;
+            if (quantiles[m].compareTo(v) < 0)
+                l = m + 1;
+            else
+                h = m;
+        }
+        return l;
+    }
+
+    /** @return the fraction of the values equal to v */
+    private double equal(String v) {
+        if (total == 0 || outOfRange(v))
+            return 0;
+        int i = Arrays.binarySearch(mcvs, v);
+        if (i >= 0)
+            return (double) mcvCounts[i] / total;
+        double sel = (double) rest / total / restDistinct();
+        if (quantiles.length > 0) {
+            // a frequent value that did not fit into the MCVs spans quantiles
+            int repeats = quantilesBelow(v + '\0') - quantilesBelow(v);
+            sel = Math.max(sel, (double) rest * repeats / quantiles.length / total);
+        }
+        return sel;
+    }
+
+    /** @return the fraction of the values less than v */
+    private double less(String v) {
+        if (total == 0 || min == null || v.compareTo(min) <= 0)
+            return 0;
+        if (v.compareTo(max) > 0)
+            return 1;
+        long c = 0;
+        int i = Arrays.binarySearch(mcvs, v);
+        for (int j = 0; j < (i >= 0 ? i : -i - 1); j++)
+            c += mcvCounts[j];
+        double below = c;
+        if (quantiles.length > 0)
+            below += (double) rest * quantilesBelow(v) / quantiles.length;
+        return below / total;
+    }
+
+    /** @return the fraction of the values that contain v */
+    private double like(String v) {
+        if (total == 0)
+            return 0;
+        long c = 0;
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].contains(v))
+                c += mcvCounts[i];
+        }
+        double sel = c;
+        if (quantiles.length > 0) {
+            int matches = 0;
+            for (String q : quantiles) {
+                if (q.contains(v))
+                    matches++;
+            }
+            // a pattern no quantile contains may still match a few values
+            sel += (double) rest * Math.max(matches, 0.5) / quantiles.length;
+        }
+        return sel / total;
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>field op v</tt>.
+     *
+     * @return the estimated fraction of the tuples that satisfy it
+     */
+    public double estimateSelectivity(Predicate.Op op, String v) {
+        double sel;
+        switch (op) {
+        case EQUALS:
+            sel = equal(v);
+            break;
+        case LIKE:
+            sel = like(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1 - equal(v);
+            break;
+        case LESS_THAN:
+            sel = less(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = less(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            sel = 1 - less(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1 - less(v);
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported operator " + op);
+        }
+        return Math.max(0, Math.min(1, sel));
+    }
+
+    /**
+     * @return the selectivity of <tt>field op v</tt> for a value v of the
+     *         field chosen at random
+     */
+    public double avgSelectivity(Predicate.Op op) {
+        if (total == 0)
+            return 0;
+        // the probability that two values chosen at random are equal
+        double eq = 0;
+        for (long c : mcvCounts)
+            eq += ((double) c / total) * ((double) c / total);
+        eq += ((double) rest / total) * ((double) rest / total) / restDistinct();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1 - eq;
+        case LESS_THAN:
+        case GREATER_THAN:
+            return (1 - eq) / 2;
+        default:
+            return (1 + eq) / 2;
+        }
+    }
+
+    /**
+     * Estimate the fraction of the cross product of two tables that satisfies
+     * the join predicate <tt>a op b</tt>, the same way as
+     * {@link ColumnStats#joinSelectivity} does for integers.
+     */
+    public static double joinSelectivity(StringColumnStats a, Predicate.Op op,
+            StringColumnStats b) {
+        if (a.total == 0 || b.total == 0)
+            return 0;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equiJoinSelectivity(a, b);
+        case NOT_EQUALS:
+            return 1 - equiJoinSelectivity(a, b);
+        default:
+            Predicate.Op flipped;
+            if (op == Predicate.Op.LESS_THAN)
+                flipped = Predicate.Op.GREATER_THAN;
+            else if (op == Predicate.Op.LESS_THAN_OR_EQ)
+                flipped = Predicate.Op.GREATER_THAN_OR_EQ;
+            else if (op == Predicate.Op.GREATER_THAN)
+                flipped = Predicate.Op.LESS_THAN;
+            else
+                flipped = Predicate.Op.LESS_THAN_OR_EQ;
+            double sel = 0;
+            for (int i = 0; i < a.mcvs.length; i++)
+                sel += (double) a.mcvCounts[i] / a.total
+                        * b.estimateSelectivity(flipped, a.mcvs[i]);
+            for (String q : a.quantiles)
+                sel += (double) a.rest / a.quantiles.length / a.total
+                        * b.estimateSelectivity(flipped, q);
+            return Math.max(0, Math.min(1, sel));
+        }
+    }
+
+    private static double equiJoinSelectivity(StringColumnStats a, StringColumnStats b) {
+        double sel = 0;
+        for (int i = 0; i < a.mcvs.length; i++)
+            sel += (double) a.mcvCounts[i] / a.total * b.equal(a.mcvs[i]);
+        for (int i = 0; i < b.mcvs.length; i++) {
+            if (Arrays.binarySearch(a.mcvs, b.mcvs[i]) < 0)
+                sel += (double) b.mcvCounts[i] / b.total * a.equal(b.mcvs[i]);
+        }
+        // the other values only overlap within the common range
+        if (a.min != null && b.min != null && a.max.compareTo(b.min) >= 0
+                && b.max.compareTo(a.min) >= 0)
+            sel += (double) a.rest / a.total * b.rest / b.total
+                    / Math.max(a.restDistinct(), b.restDistinct());
+        return Math.max(0, Math.min(1, sel));
+    }
+
+    /**
+     * Counts a value inserted into the table.
+     *
+     * @param sampled
+     *            whether the value counts as sampled, see
+     *            {@link TableStats}; the distinct values and the range
+     *            always count all values
+     */
+    void addValue(String v, boolean sampled) {
+        sketch.addHash(HyperLogLog.hash(v));
+        if (min == null || v.compareTo(min) < 0)
+            min = v;
+        if (max == null || v.compareTo(max) > 0)
+            max = v;
+        if (!sampled)
+            return;
+        total++;
+        int i = Arrays.binarySearch(mcvs, v);
+        if (i >= 0)
+            mcvCounts[i]++;
+        else
+            rest++;
+    }
+
+    /** Counts a value deleted from the table, see {@link #addValue}. */
+    void removeValue(String v, boolean sampled) {
+        if (!sampled)
+            return;
+        int i = Arrays.binarySearch(mcvs, v);
+        if (i >= 0 && mcvCounts[i] > 0) {
+            mcvCounts[i]--;
+            total--;
+        } else if (i < 0 && rest > 0) {
+            rest--;
+            total--;
+        }
+    }
+
+    /** Writes these statistics to out, see {@link #readFrom}. */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(min != null);
+        if (min != null) {
+            out.writeUTF(min);
+            out.writeUTF(max);
+        }
+        out.writeLong(total);
+        out.writeInt(sampleDistinct);
+        out.writeInt(mcvs.length);
+        for (int i = 0; i < mcvs.length; i++) {
+            out.writeUTF(mcvs[i]);
+            out.writeLong(mcvCounts[i]);
+        }
+        out.writeLong(rest);
+        out.writeInt(quantiles.length);
+        for (String q : quantiles)
+            out.writeUTF(q);
+        sketch.writeTo(out);
+    }
+
+    /** Reads statistics written by {@link #writeTo}. */
+    static StringColumnStats readFrom(DataInput in) throws IOException {
+        String min = null, max = null;
+        if (in.readBoolean()) {
+            min = in.readUTF();
+            max = in.readUTF();
+        }
+        long total = in.readLong();
+        int sampleDistinct = in.readInt();
+        int n = in.readInt();
+        String[] mcvs = new String[n];
+        long[] mcvCounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            mcvs[i] = in.readUTF();
+            mcvCounts[i] = in.readLong();
+        }
+        long rest = in.readLong();
+        String[] quantiles = new String[in.readInt()];
+        for (int i = 0; i < quantiles.length; i++)
+            quantiles[i] = in.readUTF();
+        StringColumnStats s = new StringColumnStats(HyperLogLog.readFrom(in));
+        s.min = min;
+        s.max = max;
+        s.total = total;
+        s.sampleDistinct = sampleDistinct;
+        s.mcvs = mcvs;
+        s.mcvCounts = mcvCounts;
+        s.rest = rest;
+        s.quantiles = quantiles;
+        return s;
+    }
+
+    public String toString() {
+        return String.format("StringColumnStats(min=%s, max=%s, mcvs=%d, quantiles=%d, distinct=%d)",
+                min, max, mcvs.length, quantiles.length, numDistinct());
+    }
+}
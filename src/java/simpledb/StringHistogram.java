@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
@@ -20,6 +24,10 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
@@ -65,6 +73,21 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /** Remove a value that was added before */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
+    /** Writes this histogram to out, see {@link #readFrom}. */
+    void writeTo(DataOutput out) throws IOException {
+        hist.writeTo(out);
+    }
+
+    /** Reads a histogram written by {@link #writeTo}. */
+    static StringHistogram readFrom(DataInput in) throws IOException {
+        return new StringHistogram(IntHistogram.readFrom(in));
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
@@ -1,14 +1,56 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
- * query. 
- * 
+ * query.
+ * <p>
+ * The statistics of a table are computed in a single pass over it. The
+ * number of tuples and the range of each field are exact, unless
+ * block sampling is enabled (see {@link #setDefaultSamplePages}); the
+ * histograms are built from a reservoir sample of at most
+ * {@link #getDefaultSampleTuples()} tuples. Integer fields are described by
+ * {@link ColumnStats}: most common values, an equi-depth histogram of the
+ * other values and the number of distinct values. String fields are
+ * described by {@link StringColumnStats}, which keeps quantiles of the
+ * sample in place of the histogram. Inserts and deletes through the
+ * {@link BufferPool} keep the statistics up to date approximately and count
+ * as modifications; once a table has seen too many of them its statistics
+ * are {@link #isStale() stale} and {@link #refreshStaleStatistics()}
+ * recomputes them.
+ * <p>
+ * The statistics of a database are kept in a file next to its catalog (see
+ * {@link #statisticsFile}), so that they are loaded rather than recomputed
+ * when the database is opened; a background thread recomputes stale
+ * statistics and writes the file again (see {@link #startBackgroundRefresh}).
+ *
  * This class is not needed in implementing lab1 and lab2.
  */
 public class TableStats {
@@ -24,7 +66,7 @@ public class TableStats {
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
     }
-    
+
     public static void setStatsMap(HashMap<String,TableStats> s)
     {
         try {
@@ -47,16 +89,271 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Computes the statistics of all tables in the catalog, several tables
+     * at once on {@link #getDefaultStatsThreads()} threads.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
+        while (tableIt.hasNext())
+            tableIds.add(tableIt.next());
 
         System.out.println("Computing table stats.");
+        computeStatistics(tableIds);
+        System.out.println("Done.");
+    }
+
+    /**
+     * Recomputes the statistics of the tables whose statistics are stale.
+     *
+     * @return the number of tables whose statistics were recomputed
+     */
+    public static int refreshStaleStatistics() {
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
+        for (TableStats s : statsMap.values()) {
+            if (s.isStale())
+                tableIds.add(s._tableid);
+        }
+        computeStatistics(tableIds);
+        return tableIds.size();
+    }
+
+    /** Computes the statistics of the given tables in parallel. */
+    private static void computeStatistics(ArrayList<Integer> tableIds) {
+        ForkJoinPool workers = new ForkJoinPool(Math.max(1, Math.min(statsThreads, tableIds.size())));
+        try {
+            ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final int tableid : tableIds) {
+                done.add(workers.submit(new Callable<Void>() {
+                    public Void call() {
+                        TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+                        setTableStats(Database.getCatalog().getTableName(tableid), s);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Loads the statistics of the tables in the catalog from file, and
+     * computes those of tables that are missing from it; if any were
+     * computed, the file is written again. An unreadable file is ignored.
+     */
+    public static void loadOrComputeStatistics(File file) {
+        long start = System.currentTimeMillis();
+        int loaded = 0;
+        if (file.exists()) {
+            try {
+                loaded = loadStatistics(file);
+            } catch (IOException e) {
+                System.out.println("Ignoring statistics file " + file + ": " + e.getMessage());
+            }
+        }
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            if (statsOf(tableid) == null)
+                missing.add(tableid);
+        }
+        if (loaded > 0)
+            System.out.println("Loaded table stats of " + loaded + " tables in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        if (!missing.isEmpty()) {
+            System.out.println("Computing table stats.");
+            computeStatistics(missing);
+            System.out.println("Done.");
+            try {
+                saveStatistics(file);
+            } catch (IOException e) {
+                System.out.println("Cannot write statistics file " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the file the statistics of the tables of a catalog are kept
+     *         in: the catalog file with its extension replaced by .stats
+     */
+    public static File statisticsFile(String catalogFile) {
+        File f = new File(catalogFile);
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(f.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".stats");
+    }
+
+    private static ScheduledExecutorService refresher;
+    private static volatile boolean unsaved;
+
+    /**
+     * Starts a background thread that every periodMillis recomputes the
+     * statistics that became stale, and writes them to file if they, or the
+     * modification counters, changed. Replaces a thread started before.
+     */
+    public static synchronized void startBackgroundRefresh(final File file, long periodMillis) {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("period must be positive");
+        stopBackgroundRefresh();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TableStats refresh");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if (refreshStaleStatistics() > 0 || unsaved) {
+                        unsaved = false;
+                        saveStatistics(file);
+                    }
+                } catch (Exception e) {
+                    // keep refreshing; a later write may succeed
+                    e.printStackTrace();
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        refresher = executor;
+    }
+
+    /**
+     * Stops the thread started by {@link #startBackgroundRefresh}, waiting
+     * for a refresh in progress to finish. Does nothing if there is none.
+     */
+    public static synchronized void stopBackgroundRefresh() {
+        if (refresher == null)
+            return;
+        refresher.shutdown();
+        try {
+            refresher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        refresher = null;
+    }
+
+    /**
+     * Updates the statistics of a table after t was inserted into it. Does
+     * nothing if there are no statistics for the table.
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null) {
+            s.addTuple(t);
+            unsaved = true;
+        }
+    }
+
+    /**
+     * Updates the statistics of a table after t was deleted from it. Does
+     * nothing if there are no statistics for the table.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null) {
+            s.removeTuple(t);
+            unsaved = true;
+        }
+    }
+
+    private static TableStats statsOf(int tableid) {
+        try {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+            return s != null && s._tableid == tableid ? s : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private static final int STATS_FILE_VERSION = 4;
+
+    /**
+     * Writes the statistics of all tables to a file, replacing it. The
+     * file is written next to it first and then renamed, so that a crash
+     * never leaves a partial file behind.
+     */
+    public static void saveStatistics(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(STATS_FILE_VERSION);
+            ArrayList<Map.Entry<String, TableStats>> entries =
+                    new ArrayList<Map.Entry<String, TableStats>>(statsMap.entrySet());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, TableStats> e : entries) {
+                out.writeUTF(e.getKey());
+                e.getValue().writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("cannot replace " + file);
+        }
+    }
+
+    /**
+     * Reads the statistics written by {@link #saveStatistics}. Statistics of
+     * tables that are no longer in the catalog, or whose schema changed,
+     * are skipped; those of tables whose number of pages changed are stale.
+     *
+     * @return the number of tables whose statistics were loaded
+     * @throws IOException if the file cannot be read or is not a statistics
+     *             file of this version
+     */
+    public static int loadStatistics(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != STATS_FILE_VERSION)
+                throw new IOException(file + " is not a statistics file of this version");
+            int n = in.readInt(), loaded = 0;
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                TableStats s = readFrom(in);
+                int tableid;
+                try {
+                    tableid = Database.getCatalog().getTableId(name);
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+                if (!Arrays.equals(s.types, typesOf(f.getTupleDesc())))
+                    continue;
+                s._tableid = tableid;
+                s.dbFile = f;
+                s.td = f.getTupleDesc();
+                // the file was changed behind the back of the statistics, or
+                // column groups were declared since they were computed
+                s.fileChanged = s.pages != numPages(f)
+                        || !s.hasGroups(Database.getCatalog().getColumnGroups(tableid));
+                setTableStats(name, s);
+                loaded++;
+            }
+            return loaded;
+        } finally {
+            in.close();
         }
-        System.out.println("Done.");
     }
 
     /**
@@ -66,19 +363,160 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** Maximum number of most common values kept for a field. */
+    static final int NUM_MCVS = 100;
+
+    /** Number of quantiles kept for the range estimates of a string field. */
+    static final int NUM_STRING_QUANTILES = 500;
+
+    /** Maximum number of sampled tuples kept for a column group. */
+    static final int NUM_GROUP_ROWS = 5000;
+
+    /** Maximum number of conjunctions whose observed selectivity is kept. */
+    static final int NUM_FEEDBACK = 256;
+
+    /**
+     * Default maximum number of tuples the histograms of a table are built
+     * from. The tuples are a uniform sample of the table.
+     */
+    public static final int DEFAULT_SAMPLE_TUPLES = 30000;
+
+    /** Default number of pages block sampling reads; 0 reads all pages. */
+    public static final int DEFAULT_SAMPLE_PAGES = 0;
+
+    /** Default number of tables whose statistics are computed at once. */
+    public static final int DEFAULT_STATS_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The statistics of a table are stale once the inserts and deletes since
+     * they were computed reach this fraction of its tuples, and at least
+     * {@link #DEFAULT_STALE_MODIFICATIONS}.
+     */
+    public static final double DEFAULT_STALE_FRACTION = 0.2;
+    public static final int DEFAULT_STALE_MODIFICATIONS = 100;
+
+    private static int sampleTuples = DEFAULT_SAMPLE_TUPLES;
+    private static int samplePages = DEFAULT_SAMPLE_PAGES;
+    private static int statsThreads = DEFAULT_STATS_THREADS;
+    private static double staleFraction = DEFAULT_STALE_FRACTION;
+    private static int staleModifications = DEFAULT_STALE_MODIFICATIONS;
+
+    /**
+     * Sets the maximum number of tuples the histograms of a table are built
+     * from; 0 builds them from all tuples.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultSampleTuples(int tuples) {
+        if (tuples < 0)
+            throw new IllegalArgumentException("sample size must not be negative");
+        sampleTuples = tuples;
+    }
+
+    public static int getDefaultSampleTuples() {
+        return sampleTuples;
+    }
+
+    /**
+     * Sets the number of randomly chosen pages of a heap file that are read
+     * to compute its statistics; the number of tuples is then extrapolated
+     * from them. 0 reads all pages.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultSamplePages(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("sample size must not be negative");
+        samplePages = pages;
+    }
+
+    public static int getDefaultSamplePages() {
+        return samplePages;
+    }
+
+    /**
+     * Sets the number of tables whose statistics are computed at once.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultStatsThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        statsThreads = threads;
+    }
+
+    public static int getDefaultStatsThreads() {
+        return statsThreads;
+    }
+
+    /**
+     * Sets the fraction of the tuples of a table that must have been
+     * inserted or deleted before its statistics are stale.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultStaleFraction(double fraction) {
+        if (!(fraction >= 0))
+            throw new IllegalArgumentException("fraction must not be negative");
+        staleFraction = fraction;
+    }
+
+    public static double getDefaultStaleFraction() {
+        return staleFraction;
+    }
+
+    /**
+     * Sets the number of inserts and deletes a table must at least have seen
+     * before its statistics are stale.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void setDefaultStaleModifications(int modifications) {
+        if (modifications <= 0)
+            throw new IllegalArgumentException("modifications must be positive");
+        staleModifications = modifications;
+    }
+
+    public static int getDefaultStaleModifications() {
+        return staleModifications;
+    }
+
+    /**
+     * Restores the default sampling of statistics, the default number of
+     * threads that compute them and the default staleness threshold.
+     * <b>Used for testing and tuning only</b>
+     */
+    public static void resetDefaultSampling() {
+        sampleTuples = DEFAULT_SAMPLE_TUPLES;
+        samplePages = DEFAULT_SAMPLE_PAGES;
+        statsThreads = DEFAULT_STATS_THREADS;
+        staleFraction = DEFAULT_STALE_FRACTION;
+        staleModifications = DEFAULT_STALE_MODIFICATIONS;
+    }
 
     private int _tableid;
     private int _ioCostPerPage;
     private TupleDesc td;
-    public HeapFile dbFile;
-    private HashMap<Integer, int[]> minmaxMap;
-    private HashMap<Integer, Object> histogramMap; // key -> 列号
+    private DbFile dbFile;
+    private Type[] types;
+    private HashMap<Integer, Object> histogramMap; // key -> 列号; ColumnStats or StringColumnStats
+    private ArrayList<ColumnGroupStats> groups; // of the column groups of the catalog
     private int nums; // tuple的数量
+    private int pages;
+    private double sampleRate; // the fraction of the tuples in the histograms
+    private long modifications; // inserts and deletes since the computation
+    private int computedTuples; // the tuples when the statistics were computed
+    private boolean fileChanged; // the pages differ from those of loaded statistics
+    private final Random random;
+    // observed selectivities of conjunctions, by key of their predicates,
+    // least recently used first
+    private final LinkedHashMap<String, Double> feedback = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+            return size() > NUM_FEEDBACK;
+        }
+    };
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
-     * 
+     *
      * @param tableid
      *            The table over which to compute statistics
      * @param ioCostPerPage
@@ -86,112 +524,368 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        
         _tableid = tableid;
         _ioCostPerPage = ioCostPerPage;
-        Transaction t = new Transaction();
-        dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(_tableid);
-        DbFileIterator it = dbFile.iterator(t.getId());
+        dbFile = Database.getCatalog().getDatabaseFile(_tableid);
         td = dbFile.getTupleDesc();
-        minmaxMap = new HashMap<>();
+        types = typesOf(td);
         histogramMap = new HashMap<>();
-        nums = 0;
+        groups = new ArrayList<>();
+        random = new Random(tableid);
+        pages = numPages(dbFile);
 
+        Transaction t = new Transaction();
         try {
-            // 初始化两个map
-            if (!it.hasNext()) {
-                return;
-            }
-            Tuple tuple = it.next();
-            for (int i = 0; i < td.numFields(); i++) {
-                if (td.getFieldType(i) == Type.INT_TYPE) {
-                    int value = ((IntField) tuple.getField(i)).getValue();
-                    minmaxMap.put(i, new int[] {value, value});
-                }
+            compute(t.getId());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(t.getId());
+            } catch (java.io.IOException e) {
+                e.printStackTrace();
             }
-            it.rewind();
-
-            // 计算int列的最大最小值
-            while (it.hasNext()) {
-                tuple = it.next();
-                nums++;
-                for (int i = 0; i < td.numFields(); i++) {
-                    if (td.getFieldType(i) == Type.INT_TYPE) {
-                        int[] minmax = minmaxMap.get(i);
-                        int min_t = minmax[0];
-                        int max_t = minmax[1];
-                        int value = ((IntField) tuple.getField(i)).getValue();
-                        if (value < min_t) {
-                            minmax[0] = value;
-                        } else if (value > max_t) {
-                            minmax[1] = value;
+        }
+        computedTuples = nums;
+    }
+
+    /** Constructor for statistics read by {@link #readFrom}. */
+    private TableStats(Type[] types) {
+        this.types = types;
+        histogramMap = new HashMap<>();
+        groups = new ArrayList<>();
+        random = new Random();
+    }
+
+    private static Type[] typesOf(TupleDesc td) {
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = td.getFieldType(i);
+        return types;
+    }
+
+    private static int numPages(DbFile f) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).numPages();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).numPages();
+        return 1;
+    }
+
+    /**
+     * Reads the table, or a block sample of its pages, once: counts its
+     * tuples, tracks the range and the distinct values of its integer fields
+     * and keeps a reservoir sample of its tuples, from which the histograms
+     * are built.
+     */
+    private void compute(TransactionId tid) throws DbException, TransactionAbortedException {
+        int[] pageNos = null;
+        if (samplePages > 0 && dbFile instanceof HeapFile && pages > samplePages)
+            pageNos = samplePageNumbers(pages, samplePages);
+
+        int n = types.length;
+        int[] min = new int[n], max = new int[n];
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+        String[] minString = new String[n], maxString = new String[n];
+        HyperLogLog[] sketches = new HyperLogLog[n];
+        for (int i = 0; i < n; i++)
+            sketches[i] = new HyperLogLog();
+        List<int[]> groupFields = Database.getCatalog().getColumnGroups(_tableid);
+        HyperLogLog[] groupSketches = new HyperLogLog[groupFields.size()];
+        for (int g = 0; g < groupSketches.length; g++)
+            groupSketches[g] = new HyperLogLog();
+        Sample sample = new Sample(types, sampleTuples);
+        long seen = 0;
+        for (int p = 0; p < (pageNos == null ? 1 : pageNos.length); p++) {
+            DbFileIterator it = pageNos == null ? dbFile.iterator(tid)
+                    : ((HeapFile) dbFile).iterator(tid, pageNos[p], pageNos[p] + 1);
+            it.open();
+            try {
+                while (it.hasNext()) {
+                    Tuple tuple = it.next();
+                    for (int i = 0; i < n; i++) {
+                        if (types[i] == Type.INT_TYPE) {
+                            int v = ((IntField) tuple.getField(i)).getValue();
+                            min[i] = Math.min(min[i], v);
+                            max[i] = Math.max(max[i], v);
+                            sketches[i].addHash(HyperLogLog.hash(v));
+                        } else {
+                            String v = ((StringField) tuple.getField(i)).getValue();
+                            if (minString[i] == null || v.compareTo(minString[i]) < 0)
+                                minString[i] = v;
+                            if (maxString[i] == null || v.compareTo(maxString[i]) > 0)
+                                maxString[i] = v;
+                            sketches[i].addHash(HyperLogLog.hash(v));
                         }
-                        minmaxMap.put(i, minmax);
                     }
+                    for (int g = 0; g < groupSketches.length; g++)
+                        groupSketches[g].addHash(ColumnGroupStats.hash(groupFields.get(g), tuple));
+                    sample.offer(tuple, seen++, random);
                 }
+            } finally {
+                it.close();
             }
-            it.rewind();
-
-            // 构造histogram
-            for (int i = 0; i < td.numFields(); i++) {
-                if (td.getFieldType(i) == Type.INT_TYPE) {
-                    int[] minmax = minmaxMap.get(i);
-                    IntHistogram histogram = new IntHistogram(NUM_HIST_BINS, minmax[0], minmax[1]);
-                    histogramMap.put(i, histogram);
-                } else if (td.getFieldType(i) == Type.STRING_TYPE) {
-                    StringHistogram histogram = new StringHistogram(NUM_HIST_BINS);
-                    histogramMap.put(i, histogram);
-                }
+        }
+        nums = pageNos == null ? (int) seen
+                : (int) Math.round((double) seen * pages / pageNos.length);
+        sampleRate = nums == 0 ? 1.0 : Math.min(1.0, (double) sample.size / nums);
+
+        // every k-th sampled tuple, projected onto each column group; the
+        // statistics of the fields below reorder the columns of the sample
+        for (int g = 0; g < groupSketches.length; g++) {
+            int[] fields = groupFields.get(g);
+            Field[][] rows = new Field[Math.min(sample.size, NUM_GROUP_ROWS)][];
+            for (int r = 0; r < rows.length; r++) {
+                int j = (int) ((long) r * sample.size / rows.length);
+                rows[r] = new Field[fields.length];
+                for (int k = 0; k < fields.length; k++)
+                    rows[r][k] = sample.field(fields[k], j);
             }
+            groups.add(new ColumnGroupStats(fields, groupSketches[g], rows));
+        }
 
-            // 向histogram中添加数据
-            while (it.hasNext()) {
-                tuple = it.next();
-                for (int i = 0; i < td.numFields(); i++) {
-                    if (td.getFieldType(i) == Type.INT_TYPE) {
-                        IntHistogram histogram = (IntHistogram) histogramMap.get(i);
-                        histogram.addValue(((IntField) tuple.getField(i)).getValue());
-                        histogramMap.put(i, histogram);
-                    } else if (td.getFieldType(i) == Type.STRING_TYPE) {
-                        StringHistogram histogram = (StringHistogram) histogramMap.get(i);
-                        histogram.addValue(((StringField) tuple.getField(i)).getValue());
-                        histogramMap.put(i, histogram);
-                    }
-                }
+        for (int i = 0; i < n; i++) {
+            if (types[i] == Type.INT_TYPE) {
+                histogramMap.put(i, ColumnStats.build((int[]) sample.columns[i], sample.size,
+                        seen == 0 ? 0 : min[i], seen == 0 ? 0 : max[i], sketches[i],
+                        NUM_HIST_BINS, NUM_MCVS));
+            } else if (types[i] == Type.STRING_TYPE) {
+                histogramMap.put(i, StringColumnStats.build((String[]) sample.columns[i],
+                        sample.size, minString[i], maxString[i], sketches[i],
+                        NUM_STRING_QUANTILES, NUM_MCVS));
+            }
+        }
+    }
+
+    /** @return k distinct page numbers below n, chosen at random, sorted */
+    private int[] samplePageNumbers(int n, int k) {
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++)
+            all[i] = i;
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(n - i);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        int[] chosen = Arrays.copyOf(all, k);
+        Arrays.sort(chosen);
+        return chosen;
+    }
+
+    /**
+     * A uniform sample of the values of the tuples of a table, stored by
+     * column, maintained with reservoir sampling.
+     */
+    private static class Sample {
+        final Type[] types;
+        final int capacity; // 0 keeps all tuples
+        final Object[] columns;
+        int size;
+
+        Sample(Type[] types, int capacity) {
+            this.types = types;
+            this.capacity = capacity;
+            columns = new Object[types.length];
+            int initial = capacity == 0 ? 1024 : Math.min(capacity, 1024);
+            for (int i = 0; i < types.length; i++)
+                columns[i] = types[i] == Type.INT_TYPE ? new int[initial] : new String[initial];
+        }
+
+        /** Offers the seen-th tuple (counting from 0) of the table. */
+        void offer(Tuple t, long seen, Random random) {
+            int slot;
+            if (capacity == 0 || size < capacity) {
+                slot = size++;
+                if (types.length > 0 && slot == length())
+                    grow();
+            } else {
+                long r = (long) (random.nextDouble() * (seen + 1));
+                if (r >= capacity)
+                    return;
+                slot = (int) r;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Type.INT_TYPE)
+                    ((int[]) columns[i])[slot] = ((IntField) t.getField(i)).getValue();
+                else
+                    ((String[]) columns[i])[slot] = ((StringField) t.getField(i)).getValue();
+            }
+        }
+
+        /** @return the value of field i of the j-th sampled tuple */
+        Field field(int i, int j) {
+            if (types[i] == Type.INT_TYPE)
+                return new IntField(((int[]) columns[i])[j]);
+            return new StringField(((String[]) columns[i])[j], Type.STRING_LEN);
+        }
+
+        private int length() {
+            return types[0] == Type.INT_TYPE ? ((int[]) columns[0]).length
+                    : ((String[]) columns[0]).length;
+        }
+
+        private void grow() {
+            int n = length() * 2;
+            if (capacity > 0)
+                n = Math.min(n, capacity);
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Type.INT_TYPE)
+                    columns[i] = Arrays.copyOf((int[]) columns[i], n);
+                else
+                    columns[i] = Arrays.copyOf((String[]) columns[i], n);
+            }
+        }
+    }
+
+    /**
+     * Counts an inserted tuple. The histograms hold a sample of the tuples,
+     * so its values are added to them with the probability that the tuple
+     * had been sampled.
+     */
+    synchronized void addTuple(Tuple t) {
+        nums++;
+        modifications++;
+        for (ColumnGroupStats g : groups)
+            g.addTuple(t);
+        if (histogramMap.size() < types.length)
+            return;
+        boolean sampled = sampleRate >= 1.0 || random.nextDouble() < sampleRate;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Type.INT_TYPE) {
+                ((ColumnStats) histogramMap.get(i)).addValue(
+                        ((IntField) t.getField(i)).getValue(), sampled);
+            } else if (types[i] == Type.STRING_TYPE) {
+                ((StringColumnStats) histogramMap.get(i)).addValue(
+                        ((StringField) t.getField(i)).getValue(), sampled);
+            }
+        }
+    }
+
+    /** Counts a deleted tuple, see {@link #addTuple}. */
+    synchronized void removeTuple(Tuple t) {
+        nums = Math.max(0, nums - 1);
+        modifications++;
+        if (histogramMap.size() < types.length)
+            return;
+        boolean sampled = sampleRate >= 1.0 || random.nextDouble() < sampleRate;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Type.INT_TYPE) {
+                ((ColumnStats) histogramMap.get(i)).removeValue(
+                        ((IntField) t.getField(i)).getValue(), sampled);
+            } else if (types[i] == Type.STRING_TYPE) {
+                ((StringColumnStats) histogramMap.get(i)).removeValue(
+                        ((StringField) t.getField(i)).getValue(), sampled);
             }
-            it.rewind();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
+    /** @return the number of inserts and deletes since the statistics were computed */
+    public synchronized long modificationCount() {
+        return modifications;
+    }
+
+    /**
+     * @return true if the table has seen so many inserts and deletes since
+     *         its statistics were computed that they should be recomputed,
+     *         or if the statistics were loaded and the table has changed
+     *         since they were saved
+     */
+    public synchronized boolean isStale() {
+        return fileChanged
+                || modifications >= Math.max(staleModifications, staleFraction * computedTuples);
+    }
+
+    /** Writes these statistics to out, see {@link #readFrom}. */
+    private synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(types.length);
+        for (Type type : types)
+            out.writeInt(type.ordinal());
+        out.writeInt(_ioCostPerPage);
+        out.writeInt(nums);
+        out.writeInt(pages);
+        out.writeDouble(sampleRate);
+        out.writeLong(modifications);
+        out.writeInt(computedTuples);
+        for (int i = 0; i < types.length; i++) {
+            // there are no histograms if the table could not be read
+            Object h = histogramMap.get(i);
+            out.writeBoolean(h != null);
+            if (h instanceof ColumnStats)
+                ((ColumnStats) h).writeTo(out);
+            else if (h != null)
+                ((StringColumnStats) h).writeTo(out);
+        }
+        out.writeInt(groups.size());
+        for (ColumnGroupStats g : groups)
+            g.writeTo(out);
+    }
+
+    /** @return true if these statistics cover exactly the given column groups */
+    private boolean hasGroups(List<int[]> declared) {
+        if (declared.size() != groups.size())
+            return false;
+        for (int g = 0; g < groups.size(); g++) {
+            if (!Arrays.equals(declared.get(g), groups.get(g).fields()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads statistics written by {@link #writeTo}; the caller sets the
+     * table they belong to.
+     */
+    private static TableStats readFrom(DataInputStream in) throws IOException {
+        Type[] types = new Type[in.readInt()];
+        for (int i = 0; i < types.length; i++) {
+            int type = in.readInt();
+            if (type < 0 || type >= Type.values().length)
+                throw new IOException("corrupt statistics file");
+            types[i] = Type.values()[type];
+        }
+        TableStats s = new TableStats(types);
+        s._ioCostPerPage = in.readInt();
+        s.nums = in.readInt();
+        s.pages = in.readInt();
+        s.sampleRate = in.readDouble();
+        s.modifications = in.readLong();
+        s.computedTuples = in.readInt();
+        for (int i = 0; i < types.length; i++) {
+            if (!in.readBoolean())
+                continue;
+            if (types[i] == Type.INT_TYPE)
+                s.histogramMap.put(i, ColumnStats.readFrom(in));
+            else
+                s.histogramMap.put(i, StringColumnStats.readFrom(in));
+        }
+        int n = in.readInt();
+        for (int g = 0; g < n; g++)
+            s.groups.add(ColumnGroupStats.readFrom(in, types));
+        return s;
+    }
+
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
      * to read a page is costPerPageIO. You can assume that there are no seeks
      * and that no pages are in the buffer pool.
-     * 
+     *
      * Also, assume that your hard drive can only read entire pages at once, so
      * if the last page of the table only has one tuple on it, it's just as
      * expensive to read as a full page. (Most real hard drives can't
      * efficiently address regions smaller than a page at a time.)
-     * 
+     *
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        return dbFile.numPages() * IOCOSTPERPAGE;
+        return (double) numPages(dbFile) * _ioCostPerPage;
     }
 
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
-     * 
+     *
      * @param selectivityFactor
      *            The selectivity of any predicates over the table
      * @return The estimated cardinality of the scan with the specified
@@ -212,14 +906,41 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
+        Object h = histogramMap.get(field);
+        if (h instanceof ColumnStats)
+            return ((ColumnStats) h).avgSelectivity(op);
+        if (h instanceof StringColumnStats)
+            return ((StringColumnStats) h).avgSelectivity(op);
         return 1.0;
     }
 
+    /** @return the estimated number of distinct values of a field */
+    public long numDistinctValues(int field) {
+        Object h = histogramMap.get(field);
+        long distinct = totalTuples();
+        if (h instanceof ColumnStats)
+            distinct = Math.min(((ColumnStats) h).numDistinct(), distinct);
+        else if (h instanceof StringColumnStats)
+            distinct = Math.min(((StringColumnStats) h).numDistinct(), distinct);
+        return Math.max(1, distinct);
+    }
+
+    /** @return the statistics of an integer field, or null if there are none */
+    ColumnStats columnStats(int field) {
+        Object h = histogramMap.get(field);
+        return h instanceof ColumnStats ? (ColumnStats) h : null;
+    }
+
+    /** @return the statistics of a string field, or null if there are none */
+    StringColumnStats stringColumnStats(int field) {
+        Object h = histogramMap.get(field);
+        return h instanceof StringColumnStats ? (StringColumnStats) h : null;
+    }
+
     /**
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the
      * table.
-     * 
+     *
      * @param field
      *            The field over which the predicate ranges
      * @param op
@@ -232,13 +953,134 @@ public class TableStats {
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         if (constant.getType() == Type.INT_TYPE) {
             int value = ((IntField)constant).getValue();
-            IntHistogram histogram = (IntHistogram) histogramMap.get(field);
-            return histogram.estimateSelectivity(op, value);
+            ColumnStats stats = (ColumnStats) histogramMap.get(field);
+            return stats.estimateSelectivity(op, value);
         } else {
             String value = ((StringField)constant).getValue();
-            StringHistogram histogram = (StringHistogram)histogramMap.get(field);
-            return histogram.estimateSelectivity(op, value);
+            StringColumnStats stats = (StringColumnStats) histogramMap.get(field);
+            return stats.estimateSelectivity(op, value);
+        }
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of some predicates on the
+     * table. Predicates over the fields of a column group (see
+     * {@link Catalog#addColumnGroup}) are estimated together by its
+     * {@link ColumnGroupStats}, the groups covering the most predicates
+     * first; the other predicates are assumed to be independent. If a
+     * query has reported the selectivity of the same conjunction (see
+     * {@link #recordFeedback}), that selectivity is returned instead.
+     *
+     * @param preds
+     *            the predicates, whose fields are fields of the table
+     * @return The estimated selectivity (fraction of tuples that satisfy)
+     *         all of the predicates
+     */
+    public double estimateSelectivity(List<Predicate> preds) {
+        if (!preds.isEmpty()) {
+            Double observed;
+            synchronized (feedback) {
+                observed = feedback.get(feedbackKey(preds));
+            }
+            if (observed != null)
+                return observed;
+        }
+        double[] single = new double[preds.size()];
+        for (int i = 0; i < single.length; i++) {
+            Predicate p = preds.get(i);
+            single[i] = estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        boolean[] used = new boolean[preds.size()];
+        double sel = 1;
+        while (true) {
+            // the group over the most distinct fields of the unused predicates
+            ColumnGroupStats best = null;
+            int bestFields = 1;
+            for (ColumnGroupStats g : groups) {
+                HashSet<Integer> covered = new HashSet<Integer>();
+                for (int i = 0; i < used.length; i++) {
+                    if (!used[i] && g.positionOf(preds.get(i).getField()) >= 0)
+                        covered.add(preds.get(i).getField());
+                }
+                if (covered.size() > bestFields) {
+                    best = g;
+                    bestFields = covered.size();
+                }
+            }
+            if (best == null)
+                break;
+            ArrayList<Predicate> groupPreds = new ArrayList<Predicate>();
+            ArrayList<Double> groupSingle = new ArrayList<Double>();
+            for (int i = 0; i < used.length; i++) {
+                if (!used[i] && best.positionOf(preds.get(i).getField()) >= 0) {
+                    used[i] = true;
+                    groupPreds.add(preds.get(i));
+                    groupSingle.add(single[i]);
+                }
+            }
+            double[] gs = new double[groupSingle.size()];
+            for (int i = 0; i < gs.length; i++)
+                gs[i] = groupSingle.get(i);
+            sel *= best.estimateSelectivity(groupPreds, gs);
+        }
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i])
+                sel *= single[i];
+        }
+        return sel;
+    }
+
+    /**
+     * Records the selectivity a conjunction of predicates was observed to
+     * have while a query ran, so that {@link #estimateSelectivity(List)}
+     * returns it for the same predicates, in any order, from then on. The
+     * selectivities of the {@link #NUM_FEEDBACK} most recently used
+     * conjunctions are kept, until the statistics are recomputed.
+     *
+     * @param preds
+     *            the predicates, whose fields are fields of the table
+     * @param selectivity
+     *            the fraction of the tuples read that satisfied all of them
+     */
+    public void recordFeedback(List<Predicate> preds, double selectivity) {
+        if (selectivity < 0 || selectivity > 1)
+            throw new IllegalArgumentException("selectivity must be between 0 and 1");
+        if (preds.isEmpty())
+            return;
+        synchronized (feedback) {
+            feedback.put(feedbackKey(preds), selectivity);
+        }
+    }
+
+    /** @return a key of a conjunction that ignores the order of its predicates */
+    private static String feedbackKey(List<Predicate> preds) {
+        String[] keys = new String[preds.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Predicate p = preds.get(i);
+            keys[i] = p.getField() + " " + p.getOp() + " " + p.getOperand().getType() + " "
+                    + p.getOperand();
+        }
+        Arrays.sort(keys);
+        return String.join("\n", keys);
+    }
+
+    /**
+     * @return the estimated number of distinct combinations of values of
+     *         some fields: that of their column group if they form one,
+     *         otherwise the product of their distinct values, at most the
+     *         number of tuples
+     */
+    public long numDistinctCombinations(int... fields) {
+        int[] sorted = fields.clone();
+        Arrays.sort(sorted);
+        long distinct = 1;
+        for (ColumnGroupStats g : groups) {
+            if (Arrays.equals(g.fields(), sorted))
+                return Math.max(1, Math.min(g.numDistinct(), totalTuples()));
         }
+        for (int f : sorted)
+            distinct = Math.min(distinct * numDistinctValues(f), Math.max(1, totalTuples()));
+        return distinct;
     }
 
     /**
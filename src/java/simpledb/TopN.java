@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT ... OFFSET, on one
+ * or more fields like {@link OrderBy}. It
+ * returns the same tuples as a {@link Limit} over an {@link OrderBy}, but
+ * never sorts the whole child: it keeps the best limit + offset tuples seen so
+ * far in a bounded heap whose root is the worst of them, so each child tuple
+ * costs at most O(log k) comparisons and the operator holds O(k) tuples,
+ * where k = limit + offset.
+ * <p>
+ * If the order is on a single field and the child already returns its tuples
+ * in ascending order of that field, as a scan of a B+ tree keyed on that field does (see
+ * {@link SortMergeJoin#isSorted}), the heap is skipped entirely and the child
+ * is read only until the limit is reached.
+ * <p>
+ * Like {@link OrderBy}, TopN is stable: of tuples with equal order by fields,
+ * those read first are returned first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascending;
+    private final int limit;
+    private final int offset;
+    private final NormalizedKey key;
+
+    // the heap of the best tuples, their keys and their positions in the
+    // child; the root is the worst of them
+    transient private Tuple[] heap;
+    transient private byte[][] keys;
+    transient private long[] seqs;
+    transient private int size;
+
+    // the tuples returned, sorted, or null if the child is streamed
+    transient private Tuple[] sorted;
+    transient private int pos;
+    transient private int skipped, returned;
+    transient private long read;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied
+     * @param asc
+     *            true if the sort order is ascending
+     * @param limit
+     *            the maximum number of tuples returned
+     * @param offset
+     *            the number of tuples skipped at the start of the order
+     * @param child
+     *            the tuples to sort
+     * @throws IllegalArgumentException
+     *             if limit or offset is negative
+     */
+    public TopN(int orderbyField, boolean asc, int limit, int offset, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, offset, child);
+    }
+
+    /**
+     * Constructor for an order on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first
+     * @param asc
+     *            for each of these fields, true if its order is ascending
+     * @param limit
+     *            the maximum number of tuples returned
+     * @param offset
+     *            the number of tuples skipped at the start of the order
+     * @param child
+     *            the tuples to sort
+     * @throws IllegalArgumentException
+     *             if limit or offset is negative, or the two arrays differ in
+     *             length
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        if ((long) limit + offset > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("limit + offset is too large");
+        this.child = child;
+        this.key = new NormalizedKey(child.getTupleDesc(), orderbyFields, asc);
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return true if the order of the first field is ascending */
+    public boolean isASC() {
+        return ascending[0];
+    }
+
+    /** @return the first (most significant) field of the order */
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    public String getOrderFieldName() {
+        return child.getTupleDesc().getFieldName(orderByFields[0]);
+    }
+
+    /** @return the fields of the order, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field of the order, true if it is ascending */
+    public boolean[] getAscending() {
+        return ascending.clone();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return true if the child is already in the requested order, so that
+     *         it is read only up to the limit
+     */
+    public boolean isStreaming() {
+        return orderByFields.length == 1 && ascending[0]
+                && SortMergeJoin.isSorted(child, orderByFields[0]);
+    }
+
+    /**
+     * @return the number of child tuples read since the operator was last
+     *         opened or rewound
+     */
+    public long tuplesRead() {
+        return read;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        start();
+        super.open();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        read = 0;
+        skipped = 0;
+        returned = 0;
+        sorted = null;
+        if (isStreaming())
+            return;
+        int k = limit + offset;
+        heap = new Tuple[Math.min(k, 1024)];
+        keys = new byte[heap.length][];
+        seqs = new long[heap.length];
+        size = 0;
+        if (k > 0) {
+            while (child.hasNext())
+                offer(child.next(), read++, k);
+        }
+        // popping the worst tuple repeatedly fills the output from the back
+        sorted = new Tuple[size];
+        while (size > 0) {
+            sorted[size - 1] = heap[0];
+            removeRoot();
+        }
+        heap = null;
+        keys = null;
+        seqs = null;
+        pos = Math.min(offset, sorted.length);
+    }
+
+    /** @return true if heap entry i comes after heap entry j in the order */
+    private boolean worse(int i, int j) {
+        int c = NormalizedKey.compare(keys[i], keys[j]);
+        return c > 0 || (c == 0 && seqs[i] > seqs[j]);
+    }
+
+    private void offer(Tuple t, long seq, int k) {
+        byte[] tkey = key.encode(t);
+        if (size < k) {
+            if (size == heap.length) {
+                int n = (int) Math.min(k, 2L * heap.length);
+                heap = Arrays.copyOf(heap, n);
+                keys = Arrays.copyOf(keys, n);
+                seqs = Arrays.copyOf(seqs, n);
+            }
+            heap[size] = t;
+            keys[size] = tkey;
+            seqs[size] = seq;
+            siftUp(size++);
+        } else if (NormalizedKey.compare(tkey, keys[0]) < 0) {
+            // t is better than the worst tuple kept; equal tuples read later
+            // are never better
+            heap[0] = t;
+            keys[0] = tkey;
+            seqs[0] = seq;
+            siftDown(0);
+        }
+    }
+
+    private void removeRoot() {
+        size--;
+        heap[0] = heap[size];
+        keys[0] = keys[size];
+        seqs[0] = seqs[size];
+        heap[size] = null;
+        keys[size] = null;
+        if (size > 0)
+            siftDown(0);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!worse(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, worst = i;
+            if (l < size && worse(l, worst))
+                worst = l;
+            if (r < size && worse(r, worst))
+                worst = r;
+            if (worst == i)
+                return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        byte[] b = keys[i];
+        keys[i] = keys[j];
+        keys[j] = b;
+        long s = seqs[i];
+        seqs[i] = seqs[j];
+        seqs[j] = s;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        sorted = null;
+        heap = null;
+        keys = null;
+        seqs = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (sorted != null) {
+            pos = Math.min(offset, sorted.length);
+            return;
+        }
+        child.rewind();
+        start();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next tuple of the
+     * requested range of the order.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (sorted != null)
+            return pos < sorted.length ? sorted[pos++] : null;
+        if (returned == limit)
+            return null;
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            read++;
+            skipped++;
+        }
+        if (!child.hasNext())
+            return null;
+        read++;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * TupleHashTable is the build side of a hash join: a multimap from join keys
+ * to tuples. Keys are numbered by a {@link KeyTable}; the tuples of each key
+ * form a chain through flat arrays of row numbers, so that adding a tuple
+ * costs no allocation beyond the occasional larger array, rather than an
+ * entry and a list per key.
+ * <p>
+ * Rows are numbered 0, 1, 2, ... in the order they were added. The rows of
+ * a key are visited with
+ * <pre>
+ * for (int r = table.find(key); r >= 0; r = table.nextRow(r))
+ *     ... table.row(r) ...
+ * </pre>
+ * in the order they were added.
+ */
+public class TupleHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final KeyTable keys;
+
+    // key id -> first and last row of its chain
+    private int[] first = new int[INITIAL_CAPACITY];
+    private int[] last = new int[INITIAL_CAPACITY];
+
+    // row -> next row with the same key, or -1
+    private int[] next = new int[INITIAL_CAPACITY];
+    private Tuple[] rows = new Tuple[INITIAL_CAPACITY];
+    private int numRows = 0;
+
+    /** Creates an empty table for keys of type keyType. */
+    public TupleHashTable(Type keyType) {
+        keys = new KeyTable(keyType);
+    }
+
+    /** @return the number of tuples in the table */
+    public int size() {
+        return numRows;
+    }
+
+    /** @return the number of distinct keys in the table */
+    public int numKeys() {
+        return keys.size();
+    }
+
+    /** Adds tuple t under key. */
+    public void add(Field key, Tuple t) {
+        int numKeys = keys.size();
+        int id = keys.add(key);
+        if (numRows == rows.length) {
+            rows = Arrays.copyOf(rows, numRows * 2);
+            next = Arrays.copyOf(next, numRows * 2);
+        }
+        rows[numRows] = t;
+        next[numRows] = -1;
+        if (id == numKeys) {
+            // a new key starts a chain
+            if (id == first.length) {
+                first = Arrays.copyOf(first, id * 2);
+                last = Arrays.copyOf(last, id * 2);
+            }
+            first[id] = numRows;
+        } else {
+            next[last[id]] = numRows;
+        }
+        last[id] = numRows;
+        numRows++;
+    }
+
+    /** @return the first row with the given key, or -1 if there is none */
+    public int find(Field key) {
+        int id = keys.get(key);
+        return id < 0 ? -1 : first[id];
+    }
+
+    /** @return the next row with the same key as row, or -1 */
+    public int nextRow(int row) {
+        return next[row];
+    }
+
+    /** @return the tuple of a row */
+    public Tuple row(int row) {
+        return rows[row];
+    }
+
+    /** Removes all tuples. */
+    public void clear() {
+        keys.clear();
+        Arrays.fill(rows, 0, numRows, null);
+        numRows = 0;
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class AggregateStateTest extends SimpleDbTestBase {
+
+  /**
+   * Aggregates values[0..n) once in a single state, and once in two states
+   * over the halves that are then merged; both must agree.
+   */
+  private void checkMerge(Aggregator.Op op, int[] values, int expected) {
+    AggregateState whole = AggregateState.create(op);
+    AggregateState left = AggregateState.create(op);
+    AggregateState right = AggregateState.create(op);
+    for (int i = 0; i < values.length; i++) {
+      whole.add(new IntField(values[i]));
+      (i < values.length / 2 ? left : right).add(new IntField(values[i]));
+    }
+    left.merge(right);
+    assertEquals(expected, whole.result());
+    assertEquals(expected, left.result());
+  }
+
+  @Test public void simpleStates() {
+    int[] values = new int[] {5, -3, 8, 8, 1, 0, 12, 5};
+    checkMerge(Aggregator.Op.COUNT, values, 8);
+    checkMerge(Aggregator.Op.SUM, values, 36);
+    checkMerge(Aggregator.Op.AVG, values, 4);
+    checkMerge(Aggregator.Op.MIN, values, -3);
+    checkMerge(Aggregator.Op.MAX, values, 12);
+    checkMerge(Aggregator.Op.COUNT_DISTINCT, values, 6);
+    checkMerge(Aggregator.Op.MEDIAN, values, 5);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mergeMismatch() {
+    AggregateState.create(Aggregator.Op.SUM).merge(AggregateState.create(Aggregator.Op.MIN));
+  }
+
+  @Test public void unsupported() {
+    assertFalse(AggregateState.supports(Aggregator.Op.SUM, Type.STRING_TYPE));
+    assertTrue(AggregateState.supports(Aggregator.Op.COUNT_DISTINCT, Type.STRING_TYPE));
+    assertFalse(AggregateState.supports(Aggregator.Op.SC_AVG, Type.INT_TYPE));
+  }
+
+  /** HyperLogLog is exact for small sets and close for large ones. */
+  @Test public void hyperLogLog() {
+    HyperLogLog small = new HyperLogLog();
+    for (int i = 0; i < 300; i++) {
+      small.add(new IntField(i % 100));
+      small.add(new StringField("s" + (i % 50), Type.STRING_LEN));
+    }
+    assertEquals(150, small.cardinality());
+
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    for (int i = 0; i < 200000; i++) {
+      a.add(new IntField(i));
+      b.add(new IntField(i + 100000));
+    }
+    assertEquals(200000, a.cardinality(), 200000 * 0.05);
+    a.merge(b);
+    assertEquals(300000, a.cardinality(), 300000 * 0.05);
+  }
+
+  /** Quantile ranks stay within a small fraction of the stream size. */
+  @Test public void quantileSketch() {
+    Random r = new Random(7);
+    int n = 100000;
+    int[] values = new int[n];
+    QuantileSketch left = new QuantileSketch();
+    QuantileSketch right = new QuantileSketch();
+    for (int i = 0; i < n; i++) {
+      values[i] = r.nextInt(1000000) - 500000;
+      (i % 2 == 0 ? left : right).add(values[i]);
+    }
+    left.merge(right);
+    assertEquals(n, left.count());
+    Arrays.sort(values);
+    for (double q : new double[] {0.01, 0.25, 0.5, 0.75, 0.99}) {
+      int v = left.quantile(q);
+      int rank = Arrays.binarySearch(values, v);
+      assertTrue(rank >= 0);
+      assertEquals(q * n, rank, n * 0.02);
+    }
+    assertEquals(values[0], left.quantile(0));
+    assertEquals(values[n - 1], left.quantile(1));
+  }
+
+  /** AVG keeps a running sum and count instead of the values. */
+  @Test public void largeAverage() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.AVG);
+    TupleDesc td = Utility.getTupleDesc(1);
+    for (int i = 0; i < 1000000; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(Integer.MAX_VALUE - (i % 2)));
+      agg.mergeTupleIntoGroup(t);
+    }
+    OpIterator it = agg.iterator();
+    it.open();
+    assertEquals(new IntField(Integer.MAX_VALUE - 1), it.next().getField(0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AggregateStateTest.class);
+  }
+}
@@ -2,6 +2,10 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +97,52 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Column groups are kept as sorted field indexes, once each
+     */
+    @Test public void addColumnGroup() throws Exception {
+        int id3 = r.nextInt();
+        Database.getCatalog().addTable(new SkeletonFile(id3, Utility.getTupleDesc(3, "f")),
+                SystemTestUtil.getUUID());
+        Database.getCatalog().addColumnGroup(id3, "f2", "f0");
+        Database.getCatalog().addColumnGroup(id3, "f0", "f2");
+        assertEquals(1, Database.getCatalog().getColumnGroups(id3).size());
+        Assert.assertTrue(Arrays.equals(new int[] { 0, 2 },
+                Database.getCatalog().getColumnGroups(id3).get(0)));
+
+        try {
+            Database.getCatalog().addColumnGroup(id3, "f0", "f0");
+            Assert.fail("a column group needs two fields");
+        } catch (IllegalArgumentException e) {
+            // Expected to get here
+        }
+        try {
+            Database.getCatalog().addColumnGroup(id3, "f0", "nosuchfield");
+            Assert.fail("Should not find field nosuchfield");
+        } catch (NoSuchElementException e) {
+            // Expected to get here
+        }
+    }
+
+    /**
+     * Column groups may follow the fields of a table in a catalog file
+     */
+    @Test public void loadSchemaColumnGroups() throws Exception {
+        File catalog = File.createTempFile("catalog", ".txt");
+        catalog.deleteOnExit();
+        String table = "t" + SystemTestUtil.getUUID().replace("-", "");
+        FileWriter w = new FileWriter(catalog);
+        w.write(table + " (id int pk, city int, zip int, state string) group (city, zip)"
+                + " group (zip, state, city)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        List<int[]> groups = Database.getCatalog().getColumnGroups(
+                Database.getCatalog().getTableId(table));
+        assertEquals(2, groups.size());
+        Assert.assertTrue(Arrays.equals(new int[] { 1, 2 }, groups.get(0)));
+        Assert.assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, groups.get(1)));
+    }
+
     /**
      * JUnit suite target
      */
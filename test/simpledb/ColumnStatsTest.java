@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+
+public class ColumnStatsTest {
+
+	/**
+	 * @return n values drawn from a Zipfian distribution with exponent s over
+	 *         the values 0 .. distinct - 1, where 0 is the most common
+	 */
+	static int[] zipf(int n, int distinct, double s, long seed) {
+		double[] cdf = new double[distinct];
+		double sum = 0;
+		for (int i = 0; i < distinct; i++) {
+			sum += 1 / Math.pow(i + 1, s);
+			cdf[i] = sum;
+		}
+		Random rand = new Random(seed);
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			int v = Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+			values[i] = Math.min(distinct - 1, v < 0 ? -v - 1 : v);
+		}
+		return values;
+	}
+
+	static ColumnStats build(int[] values) {
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		HyperLogLog sketch = new HyperLogLog();
+		for (int v : values) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+			sketch.addHash(HyperLogLog.hash(v));
+		}
+		return ColumnStats.build(values.clone(), values.length, min, max, sketch,
+				TableStats.NUM_HIST_BINS, TableStats.NUM_MCVS);
+	}
+
+	private static double fraction(int[] values, Op op, int v) {
+		int matches = 0;
+		for (int x : values) {
+			if (new IntField(x).compare(op, new IntField(v)))
+				matches++;
+		}
+		return (double) matches / values.length;
+	}
+
+	/**
+	 * Equalities on a skewed column are estimated from the most common values
+	 * and the equi-depth buckets, and ranges stay close to the truth.
+	 */
+	@Test public void zipfianSelectivityTest() {
+		int[] values = zipf(100000, 5000, 1.1, 1);
+		ColumnStats s = build(values);
+
+		for (int v : new int[] { 0, 1, 5, 50 }) {
+			double actual = fraction(values, Op.EQUALS, v);
+			Assert.assertEquals("value " + v, actual, s.estimateSelectivity(Op.EQUALS, v),
+					actual * 0.05);
+		}
+		// a rare value is estimated as rare, not as the average
+		double rare = s.estimateSelectivity(Op.EQUALS, 4000);
+		Assert.assertTrue(rare < 0.0005);
+		Assert.assertTrue(rare > 0);
+
+		for (int v : new int[] { 1, 3, 20, 300, 2500 }) {
+			for (Op op : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+					Op.GREATER_THAN_OR_EQ }) {
+				Assert.assertEquals(op + " " + v, fraction(values, op, v),
+						s.estimateSelectivity(op, v), 0.02);
+			}
+		}
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.EQUALS, -1), 0);
+		Assert.assertEquals(1.0, s.estimateSelectivity(Op.LESS_THAN, 10000), 0);
+	}
+
+	@Test public void numDistinctTest() {
+		int[] values = new int[200000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (i * 7919) % 50000;
+		ColumnStats s = build(values);
+		Assert.assertEquals(50000, s.numDistinct(), 50000 * 0.05);
+
+		s = build(zipf(10000, 100, 1.0, 2));
+		Assert.assertTrue(s.numDistinct() <= 100);
+		Assert.assertTrue(s.numDistinct() >= 90);
+	}
+
+	/**
+	 * Joining two skewed columns is dominated by their common frequent
+	 * values, which the uniform estimate 1 / max(distinct) misses by a
+	 * wide margin.
+	 */
+	@Test public void joinSelectivityTest() {
+		int[] a = zipf(20000, 2000, 1.2, 3);
+		int[] b = zipf(20000, 2000, 1.2, 4);
+		long[] countA = new long[2000], countB = new long[2000];
+		for (int v : a)
+			countA[v]++;
+		for (int v : b)
+			countB[v]++;
+		double actual = 0;
+		for (int v = 0; v < 2000; v++)
+			actual += (double) countA[v] * countB[v];
+		actual /= (double) a.length * b.length;
+
+		ColumnStats sa = build(a), sb = build(b);
+		double estimate = ColumnStats.joinSelectivity(sa, Op.EQUALS, sb);
+		Assert.assertEquals(actual, estimate, actual * 0.1);
+		Assert.assertTrue(actual > 10.0 / Math.max(sa.numDistinct(), sb.numDistinct()));
+
+		// disjoint columns do not join
+		int[] c = new int[1000];
+		for (int i = 0; i < c.length; i++)
+			c[i] = 5000 + i % 100;
+		Assert.assertEquals(0.0, ColumnStats.joinSelectivity(sa, Op.EQUALS, build(c)), 0);
+		Assert.assertEquals(1.0, ColumnStats.joinSelectivity(sa, Op.LESS_THAN, build(c)), 0.01);
+		Assert.assertEquals(0.0, ColumnStats.joinSelectivity(sa, Op.GREATER_THAN, build(c)), 0.01);
+	}
+
+	@Test public void incrementalTest() {
+		ColumnStats s = build(zipf(10000, 100, 1.0, 5));
+		double before = s.estimateSelectivity(Op.GREATER_THAN, 99);
+		for (int i = 0; i < 1000; i++)
+			s.addValue(200 + i, true);
+		Assert.assertEquals(1199, s.max());
+		Assert.assertTrue(s.estimateSelectivity(Op.GREATER_THAN, 99) > before);
+		Assert.assertTrue(s.numDistinct() > 1000);
+
+		double zero = s.estimateSelectivity(Op.EQUALS, 0);
+		for (int i = 0; i < 500; i++)
+			s.removeValue(0, true);
+		Assert.assertTrue(s.estimateSelectivity(Op.EQUALS, 0) < zero);
+	}
+
+	@Test public void persistenceTest() throws Exception {
+		ColumnStats s = build(zipf(10000, 1000, 1.1, 6));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		s.writeTo(new DataOutputStream(bytes));
+		ColumnStats t = ColumnStats.readFrom(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+
+		Assert.assertEquals(s.min(), t.min());
+		Assert.assertEquals(s.max(), t.max());
+		Assert.assertEquals(s.numDistinct(), t.numDistinct());
+		for (int v = -1; v <= 1001; v += 7) {
+			for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ })
+				Assert.assertEquals(s.estimateSelectivity(op, v), t.estimateSelectivity(op, v), 0);
+		}
+	}
+}
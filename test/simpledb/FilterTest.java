@@ -120,6 +120,31 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for Filter.getActualCardinality() and Filter.tuplesRead(),
+   *   which count over rewinds until the filter is opened again
+   */
+  @Test public void actualCardinality() throws Exception {
+    Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(2));
+    Filter op = new Filter(pred, scan);
+    op.open();
+    while (op.hasNext())
+      op.next();
+    assertEquals(7, op.getActualCardinality());
+    assertEquals(10, op.tuplesRead());
+
+    op.rewind();
+    op.next();
+    assertEquals(8, op.getActualCardinality());
+    op.close();
+    assertEquals(8, op.getActualCardinality());
+
+    op.open();
+    assertEquals(0, op.getActualCardinality());
+    assertEquals(0, op.tuplesRead());
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -178,6 +178,33 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.mergeTupleIntoGroup() with more groups than the
+   * initial capacity of its group table
+   */
+  @Test public void mergeManyGroups() throws Exception {
+    int groups = 100;
+    int[] tuples = new int[groups * 2 * width1];
+    int[] expected = new int[groups * width1];
+    for (int i = 0; i < groups; i++) {
+      tuples[2 * i * width1] = i;
+      tuples[2 * i * width1 + 1] = i;
+      tuples[(2 * i + 1) * width1] = i;
+      tuples[(2 * i + 1) * width1 + 1] = 1;
+      expected[i * width1] = i;
+      expected[i * width1 + 1] = i + 1;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, tuples);
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
   /**
    * JUnit suite target
    */
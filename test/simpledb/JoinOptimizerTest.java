@@ -5,8 +5,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Random;
 import java.util.Vector;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -87,6 +89,11 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         TableStats.setTableStats(tableName2, stats2);
     }
 
+    @After
+    public void resetSearchLimits() {
+        JoinOptimizer.resetDefaultSearchLimits();
+    }
+
     private double[] getRandomJoinCosts(JoinOptimizer jo, LogicalJoinNode js,
             int[] card1s, int[] card2s, double[] cost1s, double[] cost2s) {
         double[] ret = new double[card1s.length];
@@ -621,4 +628,173 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * An inequality join sorts its inner side in memory only if the inner side
+     * fits into the memory budget of a sort; otherwise it is costed, and run,
+     * as a block nested loops join.
+     */
+    @Test
+    public void inequalityJoinMemoryTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 < t2.c2;"), new Vector<LogicalJoinNode>());
+        LogicalJoinNode lj = new LogicalJoinNode(tableName1, tableName2,
+                Integer.toString(1), Integer.toString(2), Predicate.Op.LESS_THAN);
+        double merged = j.estimateJoinCost(lj, 1000, 10000, 19, 190);
+        try {
+            OrderBy.setDefaultMaxTuples(5000);
+            double blocked = j.estimateJoinCost(lj, 1000, 10000, 19, 190);
+            Assert.assertTrue(blocked > merged);
+            Assert.assertEquals(blocked, j.estimateJoinCost(new LogicalJoinNode(
+                    tableName1, tableName2, Integer.toString(1), Integer.toString(2),
+                    Predicate.Op.NOT_EQUALS), 1000, 10000, 19, 190), 0);
+        } finally {
+            OrderBy.resetDefaultMaxTuples();
+        }
+    }
+
+    /**
+     * Make sure the subset enumeration visits each subset of a given size
+     * exactly once, in increasing order
+     */
+    @Test
+    public void enumerateSubsetsTest() {
+        final int n = 12;
+        for (int size = 1; size <= n; size++) {
+            long count = 0, prev = -1;
+            for (long s = JoinOptimizer.firstSubset(size); s < 1L << n; s = JoinOptimizer
+                    .nextSubset(s)) {
+                Assert.assertEquals(size, Long.bitCount(s));
+                Assert.assertTrue(s > prev);
+                prev = s;
+                count++;
+            }
+            // n choose size
+            long expected = 1;
+            for (int i = 0; i < size; i++)
+                expected = expected * (n - i) / (i + 1);
+            Assert.assertEquals(expected, count);
+        }
+    }
+
+    /** The statistics and joins of a random tree-shaped join graph. */
+    private static class JoinGraph {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        String sql;
+    }
+
+    /**
+     * Creates tables t0 ... t(n-1) of random sizes and filter selectivities,
+     * and joins each table after the first to a random earlier one; a few of
+     * the joins are range joins.
+     */
+    private JoinGraph randomJoinGraph(String prefix, int n, long seed) throws Exception {
+        Random rand = new Random(seed);
+        JoinGraph g = new JoinGraph();
+        String from = "", where = "";
+        for (int i = 0; i < n; i++) {
+            String name = prefix + i;
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 + rand.nextInt(3000), null,
+                    null, "c");
+            Database.getCatalog().addTable(f, name);
+            g.stats.put(name, new TableStats(f.getId(), 1));
+            g.filterSelectivities.put(name, rand.nextBoolean() ? 1.0 : 0.01 + rand.nextDouble());
+            from += (i > 0 ? ", " : "") + name;
+            if (i > 0) {
+                String other = prefix + rand.nextInt(i);
+                Predicate.Op op = rand.nextInt(5) == 0 ? Predicate.Op.LESS_THAN
+                        : Predicate.Op.EQUALS;
+                g.nodes.add(new LogicalJoinNode(other, name, "c0", "c1", op));
+                where += (i > 1 ? " AND " : "") + other + ".c0 "
+                        + (op == Predicate.Op.EQUALS ? "=" : "<") + " " + name + ".c1";
+            }
+        }
+        g.sql = "SELECT * FROM " + from + " WHERE " + where + ";";
+        return g;
+    }
+
+    /**
+     * Compare the plans of the bushy and the left-deep dynamic programming
+     * search and of the greedy search on the same queries: on tree-shaped
+     * join graphs, the bushy search finds the cheapest plan of all, and the
+     * greedy search should not be far off.
+     */
+    @Test
+    public void searchStrategiesTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        double worstRatio = 1;
+        for (int q = 0; q < 4; q++) {
+            JoinGraph g = randomJoinGraph("strategy" + q + "_t", 8, q);
+            JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid, g.sql),
+                    g.nodes);
+
+            Vector<LogicalJoinNode> bushy, leftDeep, greedy;
+            try {
+                JoinOptimizer.setDefaultMaxBushyJoins(JoinOptimizer.MAX_JOINS);
+                bushy = j.orderJoins(g.stats, g.filterSelectivities, false);
+                JoinOptimizer.setDefaultMaxBushyJoins(0);
+                leftDeep = j.orderJoins(g.stats, g.filterSelectivities, false);
+                JoinOptimizer.setDefaultMaxDpJoins(0);
+                greedy = j.orderJoins(g.stats, g.filterSelectivities, false);
+            } finally {
+                JoinOptimizer.resetDefaultSearchLimits();
+            }
+
+            Assert.assertEquals(g.nodes.size(), bushy.size());
+            Assert.assertEquals(g.nodes.size(), leftDeep.size());
+            Assert.assertEquals(g.nodes.size(), greedy.size());
+            double bushyCost = j.estimatePlanCost(bushy, g.stats);
+            double leftDeepCost = j.estimatePlanCost(leftDeep, g.stats);
+            double greedyCost = j.estimatePlanCost(greedy, g.stats);
+            Assert.assertTrue(bushyCost <= leftDeepCost * (1 + 1e-9));
+            Assert.assertTrue(bushyCost <= greedyCost * (1 + 1e-9));
+            worstRatio = Math.max(worstRatio, greedyCost / bushyCost);
+        }
+        Assert.assertTrue("worst greedy / bushy plan cost: " + worstRatio, worstRatio < 10);
+    }
+
+    /**
+     * Join graphs far beyond the reach of dynamic programming are planned
+     * greedily, within bounded time.
+     */
+    @Test(timeout = 60000)
+    public void largeJoinGraphTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinGraph g = randomJoinGraph("large_t", 40, 40);
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid, g.sql), g.nodes);
+        long start = System.currentTimeMillis();
+        Vector<LogicalJoinNode> result = j.orderJoins(g.stats, g.filterSelectivities, false);
+        long millis = System.currentTimeMillis() - start;
+        Assert.assertEquals(g.nodes.size(), result.size());
+        Assert.assertTrue(j.estimatePlanCost(result, g.stats) < Double.POSITIVE_INFINITY);
+        Assert.assertTrue("planning took " + millis + " ms", millis < 5000);
+    }
+
+    /**
+     * Planning the levels of the dynamic programming on several threads
+     * gives the same plan as planning them on the calling thread.
+     */
+    @Test
+    public void parallelPlanningTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinGraph g = randomJoinGraph("parallel_t", 13, 13);
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid, g.sql), g.nodes);
+        JoinOptimizer.setDefaultMaxBushyJoins(0);
+        JoinOptimizer.setDefaultPlanningThreads(1);
+        Vector<LogicalJoinNode> sequential = j.orderJoins(g.stats, g.filterSelectivities, false);
+        JoinOptimizer.setDefaultPlanningThreads(4);
+        Vector<LogicalJoinNode> parallel = j.orderJoins(g.stats, g.filterSelectivities, false);
+        Assert.assertEquals(sequential, parallel);
+        Assert.assertEquals(j.estimatePlanCost(sequential, g.stats),
+                j.estimatePlanCost(parallel, g.stats), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void planningThreadsTest() {
+        JoinOptimizer.setDefaultPlanningThreads(0);
+    }
 }
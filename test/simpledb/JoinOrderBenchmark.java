@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the time {@link JoinOptimizer#orderJoins} takes to plan synthetic
+ * chain, star and clique join graphs by dynamic programming, with the levels
+ * of the dynamic programming planned on the calling thread and on a
+ * fork-join pool of one thread per core.
+ * <p>
+ * Run after <tt>ant testcompile</tt> with
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.JoinOrderBenchmark [repetitions]
+ * </pre>
+ */
+public class JoinOrderBenchmark {
+    private static final int WARMUP = 3;
+
+    /** The statistics and joins of a synthetic join graph. */
+    private static class JoinGraph {
+        final String name;
+        final HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        final HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        final Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        String from = "", where = "";
+
+        JoinGraph(String name, int tables, Random rand) throws Exception {
+            this.name = name;
+            for (int i = 0; i < tables; i++) {
+                String t = table(i);
+                HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 + rand.nextInt(2000),
+                        null, null, "c");
+                Database.getCatalog().addTable(f, t);
+                stats.put(t, new TableStats(f.getId(), 1));
+                filterSelectivities.put(t, rand.nextBoolean() ? 1.0 : 0.01 + rand.nextDouble());
+                from += (i > 0 ? ", " : "") + t;
+            }
+        }
+
+        String table(int i) {
+            return name + "_t" + i;
+        }
+
+        void join(int i, int j) {
+            nodes.add(new LogicalJoinNode(table(i), table(j), "c0", "c1", Predicate.Op.EQUALS));
+            where += (where.isEmpty() ? "" : " AND ") + table(i) + ".c0 = " + table(j) + ".c1";
+        }
+
+        JoinOptimizer optimizer() throws Exception {
+            String sql = "SELECT * FROM " + from + " WHERE " + where + ";";
+            return new JoinOptimizer(new Parser().generateLogicalPlan(new TransactionId(), sql),
+                    nodes);
+        }
+    }
+
+    private static JoinGraph chain(int tables, Random rand) throws Exception {
+        JoinGraph g = new JoinGraph("chain", tables, rand);
+        for (int i = 1; i < tables; i++)
+            g.join(i - 1, i);
+        return g;
+    }
+
+    private static JoinGraph star(int tables, Random rand) throws Exception {
+        JoinGraph g = new JoinGraph("star", tables, rand);
+        for (int i = 1; i < tables; i++)
+            g.join(0, i);
+        return g;
+    }
+
+    private static JoinGraph clique(int tables, Random rand) throws Exception {
+        JoinGraph g = new JoinGraph("clique", tables, rand);
+        for (int i = 0; i < tables; i++)
+            for (int j = i + 1; j < tables; j++)
+                g.join(i, j);
+        return g;
+    }
+
+    /** @return the median time in milliseconds of planning g reps times */
+    private static double time(JoinGraph g, int threads, int reps) throws Exception {
+        JoinOptimizer.setDefaultPlanningThreads(threads);
+        JoinOptimizer j = g.optimizer();
+        for (int i = 0; i < WARMUP; i++)
+            j.orderJoins(g.stats, g.filterSelectivities, false);
+        double[] millis = new double[reps];
+        for (int i = 0; i < reps; i++) {
+            long start = System.nanoTime();
+            j.orderJoins(g.stats, g.filterSelectivities, false);
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(millis);
+        return millis[reps / 2];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int reps = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        Random rand = new Random(6830);
+        // 14 and 15 joins, about the largest graphs planned by dynamic programming
+        JoinGraph[] graphs = { chain(15, rand), star(15, rand), clique(6, rand) };
+        int threads = JoinOptimizer.DEFAULT_PLANNING_THREADS;
+        System.out.println("graph   joins  1 thread (ms)  " + threads + " threads (ms)");
+        for (JoinGraph g : graphs) {
+            double sequential = time(g, 1, reps);
+            double parallel = time(g, threads, reps);
+            System.out.printf("%-7s %5d %14.1f %15.1f%n", g.name, g.nodes.size(), sequential,
+                    parallel);
+        }
+        JoinOptimizer.resetDefaultSearchLimits();
+    }
+}
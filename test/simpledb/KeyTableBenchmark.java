@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares the hash tables built on {@link KeyTable} with the maps of boxed
+ * {@link Field}s they replaced: the build and probe of a hash join through a
+ * {@link TupleHashTable} against a HashMap of tuple lists, and grouped
+ * aggregation through {@link IntegerAggregator} and {@link StringAggregator}
+ * against a HashMap of running totals.
+ * <p>
+ * The join builds on 200k tuples with int keys drawn from 400k values and
+ * probes with 1M tuples, producing about 500k result tuples. The aggregates
+ * read 1M tuples, grouped into about 367k int keys or 100k string keys.
+ * <p>
+ * Run after <tt>ant testcompile</tt> with
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.KeyTableBenchmark [repetitions]
+ * </pre>
+ */
+public class KeyTableBenchmark {
+    private static final int WARMUP = 3;
+    private static final int BUILD_ROWS = 200000;
+    private static final int PROBE_ROWS = 1000000;
+    private static final int JOIN_KEYS = 400000;
+    private static final int AGG_ROWS = 1000000;
+    private static final int STRING_KEYS = 100000;
+
+    private static final TupleDesc INTS = Utility.getTupleDesc(2);
+    private static final TupleDesc STRING_INT = new TupleDesc(
+            new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+    /** A hash table variant under test. */
+    private interface Variant {
+        /** Runs the variant once; returns a checksum so the work is not optimized away. */
+        long run();
+    }
+
+    private static Tuple[] intTuples(int rows, int keys, Random rand) {
+        Tuple[] out = new Tuple[rows];
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(INTS);
+            t.setField(0, new IntField(rand.nextInt(keys)));
+            t.setField(1, new IntField(rand.nextInt(1000)));
+            out[i] = t;
+        }
+        return out;
+    }
+
+    private static Tuple[] stringTuples(int rows, int keys, Random rand) {
+        Tuple[] out = new Tuple[rows];
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(STRING_INT);
+            t.setField(0, new StringField("key" + rand.nextInt(keys), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            out[i] = t;
+        }
+        return out;
+    }
+
+    private static TupleHashTable buildTable(Tuple[] build) {
+        TupleHashTable table = new TupleHashTable(Type.INT_TYPE);
+        for (Tuple t : build)
+            table.add(t.getField(0), t);
+        return table;
+    }
+
+    private static HashMap<Field, ArrayList<Tuple>> buildMap(Tuple[] build) {
+        HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+        for (Tuple t : build) {
+            ArrayList<Tuple> list = map.get(t.getField(0));
+            if (list == null) {
+                list = new ArrayList<Tuple>();
+                map.put(t.getField(0), list);
+            }
+            list.add(t);
+        }
+        return map;
+    }
+
+    private static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        Tuple out = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            out.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            out.setField(n1 + i, t2.getField(i));
+        return out;
+    }
+
+    /** @return the median time in milliseconds of reps runs of v */
+    private static double time(Variant v, int reps) {
+        for (int i = 0; i < WARMUP; i++)
+            v.run();
+        double[] millis = new double[reps];
+        for (int i = 0; i < reps; i++) {
+            long start = System.nanoTime();
+            v.run();
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(millis);
+        return millis[reps / 2];
+    }
+
+    /**
+     * @return the bytes per build tuple taken by the table v builds, which v
+     *         must keep reachable
+     */
+    private static double bytesPerRow(Variant v) {
+        long before = SystemTestUtil.getMemoryFootprint();
+        v.run();
+        long after = SystemTestUtil.getMemoryFootprint();
+        return (after - before) / (double) BUILD_ROWS;
+    }
+
+    private static void report(String what, double hashMap, double keyTable, String unit) {
+        System.out.printf("%-34s %10.1f %10.1f %s%n", what, hashMap, keyTable, unit);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int reps = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        Random rand = new Random(6830);
+        final Tuple[] build = intTuples(BUILD_ROWS, JOIN_KEYS, rand);
+        final Tuple[] probe = intTuples(PROBE_ROWS, JOIN_KEYS, rand);
+        final Tuple[] ints = intTuples(AGG_ROWS, JOIN_KEYS, rand);
+        final Tuple[] strings = stringTuples(AGG_ROWS, STRING_KEYS, rand);
+        final TupleDesc joined = TupleDesc.merge(INTS, INTS);
+
+        // keeps the last table built, so that its footprint can be measured
+        final Object[] built = new Object[1];
+        Variant buildMap = new Variant() {
+            public long run() {
+                HashMap<Field, ArrayList<Tuple>> map = buildMap(build);
+                built[0] = map;
+                return map.size();
+            }
+        };
+        Variant buildTable = new Variant() {
+            public long run() {
+                TupleHashTable table = buildTable(build);
+                built[0] = table;
+                return table.size();
+            }
+        };
+        final HashMap<Field, ArrayList<Tuple>> map = buildMap(build);
+        final TupleHashTable table = buildTable(build);
+        Variant probeMap = new Variant() {
+            public long run() {
+                long n = 0;
+                for (Tuple t : probe) {
+                    ArrayList<Tuple> matches = map.get(t.getField(0));
+                    if (matches == null)
+                        continue;
+                    for (Tuple m : matches)
+                        n += merge(joined, m, t).getTupleDesc().numFields();
+                }
+                return n;
+            }
+        };
+        Variant probeTable = new Variant() {
+            public long run() {
+                long n = 0;
+                for (Tuple t : probe) {
+                    for (int row = table.find(t.getField(0)); row >= 0; row = table.nextRow(row))
+                        n += merge(joined, table.row(row), t).getTupleDesc().numFields();
+                }
+                return n;
+            }
+        };
+
+        Variant sumMap = new Variant() {
+            public long run() {
+                HashMap<Field, long[]> sums = new HashMap<Field, long[]>();
+                for (Tuple t : ints) {
+                    long[] sum = sums.get(t.getField(0));
+                    if (sum == null) {
+                        sum = new long[1];
+                        sums.put(t.getField(0), sum);
+                    }
+                    sum[0] += ((IntField) t.getField(1)).getValue();
+                }
+                return sums.size();
+            }
+        };
+        Variant sumTable = new Variant() {
+            public long run() {
+                IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1,
+                        Aggregator.Op.SUM);
+                for (Tuple t : ints)
+                    agg.mergeTupleIntoGroup(t);
+                built[0] = agg;
+                return 0;
+            }
+        };
+        Variant countMap = new Variant() {
+            public long run() {
+                HashMap<Field, int[]> counts = new HashMap<Field, int[]>();
+                for (Tuple t : strings) {
+                    int[] count = counts.get(t.getField(0));
+                    if (count == null) {
+                        count = new int[1];
+                        counts.put(t.getField(0), count);
+                    }
+                    count[0]++;
+                }
+                return counts.size();
+            }
+        };
+        Variant countTable = new Variant() {
+            public long run() {
+                StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 1,
+                        Aggregator.Op.COUNT);
+                for (Tuple t : strings)
+                    agg.mergeTupleIntoGroup(t);
+                built[0] = agg;
+                return 0;
+            }
+        };
+
+        System.out.println("java " + System.getProperty("java.version") + ", median of " + reps
+                + " runs");
+        System.out.printf("%-34s %10s %10s%n", "", "HashMap", "KeyTable");
+        built[0] = null;
+        double mapBytes = bytesPerRow(buildMap);
+        built[0] = null;
+        double tableBytes = bytesPerRow(buildTable);
+        built[0] = null;
+        report("hash table memory per build row", mapBytes, tableBytes, "B");
+        report("build, 200k rows", time(buildMap, reps), time(buildTable, reps), "ms");
+        report("probe incl. output, 1M rows", time(probeMap, reps), time(probeTable, reps), "ms");
+        report("SUM by int key, 1M rows", time(sumMap, reps), time(sumTable, reps), "ms");
+        report("COUNT by string key, 1M rows", time(countMap, reps), time(countTable, reps), "ms");
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class KeyTableTest extends SimpleDbTestBase {
+
+  private static StringField str(String s) {
+    return new StringField(s, Type.STRING_LEN);
+  }
+
+  /**
+   * Unit test for KeyTable.add() and get() with integer keys
+   */
+  @Test public void intKeys() {
+    KeyTable t = new KeyTable(Type.INT_TYPE);
+    HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+    Random rand = new Random(3);
+    for (int i = 0; i < 10000; i++) {
+      int k = rand.nextInt(5000) - 2500;
+      int id = t.add(new IntField(k));
+      if (ids.containsKey(k))
+        assertEquals((int) ids.get(k), id);
+      else
+        assertEquals(ids.size(), id);
+      ids.put(k, id);
+    }
+    assertEquals(ids.size(), t.size());
+    for (int k = -3000; k < 3000; k++) {
+      Integer id = ids.get(k);
+      assertEquals(id == null ? -1 : (int) id, t.get(new IntField(k)));
+    }
+    for (int id : ids.values())
+      assertEquals(id, (int) ids.get(((IntField) t.key(id)).getValue()));
+
+    t.clear();
+    assertEquals(0, t.size());
+    assertEquals(-1, t.get(new IntField(0)));
+    assertEquals(0, t.add(new IntField(7)));
+  }
+
+  /**
+   * Unit test for KeyTable.add() and get() with string keys
+   */
+  @Test public void stringKeys() {
+    KeyTable t = new KeyTable(Type.STRING_TYPE);
+    for (int i = 0; i < 2000; i++)
+      assertEquals(i, t.add(str("key" + i)));
+    assertEquals(0, t.add(str("key0")));
+    assertEquals(2000, t.add(str("")));
+    assertEquals(2000, t.get(str("")));
+    assertEquals(1999, t.get(str("key1999")));
+    assertEquals(-1, t.get(str("key2000")));
+    assertEquals(-1, t.get(str("key")));
+    assertEquals(str("key42"), t.key(42));
+    assertEquals(2001, t.size());
+  }
+
+  /**
+   * Unit test for TupleHashTable chains
+   */
+  @Test public void tupleChains() {
+    TupleHashTable t = new TupleHashTable(Type.INT_TYPE);
+    ArrayList<Tuple> added = new ArrayList<Tuple>();
+    for (int i = 0; i < 1000; i++) {
+      Tuple tup = Utility.getHeapTuple(new int[] { i % 7, i });
+      t.add(tup.getField(0), tup);
+      added.add(tup);
+    }
+    assertEquals(1000, t.size());
+    assertEquals(7, t.numKeys());
+    for (int k = 0; k < 7; k++) {
+      int expected = k;
+      for (int r = t.find(new IntField(k)); r >= 0; r = t.nextRow(r)) {
+        // rows of a key come in the order they were added
+        assertSame(added.get(expected), t.row(r));
+        expected += 7;
+      }
+      assertTrue(expected >= 1000);
+    }
+    assertEquals(-1, t.find(new IntField(7)));
+
+    t.clear();
+    assertEquals(0, t.size());
+    assertEquals(-1, t.find(new IntField(0)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(KeyTableTest.class);
+  }
+}
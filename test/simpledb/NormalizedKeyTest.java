@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class NormalizedKeyTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+
+  private static Field[] randomValues(Random rand) {
+    StringBuilder s = new StringBuilder();
+    int len = rand.nextInt(4);
+    for (int i = 0; i < len; i++)
+      s.append("\u0000a\u00ffb".charAt(rand.nextInt(4)));
+    int v = rand.nextBoolean() ? rand.nextInt(5) - 2 : rand.nextInt();
+    return new Field[] { new IntField(rand.nextInt(3) - 1), new StringField(s.toString(), Type.STRING_LEN),
+        new IntField(v) };
+  }
+
+  /** @return the order of a and b, compared field by field */
+  private static int compareFields(Field[] a, Field[] b, boolean[] asc) {
+    for (int i = 0; i < a.length; i++) {
+      int c;
+      if (a[i].compare(Predicate.Op.EQUALS, b[i]))
+        c = 0;
+      else
+        c = a[i].compare(Predicate.Op.LESS_THAN, b[i]) ? -1 : 1;
+      if (c != 0)
+        return asc[i] ? c : -c;
+    }
+    return 0;
+  }
+
+  /**
+   * Unit test for NormalizedKey.encode() and compare(): byte order is field order
+   */
+  @Test public void order() {
+    Random rand = new Random(11);
+    boolean[][] orders = { { true, true, true }, { false, true, false }, { true, false, true } };
+    for (boolean[] asc : orders) {
+      NormalizedKey key = new NormalizedKey(TYPES, asc);
+      for (int i = 0; i < 5000; i++) {
+        Field[] a = randomValues(rand), b = randomValues(rand);
+        int expected = Integer.signum(compareFields(a, b, asc));
+        assertEquals(expected, Integer.signum(NormalizedKey.compare(key.encode(a), key.encode(b))));
+      }
+    }
+  }
+
+  /**
+   * Unit test for NormalizedKey.decode()
+   */
+  @Test public void decode() {
+    Random rand = new Random(5);
+    NormalizedKey key = new NormalizedKey(TYPES, new boolean[] { false, false, true });
+    for (int i = 0; i < 1000; i++) {
+      Field[] values = randomValues(rand);
+      assertArrayEquals(values, key.decode(key.encode(values)));
+    }
+  }
+
+  /**
+   * Unit test for NormalizedKey.encode() on the fields of a tuple
+   */
+  @Test public void tupleFields() {
+    Tuple t = Utility.getHeapTuple(new int[] { 7, -3, 9 });
+    NormalizedKey key = new NormalizedKey(t.getTupleDesc(), new int[] { 2, 1 },
+        new boolean[] { true, true });
+    assertArrayEquals(new Field[] { new IntField(9), new IntField(-3) }, key.decode(key.encode(t)));
+    assertEquals(8, key.encode(t).length);
+  }
+
+  /**
+   * Unit test for KeyTable with binary keys
+   */
+  @Test public void keyTable() {
+    NormalizedKey key = new NormalizedKey(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new boolean[] { true, true });
+    KeyTable t = new KeyTable();
+    for (int i = 0; i < 1000; i++)
+      assertEquals(i, t.add(key.encode(new Field[] { new IntField(i / 10), new IntField(i % 10) })));
+    byte[] k = key.encode(new Field[] { new IntField(42), new IntField(7) });
+    assertEquals(427, t.add(k));
+    assertEquals(427, t.get(k));
+    assertArrayEquals(k, t.bytes(427));
+    assertEquals(-1, t.get(key.encode(new Field[] { new IntField(100), new IntField(0) })));
+    assertEquals(1000, t.size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(NormalizedKeyTest.class);
+  }
+}
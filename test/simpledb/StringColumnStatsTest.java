@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+
+public class StringColumnStatsTest {
+
+	/** @return n URLs with a long common prefix, Zipfian over distinct paths */
+	static String[] urls(int n, int distinct, long seed) {
+		int[] ids = ColumnStatsTest.zipf(n, distinct, 1.1, seed);
+		String[] values = new String[n];
+		for (int i = 0; i < n; i++)
+			values[i] = url(ids[i]);
+		return values;
+	}
+
+	static String url(int id) {
+		// a rank-scrambled id, zero-padded so that string order is numeric order
+		return String.format("http://www.example.com/item/%06d", (id * 7919) % 1000000);
+	}
+
+	static StringColumnStats build(String[] values) {
+		String min = null, max = null;
+		HyperLogLog sketch = new HyperLogLog();
+		for (String v : values) {
+			if (min == null || v.compareTo(min) < 0)
+				min = v;
+			if (max == null || v.compareTo(max) > 0)
+				max = v;
+			sketch.addHash(HyperLogLog.hash(v));
+		}
+		return StringColumnStats.build(values.clone(), values.length, min, max, sketch,
+				TableStats.NUM_STRING_QUANTILES, TableStats.NUM_MCVS);
+	}
+
+	private static double fraction(String[] values, Op op, String v) {
+		int matches = 0;
+		for (String x : values) {
+			if (new StringField(x, Type.STRING_LEN).compare(op,
+					new StringField(v, Type.STRING_LEN)))
+				matches++;
+		}
+		return (double) matches / values.length;
+	}
+
+	/**
+	 * Strings that share their first characters are still told apart:
+	 * ranges over them are estimated from the quantiles and equalities from
+	 * the MCVs.
+	 */
+	@Test public void commonPrefixTest() {
+		String[] values = urls(50000, 5000, 1);
+		StringColumnStats s = build(values);
+
+		for (int id : new int[] { 0, 1, 10 }) {
+			double actual = fraction(values, Op.EQUALS, url(id));
+			Assert.assertEquals(actual, s.estimateSelectivity(Op.EQUALS, url(id)), actual * 0.05);
+		}
+		double rare = s.estimateSelectivity(Op.EQUALS, url(4000));
+		Assert.assertTrue(rare > 0);
+		Assert.assertTrue(rare < 0.001);
+
+		for (String v : new String[] { "http://www.example.com/item/1",
+				"http://www.example.com/item/25", "http://www.example.com/item/5",
+				"http://www.example.com/item/95", url(3) }) {
+			for (Op op : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+					Op.GREATER_THAN_OR_EQ }) {
+				Assert.assertEquals(op + " " + v, fraction(values, op, v),
+						s.estimateSelectivity(op, v), 0.02);
+			}
+		}
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.LESS_THAN, "a"), 0);
+		Assert.assertEquals(1.0, s.estimateSelectivity(Op.LESS_THAN, "z"), 0);
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.EQUALS, "z"), 0);
+	}
+
+	@Test public void likeTest() {
+		String[] values = urls(50000, 5000, 2);
+		StringColumnStats s = build(values);
+		Assert.assertEquals(1.0, s.estimateSelectivity(Op.LIKE, "example.com"), 0);
+		for (String p : new String[] { "/item/0", "/item/9", "5" })
+			Assert.assertEquals(p, fraction(values, Op.LIKE, p),
+					s.estimateSelectivity(Op.LIKE, p), 0.05);
+		double none = s.estimateSelectivity(Op.LIKE, "nowhere");
+		Assert.assertTrue(none < 0.005);
+	}
+
+	@Test public void numDistinctTest() {
+		String[] values = new String[100000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = url(i % 20000);
+		Assert.assertEquals(20000, build(values).numDistinct(), 20000 * 0.05);
+	}
+
+	@Test public void joinSelectivityTest() {
+		String[] a = urls(20000, 2000, 3);
+		String[] b = urls(20000, 2000, 4);
+		HashMap<String, Integer> countB = new HashMap<String, Integer>();
+		for (String v : b)
+			countB.merge(v, 1, Integer::sum);
+		double actual = 0;
+		for (String v : a)
+			actual += countB.getOrDefault(v, 0);
+		actual /= (double) a.length * b.length;
+
+		StringColumnStats sa = build(a), sb = build(b);
+		Assert.assertEquals(actual, StringColumnStats.joinSelectivity(sa, Op.EQUALS, sb),
+				actual * 0.1);
+		StringColumnStats other = build(new String[] { "x", "y", "y" });
+		Assert.assertEquals(0.0, StringColumnStats.joinSelectivity(sa, Op.EQUALS, other), 0);
+		Assert.assertEquals(1.0, StringColumnStats.joinSelectivity(sa, Op.LESS_THAN, other), 0.01);
+	}
+
+	@Test public void incrementalTest() {
+		StringColumnStats s = build(urls(10000, 100, 5));
+		for (int i = 0; i < 100; i++)
+			s.addValue("zzz" + i, true);
+		Assert.assertEquals("zzz99", s.max());
+		Assert.assertTrue(s.estimateSelectivity(Op.GREATER_THAN, "zz") > 0);
+
+		double top = s.estimateSelectivity(Op.EQUALS, url(0));
+		for (int i = 0; i < 100; i++)
+			s.removeValue(url(0), true);
+		Assert.assertTrue(s.estimateSelectivity(Op.EQUALS, url(0)) < top);
+	}
+
+	@Test public void persistenceTest() throws Exception {
+		StringColumnStats s = build(urls(10000, 1000, 6));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		s.writeTo(new DataOutputStream(bytes));
+		StringColumnStats t = StringColumnStats.readFrom(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+
+		Assert.assertEquals(s.min(), t.min());
+		Assert.assertEquals(s.max(), t.max());
+		Assert.assertEquals(s.numDistinct(), t.numDistinct());
+		for (int id = 0; id < 1000; id += 37) {
+			for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LIKE })
+				Assert.assertEquals(s.estimateSelectivity(op, url(id)),
+						t.estimateSelectivity(op, url(id)), 0);
+		}
+	}
+}
@@ -1,8 +1,13 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Assert;
@@ -27,6 +32,12 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Database.getCatalog().addTable(f, tableName);
 		this.tableId = Database.getCatalog().getTableId(tableName);		
 	}
+
+	@After public void resetSampling() {
+		TableStats.stopBackgroundRefresh();
+		TableStats.resetDefaultSampling();
+		TableStats.getStatsMap().clear();
+	}
 	
 	private double[] getRandomTableScanCosts(int[] pageNums, int[] ioCosts) throws IOException, DbException, TransactionAbortedException {
 		double[] ret = new double[ioCosts.length];
@@ -151,4 +162,247 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics built from a reservoir sample, or from a block sample of
+	 * the pages, still give reasonable estimates.
+	 */
+	@Test public void samplingTest() {
+		final Field halfMaxMin = new IntField(16);
+		TableStats.setDefaultSampleTuples(1000);
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		Assert.assertEquals(10200, s.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, halfMaxMin), 0.02);
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, halfMaxMin), 0.1);
+		}
+
+		TableStats.setDefaultSamplePages(f.numPages() / 3);
+		s = new TableStats(this.tableId, IO_COST);
+		Assert.assertEquals(10200, s.totalTuples(), 10200 * 0.1);
+		Assert.assertEquals(IO_COST * f.numPages(), s.estimateScanCost(), 0);
+	}
+
+	/**
+	 * Inserts and deletes through the buffer pool are counted in the
+	 * statistics of the table until they become stale and are recomputed.
+	 */
+	@Test public void incrementalTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 100; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(i % 32));
+			Database.getBufferPool().insertTuple(tid, this.tableId, t);
+			inserted.add(t);
+		}
+		Assert.assertEquals(10300, s.totalTuples());
+		for (int i = 0; i < 50; i++)
+			Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(10250, s.totalTuples());
+		Assert.assertEquals(150, s.modificationCount());
+		Assert.assertFalse(s.isStale());
+		Assert.assertEquals(0, TableStats.refreshStaleStatistics());
+
+		tid = new TransactionId();
+		for (int i = 0; i < 2500; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(0));
+			Database.getBufferPool().insertTuple(tid, this.tableId, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertTrue(s.isStale());
+		Assert.assertEquals(1, TableStats.refreshStaleStatistics());
+		TableStats refreshed = TableStats.getTableStats(this.tableName);
+		Assert.assertNotSame(s, refreshed);
+		Assert.assertEquals(12750, refreshed.totalTuples());
+		Assert.assertEquals(0, refreshed.modificationCount());
+	}
+
+	/** Saved statistics are loaded with the same estimates and staleness. */
+	@Test public void persistenceTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TableStats.setTableStats("no_such_table", s);
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int col = 0; col < 10; col++)
+			t.setField(col, new IntField(3));
+		s.addTuple(t);
+
+		File file = File.createTempFile("table", ".stats");
+		file.deleteOnExit();
+		TableStats.saveStatistics(file);
+		TableStats.getStatsMap().clear();
+		Assert.assertEquals(1, TableStats.loadStatistics(file));
+		TableStats loaded = TableStats.getTableStats(this.tableName);
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(1, loaded.modificationCount());
+		Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0);
+		for (int col = 0; col < 10; col++) {
+			for (int v = -1; v <= 33; v += 4) {
+				for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+					Assert.assertEquals(s.estimateSelectivity(col, op, new IntField(v)),
+							loaded.estimateSelectivity(col, op, new IntField(v)), 0);
+				}
+			}
+		}
+	}
+
+	/** The statistics of all tables are computed on several threads. */
+	@Test public void computeStatisticsTest() throws Exception {
+		HeapFile other = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+		Database.getCatalog().addTable(other, "stats_other");
+		TableStats.setDefaultStatsThreads(2);
+		TableStats.computeStatistics();
+		Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+		Assert.assertEquals(500, TableStats.getTableStats("stats_other").totalTuples());
+	}
+
+	/**
+	 * The statistics file of a catalog is written when statistics are
+	 * computed, and loaded instead of computing them again.
+	 */
+	@Test public void loadOrComputeTest() throws Exception {
+		File dir = File.createTempFile("catalog", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		File file = TableStats.statisticsFile(new File(dir, "catalog.txt").getPath());
+		Assert.assertEquals(new File(dir, "catalog.stats").getAbsoluteFile(), file);
+		file.deleteOnExit();
+
+		TableStats.loadOrComputeStatistics(file);
+		Assert.assertTrue(file.exists());
+		TableStats computed = TableStats.getTableStats(this.tableName);
+		Assert.assertEquals(10200, computed.totalTuples());
+
+		TableStats.getStatsMap().clear();
+		long modified = file.lastModified();
+		TableStats.loadOrComputeStatistics(file);
+		TableStats loaded = TableStats.getTableStats(this.tableName);
+		Assert.assertNotSame(computed, loaded);
+		Assert.assertEquals(10200, loaded.totalTuples());
+		Assert.assertFalse(loaded.isStale());
+		Assert.assertEquals(modified, file.lastModified());
+	}
+
+	/** Stale statistics are recomputed and saved by the background thread. */
+	@Test(timeout = 30000) public void backgroundRefreshTest() throws Exception {
+		File file = File.createTempFile("table", ".stats");
+		file.delete();
+		file.deleteOnExit();
+		TableStats.setDefaultStaleModifications(10);
+		TableStats.setDefaultStaleFraction(0);
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TableStats.startBackgroundRefresh(file, 20);
+
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int col = 0; col < 10; col++)
+			t.setField(col, new IntField(1));
+		for (int i = 0; i < 9; i++)
+			s.addTuple(t);
+		Assert.assertFalse(s.isStale());
+		s.addTuple(t);
+		Assert.assertTrue(s.isStale());
+		while (TableStats.getTableStats(this.tableName) == s || !file.exists())
+			Thread.sleep(20);
+		TableStats.stopBackgroundRefresh();
+		Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+
+		TableStats.getStatsMap().clear();
+		Assert.assertEquals(1, TableStats.loadStatistics(file));
+		Assert.assertEquals(0, TableStats.getTableStats(this.tableName).modificationCount());
+	}
+
+	/**
+	 * @return a table of 20000 (city, zip) pairs over 100 cities, each with
+	 *         five zip codes of its own, so that the zip determines the city
+	 */
+	private HeapFile correlatedTable(ArrayList<ArrayList<Integer>> tuples) throws IOException {
+		Random rand = new Random(48);
+		for (int i = 0; i < 20000; i++) {
+			int city = rand.nextInt(100);
+			tuples.add(new ArrayList<Integer>(Arrays.asList(city, city * 100 + rand.nextInt(5))));
+		}
+		File file = File.createTempFile("correlated", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+		return Utility.openHeapFile(2, "c", file);
+	}
+
+	private static double fraction(ArrayList<ArrayList<Integer>> tuples, List<Predicate> preds) {
+		int matches = 0;
+		for (ArrayList<Integer> t : tuples) {
+			boolean all = true;
+			for (Predicate p : preds)
+				all &= new IntField(t.get(p.getField())).compare(p.getOp(), p.getOperand());
+			if (all)
+				matches++;
+		}
+		return (double) matches / tuples.size();
+	}
+
+	/**
+	 * Conjunctions over a column group are estimated from its joint
+	 * statistics, not as if the predicates were independent.
+	 */
+	@Test public void columnGroupTest() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = correlatedTable(tuples);
+		List<Predicate> equal = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(7)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(703)));
+		List<Predicate> range = Arrays.asList(
+				new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+				new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1000)));
+		double actualEqual = fraction(tuples, equal), actualRange = fraction(tuples, range);
+
+		// independent estimates miss by the selectivity of the city
+		TableStats independent = new TableStats(hf.getId(), IO_COST);
+		Assert.assertTrue(independent.estimateSelectivity(equal) < actualEqual / 20);
+		Assert.assertTrue(independent.estimateSelectivity(range) < actualRange / 5);
+		Assert.assertEquals(20000, independent.numDistinctCombinations(0, 1));
+
+		Database.getCatalog().addColumnGroup(hf.getId(), "c0", "c1");
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(actualEqual, s.estimateSelectivity(equal), actualEqual * 0.3);
+		Assert.assertEquals(actualRange, s.estimateSelectivity(range), 0.02);
+		Assert.assertEquals(500, s.numDistinctCombinations(1, 0), 25);
+		// a predicate outside the group multiplies in
+		ArrayList<Predicate> three = new ArrayList<Predicate>(range);
+		three.add(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(3)));
+		Assert.assertEquals(s.estimateSelectivity(range) * s.estimateSelectivity(0,
+				Predicate.Op.NOT_EQUALS, new IntField(3)), s.estimateSelectivity(three),
+				actualRange * 0.15);
+		// a combination that does not occur is no more likely than its rarest value
+		List<Predicate> rare = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(7)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(9999)));
+		Assert.assertEquals(0.0, s.estimateSelectivity(rare), 0.0001);
+
+		// the joint statistics are saved; statistics saved before the group
+		// was declared are stale
+		File file = File.createTempFile("table", ".stats");
+		file.deleteOnExit();
+		String name = Database.getCatalog().getTableName(hf.getId());
+		TableStats.setTableStats(name, s);
+		TableStats.saveStatistics(file);
+		TableStats.getStatsMap().clear();
+		Assert.assertEquals(1, TableStats.loadStatistics(file));
+		TableStats loaded = TableStats.getTableStats(name);
+		Assert.assertFalse(loaded.isStale());
+		Assert.assertEquals(s.estimateSelectivity(equal), loaded.estimateSelectivity(equal), 0);
+		Assert.assertEquals(s.estimateSelectivity(range), loaded.estimateSelectivity(range), 0);
+
+		TableStats.setTableStats(name, independent);
+		TableStats.saveStatistics(file);
+		TableStats.loadStatistics(file);
+		Assert.assertTrue(TableStats.getTableStats(name).isStale());
+	}
 }
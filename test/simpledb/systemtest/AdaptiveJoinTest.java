@@ -0,0 +1,157 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class AdaptiveJoinTest extends SimpleDbTestBase {
+    private static final String SQL = "SELECT * FROM aj_a, aj_b, aj_c, aj_d "
+            + "WHERE aj_a.c0 < 5 AND aj_a.c1 < 5 AND aj_a.c0 = aj_b.c0 "
+            + "AND aj_b.c1 = aj_c.c0 AND aj_c.c1 = aj_d.c0;";
+
+    private HashMap<String, TableStats> stats;
+
+    private static HeapFile table(String name, ArrayList<ArrayList<Integer>> tuples)
+            throws IOException {
+        File file = File.createTempFile(name, ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        HeapFile f = Utility.openHeapFile(2, "c", file);
+        Database.getCatalog().addTable(f, name);
+        return f;
+    }
+
+    /**
+     * The two filters on aj_a are perfectly correlated, so that its tuples,
+     * and those of its join with aj_b, are underestimated twenty fold.
+     */
+    @Before public void createTables() throws IOException {
+        Random rand = new Random(49);
+        int[] rows = { 5000, 2000, 400, 300 };
+        String[] names = { "aj_a", "aj_b", "aj_c", "aj_d" };
+        stats = new HashMap<String, TableStats>();
+        for (int t = 0; t < names.length; t++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < rows[t]; i++) {
+                int c0, c1;
+                if (t == 0) {
+                    c0 = c1 = i % 100;
+                } else if (t == 1) {
+                    c0 = i % 100;
+                    c1 = i % 400;
+                } else {
+                    c0 = i;
+                    c1 = rand.nextInt(300);
+                }
+                tuples.add(new ArrayList<Integer>(Arrays.asList(c0, c1)));
+            }
+            HeapFile f = table(names[t], tuples);
+            stats.put(names[t], new TableStats(f.getId(), 1));
+        }
+    }
+
+    private static List<ArrayList<Integer>> run(OpIterator plan)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        plan.open();
+        while (plan.hasNext())
+            out.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        Collections.sort(out, (a, b) -> a.toString().compareTo(b.toString()));
+        return out;
+    }
+
+    private static AdaptiveJoin find(OpIterator o) {
+        if (o instanceof AdaptiveJoin)
+            return (AdaptiveJoin) o;
+        if (o instanceof Operator) {
+            for (OpIterator child : ((Operator) o).getChildren()) {
+                AdaptiveJoin j = find(child);
+                if (j != null)
+                    return j;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A join input that has far more tuples than estimated makes the rest of
+     * the joins be re-planned, and the query still returns the tuples of the
+     * static plan, with its fields in the same order.
+     */
+    @Test public void testReplan() throws Exception {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, SQL);
+        lp.setReplanFactor(0);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertNull(find(plan));
+        List<ArrayList<Integer>> expected = run(plan);
+        assertEquals(5000, expected.size());
+
+        lp = new Parser().generateLogicalPlan(tid, SQL);
+        plan = lp.physicalPlan(tid, stats, false);
+        AdaptiveJoin j = find(plan);
+        assertNotNull(j);
+        assertEquals(expected, run(plan));
+        assertTrue(j.getReplanCount() > 0);
+        assertEquals(3, j.getExecutedOrder().size());
+        assertEquals(5000, j.getActualCardinality());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OperatorCardinality.printCardinalities(plan, new PrintStream(bytes));
+        assertTrue(bytes.toString().contains("AdaptiveJoin est:"));
+        assertTrue(bytes.toString().contains("actual:250"));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The selectivity the filters had is recorded in the statistics of the
+     * table and estimated for the same filters from then on.
+     */
+    @Test public void testFeedback() throws Exception {
+        TableStats s = stats.get("aj_a");
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5)));
+        assertTrue(s.estimateSelectivity(preds) < 0.01);
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, SQL);
+        run(lp.physicalPlan(tid, stats, false));
+        lp.recordFeedback();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0.05, s.estimateSelectivity(preds), 1e-9);
+
+        // with the corrected estimate the optimizer's order holds
+        tid = new TransactionId();
+        lp = new Parser().generateLogicalPlan(tid, SQL);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(5000, run(plan).size());
+        assertEquals(0, find(plan).getReplanCount());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFactor() {
+        new LogicalPlan().setReplanFactor(0.5);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(AdaptiveJoinTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int DOP = 4;
+
+    /** Splits the scan of f into DOP page ranges. */
+    private static OpIterator[] partitions(TransactionId tid, HeapFile f) {
+        OpIterator[] parts = new OpIterator[DOP];
+        int n = f.numPages();
+        for (int i = 0; i < DOP; i++)
+            parts[i] = new SeqScan(tid, f.getId(), "", n * i / DOP, n * (i + 1) / DOP);
+        return parts;
+    }
+
+    private static ArrayList<ArrayList<Integer>> join(ArrayList<ArrayList<Integer>> t1Tuples,
+            ArrayList<ArrayList<Integer>> t2Tuples) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test public void testGather() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+        TransactionId tid = new TransactionId();
+        Exchange gather = Exchange.gather(partitions(tid, f));
+        SystemTestUtil.matchTuples(gather, tuples);
+
+        // rewinding a gather restarts its producers
+        gather.open();
+        for (int i = 0; i < 1000; i++)
+            gather.next();
+        gather.rewind();
+        int count = 0;
+        while (gather.hasNext()) {
+            gather.next();
+            count++;
+        }
+        gather.close();
+        assertEquals(tuples.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A partitioned join runs the unchanged join operators in parallel. */
+    @Test public void testRepartitionJoin() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        Exchange[] in1 = Exchange.repartition(partitions(tid, t1), 0, DOP);
+        Exchange[] in2 = Exchange.repartition(partitions(tid, t2), 0, DOP);
+        OpIterator[] joins = new OpIterator[DOP];
+        for (int i = 0; i < DOP; i++) {
+            // alternate join implementations; Join rewinds its inner input
+            joins[i] = i % 2 == 0 ? new HashEquiJoin(p, in1[i], in2[i]) : new Join(p, in1[i], in2[i]);
+        }
+        SystemTestUtil.matchTuples(Exchange.gather(joins), join(t1Tuples, t2Tuples));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An output that is not read while another one is spills what does not
+     * fit into its queue, and replays its tuples from disk when rewound.
+     */
+    @Test public void testRepartitionSpill() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, null, tuples);
+        TransactionId tid = new TransactionId();
+        Exchange[] out = Exchange.repartition(partitions(tid, f), 0, 2);
+        out[0].open();
+        out[1].open();
+        ArrayList<ArrayList<Integer>> seen = new ArrayList<ArrayList<Integer>>();
+        while (out[1].hasNext())
+            seen.add(SystemTestUtil.tupleToList(out[1].next()));
+        assertTrue(out[0].spilledTuples() > 0);
+
+        for (int i = 0; i < 1000; i++)
+            out[0].next();
+        out[0].rewind();
+        while (out[0].hasNext())
+            seen.add(SystemTestUtil.tupleToList(out[0].next()));
+        out[0].close();
+        out[1].close();
+        Comparator<ArrayList<Integer>> order = (a, b) -> a.toString().compareTo(b.toString());
+        Collections.sort(seen, order);
+        Collections.sort(tuples, order);
+        assertEquals(tuples, seen);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testBroadcast() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, 100, 500, null, t2Tuples);
+
+        // broadcast the small table to every partition of the large one
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        OpIterator[] parts1 = partitions(tid, t1);
+        Exchange[] small = Exchange.broadcast(new OpIterator[]{new SeqScan(tid, t2.getId(), "")}, DOP);
+        OpIterator[] joins = new OpIterator[DOP];
+        for (int i = 0; i < DOP; i++)
+            joins[i] = new HashEquiJoin(p, parts1[i], small[i]);
+        SystemTestUtil.matchTuples(Exchange.gather(joins), join(t1Tuples, t2Tuples));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** physicalPlan inserts exchanges above the parallel threshold. */
+    @Test public void testPhysicalPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, t1Tuples, "field");
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, t2Tuples, "field");
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(t1.getId()), new TableStats(t1.getId(), 1));
+        stats.put(Database.getCatalog().getTableName(t2.getId()), new TableStats(t2.getId(), 1));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(t1.getId(), "a");
+        lp.addScan(t2.getId(), "b");
+        lp.addJoin("a.field0", "b.field0", Predicate.Op.EQUALS);
+        lp.addProjectField("null.*", null);
+        lp.setDegreeOfParallelism(DOP);
+        lp.setParallelThreshold(-1);
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Operator join = (Operator) ((Operator) plan).getChildren()[0];
+        assertTrue(join instanceof Exchange);
+        assertEquals(Exchange.Kind.GATHER, ((Exchange) join).getKind());
+        SystemTestUtil.matchTuples(plan, join(t1Tuples, t2Tuples));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    @After public void resetBudget() {
+        OrderBy.resetDefaultMaxTuples();
+    }
+
+    /** The expected output: the input, stably sorted on the given column. */
+    private static List<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples,
+            final int field, final boolean asc) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(out, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(field).compareTo(b.get(field));
+                return asc ? c : -c;
+            }
+        });
+        return out;
+    }
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        return out;
+    }
+
+    /**
+     * Sorts a table in and out of memory, and checks the output is the table
+     * in sorted order, duplicates in the order of the table.
+     */
+    private void validateSort(int rows, int maxValue, int maxTuples, boolean asc, boolean spills)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples);
+        TransactionId tid = new TransactionId();
+        OrderBy ob = new OrderBy(0, asc, new SeqScan(tid, f.getId(), ""));
+        ob.setMaxTuples(maxTuples);
+        ob.open();
+        assertEquals(spills, ob.numRuns() > 0);
+        assertEquals(sorted(tuples, 0, asc), drain(ob));
+        ob.rewind();
+        assertEquals(sorted(tuples, 0, asc), drain(ob));
+        ob.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInMemory() throws IOException, DbException, TransactionAbortedException {
+        validateSort(1000, 100, 1000, true, false);
+        validateSort(1000, 100, 5000, false, false);
+    }
+
+    @Test public void testAscending() throws IOException, DbException, TransactionAbortedException {
+        validateSort(10000, 500, 1000, true, true);
+    }
+
+    @Test public void testDescending() throws IOException, DbException, TransactionAbortedException {
+        validateSort(10001, 500, 1000, false, true);
+    }
+
+    @Test public void testEmpty() throws IOException, DbException, TransactionAbortedException {
+        validateSort(0, 10, 1, true, false);
+    }
+
+    /** More runs than can be merged at once need intermediate merge passes. */
+    @Test public void testMultiPass() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        ExternalSort sort = new ExternalSort(new NormalizedKey(f.getTupleDesc(),
+                new int[] { 1 }, new boolean[] { true }), f.getTupleDesc(), 600);
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            sort.add(scan.next());
+        scan.close();
+        // the last 200 tuples are still in memory
+        assertEquals(33, sort.numRuns());
+        DbFileIterator it = sort.iterator();
+        // 600 tuples fill about one page, so merging needs passes of two runs
+        assertTrue(sort.mergePasses() > 1);
+        assertTrue(sort.numRuns() <= 2);
+        it.open();
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        assertEquals(sorted(tuples, 1, true), out);
+        sort.release();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The runs of a sort are deleted when it is closed. */
+    @Test public void testRunsDeleted() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 100, null, null);
+        TransactionId tid = new TransactionId();
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        int before = countSpillFiles(tmp);
+        OrderBy.setDefaultMaxTuples(500);
+        OrderBy ob = new OrderBy(1, true, new SeqScan(tid, f.getId(), ""));
+        assertEquals(500, ob.getMaxTuples());
+        ob.open();
+        assertTrue(ob.numRuns() > 0);
+        assertEquals(5000, drain(ob).size());
+        ob.close();
+        assertEquals(before, countSpillFiles(tmp));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int countSpillFiles(File dir) {
+        String[] names = dir.list();
+        int n = 0;
+        for (String name : names) {
+            if (name.startsWith("simpledb-spill"))
+                n++;
+        }
+        return n;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class HashJoinSpillTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /**
+     * Joins two random tables with a HashEquiJoin that may keep at most
+     * maxBuildTuples build tuples in memory, and checks the result against a
+     * nested loops join computed in the test.
+     *
+     * @return the number of tuples the top level of the join spilled
+     */
+    private long validateJoin(int rows1, int max1, int rows2, int max2, int maxBuildTuples)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows1, max1, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows2, max2, null, t2Tuples);
+
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> index =
+                new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t2 : t2Tuples) {
+            if (!index.containsKey(t2.get(0)))
+                index.put(t2.get(0), new ArrayList<ArrayList<Integer>>());
+            index.get(t2.get(0)).add(t2);
+        }
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            if (!index.containsKey(t1.get(0)))
+                continue;
+            for (ArrayList<Integer> t2 : index.get(t1.get(0))) {
+                ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                out.addAll(t2);
+                expectedResults.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, ss2);
+        joinOp.setMaxBuildTuples(maxBuildTuples);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        // once more after a rewind
+        joinOp.open();
+        joinOp.rewind();
+        int n = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            n++;
+        }
+        assertEquals(expectedResults.size(), n);
+        long spilled = joinOp.spilledTuples();
+
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return spilled;
+    }
+
+    @Test public void testInMemory()
+            throws IOException, DbException, TransactionAbortedException {
+        assertEquals(0, validateJoin(2000, 500, 2000, 500, 5000));
+    }
+
+    @Test public void testSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        assertTrue(validateJoin(5000, 4000, 3000, 4000, 1000) > 0);
+    }
+
+    /** Partitions that still do not fit are partitioned again. */
+    @Test public void testRecursiveSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        assertTrue(validateJoin(5000, 100000, 5000, 100000, 20) > 0);
+    }
+
+    /** A few heavy keys cannot be partitioned, and are joined in chunks. */
+    @Test public void testSkew()
+            throws IOException, DbException, TransactionAbortedException {
+        assertTrue(validateJoin(300, 2, 60, 2, 50) > 0);
+    }
+
+    /** Spill files are removed from the catalog when the join is closed. */
+    @Test public void testRelease()
+            throws IOException, DbException, TransactionAbortedException {
+        int tables = 0;
+        java.util.Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        for (; it.hasNext(); it.next())
+            tables++;
+        validateJoin(3000, 1000, 3000, 1000, 100);
+        int after = -2; // the two tables created by validateJoin
+        for (it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next())
+            after++;
+        assertEquals(tables, after);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashJoinSpillTest.class);
+    }
+}
@@ -0,0 +1,223 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /** Counts the pages read from disk. */
+    static class InstrumentedBTreeFile extends BTreeFile {
+        public int readCount = 0;
+
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Creates a random B+ tree keyed on field 0 whose fields are named c0,
+     * c1, ..., and registers it under a fresh name.
+     */
+    private static InstrumentedBTreeFile createInnerTable(int rows, int maxValue,
+            ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(COLUMNS, rows, maxValue, null, tuples, 0);
+        // the same file, and thus the same table id, with named fields
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0,
+                Utility.getTupleDesc(COLUMNS, "c"));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /**
+     * Joins a random heap file with a random B+ tree through its index, and
+     * checks the result against a nested loops join computed in the test.
+     */
+    private void validateJoin(int rows1, int rows2, int maxValue, Predicate.Op op)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows1, maxValue, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = createInnerTable(rows2, maxValue, t2Tuples);
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (new IntField(t1.get(1)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, op, 0);
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(p,
+                new SeqScan(tid, table1.getId(), ""), tid, table2.getId(), "t");
+        assertEquals("t.c0", joinOp.getJoinField2Name());
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        // once more after a rewind
+        joinOp.open();
+        while (joinOp.hasNext())
+            joinOp.next();
+        joinOp.rewind();
+        int n = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            n++;
+        }
+        assertEquals(expectedResults.size(), n);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testEquals()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(500, 2000, 1000, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testEqualsManyDuplicates()
+            throws IOException, DbException, TransactionAbortedException {
+        // runs of equal keys span several leaf pages
+        validateJoin(50, 3000, 3, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testEqualsNoMatch()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(10, 0, 10, Predicate.Op.EQUALS);
+        validateJoin(0, 10, 10, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testInequalities()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(60, 50, 20, Predicate.Op.LESS_THAN);
+        validateJoin(60, 50, 20, Predicate.Op.LESS_THAN_OR_EQ);
+        validateJoin(60, 50, 20, Predicate.Op.GREATER_THAN);
+        validateJoin(60, 50, 20, Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotKeyField() throws Exception {
+        BTreeFile table2 = createInnerTable(10, 10, null);
+        OpIterator scan = new TupleIterator(Utility.getTupleDesc(1), new ArrayList<Tuple>());
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1), scan,
+                new TransactionId(), table2.getId(), "t");
+    }
+
+    /** A few lookups read a few pages, not the whole inner table. */
+    @Test public void testReadsFewPages() throws Exception {
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedBTreeFile table2 = createInnerTable(60000, 1000000, t2Tuples);
+        ArrayList<Tuple> outer = new ArrayList<Tuple>();
+        for (int i = 0; i < 5; i++)
+            outer.add(Utility.getHeapTuple(t2Tuples.get(i * 10000).get(0)));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(Utility.getTupleDesc(1), outer), tid, table2.getId(), "t");
+        joinOp.open();
+        int n = 0;
+        while (joinOp.hasNext()) {
+            Tuple t = joinOp.next();
+            assertEquals(t.getField(0), t.getField(1));
+            n++;
+        }
+        joinOp.close();
+        assertTrue(n >= 5);
+        assertEquals(5, joinOp.probes());
+        // the root pointer, and at most a root-to-leaf path and one more
+        // leaf per lookup
+        int maxReads = 1 + 5 * (table2.estimateHeight() + 1);
+        assertTrue(table2.readCount <= maxReads);
+        assertTrue(table2.readCount < table2.numPages() / 4);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The optimizer instantiates an index join for nodes it marked, and keeps
+     * filters on the inner table.
+     */
+    @Test public void testInstantiateJoin() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 10, null, null, "c");
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = createInnerTable(100, 10, t2Tuples);
+        TransactionId tid = new TransactionId();
+        OpIterator s1 = new SeqScan(tid, table1.getId(), "a");
+        OpIterator s2 = new SeqScan(tid, table2.getId(), "b");
+
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, s1, s2) instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj.withIndexJoin(), s1, s2)
+                instanceof IndexNestedLoopJoin);
+        // the index is not on b.c1
+        lj = new LogicalJoinNode("a", "b", "c0", "c1", Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(lj.withIndexJoin(), s1, s2)
+                instanceof HashEquiJoin);
+
+        // b.c1 < 5 is evaluated over the output of the join
+        Predicate pred = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5));
+        lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        OpIterator j = JoinOptimizer.instantiateJoin(lj.withIndexJoin(), s1, new Filter(pred, s2));
+        assertTrue(j instanceof Filter);
+        assertTrue(((Filter) j).getChildren()[0] instanceof IndexNestedLoopJoin);
+        OpIterator expected = JoinOptimizer.instantiateJoin(lj, s1, new Filter(pred, s2));
+        ArrayList<ArrayList<Integer>> expectedTuples = new ArrayList<ArrayList<Integer>>();
+        expected.open();
+        while (expected.hasNext())
+            expectedTuples.add(SystemTestUtil.tupleToList(expected.next()));
+        expected.close();
+        SystemTestUtil.matchTuples(j, expectedTuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Index lookups win for a small outer input and lose for a large one. */
+    @Test public void testEstimateCost() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 1000000, null, null, "c");
+        BTreeFile table2 = createInnerTable(20000, 1000000, null);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table1.getId(), "a");
+        lp.addScan(table2.getId(), "b");
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        double cost1 = table1.numPages() * 1000;
+        double cost2 = table2.numPages() * 1000;
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table2.getId()),
+                new TableStats(table2.getId(), 1000));
+
+        assertTrue(jo.estimateIndexJoinCost(lj, 10, 20000, 10, cost2, stats)
+                < jo.estimateJoinCost(lj, 10, 20000, 10, cost2));
+        assertTrue(jo.estimateIndexJoinCost(lj, 20000, 20000, cost1, cost2, stats)
+                > jo.estimateJoinCost(lj, 20000, 20000, cost1, cost2));
+        // the heap file has no index to look up
+        assertEquals(Double.POSITIVE_INFINITY,
+                jo.estimateIndexJoinCost(lj.swapInnerOuter(), 10, 20000, 10, cost1, stats), 0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
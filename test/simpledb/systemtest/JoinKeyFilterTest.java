@@ -0,0 +1,174 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class JoinKeyFilterTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /** Every key added passes; few others in range do. */
+    @Test public void testFalsePositives() {
+        Random rand = new Random(17);
+        JoinKeyFilter f = new JoinKeyFilter();
+        HashSet<Integer> keys = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            int k = rand.nextInt(1000000);
+            keys.add(k);
+            f.add(new IntField(k));
+        }
+        f.finish();
+        for (int k : keys)
+            assertTrue(f.mightContain(new IntField(k)));
+        assertEquals(0, f.eliminated());
+
+        int positives = 0, tested = 0;
+        for (int k = 0; k < 1000000; k += 97) {
+            if (keys.contains(k))
+                continue;
+            tested++;
+            if (f.mightContain(new IntField(k)))
+                positives++;
+        }
+        assertTrue(positives < tested / 20);
+        assertEquals(keys.size() + tested, f.tested());
+    }
+
+    @Test public void testRangeAndStrings() {
+        JoinKeyFilter f = new JoinKeyFilter();
+        assertFalse(f.mightContain(new StringField("a", Type.STRING_LEN)));
+        f.add(new StringField("dog", Type.STRING_LEN));
+        f.add(new StringField("cat", Type.STRING_LEN));
+        f.finish();
+        assertTrue(f.mightContain(new StringField("cat", Type.STRING_LEN)));
+        assertTrue(f.mightContain(new StringField("dog", Type.STRING_LEN)));
+        assertFalse(f.mightContain(new StringField("ant", Type.STRING_LEN)));
+        assertFalse(f.mightContain(new StringField("emu", Type.STRING_LEN)));
+        assertEquals(3, f.eliminatedByRange());
+    }
+
+    private static ArrayList<ArrayList<Integer>> collect(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return out;
+    }
+
+    /**
+     * A small build side eliminates most of a filtered probe side inside its
+     * scan, and the join returns the same tuples as without filtering.
+     */
+    @Test public void testPushDown() throws IOException, DbException, TransactionAbortedException {
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(COLUMNS, 50, 20000, null, null);
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 20000, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(100));
+
+        HashEquiJoin plain = new HashEquiJoin(p, new SeqScan(tid, dim.getId(), ""),
+                new Filter(pred, new SeqScan(tid, fact.getId(), "")));
+        plain.setKeyFilterEnabled(false);
+        ArrayList<ArrayList<Integer>> expected = collect(plain);
+        assertNull(plain.getKeyFilter());
+
+        SeqScan factScan = new SeqScan(tid, fact.getId(), "");
+        HashEquiJoin filtered = new HashEquiJoin(p, new SeqScan(tid, dim.getId(), ""),
+                new Filter(pred, factScan));
+        SystemTestUtil.matchTuples(filtered, expected);
+        filtered.open();
+        assertTrue(filtered.isKeyFilterPushedDown());
+        JoinKeyFilter f = filtered.getKeyFilter();
+        while (filtered.hasNext())
+            filtered.next();
+        assertEquals(20000, f.tested());
+        assertTrue(f.eliminated() > 19000);
+        assertTrue(f.eliminatedByBloom() > 0);
+        // rewinding builds a new filter
+        filtered.rewind();
+        assertNotSame(f, filtered.getKeyFilter());
+        int n = 0;
+        while (filtered.hasNext()) {
+            filtered.next();
+            n++;
+        }
+        assertEquals(expected.size(), n);
+        filtered.close();
+
+        // the scan is no longer filtered once the join is closed
+        assertEquals(20000, collect(factScan).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Probe tuples that come from another join are tested by the join. */
+    @Test public void testNotPushedDown() throws IOException, DbException, TransactionAbortedException {
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, 5000, null, null);
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 5000, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+
+        OpIterator probe = new OrderBy(0, true, new SeqScan(tid, fact.getId(), ""));
+        HashEquiJoin plain = new HashEquiJoin(p, new SeqScan(tid, dim.getId(), ""), probe);
+        plain.setKeyFilterEnabled(false);
+        ArrayList<ArrayList<Integer>> expected = collect(plain);
+
+        HashEquiJoin filtered = new HashEquiJoin(p, new SeqScan(tid, dim.getId(), ""), probe);
+        SystemTestUtil.matchTuples(filtered, expected);
+        assertFalse(filtered.isKeyFilterPushedDown());
+        assertEquals(5000, filtered.getKeyFilter().tested());
+        assertTrue(filtered.getKeyFilter().eliminated() > 4500);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Probe tuples that are eliminated are not written to spill files. */
+    @Test public void testFewerSpilledTuples() throws IOException, DbException, TransactionAbortedException {
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 100000, null, null);
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(COLUMNS, 10000, 100000, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        long[] spilled = new long[2];
+        ArrayList<ArrayList<ArrayList<Integer>>> results = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (int i = 0; i < 2; i++) {
+            HashEquiJoin j = new HashEquiJoin(p, new SeqScan(tid, dim.getId(), ""),
+                    new SeqScan(tid, fact.getId(), ""));
+            j.setMaxBuildTuples(20);
+            j.setKeyFilterEnabled(i == 1);
+            j.open();
+            ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+            while (j.hasNext())
+                result.add(SystemTestUtil.tupleToList(j.next()));
+            spilled[i] = j.spilledTuples();
+            j.close();
+            results.add(result);
+        }
+        SystemTestUtil.matchTuples(new TupleIterator(Utility.getTupleDesc(2 * COLUMNS),
+                toTuples(results.get(1))), results.get(0));
+        assertTrue(spilled[1] < spilled[0] / 2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static ArrayList<Tuple> toTuples(ArrayList<ArrayList<Integer>> lists) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (ArrayList<Integer> l : lists) {
+            int[] values = new int[l.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = l.get(i);
+            tuples.add(Utility.getHeapTuple(values));
+        }
+        return tuples;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(JoinKeyFilterTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class JoinOrderTest extends SimpleDbTestBase {
+    private static final String[] TABLES = { "jo_a", "jo_b", "jo_c", "jo_d", "jo_e" };
+    private static final int[] ROWS = { 40, 400, 300, 30, 200 };
+
+    @After public void resetSearchLimits() {
+        JoinOptimizer.resetDefaultSearchLimits();
+    }
+
+    /** @return the number of tuples matching all joins of the query below */
+    private static int count(List<ArrayList<ArrayList<Integer>>> t) {
+        int n = 0;
+        for (ArrayList<Integer> a : t.get(0))
+            for (ArrayList<Integer> b : t.get(1))
+                if (a.get(0).equals(b.get(0)))
+                    for (ArrayList<Integer> c : t.get(2))
+                        if (b.get(1).equals(c.get(1)))
+                            for (ArrayList<Integer> d : t.get(3))
+                                if (c.get(0).equals(d.get(0)))
+                                    for (ArrayList<Integer> e : t.get(4))
+                                        if (e.get(0) < d.get(1))
+                                            n++;
+        return n;
+    }
+
+    /**
+     * The plans of the bushy, left-deep and greedy join order searches are
+     * executed and give the same results.
+     */
+    @Test public void testStrategies() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        List<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (int i = 0; i < TABLES.length; i++) {
+            ArrayList<ArrayList<Integer>> t = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS[i], 40, null, t, "c");
+            Database.getCatalog().addTable(f, TABLES[i]);
+            stats.put(TABLES[i], new TableStats(f.getId(), 1));
+            tuples.add(t);
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(count(tuples));
+        expected.add(row);
+
+        String sql = "SELECT COUNT(*) FROM jo_a, jo_b, jo_c, jo_d, jo_e WHERE jo_a.c0 = jo_b.c0 "
+                + "AND jo_b.c1 = jo_c.c1 AND jo_c.c0 = jo_d.c0 AND jo_e.c0 < jo_d.c1;";
+        for (int strategy = 0; strategy < 3; strategy++) {
+            JoinOptimizer.resetDefaultSearchLimits();
+            if (strategy >= 1)
+                JoinOptimizer.setDefaultMaxBushyJoins(0);
+            if (strategy >= 2)
+                JoinOptimizer.setDefaultMaxDpJoins(0);
+            TransactionId tid = new TransactionId();
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+            SystemTestUtil.matchTuples(lp.physicalPlan(tid, stats, false), expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(JoinOrderTest.class);
+    }
+}
@@ -13,6 +13,13 @@ public class JoinTest extends SimpleDbTestBase {
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
             throws IOException, DbException, TransactionAbortedException {
+        validateJoin(table1ColumnValue, table1Rows, table2ColumnValue, table2Rows,
+                Predicate.Op.EQUALS, Join.DEFAULT_BLOCK_PAGES);
+    }
+
+    public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
+            int table2Rows, Predicate.Op op, int blockPages)
+            throws IOException, DbException, TransactionAbortedException {
         // Create the two tables
         HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
         columnSpecification.put(0, table1ColumnValue);
@@ -32,7 +39,7 @@ public class JoinTest extends SimpleDbTestBase {
         for (ArrayList<Integer> t1 : t1Tuples) {
             for (ArrayList<Integer> t2 : t2Tuples) {
                 // If the columns match, join the tuples
-                if (t1.get(0).equals(t2.get(0))) {
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
                     ArrayList<Integer> out = new ArrayList<Integer>(t1);
                     out.addAll(t2);
                     expectedResults.add(out);
@@ -44,8 +51,9 @@ public class JoinTest extends SimpleDbTestBase {
         TransactionId tid = new TransactionId();
         SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
         SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
-        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        JoinPredicate p = new JoinPredicate(0, op, 0);
         Join joinOp = new Join(p, ss1, ss2);
+        joinOp.setBlockPages(blockPages);
 
         // test the join results
         SystemTestUtil.matchTuples(joinOp, expectedResults);
@@ -69,6 +77,18 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /** The outer relation spans several blocks of one page each. */
+    @Test public void testMultipleBlocks()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 1200, 1, 3, Predicate.Op.EQUALS, 1);
+    }
+
+    @Test public void testInequalityMultipleBlocks()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(5, 1200, 3, 4, Predicate.Op.GREATER_THAN, 1);
+        validateJoin(3, 1200, 5, 4, Predicate.Op.GREATER_THAN, 1);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
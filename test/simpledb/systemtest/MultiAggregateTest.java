@@ -0,0 +1,126 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class MultiAggregateTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    /**
+     * The expected rows of SUM(c1), COUNT(c1), MAX(c2) grouped by c0, each
+     * prefixed by the group if grouped is true.
+     */
+    private static ArrayList<ArrayList<Integer>> expected(ArrayList<ArrayList<Integer>> tuples,
+            boolean grouped) {
+        HashMap<Integer, int[]> groups = new HashMap<Integer, int[]>();
+        for (ArrayList<Integer> t : tuples) {
+            int g = grouped ? t.get(0) : 0;
+            int[] acc = groups.get(g);
+            if (acc == null) {
+                acc = new int[] { 0, 0, Integer.MIN_VALUE };
+                groups.put(g, acc);
+            }
+            acc[0] += t.get(1);
+            acc[1]++;
+            acc[2] = Math.max(acc[2], t.get(2));
+        }
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (Integer g : groups.keySet()) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            if (grouped)
+                row.add(g);
+            for (int v : groups.get(g))
+                row.add(v);
+            out.add(row);
+        }
+        return out;
+    }
+
+    private static final int[] AFIELDS = { 1, 1, 2 };
+    private static final Aggregator.Op[] OPS = {
+            Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX };
+
+    /** Several aggregates over one grouping, in memory and spilled. */
+    @Test public void testGrouped() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 500, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (int maxGroups : new int[] { 1 << 20, 40 }) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), AFIELDS,
+                    new int[] { 0 }, OPS);
+            agg.setMaxGroups(maxGroups);
+            TupleDesc td = agg.getTupleDesc();
+            assertEquals(4, td.numFields());
+            assertEquals(Aggregator.Op.SUM, agg.aggregateOp());
+            assertArrayEquals(AFIELDS, agg.aggregateFields());
+            assertEquals(td.getFieldName(1), agg.aggregateFieldName());
+            SystemTestUtil.matchTuples(agg, expected(tuples, true));
+            agg.open();
+            assertEquals(maxGroups == 40, agg.hasSpilled());
+            agg.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Several aggregates without grouping give a single row. */
+    @Test public void testUngrouped() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+        Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), AFIELDS, new int[0], OPS);
+        assertEquals(3, agg.getTupleDesc().numFields());
+        SystemTestUtil.matchTuples(agg, expected(tuples, false));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedOps() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        new Aggregate(new SeqScan(new TransactionId(), f.getId(), ""), new int[] { 1, 2 },
+                new int[0], new Aggregator.Op[] { Aggregator.Op.SUM });
+    }
+
+    /** Several aggregates in the SELECT list are planned as one Aggregate. */
+    @Test public void testParser() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 50, null, tuples, "c");
+        Database.getCatalog().addTable(f, "multiagg_test");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("multiagg_test", new TableStats(f.getId(), 1));
+        TransactionId tid = new TransactionId();
+
+        // the projection repeats SUM and puts the group last
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : expected(tuples, true)) {
+            ArrayList<Integer> r = new ArrayList<Integer>();
+            r.add(row.get(1));
+            r.add(row.get(2));
+            r.add(row.get(3));
+            r.add(row.get(1));
+            r.add(row.get(0));
+            expected.add(r);
+        }
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT SUM(t.c1), COUNT(*), MAX(t.c2), SUM(t.c1), t.c0 FROM multiagg_test t "
+                        + "GROUP BY t.c0;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        // a single aggregate computes all three distinct expressions
+        OpIterator agg = ((Operator) plan).getChildren()[0];
+        assertTrue(agg instanceof Aggregate);
+        assertEquals(3, ((Aggregate) agg).aggregateOps().length);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MultiAggregateTest.class);
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class MultiKeyTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    @After public void resetBudget() {
+        OrderBy.resetDefaultMaxTuples();
+    }
+
+    /** The tuples, stably sorted on column 0 ascending, then column 1 descending. */
+    private static ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(out, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return c != 0 ? c : b.get(1).compareTo(a.get(1));
+            }
+        });
+        return out;
+    }
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return out;
+    }
+
+    @Test public void testOrderBy() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 6000, 20, null, tuples);
+        TransactionId tid = new TransactionId();
+        int[] fields = { 0, 1 };
+        boolean[] asc = { true, false };
+        for (int budget : new int[] { 10000, 700 }) {
+            OrderBy ob = new OrderBy(fields, asc, new SeqScan(tid, f.getId(), ""));
+            ob.setMaxTuples(budget);
+            assertEquals(sorted(tuples), drain(ob));
+        }
+        TopN top = new TopN(fields, asc, 100, 50, new SeqScan(tid, f.getId(), ""));
+        assertEquals(sorted(tuples).subList(50, 150), drain(top));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Groups on two columns, in memory and spilled. */
+    @Test public void testGroupBy() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 30, null, tuples);
+        HashMap<List<Integer>, Integer> sums = new HashMap<List<Integer>, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            List<Integer> g = t.subList(1, 3);
+            Integer sum = sums.get(g);
+            sums.put(g, (sum == null ? 0 : sum) + t.get(0));
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (List<Integer> g : sums.keySet()) {
+            ArrayList<Integer> row = new ArrayList<Integer>(g);
+            row.add(sums.get(g));
+            expected.add(row);
+        }
+
+        TransactionId tid = new TransactionId();
+        for (int maxGroups : new int[] { 1 << 20, 50 }) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), 0, new int[] { 1, 2 },
+                    Aggregator.Op.SUM);
+            agg.setMaxGroups(maxGroups);
+            assertEquals(3, agg.getTupleDesc().numFields());
+            assertEquals(1, agg.groupField());
+            SystemTestUtil.matchTuples(agg, expected);
+            agg.open();
+            assertEquals(maxGroups == 50, agg.hasSpilled());
+            agg.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Multi-column GROUP BY and ORDER BY are parsed and planned. */
+    @Test public void testParser() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 4, null, tuples, "c");
+        Database.getCatalog().addTable(f, "multikey_test");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("multikey_test", new TableStats(f.getId(), 1));
+        TransactionId tid = new TransactionId();
+
+        HashMap<List<Integer>, Integer> counts = new HashMap<List<Integer>, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            List<Integer> g = t.subList(0, 2);
+            Integer n = counts.get(g);
+            counts.put(g, (n == null ? 0 : n) + 1);
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (List<Integer> g : counts.keySet()) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(counts.get(g));
+            row.addAll(g);
+            expected.add(row);
+        }
+        // the projection puts the count first
+        Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = b.get(1).compareTo(a.get(1));
+                return c != 0 ? c : a.get(2).compareTo(b.get(2));
+            }
+        });
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(t.c2), t.c0, t.c1 FROM multikey_test t GROUP BY t.c0, t.c1 "
+                        + "ORDER BY t.c0 DESC, t.c1;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(expected, drain(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MultiKeyTest.class);
+    }
+}
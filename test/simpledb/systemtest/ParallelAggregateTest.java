@@ -0,0 +1,150 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+    private final static int ROWS = 20000;
+    private final static int MAX_VALUE = 1000;
+    private final static int COLUMNS = 3;
+
+    private static ArrayList<ArrayList<Integer>> collect(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return out;
+    }
+
+    /** Checks the parallel aggregate against the serial one. */
+    private void validate(Aggregator.Op op, int groupColumn, Predicate filter)
+            throws IOException, DbException, TransactionAbortedException {
+        validate(op, groupColumn, filter, Aggregate.getDefaultMaxGroups());
+    }
+
+    /**
+     * Checks the parallel aggregate against the serial one when it may keep
+     * only maxGroups groups in memory; the parallel aggregate must spill if
+     * there are more groups.
+     */
+    private void validate(Aggregator.Op op, int groupColumn, Predicate filter, int maxGroups)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        OpIterator serialInput = new SeqScan(tid, table.getId(), "");
+        if (filter != null)
+            serialInput = new Filter(filter, serialInput);
+        ArrayList<ArrayList<Integer>> expected =
+                collect(new Aggregate(serialInput, 1, groupColumn, op));
+
+        for (int dop : new int[] {1, 3, 8}) {
+            ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "", dop);
+            scan.setMorselPages(1);
+            if (filter != null)
+                scan.addFilter(filter);
+            ParallelAggregate agg = new ParallelAggregate(scan, 1, groupColumn, op);
+            agg.setMaxGroups(maxGroups);
+            agg.open();
+            assertEquals(expected.size() > maxGroups, agg.hasSpilled());
+            agg.close();
+            SystemTestUtil.matchTuples(agg, expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSum() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.SUM, 0, null);
+    }
+
+    @Test public void testMin() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.MIN, 0, null);
+    }
+
+    @Test public void testMax() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.MAX, 0, null);
+    }
+
+    @Test public void testCount() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.COUNT, 0, null);
+    }
+
+    @Test public void testAverage() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.AVG, 0, null);
+    }
+
+    @Test public void testAverageNoGroup() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.AVG, Aggregator.NO_GROUPING, null);
+    }
+
+    @Test public void testCountDistinct() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.COUNT_DISTINCT, 0, null);
+    }
+
+    @Test public void testMedian() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.MEDIAN, 0, null);
+    }
+
+    @Test public void testFiltered() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.SUM, 2, new Predicate(0, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 3)));
+    }
+
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.SUM, 0, null, 50);
+    }
+
+    @Test public void testSpillAverage() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.AVG, 0, null, 1);
+    }
+
+    @Test public void testSpillCountDistinct() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.COUNT_DISTINCT, 2, null, 100);
+    }
+
+    /** physicalPlan fuses the scan and aggregate of a large table. */
+    @Test public void testPhysicalPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples, "c");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table.getId()), new TableStats(table.getId(), 1));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addAggregate("count", "t.c1", "t.c2");
+        lp.addProjectField("t.c2", null);
+        lp.addProjectField("t.c1", "count");
+        lp.setDegreeOfParallelism(4);
+        lp.setParallelThreshold(-1);
+
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            counts.put(t.get(2), counts.containsKey(t.get(2)) ? counts.get(t.get(2)) + 1 : 1);
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet())
+            expected.add(new ArrayList<Integer>(Arrays.asList(e.getKey(), e.getValue())));
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelAggregate);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+    /** Scans tables of several sizes with several degrees of parallelism. */
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        int[] rowSizes = new int[]{0, 1, 511, 512, 513, 10000};
+        int[] dops = new int[]{1, 2, 4, 7};
+        for (int rows : rowSizes) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+            for (int dop : dops) {
+                TransactionId tid = new TransactionId();
+                ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", dop);
+                scan.setMorselPages(2);
+                SystemTestUtil.matchTuples(scan, tuples);
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /** Pushed down filters and projections are evaluated by the workers. */
+    @Test public void testFilterAndProject() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 50 && t.get(1) >= 20) {
+                ArrayList<Integer> out = new ArrayList<Integer>();
+                out.add(t.get(2));
+                out.add(t.get(0));
+                expected.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", 4);
+        scan.setMorselPages(1);
+        scan.addFilter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)));
+        scan.addFilter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(20)));
+        ArrayList<Integer> proj = new ArrayList<Integer>();
+        proj.add(2);
+        proj.add(0);
+        scan.setProjection(proj);
+        assertEquals(2, scan.getTupleDesc().numFields());
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Rewinding, and closing before the scan is exhausted, both work. */
+    @Test public void testRewind() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", 3);
+        scan.setMorselPages(1);
+        scan.open();
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(scan.hasNext());
+            scan.next();
+        }
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        assertEquals(tuples.size(), count);
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
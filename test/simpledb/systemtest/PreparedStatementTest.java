@@ -0,0 +1,173 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+    private static final String SQL = "SELECT ps_a.c1, ps_b.c1 FROM ps_a, ps_b "
+            + "WHERE ps_a.c0 = ps_b.c0 AND ps_a.c1 < ? AND ps_b.c1 = ?;";
+
+    private ArrayList<ArrayList<Integer>> a, b;
+    private QueryPlanCache cache;
+
+    private HeapFile table(String name, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 20, null, tuples, "c");
+        Database.getCatalog().addTable(f, name);
+        TableStats.setTableStats(name, new TableStats(f.getId(), 1));
+        return f;
+    }
+
+    @Before public void createTables() throws Exception {
+        a = new ArrayList<ArrayList<Integer>>();
+        b = new ArrayList<ArrayList<Integer>>();
+        table("ps_a", a);
+        table("ps_b", b);
+        cache = Parser.getPlanCache();
+        cache.clear();
+    }
+
+    private ArrayList<ArrayList<Integer>> expected(int less, int equal) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> x : a) {
+            for (ArrayList<Integer> y : b) {
+                if (x.get(0).equals(y.get(0)) && x.get(1) < less && y.get(1) == equal) {
+                    ArrayList<Integer> t = new ArrayList<Integer>();
+                    t.add(x.get(1));
+                    t.add(y.get(1));
+                    out.add(t);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static void run(PreparedStatement ps, ArrayList<ArrayList<Integer>> expected)
+            throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = ps.executeQuery(tid);
+        SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testNormalize() {
+        assertEquals("select * from t where t.a = 'A  b'",
+                QueryPlanCache.normalize("  SELECT *\n FROM   t\tWHERE t.a = 'A  b' ;"));
+        assertEquals(QueryPlanCache.normalize("select T.x from T;"),
+                QueryPlanCache.normalize("Select T.x  From T"));
+        assertFalse(QueryPlanCache.normalize("select t.x from t").equals(
+                QueryPlanCache.normalize("select T.x from T")));
+    }
+
+    /**
+     * A prepared query runs with the values bound to it, and only its first
+     * run plans it.
+     */
+    @Test public void testParameters() throws Exception {
+        PreparedStatement ps = new Parser().prepare(SQL);
+        assertEquals(2, ps.getParameterCount());
+        ps.setInt(1, 10);
+        ps.setInt(2, 3);
+        run(ps, expected(10, 3));
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.size());
+
+        ps.setInt(1, 15);
+        ps.setInt(2, 7);
+        run(ps, expected(15, 7));
+        ps.setString(1, "5");
+        run(ps, expected(5, 7));
+        assertEquals(2, cache.hits());
+
+        // another statement with the same normalized text shares the plan
+        PreparedStatement other = new Parser().prepare(SQL.toLowerCase().replace(" ", "  "));
+        other.setInt(1, 20);
+        other.setInt(2, 0);
+        run(other, expected(20, 0));
+        assertEquals(3, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test public void testUnboundParameter() throws Exception {
+        PreparedStatement ps = new Parser().prepare(SQL);
+        ps.setInt(1, 10);
+        try {
+            ps.executeQuery(new TransactionId());
+            fail("expected ParsingException");
+        } catch (ParsingException e) {
+            // expected
+        }
+        ps.setString(2, "x");
+        try {
+            ps.executeQuery(new TransactionId());
+            fail("expected ParsingException");
+        } catch (ParsingException e) {
+            // expected
+        }
+        try {
+            ps.setInt(3, 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** New statistics, or a new table under the same name, drop the plan. */
+    @Test public void testInvalidation() throws Exception {
+        PreparedStatement ps = new Parser().prepare(SQL);
+        ps.setInt(1, 10);
+        ps.setInt(2, 3);
+        run(ps, expected(10, 3));
+        run(ps, expected(10, 3));
+        assertEquals(1, cache.hits());
+
+        TableStats.setTableStats("ps_b",
+                new TableStats(Database.getCatalog().getTableId("ps_b"), 1));
+        run(ps, expected(10, 3));
+        assertEquals(1, cache.hits());
+        run(ps, expected(10, 3));
+        assertEquals(2, cache.hits());
+
+        table("ps_a", a);
+        run(ps, expected(10, 3));
+        assertEquals(2, cache.hits());
+    }
+
+    /** Plain queries are cached by their text, and the least recently used dropped. */
+    @Test public void testLeastRecentlyUsed() throws Exception {
+        QueryPlanCache small = new QueryPlanCache(2);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ps_a", TableStats.getTableStats("ps_a"));
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            String sql = "SELECT * FROM ps_a WHERE ps_a.c0 = " + i + ";";
+            keys[i] = QueryPlanCache.normalize(sql);
+            TransactionId tid = new TransactionId();
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+            lp.physicalPlan(tid, stats, false);
+            small.put(keys[i], lp, stats);
+            if (i == 1)
+                assertNotNull(small.get(keys[0], stats));
+        }
+        assertEquals(2, small.size());
+        assertNotNull(small.get(keys[0], stats));
+        assertNull(small.get(keys[1], stats));
+        assertNotNull(small.get(keys[2], stats));
+
+        Parser p = new Parser();
+        p.processNextStatement("SELECT * FROM ps_a WHERE ps_a.c0 = 1;");
+        p.processNextStatement("select *  from ps_a where ps_a.c0 = 1");
+        assertEquals(1, cache.hits());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /**
+     * Joins two random tables with a SortMergeJoin over sorted inputs, and
+     * checks the result against a nested loops join computed in the test.
+     */
+    private void validateJoin(int rows1, int rows2, int maxValue, Predicate.Op op)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows1, maxValue, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows2, maxValue, null, t2Tuples);
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (new IntField(t1.get(1)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        OpIterator in1 = new OrderBy(1, true, new SeqScan(tid, table1.getId(), ""));
+        OpIterator in2 = new OrderBy(0, true, new SeqScan(tid, table2.getId(), ""));
+        assertTrue(SortMergeJoin.isSorted(in1, 1));
+        assertTrue(SortMergeJoin.isSorted(in2, 0));
+        assertFalse(SortMergeJoin.isSorted(in1, 0));
+        JoinPredicate p = new JoinPredicate(1, op, 0);
+        SortMergeJoin joinOp = new SortMergeJoin(p, in1, in2);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        // once more after a rewind
+        joinOp.open();
+        while (joinOp.hasNext())
+            joinOp.next();
+        joinOp.rewind();
+        int n = 0;
+        Field last = null;
+        while (joinOp.hasNext()) {
+            Field key = joinOp.next().getField(1);
+            if (op == Predicate.Op.EQUALS) {
+                // the output is sorted on the join key
+                assertTrue(last == null || !key.compare(Predicate.Op.LESS_THAN, last));
+                last = key;
+            }
+            n++;
+        }
+        assertEquals(expectedResults.size(), n);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testEquals()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(500, 700, 300, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testEqualsNoMatch()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 10, 1000000, Predicate.Op.EQUALS);
+        validateJoin(10, 0, 10, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testEqualsManyDuplicates()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(100, 80, 3, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testInequalities()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(60, 50, 20, Predicate.Op.LESS_THAN);
+        validateJoin(60, 50, 20, Predicate.Op.LESS_THAN_OR_EQ);
+        validateJoin(60, 50, 20, Predicate.Op.GREATER_THAN);
+        validateJoin(60, 50, 20, Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedPredicate() throws Exception {
+        OpIterator scan = new TupleIterator(Utility.getTupleDesc(1), new ArrayList<Tuple>());
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan, scan);
+    }
+
+    /**
+     * The optimizer merges sorted inputs and hashes unsorted ones, and
+     * merges inequalities only on inner sides that fit into memory.
+     */
+    @Test public void testInstantiateJoin() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, 10, null, null, "c");
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, 10, null, null, "c");
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        OpIterator s1 = new SeqScan(tid, table1.getId(), "a");
+        OpIterator s2 = new SeqScan(tid, table2.getId(), "b");
+        assertTrue(JoinOptimizer.instantiateJoin(lj, s1, s2) instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, new OrderBy(0, true, s1),
+                new OrderBy(0, true, s2)) instanceof SortMergeJoin);
+        // an inequality sorts the inner side in memory only if it fits there
+        lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, s1, s2) instanceof Join);
+        assertTrue(JoinOptimizer.instantiateJoin(lj.withMergeJoin(), s1, s2)
+                instanceof SortMergeJoin);
+        lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.NOT_EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, s1, s2) instanceof Join);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
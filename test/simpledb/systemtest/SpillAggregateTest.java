@@ -0,0 +1,135 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class SpillAggregateTest extends SimpleDbTestBase {
+    private final static int ROWS = 10000;
+    private final static int MAX_VALUE = 2000;
+    private final static int COLUMNS = 2;
+
+    private static ArrayList<ArrayList<Integer>> collect(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return out;
+    }
+
+    /**
+     * Checks an aggregate that spills against one that keeps all groups in
+     * memory.
+     */
+    private void validate(Aggregator.Op op, int maxGroups)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected =
+                collect(new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, op));
+
+        Aggregate spilling = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, op);
+        spilling.setMaxGroups(maxGroups);
+        spilling.open();
+        assertTrue(spilling.hasSpilled());
+        spilling.close();
+        SystemTestUtil.matchTuples(spilling, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSum() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.SUM, 100);
+    }
+
+    @Test public void testAverage() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.AVG, 100);
+    }
+
+    @Test public void testMinMax() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.MIN, 100);
+        validate(Aggregator.Op.MAX, 100);
+    }
+
+    @Test public void testCountDistinct() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.COUNT_DISTINCT, 100);
+    }
+
+    /** A budget of a single group spills recursively through many levels. */
+    @Test public void testRecursiveSpill() throws IOException, DbException, TransactionAbortedException {
+        validate(Aggregator.Op.COUNT, 1);
+    }
+
+    /** Spill files are gone once the aggregate is closed. */
+    @Test public void testRewindAndRelease() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, null);
+        TransactionId tid = new TransactionId();
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, Aggregator.Op.SUM);
+        agg.setMaxGroups(10);
+        int tables = countTables();
+
+        agg.open();
+        assertTrue(countTables() > tables);
+        int n = 0;
+        while (agg.hasNext()) {
+            agg.next();
+            n++;
+        }
+        agg.rewind();
+        int m = 0;
+        while (agg.hasNext()) {
+            agg.next();
+            m++;
+        }
+        assertEquals(n, m);
+        agg.close();
+        assertEquals(tables, countTables());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int countTables() {
+        int n = 0;
+        java.util.Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /** SpillFile returns the tuples in the order they were added. */
+    @Test public void testSpillFile() throws DbException, TransactionAbortedException {
+        TupleDesc td = Utility.getTupleDesc(2);
+        SpillFile f = new SpillFile(td);
+        int n = 3 * (BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1)) + 5;
+        for (int i = 0; i < n; i++)
+            f.add(Utility.getHeapTuple(new int[] {i, -i}));
+        assertEquals(n, f.size());
+        DbFileIterator it = f.iterator();
+        assertEquals(4, f.numPages());
+        for (int pass = 0; pass < 2; pass++) {
+            it.open();
+            for (int i = 0; i < n; i++) {
+                Tuple t = it.next();
+                assertEquals(i, ((IntField) t.getField(0)).getValue());
+                assertEquals(-i, ((IntField) t.getField(1)).getValue());
+            }
+            assertFalse(it.hasNext());
+            it.close();
+        }
+        f.delete();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SpillAggregateTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class TopNTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /** The expected output: the tuples stably sorted on column 0, then cut. */
+    private static List<ArrayList<Integer>> topN(ArrayList<ArrayList<Integer>> tuples,
+            final boolean asc, int limit, int offset) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(out, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return asc ? c : -c;
+            }
+        });
+        int from = Math.min(offset, out.size());
+        return out.subList(from, Math.min(out.size(), from + limit));
+    }
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        return out;
+    }
+
+    /** TopN returns exactly what a full sort followed by LIMIT would. */
+    @Test public void testHeap() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 200, null, tuples);
+        TransactionId tid = new TransactionId();
+        int[][] cases = { { 50, 0 }, { 50, 30 }, { 1, 0 }, { 0, 10 }, { 6000, 0 }, { 10, 4995 } };
+        for (boolean asc : new boolean[] { true, false }) {
+            for (int[] c : cases) {
+                TopN top = new TopN(0, asc, c[0], c[1], new SeqScan(tid, f.getId(), ""));
+                assertFalse(top.isStreaming());
+                top.open();
+                List<ArrayList<Integer>> expected = topN(tuples, asc, c[0], c[1]);
+                assertEquals(expected, drain(top));
+                top.rewind();
+                assertEquals(expected, drain(top));
+                top.close();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Over a B+ tree in key order, TopN reads only the tuples it returns. */
+    @Test public void testStreaming() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(COLUMNS, 10000, 100000, null, tuples, 0);
+        TransactionId tid = new TransactionId();
+
+        TopN top = new TopN(0, true, 50, 20, new SeqScan(tid, bf.getId(), ""));
+        assertTrue(top.isStreaming());
+        top.open();
+        ArrayList<ArrayList<Integer>> result = drain(top);
+        assertEquals(70, top.tuplesRead());
+        assertEquals(50, result.size());
+        // keys equal to the last key returned may come in any order
+        List<ArrayList<Integer>> expected = topN(tuples, true, 50, 20);
+        for (int i = 0; i < 50; i++)
+            assertEquals(expected.get(i).get(0), result.get(i).get(0));
+        top.close();
+
+        // descending order still needs the heap
+        TopN desc = new TopN(0, false, 5, 0, new SeqScan(tid, bf.getId(), ""));
+        assertFalse(desc.isStreaming());
+        desc.open();
+        assertEquals(10000, desc.tuplesRead());
+        assertEquals(5, drain(desc).size());
+        desc.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testLimit() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, null, tuples);
+        TransactionId tid = new TransactionId();
+        Limit l = new Limit(10, 95, new SeqScan(tid, f.getId(), ""));
+        l.open();
+        assertEquals(tuples.subList(95, 100), drain(l));
+        l.rewind();
+        assertEquals(5, drain(l).size());
+        l.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** LIMIT and OFFSET are parsed and planned as a TopN or a Limit. */
+    @Test public void testParser() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 300, null, tuples, "c");
+        Database.getCatalog().addTable(f, "topn_test");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("topn_test", new TableStats(f.getId(), 1));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT t.c0, t.c1 FROM topn_test t ORDER BY t.c0 DESC LIMIT 25 OFFSET 10;");
+        assertEquals(25, lp.getLimit());
+        assertEquals(10, lp.getOffset());
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        plan.open();
+        assertEquals(topN(tuples, false, 25, 10), drain(plan));
+        plan.close();
+
+        lp = p.generateLogicalPlan(tid, "SELECT t.c0 FROM topn_test t limit 7;");
+        assertEquals(7, lp.getLimit());
+        assertEquals(0, lp.getOffset());
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        plan.open();
+        assertEquals(7, drain(plan).size());
+        plan.close();
+
+        lp = p.generateLogicalPlan(tid, "SELECT t.c0 FROM topn_test t;");
+        assertEquals(-1, lp.getLimit());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(TopNTest.class);
+    }
+}